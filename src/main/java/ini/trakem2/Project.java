@@ -792,6 +792,7 @@ public class Project extends DBObject {
 		if (null != project_tree) project_tree.destroy();
 		if (null != layer_tree) layer_tree.destroy();
 		Polyline.flushTraceCache(this);
+		Patch.flushTransformMeshCache(this);
 		this.template_tree = null; // flag to mean: we're closing
 		// close all open Displays
 		Display.close(this);
@@ -1540,6 +1541,8 @@ public class Project extends DBObject {
 		gd.addNumericField("Look_ahead_cache:", look_ahead_cache, 0, 6, "layers");
 		int autosaving_interval = getProperty("autosaving_interval", 10); // default: every 10 minutes
 		gd.addNumericField("Autosave every:", autosaving_interval, 0, 6, "minutes");
+		boolean incremental_save = "true".equals(ht_props.get("incremental_save"));
+		gd.addCheckbox("Incremental_save (journal changed objects next to the XML file)", incremental_save);
 		int n_mipmap_threads = getProperty("n_mipmap_threads", 1);
 		gd.addSlider("Number of threads for mipmaps", 1, n_mipmap_threads, n_mipmap_threads);
 		int meshResolution = getProperty("mesh_resolution", 32);
@@ -1618,6 +1621,7 @@ public class Project extends DBObject {
 			setProperty("autosaving_interval", Integer.toString((int)autosaving_interval2));
 			restartAutosaving();
 		}
+		adjustProp("incremental_save", incremental_save, gd.getNextBoolean());
 		int n_mipmap_threads2 = (int)Math.max(1, gd.getNextNumber());
 		if (n_mipmap_threads != n_mipmap_threads2) {
 			setProperty("n_mipmap_threads", Integer.toString(n_mipmap_threads2));
@@ -691,6 +691,7 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 			}
 			target.setData(interpolated);
 		}
+		project.getLoader().dataChanged(this);
 
 		return true;
 	}
@@ -32,34 +32,133 @@ import java.awt.Rectangle;
 import java.awt.Stroke;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.TreeMap;
 
 
 /** 
- * A Bucket is a subarea of the Layer area, which contains either other Buckets or a map of stack_index vs. Displayable instances. VERY IMPORTANT: either children is null, or map is null, but both cannot be null at the same time neither not null at the same time.
+ * The spatial index of the Displayable objects of a Layer, or of the ZDisplayable objects of a LayerSet at one Layer.
+ * It is an R-tree: each leaf node holds up to {@link #MAX_NODE_SIZE} entries, each with the bounds of a Displayable
+ * and its stack_index; and each inner node up to {@link #MAX_NODE_SIZE} child nodes, with the bounds that enclose them all.
  *
+ * The tree is bulk-loaded with the Sort-Tile-Recursive (STR) packing in {@link #populate(Bucketable, Layer, HashMap)},
+ * and then updated incrementally: a Displayable that changes position is removed and inserted again,
+ * splitting overflowing nodes and dropping emptied ones, without rebuilding the whole tree.
+ *
+ * Searches return the Displayable objects ordered by stack_index.
+ * The bucket map of a Bucketable maps each indexed Displayable to this Bucket.
  */
 public class Bucket {
 
 	static public final int MIN_BUCKET_SIZE = 4096;
 
-	private int bucket_side;
+	/** Maximum number of entries of a leaf node and of children of an inner node. */
+	static private final int MAX_NODE_SIZE = 16;
 
-	/** The sorted map of stack_index and Displayable objects that are fully contained in this bucket or intersect at top and left, but not at right and bottom. That is, the lower-right corner of the Displayable is contained with the area of this bucket. */
-	private TreeMap<Integer,Displayable> map = null;
-	/** The set of sub-buckets contained here. */
-	private ArrayList<Bucket> children = null;
+	private int bucket_side;
 
 	private final int x,y,w,h;
 
-	private boolean empty = true;
+	/** Bounds of an Entry or a Node. */
+	static private abstract class Box {
+		double x1, y1, x2, y2;
+		final boolean intersects(final double rx1, final double ry1, final double rx2, final double ry2) {
+			return x1 <= rx2 && rx1 <= x2 && y1 <= ry2 && ry1 <= y2;
+		}
+		final boolean contains(final double px, final double py) {
+			return px >= x1 && px <= x2 && py >= y1 && py <= y2;
+		}
+		final double area() {
+			return (x2 - x1) * (y2 - y1);
+		}
+		/** The increase in area to enclose also @param b. */
+		final double enlargement(final Box b) {
+			return (Math.max(x2, b.x2) - Math.min(x1, b.x1)) * (Math.max(y2, b.y2) - Math.min(y1, b.y1)) - area();
+		}
+	}
+
+	/** A Displayable at its stack_index, with the bounds of its area for the Layer. */
+	static private final class Entry extends Box {
+		final Displayable d;
+		int stack_index;
+		Node leaf = null;
+		Entry(final Displayable d, final int stack_index, final Rectangle2D b) {
+			this.d = d;
+			this.stack_index = stack_index;
+			this.x1 = b.getX();
+			this.y1 = b.getY();
+			this.x2 = b.getX() + b.getWidth();
+			this.y2 = b.getY() + b.getHeight();
+		}
+	}
+
+	/** Either a leaf, with entries, or an inner node, with children. */
+	static private final class Node extends Box {
+		Node parent = null;
+		final ArrayList<Node> children;
+		final ArrayList<Entry> entries;
+		Node(final boolean leaf) {
+			this.children = leaf ? null : new ArrayList<Node>(MAX_NODE_SIZE + 1);
+			this.entries = leaf ? new ArrayList<Entry>(MAX_NODE_SIZE + 1) : null;
+		}
+		final boolean isLeaf() {
+			return null != entries;
+		}
+		final int size() {
+			return isLeaf() ? entries.size() : children.size();
+		}
+		final List<? extends Box> boxes() {
+			return isLeaf() ? entries : children;
+		}
+		final void add(final Box b) {
+			if (isLeaf()) {
+				final Entry e = (Entry) b;
+				entries.add(e);
+				e.leaf = this;
+			} else {
+				final Node n = (Node) b;
+				children.add(n);
+				n.parent = this;
+			}
+		}
+		final void recomputeBounds() {
+			x1 = y1 = Double.MAX_VALUE;
+			x2 = y2 = -Double.MAX_VALUE;
+			for (final Box b : boxes()) {
+				if (b.x1 < x1) x1 = b.x1;
+				if (b.y1 < y1) y1 = b.y1;
+				if (b.x2 > x2) x2 = b.x2;
+				if (b.y2 > y2) y2 = b.y2;
+			}
+		}
+	}
+
+	static private final Comparator<Box> BY_X = new Comparator<Box>() {
+		@Override
+		public int compare(final Box b1, final Box b2) {
+			return Double.compare(b1.x1 + b1.x2, b2.x1 + b2.x2);
+		}
+	};
+
+	static private final Comparator<Box> BY_Y = new Comparator<Box>() {
+		@Override
+		public int compare(final Box b1, final Box b2) {
+			return Double.compare(b1.y1 + b1.y2, b2.y1 + b2.y2);
+		}
+	};
+
+	private Node tree = new Node(true);
+
+	/** The entry of each indexed Displayable. */
+	private final HashMap<Displayable,Entry> index = new HashMap<Displayable,Entry>();
 
 	public Bucket(final int x, final int y, final int w, final int h, final int bucket_side) {
 		this.x = x;
@@ -67,152 +166,181 @@ public class Bucket {
 		this.w = w;
 		this.h = h;
 		this.bucket_side = bucket_side;
-		Utils.showStatus(new StringBuilder("Creating bucket ").append(x).append(',').append(y).append(',').append(w).append(',').append(h).toString(), false);
-		//Utils.log2(this.toString());
 	}
 
 	public String toString() {
 		return "Bucket: " + x + ",  " + y + ", " + w + ", " + h;
 	}
 
+	/** Index all Displayable objects of the @param container at once, replacing any indexed before. */
 	synchronized final void populate(final Bucketable container, final Layer layer, final HashMap<Displayable,HashSet<Bucket>> db_map) {
-		// Reset
-		if (null != this.map) this.map.clear();
-		this.children = null;
-		// Refill:
-		final HashMap<Integer,Displayable> list = new HashMap<Integer,Displayable>();
+		index.clear();
+		final ArrayList<Entry> entries = new ArrayList<Entry>();
 		int i = 0;
-		// cache all bounding boxes
-		final HashMap<Displayable,Area> areas = new HashMap<Displayable,Area>();
 		for (final Displayable d : container.getDisplayableList()) {
-			list.put(i, d);
-			i++;
-			final Area a = d.getAreaForBucket(layer);
-			if (null != a) areas.put(d, a);
+			final Entry e = createEntry(d, i++, d.getAreaForBucket(layer));
+			if (null == e) continue;
+			entries.add(e);
+			index.put(d, e);
+			putToBucketMap(d, db_map);
+		}
+		this.tree = pack(entries);
+	}
+
+	/** Returns null if the area is null or empty: such Displayable objects are not indexed. */
+	static private final Entry createEntry(final Displayable d, final int stack_index, final Area a) {
+		if (null == a || a.isEmpty()) return null;
+		return new Entry(d, stack_index, a.getBounds2D());
+	}
+
+	/** Sort-Tile-Recursive packing: sort by x into vertical slices, sort each slice by y,
+	 *  and fill nodes in that order; then the same for the nodes, level by level, up to a single root. */
+	static private final Node pack(final List<? extends Box> boxes) {
+		if (boxes.isEmpty()) return new Node(true);
+		List<? extends Box> level = boxes;
+		boolean leaves = true;
+		while (true) {
+			final ArrayList<Node> nodes = packLevel(level, leaves);
+			if (1 == nodes.size()) return nodes.get(0);
+			level = nodes;
+			leaves = false;
 		}
-		populate(container, db_map, w+w, h+h, w, h, list, areas);
 	}
 
-	/** Recursive initialization of buckets. This method is meant to be used as init, when root is null or is made new from scratch. Returns true if not empty. */
-	final private boolean populate(final Bucketable container, final HashMap<Displayable,HashSet<Bucket>> db_map, final int parent_w, final int parent_h, final int max_width, final int max_height, final HashMap<Integer,Displayable> parent_list, final HashMap<Displayable,Area> areas) {
-		if (this.w <= bucket_side || this.h <= bucket_side) {
-			// add displayables, sorted by index
-			map = new TreeMap<Integer,Displayable>();
-			for (final Map.Entry<Integer,Displayable> e : parent_list.entrySet()) {
-				final Displayable d = e.getValue();
-				final Area a = areas.get(d);
-				if (null == a) continue;
-				if (a.intersects(x, y, w, h)) {
-					map.put(e.getKey(), d);
-					putToBucketMap(d, db_map);
-				}
+	static private final ArrayList<Node> packLevel(final List<? extends Box> level, final boolean leaves) {
+		final Box[] bs = level.toArray(new Box[level.size()]);
+		final int n_nodes = (bs.length + MAX_NODE_SIZE - 1) / MAX_NODE_SIZE;
+		final int n_slices = (int)Math.ceil(Math.sqrt(n_nodes));
+		final int slice_size = n_slices * MAX_NODE_SIZE;
+		Arrays.sort(bs, BY_X);
+		final ArrayList<Node> nodes = new ArrayList<Node>(n_nodes);
+		for (int first = 0; first < bs.length; first += slice_size) {
+			final int last = Math.min(bs.length, first + slice_size);
+			Arrays.sort(bs, first, last, BY_Y);
+			for (int k = first; k < last; k += MAX_NODE_SIZE) {
+				final Node node = new Node(leaves);
+				for (int m = k, end = Math.min(last, k + MAX_NODE_SIZE); m < end; m++) node.add(bs[m]);
+				node.recomputeBounds();
+				nodes.add(node);
 			}
-			this.empty = map.isEmpty();
-			//Utils.log2(empty ? "EMPTY ": "FILLED " + this);
-		} else {
-			// create child buckets as subdivisions of this one
-			children = new ArrayList<Bucket>(2*2);
-
-			int side_w = (int)Math.pow(2, (int)Math.floor(Math.log(Math.max(w,h)) / Math.log(2)) - 1);
-			int side_h = side_w;
-			if (side_w > max_width) side_w = max_width;
-			if (side_h > max_height) side_h = max_height;
-
-			// create list of Displayables that will be added here, as extracted from the parent list
-			final HashMap<Integer,Displayable> local_list = new HashMap<Integer,Displayable>();
-			for (final Map.Entry<Integer,Displayable> e : parent_list.entrySet()) {
-				final Displayable d = e.getValue();
-				final Area a = areas.get(d);
-				if (null == a) continue;
-				if (a.intersects(x, y, w, h)) local_list.put(e.getKey(), d);
+		}
+		return nodes;
+	}
+
+	/** Add @param e to the leaf whose bounds need the least enlargement, splitting nodes that overflow. */
+	private final void insert(final Entry e) {
+		Node node = tree;
+		while (!node.isLeaf()) {
+			Node best = null;
+			double best_enlargement = Double.MAX_VALUE,
+			       best_area = Double.MAX_VALUE;
+			for (final Node child : node.children) {
+				final double enl = child.enlargement(e);
+				final double area = child.area();
+				if (enl < best_enlargement || (enl == best_enlargement && area < best_area)) {
+					best = child;
+					best_enlargement = enl;
+					best_area = area;
+				}
 			}
-
-			//Utils.log2(local_list.size() + " :: " + this.toString());
-
-			for (int x=0; x<parent_w; x += side_w) {
-				if (this.x + x >= max_width) continue;
-				int width = side_w;
-				if (this.x + x + side_w > max_width) width = max_width - this.x - x;
-				for (int y=0; y<parent_h; y += side_h) {
-					if (this.y + y >= max_height) continue;
-					int height = side_h;
-					if (this.y + y + side_h > max_height) height = max_height - this.y - y;
-					final Bucket bu = new Bucket(this.x + x, this.y + y, width, height, bucket_side);
-					if (bu.populate(container, db_map, width, height, max_width, max_height, local_list, areas)) {
-						this.empty = false;
-					}
-					children.add(bu);
+			node = best;
+		}
+		node.add(e);
+		// Grow or split up to the root
+		while (null != node) {
+			final Node parent = node.parent;
+			if (node.size() > MAX_NODE_SIZE) {
+				final Node sibling = split(node);
+				if (null == parent) {
+					final Node root = new Node(false);
+					root.add(node);
+					root.add(sibling);
+					root.recomputeBounds();
+					this.tree = root;
+				} else {
+					parent.add(sibling);
 				}
+			} else {
+				node.recomputeBounds();
 			}
+			node = parent;
+		}
+	}
 
-
-			/*
-			int w = this.w / 2;
-			int h = this.h / 2;
-			for (int i=0; i<2; i++) {
-				for (int j=0; j<2; j++) {
-					Bucket bu = new Bucket(this.x + i * w, this.y + j * h, w, h);
-					if (bu.populate(container, db_map)) {
-						//Utils.log2("FILLEd " + this);
-						this.empty = false;
-					//} else {
-					//	Utils.log2("EMPTY " + this);
-					}
-					children.add(bu);
-				}
+	/** Move half of the contents of @param node, along the axis in which they spread the most, to a new sibling node. */
+	static private final Node split(final Node node) {
+		final ArrayList<Box> bs = new ArrayList<Box>(node.boxes());
+		node.recomputeBounds();
+		Collections.sort(bs, node.x2 - node.x1 > node.y2 - node.y1 ? BY_X : BY_Y);
+		final Node sibling = new Node(node.isLeaf());
+		if (node.isLeaf()) node.entries.clear();
+		else node.children.clear();
+		final int half = bs.size() / 2;
+		for (int i=0; i<bs.size(); i++) {
+			if (i < half) node.add(bs.get(i));
+			else sibling.add(bs.get(i));
+		}
+		node.recomputeBounds();
+		sibling.recomputeBounds();
+		return sibling;
+	}
+
+	/** Remove @param e from its leaf, dropping nodes left empty and shrinking the bounds of their ancestors. */
+	private final void delete(final Entry e) {
+		Node node = e.leaf;
+		if (null == node) return;
+		node.entries.remove(e);
+		e.leaf = null;
+		while (null != node) {
+			final Node parent = node.parent;
+			if (0 == node.size() && null != parent) {
+				parent.children.remove(node);
+			} else {
+				node.recomputeBounds();
 			}
-			*/
+			node = parent;
+		}
+		// Collapse a root with a single child
+		while (!tree.isLeaf() && 1 == tree.children.size()) {
+			tree = tree.children.get(0);
+			tree.parent = null;
 		}
-		return !this.empty;
+		if (!tree.isLeaf() && tree.children.isEmpty()) tree = new Node(true);
 	}
 
-	private final boolean intersects(final Rectangle r) {
-		if (r.width <= 0 || r.height <= 0 || w <= 0 || h <= 0) {
-		    return false;
+	/** Accumulate the entries whose bounds intersect the given rectangle. */
+	static private final void search(final Node node, final double x1, final double y1, final double x2, final double y2, final ArrayList<Entry> found) {
+		if (0 == node.size() || !node.intersects(x1, y1, x2, y2)) return;
+		if (node.isLeaf()) {
+			for (final Entry e : node.entries) {
+				if (e.intersects(x1, y1, x2, y2)) found.add(e);
+			}
+		} else {
+			for (final Node child : node.children) search(child, x1, y1, x2, y2, found);
 		}
-		final int rw = r.x + r.width;
-		final int rh = r.y + r.height;
-		final int tw = w + x;
-		final int th = h + y;
-		//      overflow || intersect
-		return ((rw < r.x || rw > x) &&
-			(rh < r.y || rh > y) &&
-			(tw < x || tw > r.x) &&
-			(th < y || th > r.y));
 	}
 
-	private final boolean contains(final double px, final double py) {
-		return px >= x &&
-		       py >= y &&
-		       px <= x + w &&
-		       py <= y + h;
+	/** The entries whose bounds intersect @param r, or none if @param r is empty. */
+	private final ArrayList<Entry> search(final Rectangle2D r) {
+		final ArrayList<Entry> found = new ArrayList<Entry>();
+		if (r.getWidth() <= 0 || r.getHeight() <= 0) return found;
+		search(tree, r.getX(), r.getY(), r.getX() + r.getWidth(), r.getY() + r.getHeight(), found);
+		return found;
 	}
 
 	/** Find All Displayable objects that intersect with the given srcRect and return them ordered by stack_index. Of @param visible_only is true, then hidden Displayable objects are ignored. */
 	synchronized final Collection<Displayable> find(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
-		find(accum, srcRect, layer, visible_only);
-		return accum.values(); // sorted by integer key
-	}
-
-	/** Recursive search, accumulates Displayable objects that intersect the srcRect and, if @param visible_only is true, then checks first if so. */
-	private void find(final TreeMap<Integer,Displayable> accum, final Rectangle srcRect, final Layer layer, final boolean visible_only) {
-		if (empty || !intersects(srcRect)) return;
-		if (null != children) {
-			for (final Bucket bu : children) {
-				bu.find(accum, srcRect, layer, visible_only);
-			}
-		} else {
-			final Area asrc = new Area(srcRect);
-			for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
-				final Displayable d = entry.getValue();
-				if (visible_only && !d.isVisible()) continue;
-				final Area a = d.getAreaForBucket(layer);
-				if (null != a && M.intersects(asrc, a)) {
-					accum.put(entry.getKey(), d);
-				}
+		final Area asrc = new Area(srcRect);
+		for (final Entry e : search(srcRect)) {
+			final Displayable d = e.d;
+			if (visible_only && !d.isVisible()) continue;
+			final Area a = d.getAreaForBucket(layer);
+			if (null != a && M.intersects(asrc, a)) {
+				accum.put(e.stack_index, d);
 			}
 		}
+		return accum.values(); // sorted by integer key
 	}
 
 	/** Find All Displayable objects that intersect with the given srcRect and return them ordered by stack_index. Of @param visible_only is true, then hidden Displayable objects are ignored.
@@ -220,299 +348,129 @@ public class Bucket {
 	 * Fast and dirty, never returns a false negative but may return a false positive. */
 	synchronized final Collection<Displayable> roughlyFind(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
-		roughlyFind(accum, srcRect, layer, visible_only);
+		for (final Entry e : search(srcRect)) {
+			final Displayable d = e.d;
+			if (visible_only && !d.isVisible()) continue;
+			if (d.isRoughlyInside(layer, srcRect)) {
+				accum.put(e.stack_index, d);
+			}
+		}
 		return accum.values(); // sorted by integer key
 	}
 
-	/** Recursive search, accumulates Displayable objects that intersect the srcRect and, if @param visible_only is true, then checks first if so. */
-	private void roughlyFind(final TreeMap<Integer,Displayable> accum, final Rectangle srcRect, final Layer layer, final boolean visible_only) {
-		if (empty || !intersects(srcRect)) return;
-		if (null != children) {
-			for (final Bucket bu : children) {
-				bu.roughlyFind(accum, srcRect, layer, visible_only);
-			}
-		} else {
-			//final Rectangle tmp = new Rectangle();
-			//final Area asrc = new Area(srcRect);
-			final Rectangle BOX = new Rectangle(x, y, w, h);
-			for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
-				final Displayable d = entry.getValue();
-				if (visible_only && !d.isVisible()) continue;
-				/* // Too slow for a rough search as needed by DisplayCanvas.gatherDisplayables!
-				 * // That method calls LayerSet.findZDisplayables(Layer, Rectangle, boolean) which calls here
+	/** Find All Displayable objects that intersect with the given srcRect and return them ordered by stack_index. Of @param visible_only is true, then hidden Displayable objects are ignored. */
+	synchronized final Collection<Displayable> find(final Class<?> c, final Rectangle srcRect, final Layer layer, final boolean visible_only, final boolean instance_of) {
+		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
+		final Area asrc = new Area(srcRect);
+		for (final Entry e : search(srcRect)) {
+			final Displayable d = e.d;
+			if (visible_only && !d.isVisible()) continue;
+			if (instance_of ? c.isAssignableFrom(d.getClass()) : d.getClass() == c) {
 				final Area a = d.getAreaForBucket(layer);
 				if (null != a && M.intersects(asrc, a)) {
-					accum.put(entry.getKey(), d);
-				}
-				*/
-				// Instead:
-				if (d.isRoughlyInside(layer, BOX)) {
-					accum.put(entry.getKey(), d);
+					accum.put(e.stack_index, d);
 				}
 			}
 		}
-	}
-
-	/** Find All Displayable objects that intersect with the given srcRect and return them ordered by stack_index. Of @param visible_only is true, then hidden Displayable objects are ignored. */
-	synchronized final Collection<Displayable> find(final Class<?> c, final Rectangle srcRect, final Layer layer, final boolean visible_only, final boolean instance_of) {
-		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
-		find(accum, c, srcRect, layer, visible_only, instance_of);
 		return accum.values(); // sorted by integer key
 	}
 
-	/** Recursive search, accumulates Displayable objects that intersect the srcRect and, if @param visible_only is true, then checks first if so. */
-	private void find(final TreeMap<Integer,Displayable> accum, final Class<?> c, final Rectangle srcRect, final Layer layer, final boolean visible_only, final boolean instance_of) {
-		if (empty || !intersects(srcRect)) return;
-		if (null != children) {
-			for (final Bucket bu : children) {
-				bu.find(accum, c, srcRect, layer, visible_only, instance_of);
-			}
-		} else {
-			final Area asrc = new Area(srcRect);
-			if (instance_of) {
-				for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
-					final Displayable d = entry.getValue();
-					if (visible_only && !d.isVisible()) continue;
-					if (c.isAssignableFrom(d.getClass())) {
-						final Area a = d.getAreaForBucket(layer);
-						if (null != a && M.intersects(asrc, a)) {
-							accum.put(entry.getKey(), d);
-						}
-					}
-				}
-			} else {
-				for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
-					final Displayable d = entry.getValue();
-					if (visible_only && !d.isVisible()) continue;
-					if (d.getClass() == c) {
-						final Area a = d.getAreaForBucket(layer);
-						if (null != a && M.intersects(asrc, a)) {
-							accum.put(entry.getKey(), d);
-						}
-					}
-				}
-			}
-		}
+	/** The entries whose bounds contain the point. */
+	private final ArrayList<Entry> search(final double px, final double py) {
+		final ArrayList<Entry> found = new ArrayList<Entry>();
+		search(tree, px, py, px, py, found);
+		return found;
 	}
 
 	/** Find all Displayable objects that contain the given point at the given layer (here layer acts as the Z coordinate, then) and return them ordered by stack_index. If @param visible_only is trye, then hidden Displayable objects are ignored. */
 	synchronized final Collection<Displayable> find(final double px, final double py, final Layer layer, final boolean visible_only) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
-		find(accum, px, py, layer, visible_only);
-		return accum.values(); // sorted by integer key
-	}
-	/** Recursive search, accumulates Displayable objects that contain the given point and, if @param visible_only is true, then checks first if so. */
-	private void find(final TreeMap<Integer,Displayable> accum, final double px, final double py, final Layer layer, final boolean visible_only) {
-		if (empty || !contains(px, py)) return;
-		if (null != children) {
-			for (final Bucket bu : children) {
-				 bu.find(accum, px, py, layer, visible_only);
-			}
-		} else {
-			for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
-				final Displayable d = entry.getValue();
-				if (visible_only && !d.isVisible()) continue;
-				if (d.contains(layer, px, py)) {
-					accum.put(entry.getKey(), d);
-				}
+		for (final Entry e : search(px, py)) {
+			final Displayable d = e.d;
+			if (visible_only && !d.isVisible()) continue;
+			if (d.contains(layer, px, py)) {
+				accum.put(e.stack_index, d);
 			}
-			//Utils.log2("Bucket with " + map.size() + " contains click " + this.toString());
 		}
+		return accum.values(); // sorted by integer key
 	}
 
 	/** Find all Displayable objects that contain the given point at the given layer (here layer acts as the Z coordinate, then) and return them ordered by stack_index. If @param visible_only is trye, then hidden Displayable objects are ignored. */
 	synchronized final Collection<Displayable> find(final Class<?> c, final double px, final double py, final Layer layer, final boolean visible_only, final boolean instance_of) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
-		find(accum, c, px, py, layer, visible_only, instance_of);
-		return accum.values(); // sorted by integer key
-	}
-	/** Recursive search, accumulates Displayable objects that contain the given point and, if @param visible_only is true, then checks first if so. */
-	private void find(final TreeMap<Integer,Displayable> accum, final Class<?> c, final double px, final double py, final Layer layer, final boolean visible_only, final boolean instance_of) {
-		if (empty || !contains(px, py)) return;
-		if (null != children) {
-			for (final Bucket bu : children) {
-				 bu.find(accum, c, px, py, layer, visible_only, instance_of);
-			}
-		} else {
-			if (instance_of) {
-				for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
-					final Displayable d = entry.getValue();
-					if (visible_only && !d.isVisible()) continue;
-					if (c.isAssignableFrom(d.getClass()) && d.contains(layer, px, py)) {
-						accum.put(entry.getKey(), d);
-					}
-				}
-			} else {
-				for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
-					final Displayable d = entry.getValue();
-					if (visible_only && !d.isVisible()) continue;
-					if (d.getClass() == c && d.contains(layer, px, py)) {
-						accum.put(entry.getKey(), d);
-					}
-				}
+		for (final Entry e : search(px, py)) {
+			final Displayable d = e.d;
+			if (visible_only && !d.isVisible()) continue;
+			if ((instance_of ? c.isAssignableFrom(d.getClass()) : d.getClass() == c) && d.contains(layer, px, py)) {
+				accum.put(e.stack_index, d);
 			}
 		}
+		return accum.values(); // sorted by integer key
 	}
 
 	/** Find all Displayable objects that intersect the given Area and return them ordered by stack_index. If @param visible_only is trye, then hidden Displayable objects are ignored. */
 	synchronized final Collection<Displayable> find(final Area area, final Layer layer, final boolean visible_only) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
-		find(accum, area, layer, visible_only);
-		return accum.values(); // sorted by integer key
-	}
-	/** Recursive search, accumulates Displayable objects that contain the given point and, if @param visible_only is true, then checks first if so. */
-	private void find(final TreeMap<Integer,Displayable> accum, final Area area, final Layer layer, final boolean visible_only) {
-		if (empty || !intersects(area.getBounds())) return;
-		if (null != children) {
-			for (final Bucket bu : children) {
-				 bu.find(accum, area, layer, visible_only);
-			}
-		} else {
-			for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
-				final Displayable d = entry.getValue();
-				if (visible_only && !d.isVisible()) continue;
-				if (d.intersects(layer, area)) {
-					accum.put(entry.getKey(), d);
-				}
+		for (final Entry e : search(area.getBounds2D())) {
+			final Displayable d = e.d;
+			if (visible_only && !d.isVisible()) continue;
+			if (d.intersects(layer, area)) {
+				accum.put(e.stack_index, d);
 			}
 		}
+		return accum.values(); // sorted by integer key
 	}
+
 	/** Find all Displayable objects that intersect the given Area and return them ordered by stack_index. If @param visible_only is trye, then hidden Displayable objects are ignored. */
 	synchronized final Collection<Displayable> find(final Class<?> c, final Area area, final Layer layer, final boolean visible_only, final boolean instance_of) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
-		find(accum, c, area, layer, visible_only, instance_of);
-		return accum.values(); // sorted by integer key
-	}
-	/** Recursive search, accumulates Displayable objects that contain the given point and, if @param visible_only is true, then checks first if so. */
-	private void find(final TreeMap<Integer,Displayable> accum, final Class<?> c, final Area area, final Layer layer, final boolean visible_only, final boolean instance_of) {
-		if (empty || !intersects(area.getBounds())) return;
-		if (null != children) {
-			for (final Bucket bu : children) {
-				 bu.find(accum, c, area, layer, visible_only, instance_of);
-			}
-		} else {
-			if (instance_of) {
-				for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
-					final Displayable d = entry.getValue();
-					if (visible_only && !d.isVisible()) continue;
-					if (c.isAssignableFrom(d.getClass()) && d.intersects(layer, area)) {
-						accum.put(entry.getKey(), d);
-					}
-				}
-			} else {
-				for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
-					final Displayable d = entry.getValue();
-					if (visible_only && !d.isVisible()) continue;
-					if (d.getClass() == c && d.intersects(layer, area)) {
-						accum.put(entry.getKey(), d);
-					}
-				}
+		for (final Entry e : search(area.getBounds2D())) {
+			final Displayable d = e.d;
+			if (visible_only && !d.isVisible()) continue;
+			if ((instance_of ? c.isAssignableFrom(d.getClass()) : d.getClass() == c) && d.intersects(layer, area)) {
+				accum.put(e.stack_index, d);
 			}
 		}
+		return accum.values(); // sorted by integer key
 	}
 
 	/** Update a Displayable's stack index from old to new, or a range. */
 	synchronized final void updateRange(final Bucketable container, final Displayable d, final int old_i, final int new_i) {
-		// Build a map with the new indices
-		final HashMap<Displayable,Integer> stack_indices = new HashMap<Displayable,Integer>();
 		final ArrayList<? extends Displayable> dlist = container.getDisplayableList();
 		for (int i=old_i; i<=new_i; i++) {
-			stack_indices.put(dlist.get(i), i);
-		}
-		updateRange(container, old_i, new_i, stack_indices);
-	}
-	/*
-	final Set<Displayable> removeRange(final Bucketable container, final int first, final int last) {
-		final HashSet<Displayable> hs = new HashSet<Displayable>();
-		removeRange(container, first, last, hs);
-		return hs;
-	}
-	*/
-	/** Accumulate removed Displayable instances into the HashSet. */
-	/*
-	final private void removeRange(final Bucketable container, final int first, final int last, final HashSet<Displayable> hs) {
-		if (null != children) {
-			for (Bucket bu : children) bu.removeRange(container, first, last, hs);
-		} else if (null != map) {
-			// remove entire range
-			for (int i=first; i<=last; i++) {
-				final Displayable d =  map.remove(i);
-				if (null != d) hs.add(d);
-			}
-		}
-	}
-	*/
-
-	final private void updateRange(final Bucketable container, final int first, final int last, final HashMap<Displayable,Integer> new_stack_indices) {
-		if (null != children) {
-			for (final Bucket bu : children) bu.updateRange(container, first, last, new_stack_indices);
-		} else if (null != map) {
-			// remove range
-			// (in two steps, to avoid overwriting existing entries)
-			final ArrayList<Displayable> a = new ArrayList<Displayable>(last - first + 1);
-			for (int i=first; i<=last; i++) {
-				final Displayable d =  map.remove(i);
-				if (null != d) a.add(d);
-			}
-			// re-add range with new stack_index keys
-			for (final Displayable d : a) map.put(new_stack_indices.get(d), d);
+			final Entry e = index.get(dlist.get(i));
+			if (null != e) e.stack_index = i;
 		}
 	}
 
-	/** Remove from wherever it is, then test if it's in that bucket, otherwise re-add. */
+	/** Remove from wherever it is, then re-add where its area is now. */
 	synchronized final void updatePosition(final Displayable d, final Layer layer, final HashMap<Displayable,HashSet<Bucket>> db_map) {
-		final HashSet<Bucket> hs = db_map.get(d);
 		final Area a = d.getAreaForBucket(layer);
 		final int stack_index = d.getBucketable().getDisplayableList().indexOf(d);
-		if (null != hs) {
-			for (final Iterator<Bucket> it = hs.iterator(); it.hasNext(); ) {
-				final Bucket bu = it.next();
-				if (null != a && a.intersects(bu.x, bu.y, bu.w, bu.h)) continue; // bu.intersects(box)) continue; // no change of bucket: lower-right corner still within the bucket
-				// else, remove
-				bu.map.remove(stack_index);
-				it.remove();
-			}
+		final Entry old = index.remove(d);
+		if (null != old) delete(old);
+		final Entry e = -1 == stack_index ? null : createEntry(d, stack_index, a);
+		if (null == e) {
+			if (null != db_map) db_map.remove(d);
+			return;
 		}
-		// insert wherever appropriate, if not there
-		if (null != a) this.put(stack_index, d, layer, a, db_map);
+		index.put(d, e);
+		insert(e);
+		if (null != db_map) putToBucketMap(d, db_map);
 	}
 
-	/** Add the given Displayable to all buckets that intercept its bounding box. */
+	/** Add the given Displayable, with the bounds of its area for @param layer. */
 	synchronized final void put(final int stack_index, final Displayable d, final Layer layer, final HashMap<Displayable,HashSet<Bucket>> db_map) {
 		put(stack_index, d, layer, d.getAreaForBucket(layer), db_map);
 	}
 	synchronized final void put(final int stack_index, final Displayable d, final Layer layer, final Area a, final HashMap<Displayable,HashSet<Bucket>> db_map) {
-		if (null == a) return;
-		/*
-		if (0 == box.width || 0 == box.height) {
-			// d doesn't contain any data: use whole 2D world
-			box.width = (int) layer.getLayerWidth();
-			box.height = (int) layer.getLayerHeight();
-		}
-		*/
-		putIn(stack_index, d, a, db_map);
-	}
-	private final void putIn(final int stack_index, final Displayable d, final Area a, final HashMap<Displayable,HashSet<Bucket>> db_map) {
-		if (!a.intersects(x, y, w, h)) return;
-		// there will be at least one now
-		this.empty = false;
-		if (null != children) {
-			for (final Bucket bu : children) bu.putIn(stack_index, d, a, db_map);
-		} else if (null != map) {
-			map.put(stack_index, d);
-			putToBucketMap(d, db_map); // the db_map
-		}
-	}
-
-	/*
-	private void debugMap(String title) {
-		if (null == map) return;
-		Utils.log2("@@@ " + title);
-		for (final Map.Entry<Integer,Displayable> e: map.entrySet()) {
-			Utils.log2("k,v : " + e.getKey() + " , " + e.getValue());
-		}
+		final Entry e = createEntry(d, stack_index, a);
+		if (null == e) return;
+		final Entry old = index.put(d, e);
+		if (null != old) delete(old);
+		insert(e);
+		putToBucketMap(d, db_map);
 	}
-	*/
 
 	final private void putToBucketMap(final Displayable d, final HashMap<Displayable,HashSet<Bucket>> db_map) {
 		HashSet<Bucket> list = db_map.get(d);
@@ -522,124 +480,66 @@ public class Bucket {
 			list.add(this);
 		} else list.add(this);
 	}
-	/*
-	final private void removeFromBucketMap(final Displayable d, final HashMap<Displayable,ArrayList<Bucket>> db_map) {
-		ArrayList<Bucket> list = db_map.get(d);
-		if (null == list) return;
-		list.remove(d);
-		if (0 == list.size()) db_map.remove(d);
-	}
-	*/
 
 	/** Returns whether the stack index was successfully removed.
-	 *  Assumes that 'd' is in this Bucket at old_stack_index. */
-	final private boolean remove2(final Displayable d, final int old_stack_index, final HashMap<Displayable,Integer> new_stack_indices) {
-		boolean success = true;
-		if (null != children) {
-			this.empty = true;
-			for (final Bucket bu : children) {
-				if (!bu.remove2(d, old_stack_index, new_stack_indices)) {
-					this.empty = false;
-					success = false;
-				}
-			}
-			return success;
-		} else if (null != map) {
-			reindex(new_stack_indices);
-		}
-		return success;
-	}
-
-	/** Returns whether the stack index was successfully removed .*/
+	 *  Assumes that the @param new_stack_indices do not include 'd'. */
 	synchronized final boolean remove(final Displayable d, final int old_stack_index, final HashMap<Displayable,Integer> new_stack_indices) {
-		return remove2(d, old_stack_index, new_stack_indices);
-	}
-	
-	/** Returns whether this bucket is empty of Displayable objects. */
-	final private boolean removeAll2(final Collection<Integer> old_stack_indices, final HashMap<Displayable,Integer> new_stack_indices) {
-		if (null != children) {
-			this.empty = true;
-			for (final Bucket bu : children) {
-				if (!bu.removeAll2(old_stack_indices, new_stack_indices)) this.empty = false;
-			}
-		} else if (null != map) {
-			reindex(new_stack_indices);
-			return map.isEmpty();
-		}
+		final Entry e = index.remove(d);
+		if (null != e) delete(e);
+		reindex(new_stack_indices);
 		return true;
 	}
 	
 	synchronized final void removeAll(final Collection<Integer> old_stack_indices, final HashMap<Displayable,Integer> new_stack_indices) {
-		removeAll2(old_stack_indices, new_stack_indices);
+		reindex(new_stack_indices);
 	}
 	
-	final void reindex(final HashMap<Displayable,Integer> new_stack_indices) {
+	/** Set the stack_index of each entry to that in @param new_stack_indices, removing those not in it. */
+	synchronized final void reindex(final HashMap<Displayable,Integer> new_stack_indices) {
 		if (null == new_stack_indices) return;
-		if (null != children) {
-			for (final Bucket bu : children) {
-				bu.reindex(new_stack_indices);
-			}
-		} else if (null != map) {
-			final HashSet<Displayable> hs = new HashSet<Displayable>(this.map.values());
-			this.map.clear();
-			for (final Displayable d : hs) {
-				final Integer i = new_stack_indices.get(d);
-				if (null == i) {
-					Utils.log2("WARNING: Bucket.reindex could not find an index for " + d);
-					continue;
-				}
-				this.map.put(i, d);
+		for (final Entry e : new ArrayList<Entry>(index.values())) {
+			final Integer i = new_stack_indices.get(e.d);
+			if (null == i) {
+				Utils.log2("WARNING: Bucket.reindex could not find an index for " + e.d);
+				index.remove(e.d);
+				delete(e);
+				continue;
 			}
+			e.stack_index = i;
 		}
 	}
 
+	/** Paint the bounds of the leaf nodes, and the number of entries in each. */
 	synchronized public void paint(Graphics2D g, Rectangle srcRect, double mag, Color color) {
-		if (null == map) {
-			for (final Bucket bu : children) bu.paint(g, srcRect, mag, color);
-			return;
-		}
-		//Utils.log("going to paint ... ");
-		//if (!intersects(srcRect)) return;
-		//Utils.log("painting : " + x + ", " + y + ", " + w + ", " + h);
-		final Graphics2D g2d = (Graphics2D)g;
-		final Stroke original_stroke = g2d.getStroke();
-		AffineTransform original = g2d.getTransform();
-		g2d.setTransform(new AffineTransform());
-		g2d.setStroke(new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER));
+		final Stroke original_stroke = g.getStroke();
+		final AffineTransform original = g.getTransform();
+		g.setTransform(new AffineTransform());
+		g.setStroke(new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER));
 		g.setColor(color);
-		g.drawRect((int)((x - srcRect.x) * mag), (int)((y-srcRect.y)*mag), (int)(w*mag), (int)(h*mag));
-		g2d.setStroke(original_stroke);
-		g2d.drawString(Integer.toString(map.size()), (int)((x - srcRect.x + w/2) * mag), (int)((y - srcRect.y + h/2) * mag));
-		g2d.setTransform(original);
+		for (final Node leaf : getLeaves(tree, new ArrayList<Node>())) {
+			if (0 == leaf.size()) continue;
+			g.drawRect((int)((leaf.x1 - srcRect.x) * mag), (int)((leaf.y1 - srcRect.y) * mag), (int)((leaf.x2 - leaf.x1) * mag), (int)((leaf.y2 - leaf.y1) * mag));
+			g.drawString(Integer.toString(leaf.size()), (int)(((leaf.x1 + leaf.x2) / 2 - srcRect.x) * mag), (int)(((leaf.y1 + leaf.y2) / 2 - srcRect.y) * mag));
+		}
+		g.setStroke(original_stroke);
+		g.setTransform(original);
 	}
 
 	/** Determine whether the rectangle is smaller than the layer dimensions padded in by one bucket_side -- if not, makes little sense to use buckets, and it's better to do linear search without the TreeMap overhead. */
 	public final boolean isBetter(final Rectangle r, final Bucketable container) {
-		/*
-		final boolean b = r.width * r.height < (layer.getLayerWidth() - bucket_side) * (layer.getLayerHeight() - bucket_side);
-		Utils.log2("isBetter: " + b);
-		if (b) {
-			Utils.log2("\t r is " + r.width + ", " + r.height);
-			Utils.log2("\t o is " + (int)(layer.getLayerWidth() - bucket_side) + ", " + (int)(layer.getLayerHeight() * bucket_side));
-		}
-		return b;
-		*/
 		return r.width * r.height < (container.getLayerWidth() - bucket_side) * (container.getLayerHeight() - bucket_side);
 	}
 
-	private final ArrayList<Bucket>getChildren(final ArrayList<Bucket> bus) {
-		if (null != children) {
-			for (final Bucket bu : children) {
-				bu.getChildren(bus);
-			}
-		} else if (null != map) {
-			bus.add(this);
-		}
-		return bus;
+	static private final ArrayList<Node> getLeaves(final Node node, final ArrayList<Node> leaves) {
+		if (node.isLeaf()) leaves.add(node);
+		else for (final Node child : node.children) getLeaves(child, leaves);
+		return leaves;
 	}
 
 	public void debug() {
-		Utils.log2("total map buckets: " + getChildren(new ArrayList<Bucket>()).size());
+		int depth = 1;
+		for (Node n = tree; !n.isLeaf(); n = n.children.get(0)) depth++;
+		Utils.log2("total entries: " + index.size() + ", leaf nodes: " + getLeaves(tree, new ArrayList<Node>()).size() + ", depth: " + depth);
 	}
 
 	static public int getBucketSide(final Bucketable container, final Layer la) {
@@ -148,6 +148,7 @@ import ini.trakem2.io.NeuroML;
 import ini.trakem2.parallel.Process;
 import ini.trakem2.parallel.TaskFactory;
 import ini.trakem2.persistence.DBObject;
+import ini.trakem2.persistence.ExportChunkedVolume;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.persistence.ProjectTiler;
 import ini.trakem2.persistence.XMLOptions;
@@ -3281,6 +3282,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		item = new JMenuItem("Tags..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Connectivity graph..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("NeuroML..."); item.addActionListener(this); menu.add(item);
+		item = new JMenuItem("Chunked multiscale volume (N5)..."); item.addActionListener(this); menu.add(item);
 		popup.add(menu);
 
 		menu = new JMenu("Display");
@@ -5086,10 +5088,13 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			gd.addCheckbox("Use layer indices", true);
 			final Checkbox cb_li = (Checkbox)gd.getCheckboxes().get(gd.getCheckboxes().size() -1);
 			cb_li.setEnabled(false);
+			gd.addCheckbox("Skip unchanged tiles (and resume)", false);
+			final Checkbox cb_unchanged = (Checkbox)gd.getCheckboxes().get(gd.getCheckboxes().size() -1);
+			cb_unchanged.setEnabled(false);
 			gd.addNumericField("Number of threads", project.getProperty("n_mipmap_threads", 1), 0);
 			final Component cnt = (Component)gd.getNumericFields().get(gd.getNumericFields().size() -1);
 			cnt.setEnabled(false);
-			final Component[] cweb = new Component[]{tf, tile_directory_structure, cstrategy, cb_skip, cb_li, cnt};
+			final Component[] cweb = new Component[]{tf, tile_directory_structure, cstrategy, cb_skip, cb_li, cb_unchanged, cnt};
 			
 			cchoices.addItemListener(new ItemListener() {
 				@Override
@@ -5154,11 +5159,12 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			final int strategy = gd.getNextChoiceIndex();
 			final boolean skip_empty_tiles = gd.getNextBoolean();
 			final boolean use_layer_indices = gd.getNextBoolean();
+			final boolean skip_unchanged_tiles = gd.getNextBoolean();
 			double nt = gd.getNextNumber();
 			final int n_threads = (int) (Double.isNaN(nt) ? 1 : Math.max(1, nt));
 			// in its own thread
 			if (save_for_web) project.getLoader().makePrescaledTiles(layer_array, Patch.class, srcRect, c_alphas,
-					the_type, null, strategy, saver, tile_side, directory_structure_type, skip_empty_tiles, use_layer_indices, n_threads);
+					the_type, null, strategy, saver, tile_side, directory_structure_type, skip_empty_tiles, use_layer_indices, skip_unchanged_tiles, n_threads);
 			else project.getLoader().makeFlatImage(layer_array, srcRect, scale, c_alphas, the_type, save_to_file, format, quality, background);
 
 		} else if (command.equals("Lock")) {
@@ -6166,6 +6172,48 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 				}
 			}, project);
 
+		} else if (command.equals("Chunked multiscale volume (N5)...")) {
+			final GenericDialog gd = new GenericDialog("Export chunked volume");
+			Utils.addLayerRangeChoices(Display.this.layer, gd);
+			gd.addNumericField("Block_width_and_height", 128, 0);
+			gd.addNumericField("Block_depth", 16, 0);
+			gd.addNumericField("Number_of_scale_levels", 4, 0);
+			gd.addCheckbox("Compress blocks (gzip)", true);
+			gd.addCheckbox("Visible images only", true);
+			gd.addNumericField("Number_of_threads_to_use", Runtime.getRuntime().availableProcessors(), 0);
+			gd.addMessage("Choosing the folder of an interrupted export resumes it.");
+			gd.showDialog();
+			if (gd.wasCanceled()) return;
+
+			final List<Layer> layers = getLayerSet().getLayers(gd.getNextChoiceIndex(), gd.getNextChoiceIndex());
+			final int blockSize = (int)gd.getNextNumber(),
+			          blockDepth = (int)gd.getNextNumber(),
+			          nScales = (int)gd.getNextNumber();
+			final boolean gzip = gd.getNextBoolean(),
+			              visibleOnly = gd.getNextBoolean();
+			final int nThreads = (int)gd.getNextNumber();
+			if (blockSize < 1 || blockDepth < 1 || nScales < 1) {
+				Utils.showMessage("Invalid block dimensions or number of scale levels.");
+				return;
+			}
+
+			final DirectoryChooser dc = new DirectoryChooser("Choose target folder");
+			final String folder = dc.getDirectory();
+			if (null == folder) return;
+
+			Bureaucrat.createAndStart(new Worker.Task("Export chunked volume") {
+				@Override
+				public void exec() {
+					try {
+						new ExportChunkedVolume(layers, new File(folder), blockSize, blockDepth, nScales, gzip, visibleOnly, nThreads).export();
+						Utils.log("Exported chunked volume to " + folder);
+					} catch (final Throwable t) {
+						Utils.showMessage("ERROR: " + t);
+						IJError.print(t);
+					}
+				}
+			}, project);
+
 		} else if (command.equals("Flush image cache")) {
 			Loader.releaseAllCaches();
 		} else if (command.equals("Regenerate all mipmaps")) {
@@ -366,6 +366,9 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 		this.paint(g);
 	}
 
+	/** Loads ahead of navigation the images that may be painted next. */
+	private final Prefetcher prefetcher = new Prefetcher(this);
+
 	/** Handles repaint event requests and the generation of offscreen threads. */
 	private final AbstractRepaintThread RT = new AbstractRepaintThread(this, "T2-Canvas-Repainter", new OffscreenThread()) {
 		@Override
@@ -1749,6 +1752,8 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 	}
 
 	public void destroy() {
+		prefetcher.destroy();
+		tiled_painter.flush();
 		flush();
 		WindowManager.setTempCurrentImage(imp); // the FakeImagePlus
 		WindowManager.removeWindow(fake_win); // the FakeImageWindow
@@ -2504,9 +2509,27 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 
 			// Send repaint event, without offscreen graphics
 			RT.paint(clipRect, false);
+
+			// Warm up the cache for what may be painted next
+			prefetcher.update(active_layer, srcRect, magnification);
 		}
 	}
 
+	/** Paints the images of the offscreen in parallel tiles, and keeps the tiles for reuse. */
+	private final TiledPainter tiled_painter = new TiledPainter();
+
+	/** Returns the first @param n_patches of @param paintables if all are Patch instances and worth painting in tiles; otherwise null. */
+	static private final List<Patch> asPatches(final Collection<? extends Paintable> paintables, final int n_patches) {
+		if (!TiledPainter.isUseful(n_patches)) return null;
+		final ArrayList<Patch> patches = new ArrayList<Patch>(n_patches);
+		for (final Paintable d : paintables) {
+			if (patches.size() == n_patches) break;
+			if (d.getClass() != Patch.class) return null;
+			patches.add((Patch)d);
+		}
+		return patches;
+	}
+
 	/** Looks into the layer and its LayerSet and finds out what needs to be painted, putting it into the three lists.
 	 *  @return the index of the first non-image object. */
 	private final int gatherDisplayables(final Layer layer, final List<Layer> layers, final Rectangle srcRect, final Displayable active, final ArrayList<Displayable> al_paint, final ArrayList<Displayable> al_top, final boolean preload_patches) {
@@ -2668,7 +2691,18 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 				} else {
 					// Direct painting mode, with prePaint abilities
 					int i = 0;
+					final List<Patch> patches = null == loader ? null : asPatches(paintables, first_non_patch);
+					if (null != patches) {
+						// Paint the images in parallel, in tiles
+						g.setTransform(new AffineTransform());
+						tiled_painter.paint(g, patches, g_width, g_height, srcRect, magnification, c_alphas, active_layer, layers, prepaint, loader);
+						g.setTransform(atc);
+					}
 					for (final Paintable d : paintables) {
+						if (null != patches && i < first_non_patch) {
+							i++;
+							continue;
+						}
 						if (i == first_non_patch) {
 							//Object antialias = g.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
 							g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,  RenderingHints.VALUE_ANTIALIAS_ON); // to smooth edges of the images
@@ -516,9 +516,13 @@ public final class Patch extends Displayable implements ImageData {
 	/** Just throws the cached image away if the alpha of the channels has changed. */
 	private final void checkChannels(final int channels, final double magnification) {
 		if (this.channels != channels && (ImagePlus.COLOR_RGB == this.type || ImagePlus.COLOR_256 == this.type)) {
-			final int old_channels = this.channels;
-			this.channels = channels; // before, so if any gets recreated it's done right
-			project.getLoader().adjustChannels(this, old_channels);
+			// May be painted by more than one thread at a time, into different tiles
+			synchronized (this) {
+				if (this.channels == channels) return;
+				final int old_channels = this.channels;
+				this.channels = channels; // before, so if any gets recreated it's done right
+				project.getLoader().adjustChannels(this, old_channels);
+			}
 		}
 	}
 
@@ -1237,6 +1241,8 @@ public final class Patch extends Displayable implements ImageData {
 			} else {
 				// New XML with ct_id attribute
 				writeNewCoordinateTransform(ct, this.ct_id);
+				// Same ct_id, different transform
+				TransformMeshCache.remove(this);
 			}
 		} catch (final Exception e) {
 			IJError.print(e);
@@ -1255,7 +1261,7 @@ public final class Patch extends Displayable implements ImageData {
 
 		if (null != this_ct) {
 			// restore image without the transform
-			final TransformMesh mesh = new TransformMesh(this_ct, meshResolution, o_width, o_height);
+			final TransformMesh mesh = TransformMeshCache.get(this, this_ct);
 			final Rectangle box = mesh.getBoundingBox();
 			this.at.translate(-box.x, -box.y);
 			updateInDatabase("transform+dimensions");
@@ -1271,6 +1277,7 @@ public final class Patch extends Displayable implements ImageData {
 		updateInDatabase("ict_transform");
 
 		if (null == this_ct) {
+			TransformMeshCache.remove(this);
 			width = o_width;
 			height = o_height;
 			updateBucket();
@@ -1278,8 +1285,9 @@ public final class Patch extends Displayable implements ImageData {
 		}
 
 		// Adjust the AffineTransform to correct for bounding box displacement
+		// and keep the mesh for rendering the mipmaps
 
-		final TransformMesh mesh = new TransformMesh(this_ct, meshResolution, o_width, o_height);
+		final TransformMesh mesh = TransformMeshCache.put(this, this_ct);
 		final Rectangle box = mesh.getBoundingBox();
 		this.at.translate(box.x, box.y);
 		width = box.width;
@@ -1343,32 +1351,45 @@ public final class Patch extends Displayable implements ImageData {
 	 * Get the bounding rectangle of the transformed image relative to the
 	 * original image.
 	 *
-	 * TODO
-	 *   Currently, this is done in a very expensive way.  The
-	 *   {@linkplain TransformMesh} is built and its bounding rectangle is
-	 *   returned.  Think about just storing this rectangle in the
-	 *   {@linkplain Patch} instance.
+	 * The bounding rectangle is that of the cached {@linkplain TransformMesh},
+	 * which is built only when missing.
 	 *
 	 * @return
 	 */
 	public final Rectangle getCoordinateTransformBoundingBox() {
 		if (!hasCoordinateTransform())
 			return new Rectangle(0,0,o_width,o_height);
-		return Patch.getCoordinateTransformBoundingBox(this, getCoordinateTransform());
+		return Patch.getCoordinateTransformBoundingBox(this, null);
 	}
 
 	/**
 	 * Allow reusing a {@link CoordinateTransform} that was already loaded from a file.
 	 *
 	 * @param p
-	 * @param ct
+	 * @param ct The {@link CoordinateTransform} of {@code p}, used only if its mesh is not cached; may be null.
 	 * @return
 	 */
 	protected static final Rectangle getCoordinateTransformBoundingBox(final Patch p, final CoordinateTransform ct) {
 		if (!p.hasCoordinateTransform())
 			return new Rectangle(0,0,p.o_width,p.o_height);
-		final TransformMesh mesh = new TransformMesh(ct, p.meshResolution, p.o_width, p.o_height);
-		return mesh.getBoundingBox();
+		return TransformMeshCache.get(p, ct).getBoundingBox();
+	}
+
+	/**
+	 * Obtain the {@link TransformMesh} that approximates the {@link CoordinateTransform} of this {@link Patch}
+	 * at its {@link #getMeshResolution() mesh resolution}. Meshes are cached and shared, and are built only
+	 * when the {@link CoordinateTransform} or the mesh resolution change: map images and points with it,
+	 * but do not modify it.
+	 *
+	 * @return The mesh, or null if there isn't a {@link CoordinateTransform}.
+	 */
+	public final TransformMesh getTransformMesh() {
+		return TransformMeshCache.get(this, null);
+	}
+
+	/** Release the cached {@link TransformMesh} instances of all {@link Patch} instances of the given {@link Project}. */
+	static public final void flushTransformMeshCache(final Project project) {
+		TransformMeshCache.flush(project);
 	}
 
 	/** Obtain a copy of the {@link CoordinateTransform} that transfers image data to mipmap image data.
@@ -1417,15 +1438,13 @@ public final class Patch extends Displayable implements ImageData {
 	public final Patch.PatchImage createCoordinateTransformedImage() {
 		if (!hasCoordinateTransform()) return null;
 
-		final CoordinateTransform ct = getCoordinateTransform();
-
 		final ImageProcessor source = getImageProcessor();
 
 		if (null == source) return null; // some error occurred
 
 		//Utils.log2("source image dimensions: " + source.getWidth() + ", " + source.getHeight());
 
-		final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+		final TransformMesh mesh = getTransformMesh();
 		final Rectangle box = mesh.getBoundingBox();
 
 		/* We can calculate the exact size of the image to be rendered, so let's do it */
@@ -1902,7 +1921,7 @@ public final class Patch extends Displayable implements ImageData {
 
 		if (hasCoordinateTransform()) {
 			// inverse the coordinate transform
-			final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+			final TransformMesh mesh = TransformMeshCache.get(this, ct);
 			final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
 			rmask = (ByteProcessor) mapping.createInverseMappedImageInterpolated(rmask);
 		}
@@ -1943,7 +1962,7 @@ public final class Patch extends Displayable implements ImageData {
 				if (hasCoordinateTransform()) {
 					// must transform it
 					ct = getCoordinateTransform();
-					final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+					final TransformMesh mesh = TransformMeshCache.get(this, ct);
 					final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
 					alpha_mask = mapping.createMappedImage( alpha_mask ); // Without interpolation
 					// Keep in mind the affine of the Patch already contains the translation specified by the mesh bounds.
@@ -1991,8 +2010,7 @@ public final class Patch extends Displayable implements ImageData {
 		if (null != ct) {
 			final CoordinateTransformList<CoordinateTransform> t = new CoordinateTransformList<CoordinateTransform>();
 			t.add(ct);
-			final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
-			final Rectangle box = mesh.getBoundingBox();
+			final Rectangle box = TransformMeshCache.get(this, ct).getBoundingBox();
 			final AffineTransform aff = new AffineTransform(this.at);
 			// Must correct for the inverse of the mesh translation, because the affine also includes the translation.
 			aff.translate(-box.x, -box.y);
@@ -2123,7 +2141,15 @@ public final class Patch extends Displayable implements ImageData {
 			// 4. Convert the patch to the required type
 			ImageProcessor pi = p.getImageProcessor();
 			if (setMinAndMax) {
-				pi = pi.duplicate();
+				// Avoid altering the cached image. For 16-bit and 32-bit images, share the pixels,
+				// given that neither setting the display range nor converting them alters the pixels.
+				if (pi instanceof ShortProcessor) {
+					pi = new ShortProcessor(pi.getWidth(), pi.getHeight(), (short[])pi.getPixels(), pi.getColorModel());
+				} else if (pi instanceof FloatProcessor) {
+					pi = new FloatProcessor(pi.getWidth(), pi.getHeight(), (float[])pi.getPixels(), pi.getColorModel());
+				} else {
+					pi = pi.duplicate();
+				}
 				pi.setMinAndMax(p.min, p.max);
 			}
 			switch ( type )
@@ -2464,14 +2490,13 @@ public final class Patch extends Displayable implements ImageData {
 		final AffineTransform affine = new AffineTransform( at );
 		if ( hasCoordinateTransform() )
 		{
-			final CoordinateTransform ct = getCoordinateTransform();
 			final double[] w = new double[]{ wx, wy };
 			try
 			{
 				at.inverseTransform( w, 0, w, 0, 1 );
 			}
 			catch ( final NoninvertibleTransformException e ) {}
-			final TransformMesh mesh = new TransformMesh( ct, meshResolution, o_width, o_height );
+			final TransformMesh mesh = getTransformMesh();
 			final mpicbg.models.AffineModel2D triangle = mesh.closestTargetAffine( new double[]{ w[ 0 ], w[ 1 ] } );
 			affine.concatenate( triangle.createAffine() );
 		}
@@ -0,0 +1,143 @@
+package ini.trakem2.display;
+
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Warms the image cache with the mipmaps that a {@link DisplayCanvas} is likely to paint next:
+ *  first those of the viewport moved one step further in the direction of panning, if any;
+ *  then those of the viewport in the neighbouring layers, up to two away,
+ *  nearest first and in the direction of the last layer step first.
+ *
+ *  Each repaint schedules prefetching anew, cancelling whatever the previous repaint scheduled.
+ *  Prefetching runs in a pool of few threads shared by all canvases.
+ *  The images of the visible Patch instances are pinned in the cache,
+ *  and prefetching stops when no more images fit without throwing out pinned ones.
+ */
+final class Prefetcher
+{
+	/** Threads shared by all canvases: prefetching should not compete with painting. */
+	static private final int N_THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+
+	static private ExecutorService exec = null;
+
+	static private synchronized final ExecutorService getExecutor() {
+		if (null == exec) exec = Utils.newFixedThreadPool(N_THREADS, "T2-Prefetch");
+		return exec;
+	}
+
+	/** How many layers away from the current one to prefetch, in each direction. */
+	static private final int LAYER_RANGE = 2;
+
+	private final Object owner;
+
+	/** Incremented to cancel the scheduled prefetching. */
+	private final AtomicInteger generation = new AtomicInteger(0);
+	private final ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+
+	private Loader loader = null;
+	private Layer last_layer = null;
+	private Rectangle last_srcRect = null;
+	private double last_magnification = 0;
+	/** +1 or -1: the direction of the last step through layers. */
+	private int layer_step = 1;
+
+	/** @param owner The canvas whose visible images are pinned in the cache. */
+	Prefetcher(final Object owner) {
+		this.owner = owner;
+	}
+
+	/** Schedule prefetching for the canvas that just painted @param srcRect of @param layer at @param magnification. */
+	synchronized final void update(final Layer layer, final Rectangle srcRect, final double magnification) {
+		cancel();
+
+		final LayerSet layer_set = layer.getParent();
+		final Loader loader = layer.getProject().getLoader();
+		if (this.loader != loader && null != this.loader) this.loader.pinCached(owner, null);
+		this.loader = loader;
+
+		final ArrayList<Patch> visible = new ArrayList<Patch>();
+		for (final Displayable d : layer.find(Patch.class, srcRect, true)) visible.add((Patch)d);
+		loader.pinCached(owner, visible);
+
+		// Direction of motion
+		int dx = 0,
+		    dy = 0;
+		if (layer == last_layer && magnification == last_magnification && null != last_srcRect) {
+			dx = (int)Math.signum(srcRect.getCenterX() - last_srcRect.getCenterX());
+			dy = (int)Math.signum(srcRect.getCenterY() - last_srcRect.getCenterY());
+		} else if (null != last_layer && layer_set == last_layer.getParent()) {
+			final int step = layer_set.indexOf(layer) - layer_set.indexOf(last_layer);
+			if (0 != step) layer_step = step > 0 ? 1 : -1;
+		}
+		last_layer = layer;
+		last_srcRect = new Rectangle(srcRect);
+		last_magnification = magnification;
+
+		// In order of priority
+		final ArrayList<Layer> layers = new ArrayList<Layer>();
+		final ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
+		if (0 != dx || 0 != dy) {
+			layers.add(layer);
+			rects.add(new Rectangle(srcRect.x + dx * srcRect.width, srcRect.y + dy * srcRect.height, srcRect.width, srcRect.height));
+		}
+		final int index = layer_set.indexOf(layer);
+		for (int k=1; k<=LAYER_RANGE; k++) {
+			for (final int step : new int[]{layer_step, -layer_step}) {
+				final Layer la = layer_set.getLayer(index + step * k);
+				if (null == la) continue;
+				layers.add(la);
+				rects.add(srcRect);
+			}
+		}
+
+		final int gen = generation.get();
+		final ExecutorService exec = getExecutor();
+		for (int i=0; i<layers.size(); i++) {
+			final Layer la = layers.get(i);
+			final Rectangle r = rects.get(i);
+			try {
+				futures.add(exec.submit(new Runnable() {
+					@Override
+					public void run() {
+						prefetch(gen, loader, la, r, magnification);
+					}
+				}));
+			} catch (final Throwable t) {
+				Utils.log2("Ignoring error with prefetching");
+			}
+		}
+	}
+
+	private final void prefetch(final int gen, final Loader loader, final Layer layer, final Rectangle r, final double magnification) {
+		try {
+			for (final Displayable d : layer.find(Patch.class, r, true)) {
+				if (gen != generation.get()) return;
+				if (!loader.prefetch((Patch)d, magnification)) return; // no room left
+			}
+		} catch (final Throwable t) {
+			IJError.print(t);
+		}
+	}
+
+	/** Cancel the scheduled prefetching. Images being loaded are let to finish. */
+	synchronized final void cancel() {
+		generation.incrementAndGet();
+		for (final Future<?> fu : futures) fu.cancel(false);
+		futures.clear();
+	}
+
+	/** Cancel the scheduled prefetching and unpin the visible images. */
+	synchronized final void destroy() {
+		cancel();
+		if (null != loader) loader.pinCached(owner, null);
+		loader = null;
+		last_layer = null;
+	}
+}
@@ -0,0 +1,224 @@
+package ini.trakem2.display;
+
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Paints the Patch instances of a {@link DisplayCanvas} in parallel, in screen-space tiles of {@link #TILE_SIZE} pixels
+ *  that are then copied into the offscreen image. Each tile paints, in the same z-order, only the Patch instances
+ *  that intersect it.
+ *
+ *  Tiles are aligned to a grid fixed in world coordinates for each magnification, so that panning shifts whole tiles.
+ *  The tiles of the last repaint are kept, and reused when nothing that would be painted into them has changed:
+ *  the same Patch instances in the same order, with the same transform, alpha and composite mode,
+ *  and the very same cached mipmap images. A tile with any Patch whose mipmap was not cached is never reused.
+ */
+final class TiledPainter
+{
+	static private final int TILE_SIZE = 256;
+
+	/** Shared by all canvases. */
+	static private ExecutorService exec = null;
+
+	static private synchronized final ExecutorService getExecutor() {
+		if (null == exec) exec = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "T2-Canvas-Tiles");
+		return exec;
+	}
+
+	/** Whether tiled painting is worth it: with more than one CPU core and more than one Patch. */
+	static final boolean isUseful(final int n_patches) {
+		return n_patches > 1 && Runtime.getRuntime().availableProcessors() > 1;
+	}
+
+	static private final class Tile {
+		final BufferedImage image;
+		final long fingerprint;
+		Tile(final BufferedImage image, final long fingerprint) {
+			this.image = image;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	/** The layer, magnification, sub-pixel offset and channels for which the tiles were painted. */
+	private Layer layer = null;
+	private double magnification = 0,
+	               frac_x = 0,
+	               frac_y = 0;
+	private int c_alphas = 0;
+
+	/** Tiles of the last repaint, by grid position. */
+	private HashMap<Long,Tile> tiles = new HashMap<Long,Tile>();
+
+	/** Paint @param patches, in order, into @param g, which paints with the identity transform
+	 *  into an image of @param g_width by @param g_height pixels showing @param srcRect at @param magnification.
+	 *  Threads calling this method concurrently paint one after the other. */
+	synchronized final void paint(final Graphics2D g, final List<Patch> patches, final int g_width, final int g_height,
+			final Rectangle srcRect, final double magnification, final int c_alphas, final Layer active_layer,
+			final List<Layer> layers, final boolean prepaint, final Loader loader) {
+
+		// The screen position of the world origin, in pixels
+		final double off_x = srcRect.x * magnification,
+		             off_y = srcRect.y * magnification;
+		final long ioff_x = (long)Math.floor(off_x),
+		           ioff_y = (long)Math.floor(off_y);
+		final double frac_x = off_x - ioff_x,
+		             frac_y = off_y - ioff_y;
+
+		if (active_layer != this.layer || magnification != this.magnification
+		 || frac_x != this.frac_x || frac_y != this.frac_y || c_alphas != this.c_alphas) {
+			this.tiles.clear();
+			this.layer = active_layer;
+			this.magnification = magnification;
+			this.frac_x = frac_x;
+			this.frac_y = frac_y;
+			this.c_alphas = c_alphas;
+		}
+
+		final Rectangle[] boxes = new Rectangle[patches.size()];
+		for (int i=0; i<boxes.length; i++) boxes[i] = patches.get(i).getBoundingBox(null);
+
+		final long first_col = floorDiv(ioff_x),
+		           first_row = floorDiv(ioff_y),
+		           last_col = floorDiv(ioff_x + g_width - 1),
+		           last_row = floorDiv(ioff_y + g_height - 1);
+
+		final HashMap<Long,Tile> previous = this.tiles;
+		final HashMap<Long,Tile> current = new HashMap<Long,Tile>();
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		final ArrayList<Long> keys = new ArrayList<Long>();
+		final ArrayList<int[]> origins = new ArrayList<int[]>();
+		final ArrayList<Future<Tile>> painted = new ArrayList<Future<Tile>>();
+		final ExecutorService exec = getExecutor();
+
+		for (long row = first_row; row <= last_row; row++) {
+			for (long col = first_col; col <= last_col; col++) {
+				// Tile origin in screen coordinates
+				final int sx = (int)(col * TILE_SIZE - ioff_x),
+				          sy = (int)(row * TILE_SIZE - ioff_y);
+				// Tile bounds in world coordinates
+				final Rectangle world = new Rectangle(
+						(int)Math.floor(srcRect.x + sx / magnification),
+						(int)Math.floor(srcRect.y + sy / magnification),
+						(int)Math.ceil(TILE_SIZE / magnification) + 2,
+						(int)Math.ceil(TILE_SIZE / magnification) + 2);
+				final ArrayList<Patch> in_tile = new ArrayList<Patch>();
+				for (int i=0; i<boxes.length; i++) {
+					if (boxes[i].intersects(world)) in_tile.add(patches.get(i));
+				}
+				final Long key = (col << 32) ^ (row & 0xffffffffL); // unique while the view spans less than 2^32 tiles
+				final Tile tile = previous.get(key);
+				if (null != tile && 0 != tile.fingerprint && tile.fingerprint == fingerprint(in_tile, magnification, loader)) {
+					current.put(key, tile);
+					g.drawImage(tile.image, sx, sy, null);
+					continue;
+				}
+				keys.add(key);
+				origins.add(new int[]{sx, sy});
+				final Future<Tile> fu = exec.submit(new Callable<Tile>() {
+					@Override
+					public Tile call() {
+						return paintTile(in_tile, sx, sy, srcRect, magnification, c_alphas, active_layer, layers, prepaint, loader);
+					}
+				});
+				painted.add(fu);
+				fus.add(fu);
+			}
+		}
+
+		Utils.wait(fus);
+
+		for (int i=0; i<painted.size(); i++) {
+			final Tile tile;
+			try {
+				tile = painted.get(i).get();
+			} catch (final Exception e) {
+				continue; // already reported by Utils.wait
+			}
+			if (null == tile) continue;
+			final int[] o = origins.get(i);
+			g.drawImage(tile.image, o[0], o[1], null);
+			if (0 != tile.fingerprint) current.put(keys.get(i), tile);
+			else tile.image.flush();
+		}
+
+		// Flush the tiles that were not reused
+		for (final Tile tile : previous.values()) {
+			if (!current.containsValue(tile)) tile.image.flush();
+		}
+		this.tiles = current;
+	}
+
+	/** The grid index of the tile containing pixel @param x, rounding down also for negative values. */
+	static private final long floorDiv(final long x) {
+		final long q = x / TILE_SIZE;
+		return (x % TILE_SIZE != 0 && x < 0) ? q - 1 : q;
+	}
+
+	static private final Tile paintTile(final List<Patch> patches, final int sx, final int sy,
+			final Rectangle srcRect, final double magnification, final int c_alphas, final Layer active_layer,
+			final List<Layer> layers, final boolean prepaint, final Loader loader) {
+		// Before painting: a mipmap loaded or replaced while painting then makes the tile not reusable,
+		// rather than marking it as painted with a mipmap that it may not have been painted with
+		final long fingerprint = fingerprint(patches, magnification, loader);
+		final BufferedImage bi = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+		final Graphics2D g = bi.createGraphics();
+		try {
+			// Opaque, like the offscreen image on which Patch instances are painted directly
+			g.setColor(Color.black);
+			g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+			// Same transform as the offscreen image, offset to the tile
+			final AffineTransform atc = new AffineTransform();
+			atc.translate(-sx, -sy);
+			atc.scale(magnification, magnification);
+			atc.translate(-srcRect.x, -srcRect.y);
+			g.setTransform(atc);
+			for (final Patch p : patches) {
+				if (prepaint) p.prePaint(g, srcRect, magnification, false, c_alphas, active_layer, layers);
+				else p.paint(g, srcRect, magnification, false, c_alphas, active_layer, layers);
+			}
+		} finally {
+			g.dispose();
+		}
+		return new Tile(bi, fingerprint);
+	}
+
+	/** Identifies what painting @param patches would result in, or zero if any had its mipmap not cached. */
+	static private final long fingerprint(final List<Patch> patches, final double magnification, final Loader loader) {
+		long f = 17;
+		for (final Patch p : patches) {
+			final AffineTransform at = p.getAffineTransform();
+			// As in Patch.paint: consider all scaling components
+			double sc = magnification * Math.max(Math.abs(at.getScaleX()),
+			                            Math.max(Math.abs(at.getScaleY()),
+			                            Math.max(Math.abs(at.getShearX()),
+			                                     Math.abs(at.getShearY()))));
+			if (sc < 0) sc = magnification;
+			final MipMapImage mipMap = loader.getCachedClosestAboveImage(p, sc);
+			if (null == mipMap || Loader.isSignalImage(mipMap.image)) return 0;
+			f = f * 31 + p.getId();
+			f = f * 31 + at.hashCode();
+			f = f * 31 + Float.floatToIntBits(p.getAlpha());
+			f = f * 31 + p.getCompositeMode();
+			f = f * 31 + System.identityHashCode(mipMap.image);
+		}
+		return 0 == f ? 1 : f;
+	}
+
+	/** Forget all tiles. */
+	synchronized final void flush() {
+		for (final Tile tile : tiles.values()) tile.image.flush();
+		tiles.clear();
+		layer = null;
+	}
+}
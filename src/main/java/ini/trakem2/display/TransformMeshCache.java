@@ -0,0 +1,121 @@
+package ini.trakem2.display;
+
+import ini.trakem2.Project;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mpicbg.models.CoordinateTransform;
+import mpicbg.trakem2.transform.TransformMesh;
+
+/** Keeps the most recently used {@link TransformMesh} of each {@link Patch} with a {@link CoordinateTransform},
+ *  so that rendering, exporting and regenerating mipmaps of the same non-linearly transformed Patch
+ *  do not have to parse its transform, build the mesh and invert its triangles every time.
+ *
+ *  A mesh is valid for as long as the Patch's coordinate transform id, mesh resolution
+ *  and original dimensions are those with which it was built; any other request is a miss.
+ *  Meshes are shared: callers may map images and points with them, but must not modify them.
+ *
+ *  The cache is bounded by an estimate of the memory taken by the triangles of its meshes,
+ *  and throws out the least recently used first.
+ */
+final class TransformMeshCache
+{
+	/** Approximate bytes per triangle: its AffineModel2D, its three PointMatch and the maps that hold them. */
+	static private final long BYTES_PER_TRIANGLE = 400;
+
+	static private final long MAX_BYTES = Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 32);
+
+	static private final class Entry {
+		final long ct_id;
+		final int meshResolution, o_width, o_height;
+		final TransformMesh mesh;
+		final long bytes;
+
+		Entry(final Patch p, final long ct_id, final TransformMesh mesh) {
+			this.ct_id = ct_id;
+			this.meshResolution = p.meshResolution;
+			this.o_width = p.getOWidth();
+			this.o_height = p.getOHeight();
+			this.mesh = mesh;
+			this.bytes = mesh.getAV().size() * BYTES_PER_TRIANGLE;
+		}
+
+		final boolean isValidFor(final Patch p) {
+			return ct_id == p.getCoordinateTransformId()
+				&& meshResolution == p.meshResolution
+				&& o_width == p.getOWidth()
+				&& o_height == p.getOHeight();
+		}
+	}
+
+	/** In access order, by identity of the Patch, so that clones and Patch instances of other projects do not collide. */
+	static private final LinkedHashMap<Patch,Entry> entries = new LinkedHashMap<Patch,Entry>(64, 0.75f, true);
+
+	static private long bytes = 0;
+
+	private TransformMeshCache() {}
+
+	/** @param ct The {@link CoordinateTransform} of @param p if already at hand, or null to read it only when needed.
+	 *  @return The cached mesh of @param p, building it if missing or stale; or null if @param p has no {@link CoordinateTransform}. */
+	static final TransformMesh get(final Patch p, CoordinateTransform ct) {
+		if (!p.hasCoordinateTransform()) return null;
+		synchronized (entries) {
+			final Entry e = entries.get(p);
+			if (null != e && e.isValidFor(p)) return e.mesh;
+		}
+		// Build outside the lock: it is the expensive part
+		final long ct_id = p.getCoordinateTransformId();
+		if (null == ct) ct = p.getCoordinateTransform();
+		if (null == ct) return null;
+		final TransformMesh mesh = new TransformMesh(ct, p.meshResolution, p.getOWidth(), p.getOHeight());
+		put(p, ct_id, mesh);
+		return mesh;
+	}
+
+	/** Build the mesh of @param ct, the {@link CoordinateTransform} just set to @param p, and cache it. */
+	static final TransformMesh put(final Patch p, final CoordinateTransform ct) {
+		final TransformMesh mesh = new TransformMesh(ct, p.meshResolution, p.getOWidth(), p.getOHeight());
+		put(p, p.getCoordinateTransformId(), mesh);
+		return mesh;
+	}
+
+	static private final void put(final Patch p, final long ct_id, final TransformMesh mesh) {
+		final Entry e = new Entry(p, ct_id, mesh);
+		synchronized (entries) {
+			// A concurrent change to the Patch may have happened while building the mesh
+			if (!e.isValidFor(p)) return;
+			final Entry old = entries.put(p, e);
+			if (null != old) bytes -= old.bytes;
+			bytes += e.bytes;
+			final Iterator<Entry> it = entries.values().iterator();
+			while (bytes > MAX_BYTES && entries.size() > 1 && it.hasNext()) {
+				final Entry eldest = it.next();
+				if (eldest == e) continue;
+				bytes -= eldest.bytes;
+				it.remove();
+			}
+		}
+	}
+
+	/** Drop the mesh of @param p, if any: to be called when its {@link CoordinateTransform} or mesh resolution change. */
+	static final void remove(final Patch p) {
+		synchronized (entries) {
+			final Entry e = entries.remove(p);
+			if (null != e) bytes -= e.bytes;
+		}
+	}
+
+	/** Drop the meshes of all Patch instances of @param project. */
+	static final void flush(final Project project) {
+		synchronized (entries) {
+			for (final Iterator<Map.Entry<Patch,Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+				final Map.Entry<Patch,Entry> me = it.next();
+				if (me.getKey().getProject() != project) continue;
+				bytes -= me.getValue().bytes;
+				it.remove();
+			}
+		}
+	}
+}
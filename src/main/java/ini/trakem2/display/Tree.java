@@ -697,6 +697,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		final boolean to2(final Displayable d) {
 			super.to1(d);
 			final Tree<T> t = (Tree<T>)d;
+			t.project.getLoader().dataChanged(t);
 			if (null != this.root) {
 				t.root = this.root.clone(t.project);
 				t.clearCache();
@@ -2179,6 +2180,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				}
 			}
 		}
+		project.getLoader().dataChanged(this);
 	}
 
 	private TreeNodesDataView tndv = null;
@@ -2208,13 +2210,17 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		}});
 	}
 
+	/** Called after editing the nodes: records the edit for the next save, and updates the table of nodes, if any. */
 	protected void updateView() {
+		project.getLoader().dataChanged(this);
 		if (null == tndv) return;
 		synchronized (tndv) {
 			tndv.recreate(this.root);
 		}
 	}
+	/** Called after editing the data or tags of @param node: records the edit for the next save, and updates the table of nodes, if any. */
 	protected void updateViewData(final Node<?> node) {
+		project.getLoader().dataChanged(this);
 		if (null == tndv) return;
 		synchronized (tndv) {
 			tndv.updateData(node);
@@ -2852,7 +2858,10 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				nd.apply(chain, roi);
 			}
 		}
-		if (null != chain) calculateBoundingBox(la);
+		if (null != chain) {
+			calculateBoundingBox(la);
+			project.getLoader().dataChanged(this);
+		}
 		return true;
 	}
 	@Override
@@ -2867,6 +2876,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			}
 		}
 		calculateBoundingBox(vdt.layer);
+		project.getLoader().dataChanged(this);
 		return true;
 	}
 
@@ -3445,6 +3455,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				}
 				final Tag tag = new Tag(name, KeyEvent.VK_R);
 				last.addTag(tag);
+				project.getLoader().dataChanged(Tree.this);
 				final String filepath = getReviewTagPath(tag);
 				Utils.ensure(filepath);
 				createReviewStack(first, last, tag, filepath, 512, 512, 1.0, ImagePlus.COLOR_RGB);
@@ -3824,5 +3835,6 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		for (final Node<T> nd : root.getSubtreeNodes()) {
 			nd.removeAllTags();
 		}
+		project.getLoader().dataChanged(this);
 	}
 }
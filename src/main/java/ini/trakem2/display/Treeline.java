@@ -196,6 +196,7 @@ public class Treeline extends Tree<Float> {
 			return null;
 		}
 		nearest.setData(nearest.getData() + inc);
+		project.getLoader().dataChanged(this);
 		return nearest;
 	}
 
@@ -863,6 +864,7 @@ public class Treeline extends Tree<Float> {
 				default:
 					return false;
 			}
+			project.getLoader().dataChanged(this);
 			layer_set.addDataEditStep(this);
 		} catch (final Exception e) {
 			IJError.print(e);
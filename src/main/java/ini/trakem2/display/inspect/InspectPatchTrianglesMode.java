@@ -134,7 +134,7 @@ public class InspectPatchTrianglesMode implements Mode {
 						aiInverse.invert();
 					} catch ( final NoninvertibleTransformException x ) {}
 					aiInverse.transform( f, 0, f, 0, 1 );
-					final TransformMesh mesh = new TransformMesh( patch.getCoordinateTransform(), patch.getMeshResolution(), patch.getOWidth(), patch.getOHeight() );
+					final TransformMesh mesh = patch.getTransformMesh();
 					final AffineModel2D triangle = mesh.closestTargetAffine( f );
 					final ArrayList< PointMatch > pm = mesh.getAV().get( triangle );
 					final GeneralPath path = new GeneralPath();
@@ -0,0 +1,309 @@
+package ini.trakem2.imaging;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.imaging.filters.FilterChain;
+
+import java.util.Arrays;
+
+/** Contrast Limited Adaptive Histogram Equalization (CLAHE), with the same parameters and the same
+ * transfer function as the CLAHE of Fiji, but running on all cores.
+ *
+ * Two modes, as in Fiji:
+ * <ul>
+ * <li>The exact mode equalizes each pixel against the histogram of the block centered on it.
+ * Each row is independent of all others, so rows are spread over threads, and each thread
+ * slides its histogram along the row, updating it by one column of the block at a time.</li>
+ * <li>The fast mode equalizes against the histograms of a grid of blocks, and interpolates bilinearly
+ * between the transfer functions of the four blocks nearest to each pixel. The transfer functions
+ * of all blocks are computed in parallel first, and then pixels are mapped in parallel by rows.</li>
+ * </ul>
+ * Integral histograms, as in {@link IntegralHistogram2d}, would make each block histogram cheaper to read
+ * but need (width+1) * (height+1) * bins entries, far too many for large images; and the sliding histogram
+ * already costs a single column per pixel.
+ *
+ * 8-bit images are equalized directly. 16-bit and 32-bit images are equalized within their display range,
+ * and each pixel is then scaled, relative to the display minimum, by the ratio of its equalized to its original 8-bit value.
+ * RGB images are equalized on their brightness, with each channel scaled by that same ratio, preserving hue and saturation.
+ */
+public final class ParallelCLAHE
+{
+	private ParallelCLAHE() {}
+
+	/**
+	 * @param ip The image to equalize, in place. Any ROI or mask is ignored.
+	 * @param blockRadius Half the side of the square block, minus one, from which the histogram of each pixel is taken.
+	 * @param bins The number of histogram bins, minus one; at most 255.
+	 * @param slope The maximum slope of the transfer function, which limits the contrast stretch.
+	 * @param fast Whether to interpolate between the transfer functions of a grid of blocks, instead of computing one per pixel.
+	 */
+	static public final void run(final ImageProcessor ip, final int blockRadius, final int bins, final float slope, final boolean fast) {
+		final int width = ip.getWidth(),
+		          height = ip.getHeight();
+		if (0 == width || 0 == height) return;
+		final int nBins = Math.max(1, Math.min(255, bins));
+		final int radius = Math.max(0, blockRadius);
+
+		final byte[] src = toByte(ip);
+		final byte[] dst = ip instanceof ByteProcessor ? (byte[])ip.getPixels() : new byte[src.length];
+
+		if (fast) {
+			runFast(src, dst, width, height, radius, nBins, slope);
+		} else {
+			runExact(src, dst, width, height, radius, nBins, slope);
+		}
+
+		fromByte(ip, src, dst);
+	}
+
+	/** @return The 8-bit version of @param ip, always a new array. */
+	static private final byte[] toByte(final ImageProcessor ip) {
+		final int n = ip.getWidth() * ip.getHeight();
+		final byte[] b = new byte[n];
+		if (ip instanceof ByteProcessor) {
+			System.arraycopy((byte[])ip.getPixels(), 0, b, 0, n);
+		} else if (ip instanceof ColorProcessor) {
+			final int[] p = (int[])ip.getPixels();
+			for (int i=0; i<n; ++i) {
+				final int c = p[i];
+				b[i] = (byte)Math.max((c >> 16) & 0xff, Math.max((c >> 8) & 0xff, c & 0xff));
+			}
+		} else {
+			final float min = (float)ip.getMin(),
+			            scale = 255.0f / Math.max(Float.MIN_VALUE, (float)ip.getMax() - min);
+			for (int i=0; i<n; ++i) {
+				b[i] = (byte)Math.max(0, Math.min(255, (int)((ip.getf(i) - min) * scale + 0.5f)));
+			}
+		}
+		return b;
+	}
+
+	/** Write back into @param ip the equalized @param dst, given the original 8-bit @param src. */
+	static private final void fromByte(final ImageProcessor ip, final byte[] src, final byte[] dst) {
+		if (ip instanceof ByteProcessor) return; // equalized in place
+		final int n = src.length;
+		if (ip instanceof ColorProcessor) {
+			final int[] p = (int[])ip.getPixels();
+			for (int i=0; i<n; ++i) {
+				final int a = src[i] & 0xff,
+				          b = dst[i] & 0xff;
+				if (0 == a) {
+					p[i] = (p[i] & 0xff000000) | (b << 16) | (b << 8) | b;
+					continue;
+				}
+				final float k = b / (float)a;
+				final int c = p[i];
+				p[i] = (c & 0xff000000)
+				     | (Math.min(255, (int)(((c >> 16) & 0xff) * k + 0.5f)) << 16)
+				     | (Math.min(255, (int)(((c >> 8) & 0xff) * k + 0.5f)) << 8)
+				     |  Math.min(255, (int)((c & 0xff) * k + 0.5f));
+			}
+		} else {
+			final float min = (float)ip.getMin(),
+			            range = (float)ip.getMax() - min;
+			for (int i=0; i<n; ++i) {
+				final int a = src[i] & 0xff,
+				          b = dst[i] & 0xff;
+				ip.setf(i, 0 == a ? min + b * range / 255.0f
+				                  : min + (ip.getf(i) - min) * b / a);
+			}
+		}
+	}
+
+	/** @return A table from 8-bit value to histogram bin. */
+	static private final int[] binTable(final int bins) {
+		final int[] t = new int[256];
+		for (int i=0; i<256; ++i) t[i] = (int)(i / 255.0f * bins + 0.5f);
+		return t;
+	}
+
+	/** The maximum count of any bin of a histogram of @param n pixels. */
+	static private final int clipLimit(final float slope, final int n, final int bins) {
+		return (int)(slope * n / bins + 0.5f);
+	}
+
+	/** Copy @param hist into @param clipped, clipping each bin at @param limit
+	 * and redistributing the excess over all bins, until there is no more excess. */
+	static private final void clipHistogram(final int[] hist, final int[] clipped, final int limit) {
+		System.arraycopy(hist, 0, clipped, 0, hist.length);
+		final int nBins = hist.length;
+		int clippedEntries = 0, clippedEntriesBefore;
+		do {
+			clippedEntriesBefore = clippedEntries;
+			clippedEntries = 0;
+			for (int i=0; i<nBins; ++i) {
+				final int d = clipped[i] - limit;
+				if (d > 0) {
+					clippedEntries += d;
+					clipped[i] = limit;
+				}
+			}
+			final int d = clippedEntries / nBins,
+			          m = clippedEntries % nBins;
+			for (int i=0; i<nBins; ++i) clipped[i] += d;
+			if (0 != m) {
+				final int s = (nBins - 1) / m;
+				for (int i=0; i<nBins; i += Math.max(1, s)) ++clipped[i];
+			}
+		} while (clippedEntries != clippedEntriesBefore);
+	}
+
+	/** @return The equalized value, from 0 to 1, of bin @param v of the @param clipped histogram. */
+	static private final float transfer(final int[] clipped, final int v) {
+		int hMin = clipped.length - 1;
+		for (int i=0; i<hMin; ++i) {
+			if (0 != clipped[i]) hMin = i;
+		}
+		int cdf = 0;
+		for (int i=hMin; i<=v; ++i) cdf += clipped[i];
+		int cdfMax = cdf;
+		for (int i=v+1; i<clipped.length; ++i) cdfMax += clipped[i];
+		final int cdfMin = clipped[hMin];
+		if (cdfMax == cdfMin) return v / (float)(clipped.length - 1);
+		return Math.max(0, cdf - cdfMin) / (float)(cdfMax - cdfMin);
+	}
+
+	/** Fill @param lut with the equalized value, from 0 to 1, of every bin of the @param clipped histogram. */
+	static private final void transferTable(final int[] clipped, final float[] lut) {
+		int hMin = clipped.length - 1;
+		for (int i=0; i<hMin; ++i) {
+			if (0 != clipped[i]) hMin = i;
+		}
+		int cdfMax = 0;
+		for (int i=hMin; i<clipped.length; ++i) cdfMax += clipped[i];
+		final int cdfMin = clipped[hMin];
+		final boolean flat = cdfMax == cdfMin;
+		int cdf = 0;
+		for (int v=0; v<clipped.length; ++v) {
+			if (v >= hMin) cdf += clipped[v];
+			lut[v] = flat ? v / (float)(clipped.length - 1)
+			              : Math.max(0, cdf - cdfMin) / (float)(cdfMax - cdfMin);
+		}
+	}
+
+	static private final int nTasks(final int n) {
+		return Math.max(1, Math.min(n, Runtime.getRuntime().availableProcessors()));
+	}
+
+	static private final void runExact(final byte[] src, final byte[] dst, final int width, final int height,
+			final int radius, final int bins, final float slope) {
+		final int[] binOf = binTable(bins);
+		final int n_tasks = nTasks(height);
+		final Runnable[] tasks = new Runnable[n_tasks];
+		for (int t=0; t<n_tasks; ++t) {
+			final int first = t;
+			tasks[t] = new Runnable() {
+				@Override
+				public void run() {
+					final int[] hist = new int[bins + 1],
+					            clipped = new int[bins + 1];
+					// Each task takes every n_tasks-th row
+					for (int y=first; y<height; y += n_tasks) {
+						if (Thread.currentThread().isInterrupted()) return;
+						final int yMin = Math.max(0, y - radius),
+						          yMax = Math.min(height, y + radius + 1),
+						          h = yMax - yMin;
+						Arrays.fill(hist, 0);
+						final int xMax0 = Math.min(width, radius + 1);
+						for (int yi=yMin; yi<yMax; ++yi) {
+							final int offset = yi * width;
+							for (int xi=0; xi<xMax0; ++xi) ++hist[binOf[src[offset + xi] & 0xff]];
+						}
+						for (int x=0, i=y*width; x<width; ++x, ++i) {
+							if (x > 0) {
+								final int xOut = x - radius - 1,
+								          xIn = x + radius;
+								if (xOut >= 0) {
+									for (int yi=yMin; yi<yMax; ++yi) --hist[binOf[src[yi * width + xOut] & 0xff]];
+								}
+								if (xIn < width) {
+									for (int yi=yMin; yi<yMax; ++yi) ++hist[binOf[src[yi * width + xIn] & 0xff]];
+								}
+							}
+							final int n = (Math.min(width, x + radius + 1) - Math.max(0, x - radius)) * h;
+							clipHistogram(hist, clipped, clipLimit(slope, n, bins));
+							dst[i] = (byte)(int)(transfer(clipped, binOf[src[i] & 0xff]) * 255 + 0.5f);
+						}
+					}
+				}
+			};
+		}
+		FilterChain.runAll(tasks);
+	}
+
+	static private final void runFast(final byte[] src, final byte[] dst, final int width, final int height,
+			final int radius, final int bins, final float slope) {
+		final int[] binOf = binTable(bins);
+		final int blockSize = 2 * radius + 1;
+		// A grid of blocks spread evenly over the image
+		final int nx = Math.max(1, (width + blockSize - 1) / blockSize),
+		          ny = Math.max(1, (height + blockSize - 1) / blockSize);
+		final float dx = width / (float)nx,
+		            dy = height / (float)ny;
+		final float[][] luts = new float[nx * ny][bins + 1];
+
+		// Transfer functions of all blocks
+		final int n_lut_tasks = nTasks(ny);
+		final Runnable[] lut_tasks = new Runnable[n_lut_tasks];
+		for (int t=0; t<n_lut_tasks; ++t) {
+			final int first = t;
+			lut_tasks[t] = new Runnable() {
+				@Override
+				public void run() {
+					final int[] hist = new int[bins + 1],
+					            clipped = new int[bins + 1];
+					for (int by=first; by<ny; by += n_lut_tasks) {
+						if (Thread.currentThread().isInterrupted()) return;
+						final int cy = (int)((by + 0.5f) * dy),
+						          yMin = Math.max(0, cy - radius),
+						          yMax = Math.min(height, cy + radius + 1);
+						for (int bx=0; bx<nx; ++bx) {
+							final int cx = (int)((bx + 0.5f) * dx),
+							          xMin = Math.max(0, cx - radius),
+							          xMax = Math.min(width, cx + radius + 1);
+							Arrays.fill(hist, 0);
+							for (int yi=yMin; yi<yMax; ++yi) {
+								final int offset = yi * width;
+								for (int xi=xMin; xi<xMax; ++xi) ++hist[binOf[src[offset + xi] & 0xff]];
+							}
+							clipHistogram(hist, clipped, clipLimit(slope, (xMax - xMin) * (yMax - yMin), bins));
+							transferTable(clipped, luts[by * nx + bx]);
+						}
+					}
+				}
+			};
+		}
+		FilterChain.runAll(lut_tasks);
+
+		// Interpolate between the transfer functions of the four nearest blocks
+		final int n_tasks = nTasks(height);
+		final Runnable[] tasks = new Runnable[n_tasks];
+		for (int t=0; t<n_tasks; ++t) {
+			final int first = t;
+			tasks[t] = new Runnable() {
+				@Override
+				public void run() {
+					for (int y=first; y<height; y += n_tasks) {
+						if (Thread.currentThread().isInterrupted()) return;
+						final float fy = Math.max(0, Math.min(ny - 1, (y + 0.5f) / dy - 0.5f));
+						final int by0 = Math.min(ny - 1, (int)fy),
+						          by1 = Math.min(ny - 1, by0 + 1);
+						final float wy = fy - by0;
+						for (int x=0, i=y*width; x<width; ++x, ++i) {
+							final float fx = Math.max(0, Math.min(nx - 1, (x + 0.5f) / dx - 0.5f));
+							final int bx0 = Math.min(nx - 1, (int)fx),
+							          bx1 = Math.min(nx - 1, bx0 + 1);
+							final float wx = fx - bx0;
+							final int v = binOf[src[i] & 0xff];
+							final float top = (1 - wx) * luts[by0 * nx + bx0][v] + wx * luts[by0 * nx + bx1][v],
+							            bottom = (1 - wx) * luts[by1 * nx + bx0][v] + wx * luts[by1 * nx + bx1][v];
+							dst[i] = (byte)(int)(((1 - wy) * top + wy * bottom) * 255 + 0.5f);
+						}
+					}
+				}
+			};
+		}
+		FilterChain.runAll(tasks);
+	}
+}
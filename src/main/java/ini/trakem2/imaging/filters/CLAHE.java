@@ -2,17 +2,22 @@ package ini.trakem2.imaging.filters;
 
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
+import ini.trakem2.imaging.ParallelCLAHE;
 
 import java.util.Map;
 
 import mpicbg.ij.clahe.Flat;
 
+/** Wraps Fiji's CLAHE, or, when {@code parallel}, the equivalent {@link ParallelCLAHE}, which runs on all cores.
+ *  The {@code parallel} mode is opt-in: it is false unless set in the {@link FilterEditor},
+ *  with the 5-argument constructor or by the XML attribute, so that images remain as they were. */
 public class CLAHE implements IFilter
 {
 	protected int blockRadius = 63,
 	              bins = 255;
 	protected float slope = 3;
 	protected boolean fast = true;
+	protected boolean parallel = false;
 
 	public CLAHE() {}
 	
@@ -22,6 +27,11 @@ public class CLAHE implements IFilter
 		this.bins = bins;
 		this.slope = slope;
 	}
+
+	public CLAHE(boolean fast, int blockRadius, int bins, float slope, boolean parallel) {
+		this(fast, blockRadius, bins, slope);
+		this.parallel = parallel;
+	}
 	
 	public CLAHE(Map<String,String> params) {
 		try {
@@ -29,6 +39,7 @@ public class CLAHE implements IFilter
 			this.blockRadius = Integer.parseInt(params.get("blockradius"));
 			this.bins = Integer.parseInt(params.get("bins"));
 			this.slope = Float.parseFloat(params.get("slope"));
+			this.parallel = Boolean.parseBoolean(params.get("parallel")); // false when absent
 		} catch (NumberFormatException nfe) {
 			throw new IllegalArgumentException("Could not create CLAHE filter!", nfe);
 		}
@@ -36,7 +47,9 @@ public class CLAHE implements IFilter
 	
 	@Override
 	public ImageProcessor process(ImageProcessor ip) {
-		if (fast) {
+		if (parallel) {
+			ParallelCLAHE.run(ip, blockRadius, bins, slope, fast);
+		} else if (fast) {
 			Flat.getFastInstance().run(new ImagePlus("", ip), blockRadius, bins, slope, null, false);
 		} else {
 			Flat.getInstance().run(new ImagePlus("", ip), blockRadius, bins, slope, null, false);
@@ -52,6 +65,7 @@ public class CLAHE implements IFilter
 			.append("\" blockradius=\"").append(blockRadius)
 			.append("\" bins=\"").append(bins)
 			.append("\" slope=\"").append(slope)
+			.append("\" parallel=\"").append(parallel)
 			.append("\" />\n").toString();
 	}
 
@@ -60,7 +74,7 @@ public class CLAHE implements IFilter
 		if (null == o) return false;
 		if (o.getClass() == CLAHE.class) {
 			final CLAHE c = (CLAHE)o;
-			return bins == c.bins && blockRadius == c.blockRadius && slope == c.slope && fast == c.fast;
+			return bins == c.bins && blockRadius == c.blockRadius && slope == c.slope && fast == c.fast && parallel == c.parallel;
 		}
 		return false;
 	}
@@ -0,0 +1,157 @@
+package ini.trakem2.imaging.filters;
+
+import ij.process.ImageProcessor;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Runs a sequence of {@link IFilter} on an image, as {@link IFilter#process(ImageProcessor)} would one after another, but in parallel where possible:
+ *  <ul>
+ *  <li>Consecutive {@link IPointFilter} are fused: the image is split into chunks, and each chunk goes through all of them,
+ *  in parallel with the other chunks and without any intermediate image.</li>
+ *  <li>An {@link ILocalFilter} runs on horizontal strips of the image, each enlarged by the filter's halo,
+ *  in parallel, and the inner part of each strip is copied back into the image.</li>
+ *  <li>Any other filter, or one that can't handle the image at hand, runs on the whole image in the calling thread.</li>
+ *  </ul>
+ *  The calling thread processes a share of the chunks or strips too.
+ */
+public final class FilterChain
+{
+	/** Chunks of pixels for point filters: small enough to remain in the CPU cache while all filters run on them. */
+	static private final int CHUNK = 64 * 1024;
+
+	/** Shared by all callers. */
+	static private ExecutorService exec = null;
+
+	static private synchronized final ExecutorService getExecutor() {
+		if (null == exec) exec = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "T2-Filters");
+		return exec;
+	}
+
+	private FilterChain() {}
+
+	/** Run the @param filters in order on @param ip, returning possibly a new ImageProcessor, or the same as given. */
+	static public final ImageProcessor process(final IFilter[] filters, ImageProcessor ip) {
+		if (null == filters) return ip;
+		final int n_threads = Runtime.getRuntime().availableProcessors();
+		final ArrayList<IPointFilter> fused = new ArrayList<IPointFilter>();
+		for (final IFilter filter : filters) {
+			if (filter instanceof IPointFilter && ((IPointFilter)filter).canApply(ip)) {
+				fused.add((IPointFilter)filter);
+				continue;
+			}
+			if (!fused.isEmpty()) {
+				applyPointFilters(fused, ip, n_threads);
+				fused.clear();
+			}
+			if (filter instanceof ILocalFilter && n_threads > 1) {
+				ip = processStrips((ILocalFilter)filter, ip, n_threads);
+			} else {
+				ip = filter.process(ip);
+			}
+		}
+		if (!fused.isEmpty()) applyPointFilters(fused, ip, n_threads);
+		return ip;
+	}
+
+	static private final void applyPointFilters(final List<IPointFilter> filters, final ImageProcessor ip, final int n_threads) {
+		final int n = ip.getWidth() * ip.getHeight();
+		final int n_chunks = (n + CHUNK - 1) / CHUNK;
+		if (1 == n_threads || n_chunks < 2) {
+			for (final IPointFilter filter : filters) filter.apply(ip, 0, n);
+			return;
+		}
+		// Each task takes every n_tasks-th chunk
+		final int n_tasks = Math.min(n_threads, n_chunks);
+		final Runnable[] tasks = new Runnable[n_tasks];
+		for (int t=0; t<n_tasks; ++t) {
+			final int first = t;
+			tasks[t] = new Runnable() {
+				@Override
+				public void run() {
+					for (int c=first; c<n_chunks; c += n_tasks) {
+						final int start = c * CHUNK,
+						          end = Math.min(n, start + CHUNK);
+						for (final IPointFilter filter : filters) filter.apply(ip, start, end);
+					}
+				}
+			};
+		}
+		runAll(tasks);
+	}
+
+	/** Run @param filter on overlapping strips of @param ip, or on the whole of it if the filter has no halo for it,
+	 *  if the image is too short to gain from it, or if the filter returns an image of a different type. */
+	static private final ImageProcessor processStrips(final ILocalFilter filter, final ImageProcessor ip, final int n_threads) {
+		final int halo = filter.getHalo(ip);
+		final int width = ip.getWidth(),
+		          height = ip.getHeight();
+		// No strip thinner than twice its halo on each side, or the overlap costs more than the parallelism gains;
+		// and no strips at all with a ROI, to which the filter would be restricted
+		final boolean whole = null == ip.getMask() && ip.getRoi().width == width && ip.getRoi().height == height;
+		final int n_strips = halo < 0 || !whole ? 1 : Math.min(n_threads, height / Math.max(1, 4 * halo));
+		if (n_strips < 2) return filter.process(ip);
+
+		final int strip_height = (height + n_strips - 1) / n_strips;
+		final ImageProcessor[] results = new ImageProcessor[n_strips];
+		final Runnable[] tasks = new Runnable[n_strips];
+		for (int s=0; s<n_strips; ++s) {
+			final int k = s,
+			          y0 = s * strip_height,
+			          y1 = Math.min(height, y0 + strip_height),
+			          ys = Math.max(0, y0 - halo),
+			          ye = Math.min(height, y1 + halo);
+			tasks[s] = new Runnable() {
+				@Override
+				public void run() {
+					final ImageProcessor strip;
+					synchronized (ip) {
+						ip.setRoi(0, ys, width, ye - ys);
+						strip = ip.crop();
+					}
+					results[k] = filter.process(strip);
+				}
+			};
+		}
+		runAll(tasks);
+		ip.resetRoi();
+
+		for (final ImageProcessor r : results) {
+			if (r.getClass() != ip.getClass() || r.getWidth() != width) {
+				// The filter changed the type or the dimensions: can't be assembled
+				return filter.process(ip);
+			}
+		}
+		// Copy the inner part of each strip back into the image
+		final Object pixels = ip.getPixels();
+		for (int s=0; s<n_strips; ++s) {
+			final int y0 = s * strip_height,
+			          y1 = Math.min(height, y0 + strip_height),
+			          ys = Math.max(0, y0 - halo);
+			System.arraycopy(results[s].getPixels(), (y0 - ys) * width, pixels, y0 * width, (y1 - y0) * width);
+		}
+		return ip;
+	}
+
+	/** Run all @param tasks on the threads shared by all filters, the last one in the calling thread, and wait for all of them to complete.
+	 *  The tasks must not themselves call this method, or they could end up waiting on each other. */
+	static public final void runAll(final Runnable[] tasks) {
+		final ExecutorService exec = getExecutor();
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>(tasks.length);
+		for (int i=0; i<tasks.length -1; ++i) fus.add(exec.submit(tasks[i]));
+		tasks[tasks.length -1].run();
+		try {
+			for (final Future<?> fu : fus) fu.get();
+		} catch (final InterruptedException ie) {
+			for (final Future<?> fu : fus) fu.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ie);
+		} catch (final ExecutionException ee) {
+			throw new RuntimeException(ee.getCause());
+		}
+	}
+}
@@ -5,7 +5,7 @@ import ij.process.ImageProcessor;
 import java.util.Map;
 
 /** Smooth with a Gaussian. */
-public class GaussianBlur implements IFilter
+public class GaussianBlur implements ILocalFilter
 {
 	protected double sigmaX = 2, sigmaY = 2, accuracy = 0.002;
 	
@@ -34,6 +34,14 @@ public class GaussianBlur implements IFilter
 		return ip;
 	}
 
+	/** The radius of the vertical kernel, as computed by ImageJ. Larger sigmas, for which ImageJ blurs
+	 *  a downscaled image whose sampling grid depends on the image bounds, can not be computed strip-wise. */
+	@Override
+	public int getHalo(final ImageProcessor ip) {
+		if (sigmaY > 4.5) return -1;
+		return (int)Math.ceil(sigmaY * Math.sqrt(-2 * Math.log(accuracy))) + 1;
+	}
+
 	@Override
 	public String toXML(String indent) {
 		return new StringBuilder(indent)
@@ -0,0 +1,12 @@
+package ini.trakem2.imaging.filters;
+
+import ij.process.ImageProcessor;
+
+/** A filter whose result at each pixel depends only on the pixels that are no farther than a fixed distance,
+ *  so that {@link FilterChain} can run it on overlapping strips of an image, in parallel. */
+public interface ILocalFilter extends IFilter
+{
+	/** @return The vertical distance in pixels beyond which pixels do not alter the result at a pixel of @param ip,
+	 *  or -1 if the result can not be computed strip by strip. */
+	public int getHalo(ImageProcessor ip);
+}
@@ -0,0 +1,16 @@
+package ini.trakem2.imaging.filters;
+
+import ij.process.ImageProcessor;
+
+/** A filter whose result at each pixel depends only on the value of that pixel,
+ *  so that {@link FilterChain} can run it on any part of an image, in parallel,
+ *  and run several such filters one after another over the same part while it is hot in the CPU cache. */
+public interface IPointFilter extends IFilter
+{
+	/** Whether {@link #apply(ImageProcessor, int, int)} gives the same result as {@link #process(ImageProcessor)} for @param ip. */
+	public boolean canApply(ImageProcessor ip);
+
+	/** Filter in place the pixels of @param ip with indices from @param start (inclusive) to @param end (exclusive).
+	 *  Will be called concurrently for ranges that do not overlap. */
+	public void apply(ImageProcessor ip, int start, int end);
+}
@@ -1,10 +1,11 @@
 package ini.trakem2.imaging.filters;
 
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
 import java.util.Map;
 
-public class Invert implements IFilter
+public class Invert implements IPointFilter
 {
 	public Invert() {}
 	
@@ -16,6 +17,21 @@ public class Invert implements IFilter
 		return ip;
 	}
 
+	/** Only 8-bit images without a ROI, whose inversion does not depend on the display range. */
+	@Override
+	public boolean canApply(final ImageProcessor ip) {
+		return ip instanceof ByteProcessor && null == ip.getMask()
+			&& ip.getRoi().width == ip.getWidth() && ip.getRoi().height == ip.getHeight();
+	}
+
+	@Override
+	public void apply(final ImageProcessor ip, final int start, final int end) {
+		final byte[] pix = (byte[]) ip.getPixels();
+		for (int i=start; i<end; ++i) {
+			pix[i] = (byte)(255 - (pix[i] & 0xff));
+		}
+	}
+
 	@Override
 	public String toXML(String indent) {
 		return new StringBuilder(indent).append("<t2_filter class=\"")
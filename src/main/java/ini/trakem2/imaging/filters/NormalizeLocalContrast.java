@@ -4,7 +4,7 @@ import ij.process.ImageProcessor;
 
 import java.util.Map;
 
-public class NormalizeLocalContrast implements IFilter
+public class NormalizeLocalContrast implements ILocalFilter
 {
 	protected int brx = 500, bry = 500;
 	protected float stds = 3;
@@ -56,6 +56,12 @@ public class NormalizeLocalContrast implements IFilter
 		return ip;
 	}
 
+	/** The mean and standard deviation at each pixel are those of the block around it. */
+	@Override
+	public int getHalo(final ImageProcessor ip) {
+		return bry + 1;
+	}
+
 	@Override
 	public String toXML(final String indent) {
 		return new StringBuilder(indent)
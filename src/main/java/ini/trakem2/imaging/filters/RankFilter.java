@@ -5,7 +5,7 @@ import ij.process.ImageProcessor;
 
 import java.util.Map;
 
-public class RankFilter implements IFilter
+public class RankFilter implements ILocalFilter
 {
 	protected double radius = 2;
 	/** See {@link RankFilters}. */
@@ -37,6 +37,11 @@ public class RankFilter implements IFilter
 		return ip;
 	}
 
+	@Override
+	public int getHalo(final ImageProcessor ip) {
+		return (int)Math.ceil(radius) + 1;
+	}
+
 	@Override
 	public String toXML(String indent) {
 		return new StringBuilder(indent)
@@ -7,46 +7,42 @@ import ij.process.ImageProcessor;
 import java.util.Map;
 import java.util.Random;
 
-public class ValueToNoise implements IFilter
+public class ValueToNoise implements IPointFilter
 {
-	final static private void processFloatNaN(final FloatProcessor ip, final double min, final double max) {
+	final static private void processFloatNaN(final FloatProcessor ip, final double min, final double max, final int start, final int end) {
 		final double scale = max - min;
 		final Random rnd = new Random();
-		final int n = ip.getWidth() * ip.getHeight();
-		for (int i =0; i < n; ++i) {
+		for (int i = start; i < end; ++i) {
 			final float v = ip.getf(i);
 			if (Float.isNaN(v))
 				ip.setf(i, (float)(rnd.nextDouble() * scale + min));
 		}
 	}
 
-	final static private void processFloat(final FloatProcessor ip, final float value, final double min, final double max) {
+	final static private void processFloat(final FloatProcessor ip, final float value, final double min, final double max, final int start, final int end) {
 		final double scale = max - min;
 		final Random rnd = new Random();
-		final int n = ip.getWidth() * ip.getHeight();
-		for (int i =0; i < n; ++i) {
+		for (int i = start; i < end; ++i) {
 			final float v = ip.getf(i);
 			if (v == value)
 				ip.setf(i, (float)(rnd.nextDouble() * scale + min));
 		}
 	}
 
-	final static private void processGray(final ImageProcessor ip, final int value, final int min, final int max) {
+	final static private void processGray(final ImageProcessor ip, final int value, final int min, final int max, final int start, final int end) {
 		final int scale = max - min + 1;
 		final Random rnd = new Random();
-		final int n = ip.getWidth() * ip.getHeight();
-		for (int i =0; i < n; ++i) {
+		for (int i = start; i < end; ++i) {
 			final int v = ip.get(i);
 			if (v == value)
 				ip.set(i, rnd.nextInt(scale) + min);
 		}
 	}
 
-	final static private void processColor(final ColorProcessor ip, final int value, final int min, final int max) {
+	final static private void processColor(final ColorProcessor ip, final int value, final int min, final int max, final int start, final int end) {
 		final int scale = max - min + 1;
 		final Random rnd = new Random();
-		final int n = ip.getWidth() * ip.getHeight();
-		for (int i =0; i < n; ++i) {
+		for (int i = start; i < end; ++i) {
 			final int v = ip.get(i);
 			if (v == value)
 			{
@@ -94,22 +90,32 @@ public class ValueToNoise implements IFilter
 
 	@Override
 	public ImageProcessor process(final ImageProcessor ip) {
+		apply(ip, 0, ip.getWidth() * ip.getHeight());
+		return ip;
+	}
+
+	@Override
+	public boolean canApply(final ImageProcessor ip) {
+		return true;
+	}
+
+	@Override
+	public void apply(final ImageProcessor ip, final int start, final int end) {
 		try {
 			if (FloatProcessor.class.isInstance(ip)) {
 				if (Double.isNaN(value))
-					processFloatNaN((FloatProcessor)ip, min, max);
+					processFloatNaN((FloatProcessor)ip, min, max, start, end);
 				else
-					processFloat((FloatProcessor)ip, (float)value, min, max);
+					processFloat((FloatProcessor)ip, (float)value, min, max, start, end);
 			} else {
 				if (ColorProcessor.class.isInstance(ip))
-					processColor((ColorProcessor)ip, (int)Math.round(value), (int)Math.round(min), (int)Math.round(max));
+					processColor((ColorProcessor)ip, (int)Math.round(value), (int)Math.round(min), (int)Math.round(max), start, end);
 				else
-					processGray(ip, (int)Math.round(value), (int)Math.round(min), (int)Math.round(max));
+					processGray(ip, (int)Math.round(value), (int)Math.round(min), (int)Math.round(max), start, end);
 			}
 		} catch (final Exception e) {
 			e.printStackTrace();
 		}
-		return ip;
 	}
 
 	@Override
@@ -0,0 +1,185 @@
+package ini.trakem2.io;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/** Writes an 8-bit grey or RGB image as a tiled, uncompressed BigTIFF file,
+ *  so that neither the image nor the file are limited to 2 or 4 GB.
+ *
+ *  Tiles are appended to the file as they arrive, in any order and from any thread;
+ *  their offsets are kept in memory, and the image file directory that points to them
+ *  is written at the end of the file by {@link #close()}. Tiles that were never written
+ *  all point to a single black tile. As the TIFF specification demands,
+ *  tiles at the right and bottom edges are padded to full size.
+ */
+public final class BigTiffTileWriter implements TileWriter
+{
+	static private final short TYPE_SHORT = 3,
+	                           TYPE_LONG = 4,
+	                           TYPE_LONG8 = 16;
+
+	private final RandomAccessFile ra;
+	private final FileChannel ch;
+	private final int type, width, height, tileWidth, tileHeight, nCols, nRows, samples;
+	private final long[] offsets, byteCounts;
+	/** The end of the file, where the next tile goes. */
+	private long end;
+
+	/** @param file Must not exist yet: an existing file is never overwritten.
+	 *  @param tileWidth Must be a multiple of 16, as must @param tileHeight. */
+	public BigTiffTileWriter(final File file, final int type, final int width, final int height, final int tileWidth, final int tileHeight) throws IOException {
+		if (ImagePlus.GRAY8 != type && ImagePlus.COLOR_RGB != type) throw new IllegalArgumentException("Can only write 8-bit or RGB images.");
+		if (0 != tileWidth % 16 || 0 != tileHeight % 16) throw new IllegalArgumentException("Tile dimensions must be multiples of 16.");
+		this.type = type;
+		this.width = width;
+		this.height = height;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.nCols = (width + tileWidth - 1) / tileWidth;
+		this.nRows = (height + tileHeight - 1) / tileHeight;
+		this.samples = ImagePlus.GRAY8 == type ? 1 : 3;
+		this.offsets = new long[nCols * nRows];
+		this.byteCounts = new long[nCols * nRows];
+
+		if (file.exists()) throw new IOException("Will not overwrite existing file " + file);
+		Utils.ensure(file);
+		this.ra = new RandomAccessFile(file, "rw");
+		this.ch = ra.getChannel();
+		// Header: byte order, version 43, size of offsets, padding, and the offset of the first IFD, written at close()
+		final ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte)'I').put((byte)'I').putShort((short)43).putShort((short)8).putShort((short)0).putLong(0);
+		header.flip();
+		writeFully(header, 0);
+		this.end = 16;
+	}
+
+	@Override
+	public int getType() { return type; }
+	@Override
+	public int getWidth() { return width; }
+	@Override
+	public int getHeight() { return height; }
+	@Override
+	public int getTileWidth() { return tileWidth; }
+	@Override
+	public int getTileHeight() { return tileHeight; }
+
+	@Override
+	public void write(final int col, final int row, final ImageProcessor ip) throws IOException {
+		final int w = Math.min(tileWidth, width - col * tileWidth),
+		          h = Math.min(tileHeight, height - row * tileHeight);
+		final byte[] b = new byte[tileWidth * tileHeight * samples];
+		if (1 == samples) {
+			final byte[] pix = (byte[]) ip.convertToByte(false).getPixels();
+			for (int y=0; y<h; ++y) {
+				System.arraycopy(pix, y * ip.getWidth(), b, y * tileWidth, w);
+			}
+		} else {
+			final int[] pix = (int[]) ip.convertToRGB().getPixels();
+			for (int y=0; y<h; ++y) {
+				for (int x=0, k=y * ip.getWidth(), i=y * tileWidth * 3; x<w; ++x, ++k) {
+					final int c = pix[k];
+					b[i++] = (byte)((c >> 16) & 0xff);
+					b[i++] = (byte)((c >> 8) & 0xff);
+					b[i++] = (byte)(c & 0xff);
+				}
+			}
+		}
+		final int index = row * nCols + col;
+		final long pos;
+		synchronized (this) {
+			pos = end;
+			end += b.length;
+			offsets[index] = pos;
+			byteCounts[index] = b.length;
+		}
+		writeFully(ByteBuffer.wrap(b), pos);
+	}
+
+	private final void writeFully(final ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			pos += ch.write(b, pos);
+		}
+	}
+
+	@Override
+	synchronized public void close() throws IOException {
+		try {
+			// Point missing tiles to a single black tile
+			long blank = -1;
+			final int tileBytes = tileWidth * tileHeight * samples;
+			for (int i=0; i<offsets.length; ++i) {
+				if (0 != byteCounts[i]) continue;
+				if (-1 == blank) {
+					blank = end;
+					writeFully(ByteBuffer.allocate(tileBytes), blank);
+					end += tileBytes;
+				}
+				offsets[i] = blank;
+				byteCounts[i] = tileBytes;
+			}
+
+			// Arrays of tile offsets and byte counts, unless they fit in the IFD entry
+			final long offsetsPos = 1 == offsets.length ? -1 : writeArray(offsets);
+			final long countsPos = 1 == byteCounts.length ? -1 : writeArray(byteCounts);
+
+			final int nEntries = 11;
+			final ByteBuffer ifd = ByteBuffer.allocate(8 + nEntries * 20 + 8).order(ByteOrder.LITTLE_ENDIAN);
+			ifd.putLong(nEntries);
+			entry(ifd, 256, TYPE_LONG, 1, width); // ImageWidth
+			entry(ifd, 257, TYPE_LONG, 1, height); // ImageLength
+			// BitsPerSample: 8 for each sample, fits in the entry even for RGB
+			ifd.putShort((short)258).putShort(TYPE_SHORT).putLong(samples);
+			for (int i=0; i<4; ++i) ifd.putShort((short)(i < samples ? 8 : 0));
+			entry(ifd, 259, TYPE_SHORT, 1, 1); // Compression: none
+			entry(ifd, 262, TYPE_SHORT, 1, 1 == samples ? 1 : 2); // Photometric: BlackIsZero or RGB
+			entry(ifd, 277, TYPE_SHORT, 1, samples); // SamplesPerPixel
+			entry(ifd, 284, TYPE_SHORT, 1, 1); // PlanarConfiguration: chunky
+			entry(ifd, 322, TYPE_LONG, 1, tileWidth);
+			entry(ifd, 323, TYPE_LONG, 1, tileHeight);
+			entry(ifd, 324, TYPE_LONG8, offsets.length, -1 == offsetsPos ? offsets[0] : offsetsPos);
+			entry(ifd, 325, TYPE_LONG8, byteCounts.length, -1 == countsPos ? byteCounts[0] : countsPos);
+			ifd.putLong(0); // no next IFD
+			ifd.flip();
+			final long ifdPos = end;
+			writeFully(ifd, ifdPos);
+			end += ifd.capacity();
+
+			// Point the header to the IFD
+			final ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			b.putLong(ifdPos);
+			b.flip();
+			writeFully(b, 8);
+		} finally {
+			ra.close();
+		}
+	}
+
+	/** Append @param a to the file and return its offset. */
+	private final long writeArray(final long[] a) throws IOException {
+		final ByteBuffer b = ByteBuffer.allocate(a.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+		b.asLongBuffer().put(a);
+		final long pos = end;
+		writeFully(b, pos);
+		end += a.length * 8;
+		return pos;
+	}
+
+	/** An IFD entry whose single value fits in the 8 bytes of the entry. */
+	static private final void entry(final ByteBuffer ifd, final int tag, final short type, final long count, final long value) {
+		ifd.putShort((short)tag).putShort(type).putLong(count);
+		switch (type) {
+			case TYPE_SHORT: ifd.putShort((short)value).putShort((short)0).putInt(0); break;
+			case TYPE_LONG: ifd.putInt((int)value).putInt(0); break;
+			default: ifd.putLong(value); break;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package ini.trakem2.io;
+
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Inflater;
+
+/** Reads {@link RawMipMaps} and {@link RagMipMaps} files through a memory-mapped {@link FileChannel},
+ * decoding the channels straight into the pixel array that backs the returned {@link BufferedImage}.
+ * Unlike {@link RawMipMaps#load(String)} and {@link RagMipMaps#load(String)}, there aren't any
+ * intermediate per-channel arrays, other than for the compressed alpha channel of RAG files.
+ *
+ * Pixel arrays are obtained from the {@link CachingThread} pools, which work from any thread.
+ */
+public final class MappedMipMaps
+{
+	/** Files smaller than this are read into a heap buffer: for them, mapping costs more than it saves. */
+	static private final int MIN_MAPPED_SIZE = 64 * 1024;
+
+	private MappedMipMaps() {}
+
+	/** Read a RAW file. Returns null if not found or not readable. */
+	static public final BufferedImage readRaw(final String path) {
+		return read(path, false, 0);
+	}
+
+	/** Read a RAG file. Returns null if not found or not readable. */
+	static public final BufferedImage readRag(final String path) {
+		return read(path, true, 0);
+	}
+
+	static private final BufferedImage read(final String path, final boolean compressed_alpha, final int retry) {
+		RandomAccessFile ra = null;
+		try {
+			ra = new RandomAccessFile(new File(path), "r");
+			final FileChannel ch = ra.getChannel();
+			final long size = ch.size();
+			final ByteBuffer buf;
+			if (size < MIN_MAPPED_SIZE) {
+				buf = ByteBuffer.allocate((int)size);
+				while (buf.hasRemaining()) {
+					if (-1 == ch.read(buf)) break;
+				}
+				buf.flip();
+			} else {
+				buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			return decode(buf, compressed_alpha);
+		} catch (final FileNotFoundException fnfe) {
+			Utils.log2("File not found: " + path);
+		} catch (final Exception e) {
+			// Possible: BufferUnderflowException, NegativeArraySizeException
+			// ... all meaning that the file exists but hasn't yet been fully written
+			if (retry < 2) {
+				// Wait for image to be fully written
+				try { Thread.sleep(100); } catch (final InterruptedException ie) {}
+				return read(path, compressed_alpha, retry + 1);
+			}
+			// Else the error is for real
+			IJError.print(e);
+		} finally {
+			// The mapping, if any, remains valid after closing the file
+			if (null != ra) try { ra.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+		return null;
+	}
+
+	/** Decode the remaining bytes of @param buf, which start with the 9-byte header shared by RAW and RAG formats.
+	 * @param compressed_alpha Whether the alpha channel, if any, is deflated as in {@link RagMipMaps}. */
+	static public final BufferedImage decode(final ByteBuffer buf, final boolean compressed_alpha) throws Exception {
+		final int start = buf.position();
+		final int width = buf.getInt(start);
+		final int height = buf.getInt(start + 4);
+		final int nCh = buf.get(start + 8);
+		final int n = width * height;
+		final int o = start + RawMipMaps.HEADER_SIZE; // offset of the first channel
+
+		switch (nCh) {
+			case RawMipMaps.GREY: {
+				final byte[] pix = CachingThread.getOrCreateByteArray(n);
+				buf.position(o);
+				buf.get(pix, 0, n);
+				return ImageSaver.createGrayImage(pix, width, height);
+			}
+			case RawMipMaps.RGB: {
+				final int[] pix = CachingThread.getOrCreateIntArray(n);
+				for (int i=0, r=o, g=o+n, b=o+2*n; i<n; ++i, ++r, ++g, ++b) {
+					pix[i] = ((buf.get(r)&0xff) << 16) | ((buf.get(g)&0xff) << 8) | (buf.get(b)&0xff);
+				}
+				return ImageSaver.createRGBImage(pix, width, height);
+			}
+			case RawMipMaps.GREY_ALPHA:
+			case RawMipMaps.RGBA: {
+				final int ao = o + (nCh - 1) * n; // offset of the alpha channel
+				byte[] alpha = null;
+				if (compressed_alpha) {
+					alpha = inflate(buf, ao, n);
+				}
+				try {
+					final int[] pix = CachingThread.getOrCreateIntArray(n);
+					// Premultiplied alpha, as in P.blendPre
+					if (RawMipMaps.GREY_ALPHA == nCh) {
+						for (int i=0, c=o; i<n; ++i, ++c) {
+							final int a = null == alpha ? buf.get(ao + i)&0xff : alpha[i]&0xff;
+							final double K = a / 255.0;
+							final int grey = (int)((buf.get(c)&0xff) * K + 0.5);
+							pix[i] = (a << 24) | (grey << 16) | (grey << 8) | grey;
+						}
+					} else {
+						for (int i=0, r=o, g=o+n, b=o+2*n; i<n; ++i, ++r, ++g, ++b) {
+							final int a = null == alpha ? buf.get(ao + i)&0xff : alpha[i]&0xff;
+							final double K = a / 255.0;
+							pix[i] = (a << 24)
+							       | (((int)((buf.get(r)&0xff) * K + 0.5)) << 16)
+							       | (((int)((buf.get(g)&0xff) * K + 0.5)) <<  8)
+							       |  ((int)((buf.get(b)&0xff) * K + 0.5));
+						}
+					}
+					return ImageSaver.createARGBImagePre(pix, width, height);
+				} finally {
+					if (null != alpha) CachingThread.storeForReuse(alpha);
+				}
+			}
+		}
+		throw new IllegalArgumentException("Invalid number of channels: " + nCh);
+	}
+
+	/** Inflate the bytes from @param offset to the end of @param buf into a pooled array of length @param n. */
+	static private final byte[] inflate(final ByteBuffer buf, final int offset, final int n) throws Exception {
+		final byte[] compressed;
+		final int off, len;
+		if (buf.hasArray()) {
+			compressed = buf.array();
+			off = buf.arrayOffset() + offset;
+			len = buf.limit() - offset;
+		} else {
+			len = buf.limit() - offset;
+			compressed = new byte[len];
+			buf.position(offset);
+			buf.get(compressed);
+			off = 0;
+		}
+		final byte[] alpha = CachingThread.getOrCreateByteArray(n);
+		final Inflater inf = new Inflater(false);
+		try {
+			inf.setInput(compressed, off, len);
+			int sum = 0;
+			while (sum < n && !inf.finished()) {
+				final int r = inf.inflate(alpha, sum, n - sum);
+				if (0 == r && (inf.needsInput() || inf.needsDictionary())) break;
+				sum += r;
+			}
+		} finally {
+			inf.end();
+		}
+		return alpha;
+	}
+}
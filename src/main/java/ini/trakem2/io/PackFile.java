@@ -0,0 +1,336 @@
+package ini.trakem2.io;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/** A single, append-only file of keyed records, to spare the file system many small files.
+ *
+ *  Each record has the length of the key, the key, the length of the data, and the data.
+ *  Overwriting a key appends a new record; removing a key appends a record with data length -1.
+ *  The index of live records is kept in memory, and is rebuilt from the record headers when the file is first opened.
+ *  Records are read into heap buffers: mapping each would leave a mapping open per read until garbage collected.
+ *
+ *  Obsolete records are dropped by {@link #compact()}.
+ *
+ *  Safe for concurrent readers and writers within one JVM.
+ */
+public class PackFile
+{
+	/** Magic bytes and version. */
+	static private final int FILE_HEADER_SIZE = 8;
+
+	static protected final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final byte[] magic;
+	private final int version;
+	private RandomAccessFile ra;
+	private FileChannel channel;
+	/** Offset and length of the data of each live record. Access is synchronized by this instance. */
+	private final HashMap<String,long[]> index = new HashMap<String,long[]>();
+	/** The length of the valid part of the file, where the next record will be appended. */
+	private long end;
+	/** Bytes taken by records that have been overwritten or removed. */
+	private long garbage = 0;
+
+	/** Opens a pack file of a particular kind. */
+	static protected interface Opener<P extends PackFile> {
+		public P open(final File file) throws IOException;
+	}
+
+	/** Open packs of all kinds, by absolute file path. */
+	static private final Map<String,PackFile> packs = new HashMap<String,PackFile>();
+
+	/** Returns the open pack at @param path, opening it with @param opener if necessary or, when @param create,
+	 *  creating it and its parent folders; or null if there isn't such a file and not @param create. */
+	@SuppressWarnings("unchecked")
+	static protected final <P extends PackFile> P get(final String path, final boolean create, final Opener<P> opener) throws IOException {
+		synchronized (packs) {
+			PackFile pack = packs.get(path);
+			if (null == pack) {
+				final File f = new File(path);
+				if (!f.exists()) {
+					if (!create) return null;
+					f.getParentFile().mkdirs();
+				}
+				pack = opener.open(f);
+				packs.put(path, pack);
+			}
+			return (P) pack;
+		}
+	}
+
+	/** Close all open packs whose file is under @param dir, compacting those with mostly obsolete records. */
+	static public final void close(final String dir) {
+		final ArrayList<PackFile> ps = new ArrayList<PackFile>();
+		synchronized (packs) {
+			for (final Map.Entry<String,PackFile> e : new ArrayList<Map.Entry<String,PackFile>>(packs.entrySet())) {
+				if (e.getKey().startsWith(dir)) {
+					ps.add(e.getValue());
+					packs.remove(e.getKey());
+				}
+			}
+		}
+		for (final PackFile pack : ps) {
+			try {
+				synchronized (pack) {
+					if (pack.isMostlyGarbage()) pack.compact();
+				}
+			} catch (final IOException ioe) {
+				IJError.print(ioe);
+			}
+			pack.closeChannel();
+		}
+	}
+
+	/** Close the pack at @param path, if open, without compacting it; for example to delete its file. */
+	static protected final void discard(final String path) {
+		final PackFile pack;
+		synchronized (packs) {
+			pack = packs.remove(path);
+		}
+		if (null != pack) pack.closeChannel();
+	}
+
+	/** @param magic The 4 bytes that identify the kind of pack file.
+	 *  @param version The version of the format of the data of the records, which is written in new files;
+	 *                 existing files with a later version are rejected. */
+	protected PackFile(final File file, final byte[] magic, final int version) throws IOException {
+		this.file = file;
+		this.magic = magic;
+		this.version = version;
+		open();
+	}
+
+	private final void open() throws IOException {
+		this.ra = new RandomAccessFile(file, "rw");
+		this.channel = ra.getChannel();
+		if (0 == channel.size()) {
+			final ByteBuffer h = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			h.put(magic).putInt(version).flip();
+			write(h, 0);
+			this.end = FILE_HEADER_SIZE;
+		} else {
+			this.end = scan();
+		}
+	}
+
+	/** Rebuild the index from the record headers.
+	 *  @return the offset right after the last complete record. */
+	private final long scan() throws IOException {
+		final long size = channel.size();
+		final ByteBuffer h = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		read(h, 0);
+		h.flip();
+		final byte[] m = new byte[magic.length];
+		h.get(m);
+		if (!Arrays.equals(magic, m)) throw new IOException("Not a " + new String(magic, UTF8) + " pack file: " + file);
+		final int v = h.getInt();
+		if (v > version) throw new IOException("Unsupported pack version " + v + " in " + file);
+
+		long pos = FILE_HEADER_SIZE;
+		final ByteBuffer len = ByteBuffer.allocate(4);
+		while (pos + 4 <= size) {
+			len.clear();
+			read(len, pos);
+			final int key_length = len.getInt(0);
+			if (key_length <= 0 || pos + 4 + key_length + 4 > size) break;
+			final ByteBuffer kb = ByteBuffer.allocate(key_length);
+			read(kb, pos + 4);
+			final String key = new String(kb.array(), UTF8);
+			len.clear();
+			read(len, pos + 4 + key_length);
+			final int data_length = len.getInt(0);
+			final long data_offset = pos + 4 + key_length + 4;
+			if (data_offset + Math.max(0, data_length) > size) break; // truncated record, e.g. after a crash
+			final long[] previous = index.remove(key);
+			if (null != previous) garbage += previous[1];
+			if (data_length < 0) {
+				garbage += data_offset - pos;
+			} else {
+				index.put(key, new long[]{data_offset, data_length});
+			}
+			pos = data_offset + Math.max(0, data_length);
+		}
+		if (pos < size) {
+			Utils.log2("Ignoring " + (size - pos) + " bytes of incomplete records at the end of " + file);
+			// Drop them, lest a shorter record appended over them be followed by their remains on the next scan
+			channel.truncate(pos);
+		}
+		return pos;
+	}
+
+	private final void read(final ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			final int r = channel.read(b, pos);
+			if (-1 == r) throw new IOException("Unexpected end of file: " + file);
+			pos += r;
+		}
+	}
+
+	private final void write(final ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			pos += channel.write(b, pos);
+		}
+	}
+
+	/** Append a record; a null @param data removes the key. */
+	protected final synchronized void append(final String key, final byte[] data) throws IOException {
+		final byte[] kb = key.getBytes(UTF8);
+		final ByteBuffer h = ByteBuffer.allocate(4 + kb.length + 4);
+		h.putInt(kb.length).put(kb).putInt(null == data ? -1 : data.length).flip();
+		final long pos = end;
+		write(h, pos);
+		if (null != data) write(ByteBuffer.wrap(data), pos + h.capacity());
+		// Update the index only after the data is written, so that readers never see an incomplete record
+		end = pos + h.capacity() + (null == data ? 0 : data.length);
+		final long[] previous = index.remove(key);
+		if (null != previous) garbage += previous[1];
+		if (null == data) garbage += h.capacity();
+		else index.put(key, new long[]{pos + h.capacity(), data.length});
+	}
+
+	public final synchronized boolean contains(final String key) {
+		return index.containsKey(key);
+	}
+
+	/** Returns false if there wasn't a record for @param key. */
+	public final boolean remove(final String key) {
+		synchronized (this) {
+			if (!index.containsKey(key)) return false;
+		}
+		try {
+			append(key, null);
+			return true;
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return false;
+		}
+	}
+
+	/** Returns the keys of all live records that start with @param prefix. */
+	public final synchronized ArrayList<String> keys(final String prefix) {
+		final ArrayList<String> keys = new ArrayList<String>();
+		for (final String key : index.keySet()) {
+			if (key.startsWith(prefix)) keys.add(key);
+		}
+		return keys;
+	}
+
+	/** Returns the data of the record for @param key, read into a heap buffer; or null if there isn't any. */
+	protected final ByteBuffer readRecord(final String key) {
+		final long[] entry;
+		final FileChannel ch;
+		synchronized (this) {
+			entry = index.get(key);
+			ch = this.channel;
+		}
+		if (null == entry) return null;
+		try {
+			final ByteBuffer buf = ByteBuffer.allocate((int)entry[1]);
+			long pos = entry[0];
+			while (buf.hasRemaining()) {
+				final int r = ch.read(buf, pos);
+				if (-1 == r) return null;
+				pos += r;
+			}
+			buf.flip();
+			return buf;
+		} catch (final Exception e) {
+			// The pack may have been compacted or closed meanwhile: retry once with the current state
+			synchronized (this) {
+				if (ch != this.channel && index.containsKey(key)) return readRecord(key);
+			}
+			IJError.print(e);
+			return null;
+		}
+	}
+
+	/** Whether obsolete records take up more than half of the file. */
+	public final synchronized boolean isMostlyGarbage() {
+		return garbage > end / 2;
+	}
+
+	/** Rewrite the pack file with only the live records, dropping all obsolete ones. */
+	public final synchronized void compact() throws IOException {
+		final File tmp = new File(file.getAbsolutePath() + ".tmp");
+		final RandomAccessFile rb = new RandomAccessFile(tmp, "rw");
+		final HashMap<String,long[]> compacted = new HashMap<String,long[]>();
+		long pos;
+		try {
+			rb.setLength(0);
+			final FileChannel out = rb.getChannel();
+			final ByteBuffer h = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			h.put(magic).putInt(version).flip();
+			pos = 0;
+			while (h.hasRemaining()) pos += out.write(h, pos);
+			for (final Map.Entry<String,long[]> e : index.entrySet()) {
+				final byte[] kb = e.getKey().getBytes(UTF8);
+				final long[] entry = e.getValue();
+				final ByteBuffer rh = ByteBuffer.allocate(4 + kb.length + 4);
+				rh.putInt(kb.length).put(kb).putInt((int)entry[1]).flip();
+				while (rh.hasRemaining()) pos += out.write(rh, pos);
+				compacted.put(e.getKey(), new long[]{pos, entry[1]});
+				long n = 0;
+				while (n < entry[1]) n += channel.transferTo(entry[0] + n, entry[1] - n, out.position(pos + n));
+				pos += entry[1];
+			}
+			out.force(false);
+		} finally {
+			rb.close();
+		}
+		closeChannel();
+		// Never remove the pack before its replacement is in place: on failure, the pack is left as it was
+		try {
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (final AtomicMoveNotSupportedException amnse) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (final IOException ioe) {
+			// keep using the uncompacted pack
+			index.clear();
+			garbage = 0;
+			open();
+			if (!tmp.delete()) Utils.log2("Could not delete " + tmp);
+			throw new IOException("Could not replace " + file + " with its compacted version " + tmp + ": " + ioe);
+		}
+		final long before = end;
+		index.clear();
+		index.putAll(compacted);
+		this.ra = new RandomAccessFile(file, "rw");
+		this.channel = ra.getChannel();
+		this.end = pos;
+		this.garbage = 0;
+		Utils.log2("Compacted " + file + " from " + before + " to " + pos + " bytes.");
+	}
+
+	protected final synchronized void closeChannel() {
+		try {
+			if (null != ra) ra.close();
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+		}
+		ra = null;
+		channel = null;
+	}
+
+	/** Number of live records in this pack. */
+	public final synchronized int size() {
+		return index.size();
+	}
+}
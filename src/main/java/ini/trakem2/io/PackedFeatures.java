@@ -0,0 +1,314 @@
+package ini.trakem2.io;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/** Stores the SIFT features of tiles, and the point matches between pairs of tiles, in binary {@link PackFile}s,
+ *  instead of one Java-serialized file for each tile and for each pair of tiles.
+ *
+ *  Each pack holds the records of {@link #IDS_PER_PACK} consecutive ids, so that the pack of a tile,
+ *  or of a layer, is found from its id alone; tiles imported together, which are aligned together,
+ *  tend to have consecutive ids. Point matches are stored in the pack of the id of the first tile of the pair,
+ *  and, flipped, in that of the second one, so that all records involving a tile are found from its id.
+ *
+ *  The data of each record is: the format version, the kind of record, whether the rest is compressed,
+ *  the Java-serialized key object (for example the SIFT parameters) and the length of the rest,
+ *  then the rest: features as float descriptors and double coordinates, or point matches as double coordinates.
+ *  Records are returned only when their key equals the requested one.
+ *
+ *  Safe for concurrent readers and writers within one JVM.
+ */
+public final class PackedFeatures extends PackFile
+{
+	/** Name of the folder, within the project's unuid folder, with all the pack files. */
+	static public final String DIR_NAME = "features.pak/";
+
+	static public final int IDS_PER_PACK = 256;
+
+	static private final byte[] MAGIC = new byte[]{'T', '2', 'F', 'P'};
+	static private final int VERSION = 1;
+
+	static private final byte FEATURES = 1,
+	                          POINTMATCHES = 2;
+
+	/** Whether to deflate the features and point matches of new records. Off by default: float descriptors compress poorly. */
+	static private volatile boolean compress = false;
+
+	static private final Opener<PackedFeatures> OPENER = new Opener<PackedFeatures>() {
+		@Override
+		public PackedFeatures open(final File file) throws IOException {
+			return new PackedFeatures(file);
+		}
+	};
+
+	static public final void setCompression(final boolean b) {
+		compress = b;
+	}
+
+	static public final boolean isCompression() {
+		return compress;
+	}
+
+	/** Returns the pack for @param id within the folder @param dir (ending with a slash),
+	 *  opening it or, when @param create, creating it if necessary; or null. */
+	static private final PackedFeatures get(final String dir, final long id, final boolean create) throws IOException {
+		return get(new StringBuilder(dir).append(id / IDS_PER_PACK).append(".pak").toString(), create, OPENER);
+	}
+
+	private PackedFeatures(final File file) throws IOException {
+		super(file, MAGIC, VERSION);
+	}
+
+	static private final String featuresKey(final String name, final long id) {
+		return new StringBuilder("f/").append(name).append('/').append(id).toString();
+	}
+
+	static private final String pointMatchesKey(final String name, final long id1, final long id2) {
+		return new StringBuilder("m/").append(name).append('/').append(id1).append('_').append(id2).toString();
+	}
+
+	/** Save @param features of the tile or layer with @param id, under @param name, such as "features" or "layer.features",
+	 *  to be retrieved with an equal @param key. */
+	static public final boolean saveFeatures(final String dir, final String name, final long id, final Object key, final Collection<Feature> features) {
+		try {
+			int size = 4;
+			for (final Feature f : features) size += 8 + 8 + 4 + 8 * f.location.length + 4 + 4 * f.descriptor.length;
+			final ByteBuffer b = ByteBuffer.allocate(size);
+			b.putInt(features.size());
+			for (final Feature f : features) {
+				b.putDouble(f.scale).putDouble(f.orientation);
+				putDoubles(b, f.location);
+				b.putInt(f.descriptor.length);
+				b.asFloatBuffer().put(f.descriptor);
+				b.position(b.position() + 4 * f.descriptor.length);
+			}
+			get(dir, id, true).append(featuresKey(name, id), encode(FEATURES, key, b.array()));
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		}
+	}
+
+	/** Returns the features saved for @param id under @param name, or null if there aren't any, or if saved with a different @param key. */
+	static public final ArrayList<Feature> loadFeatures(final String dir, final String name, final long id, final Object key) {
+		try {
+			final PackedFeatures pack = get(dir, id, false);
+			if (null == pack) return null;
+			final ByteBuffer b = decode(pack.readRecord(featuresKey(name, id)), FEATURES, key);
+			if (null == b) return null;
+			final int n = b.getInt();
+			final ArrayList<Feature> features = new ArrayList<Feature>(n);
+			for (int i=0; i<n; ++i) {
+				final double scale = b.getDouble(),
+				             orientation = b.getDouble();
+				final double[] location = getDoubles(b);
+				final float[] descriptor = new float[b.getInt()];
+				b.asFloatBuffer().get(descriptor);
+				b.position(b.position() + 4 * descriptor.length);
+				features.add(new Feature(scale, orientation, location, descriptor));
+			}
+			return features;
+		} catch (final Exception e) {
+			Utils.log("Failed to read the features of " + id + ": " + e);
+			return null;
+		}
+	}
+
+	/** Save @param matches from the tile or layer with @param id1 to that with @param id2, and, flipped, from @param id2 to @param id1,
+	 *  under @param name, such as "pointmatches" or "layer.pointmatches", to be retrieved with an equal @param key. */
+	static public final boolean savePointMatches(final String dir, final String name, final long id1, final long id2, final Object key, final Collection<PointMatch> matches) {
+		try {
+			final ArrayList<PointMatch> flipped = new ArrayList<PointMatch>(matches.size());
+			PointMatch.flip(matches, flipped);
+			get(dir, id1, true).append(pointMatchesKey(name, id1, id2), encode(POINTMATCHES, key, encodePointMatches(matches)));
+			get(dir, id2, true).append(pointMatchesKey(name, id2, id1), encode(POINTMATCHES, key, encodePointMatches(flipped)));
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		}
+	}
+
+	static private final byte[] encodePointMatches(final Collection<PointMatch> matches) {
+		int size = 4;
+		for (final PointMatch m : matches) size += 8 + 4 * (4 + 8 * m.getP1().getL().length);
+		final ByteBuffer b = ByteBuffer.allocate(size);
+		b.putInt(matches.size());
+		for (final PointMatch m : matches) {
+			b.putDouble(m.getWeight());
+			putDoubles(b, m.getP1().getL());
+			putDoubles(b, m.getP1().getW());
+			putDoubles(b, m.getP2().getL());
+			putDoubles(b, m.getP2().getW());
+		}
+		return b.array();
+	}
+
+	/** Returns the point matches saved from @param id1 to @param id2 under @param name, or null if there aren't any,
+	 *  or if saved with a different @param key. */
+	static public final ArrayList<PointMatch> loadPointMatches(final String dir, final String name, final long id1, final long id2, final Object key) {
+		try {
+			final PackedFeatures pack = get(dir, id1, false);
+			if (null == pack) return null;
+			final ByteBuffer b = decode(pack.readRecord(pointMatchesKey(name, id1, id2)), POINTMATCHES, key);
+			if (null == b) return null;
+			final int n = b.getInt();
+			final ArrayList<PointMatch> matches = new ArrayList<PointMatch>(n);
+			for (int i=0; i<n; ++i) {
+				final double weight = b.getDouble();
+				final Point p1 = new Point(getDoubles(b), getDoubles(b));
+				final Point p2 = new Point(getDoubles(b), getDoubles(b));
+				matches.add(new PointMatch(p1, p2, weight));
+			}
+			return matches;
+		} catch (final Exception e) {
+			Utils.log("Failed to read the point matches of " + id1 + " and " + id2 + ": " + e);
+			return null;
+		}
+	}
+
+	/** Remove all features saved for @param id, under any name. Returns false if any could not be removed. */
+	static public final boolean removeFeatures(final String dir, final long id) {
+		try {
+			final PackedFeatures pack = get(dir, id, false);
+			if (null == pack) return true;
+			boolean success = true;
+			for (final String k : pack.keys("f/")) {
+				if (k.endsWith("/" + id)) success = pack.remove(k) && success;
+			}
+			return success;
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return false;
+		}
+	}
+
+	/** Remove all point matches saved from or to @param id, under any name. Returns false if any could not be removed. */
+	static public final boolean removePointMatches(final String dir, final long id) {
+		try {
+			final PackedFeatures pack = get(dir, id, false);
+			if (null == pack) return true;
+			boolean success = true;
+			final String sid = "/" + id + "_";
+			for (final String k : pack.keys("m/")) {
+				final int i = k.lastIndexOf(sid);
+				if (-1 == i || -1 != k.indexOf('/', i + 1)) continue;
+				success = pack.remove(k) && success;
+				// Remove the flipped record, from the other tile
+				final long other = Long.parseLong(k.substring(i + sid.length()));
+				final PackedFeatures other_pack = get(dir, other, false);
+				if (null != other_pack) {
+					final String kk = pointMatchesKey(k.substring(2, i), other, id);
+					if (other_pack.contains(kk)) success = other_pack.remove(kk) && success;
+				}
+			}
+			return success;
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return false;
+		}
+	}
+
+	static private final void putDoubles(final ByteBuffer b, final double[] d) {
+		b.putInt(d.length);
+		for (int i=0; i<d.length; ++i) b.putDouble(d[i]);
+	}
+
+	static private final double[] getDoubles(final ByteBuffer b) {
+		final double[] d = new double[b.getInt()];
+		for (int i=0; i<d.length; ++i) d[i] = b.getDouble();
+		return d;
+	}
+
+	/** Returns the data of a record: version, kind, compression, key and the @param payload, deflated if {@link #compress}. */
+	static private final byte[] encode(final byte kind, final Object key, final byte[] payload) throws IOException {
+		final ByteArrayOutputStream kbytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(kbytes);
+		out.writeObject(key);
+		out.close();
+		final byte[] kb = kbytes.toByteArray();
+
+		byte[] data = payload;
+		int length = payload.length;
+		final boolean deflate = compress;
+		if (deflate) {
+			final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(payload);
+			deflater.finish();
+			final ByteArrayOutputStream d = new ByteArrayOutputStream(payload.length / 2 + 64);
+			final byte[] buf = new byte[64 * 1024];
+			while (!deflater.finished()) {
+				d.write(buf, 0, deflater.deflate(buf));
+			}
+			deflater.end();
+			data = d.toByteArray();
+			length = data.length;
+		}
+
+		final ByteBuffer b = ByteBuffer.allocate(3 + 4 + kb.length + 4 + 4 + length);
+		b.put((byte)VERSION).put(kind).put((byte)(deflate ? 1 : 0));
+		b.putInt(kb.length).put(kb);
+		b.putInt(payload.length).putInt(length).put(data, 0, length);
+		return b.array();
+	}
+
+	/** Returns a buffer positioned at the start of the (inflated) payload of the record data @param b,
+	 *  or null if there isn't any, or if it is of a different @param kind or has a key that doesn't equal @param key. */
+	static private final ByteBuffer decode(final ByteBuffer b, final byte kind, final Object key) throws IOException, ClassNotFoundException, DataFormatException {
+		if (null == b) return null;
+		final byte version = b.get();
+		if (version > VERSION) {
+			Utils.log2("Unsupported features record version " + version);
+			return null;
+		}
+		if (kind != b.get()) return null;
+		final boolean deflated = 1 == b.get();
+		final byte[] kb = new byte[b.getInt()];
+		b.get(kb);
+		final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(kb));
+		final Object stored = in.readObject();
+		in.close();
+		if (null == stored || !key.equals(stored)) return null;
+		final int raw_length = b.getInt(),
+		          length = b.getInt();
+		if (!deflated) {
+			final ByteBuffer payload = b.slice();
+			payload.limit(length);
+			return payload;
+		}
+		final byte[] data = new byte[length];
+		b.get(data);
+		final Inflater inflater = new Inflater();
+		inflater.setInput(data);
+		final byte[] raw = new byte[raw_length];
+		int n = 0;
+		try {
+			while (n < raw_length && !inflater.finished()) {
+				final int r = inflater.inflate(raw, n, raw_length - n);
+				if (0 == r && (inflater.needsInput() || inflater.needsDictionary())) throw new DataFormatException("Truncated record");
+				n += r;
+			}
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(raw);
+	}
+}
@@ -0,0 +1,212 @@
+package ini.trakem2.io;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ini.trakem2.display.Patch;
+import ini.trakem2.imaging.filters.IFilter;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.List;
+
+import mpicbg.trakem2.transform.CoordinateTransform;
+import mpicbg.trakem2.util.Pair;
+
+/** Stores downscaled renders of layers, as used for aligning layers to each other, in {@link PackFile}s,
+ *  so that aligning the same layers again, for example with different parameters, doesn't render them again.
+ *
+ *  Renders are content-addressed: the key of a render is a digest of the kind of render, the box, the scale,
+ *  and everything about the patches that affects their pixels (transforms, image files, preprocessor scripts, min and max,
+ *  alpha masks, filters, etc.). A layer whose patches have changed gets a different key, and is rendered again; of each layer,
+ *  only the latest render of each kind and scale is kept.
+ *
+ *  Each pack holds the renders of {@link #IDS_PER_PACK} consecutive layer ids, so that the pack of a layer is found from its id alone.
+ *
+ *  Safe for concurrent readers and writers within one JVM.
+ */
+public final class PackedLayerRenders extends PackFile
+{
+	/** Name of the folder, within the project's unuid folder, with all the pack files. */
+	static public final String DIR_NAME = "layer_renders.pak/";
+
+	static public final int IDS_PER_PACK = 64;
+
+	static private final byte[] MAGIC = new byte[]{'T', '2', 'L', 'R'};
+	static private final int VERSION = 1;
+
+	static private final byte GRAY8 = 1,
+	                          FLOAT_AND_ALPHA = 2;
+
+	static private final Opener<PackedLayerRenders> OPENER = new Opener<PackedLayerRenders>() {
+		@Override
+		public PackedLayerRenders open(final File file) throws IOException {
+			return new PackedLayerRenders(file);
+		}
+	};
+
+	/** Returns the pack for @param id within the folder @param dir (ending with a slash),
+	 *  opening it or, when @param create, creating it if necessary; or null. */
+	static private final PackedLayerRenders get(final String dir, final long id, final boolean create) throws IOException {
+		return get(new StringBuilder(dir).append(id / IDS_PER_PACK).append(".pak").toString(), create, OPENER);
+	}
+
+	private PackedLayerRenders(final File file) throws IOException {
+		super(file, MAGIC, VERSION);
+	}
+
+	/** Returns a digest of everything that determines the render of @param patches within @param box at @param scale
+	 *  by the renderer named @param kind, or null if it could not be computed, in which case the render should not be cached. */
+	static public final String contentKey(final String kind, final List<Patch> patches, final Rectangle box, final double scale, final boolean mipmaps) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			final ByteBuffer b = ByteBuffer.allocate(8);
+			md.update(kind.getBytes(UTF8));
+			update(md, b, box.x); update(md, b, box.y); update(md, b, box.width); update(md, b, box.height);
+			update(md, b, Double.doubleToLongBits(scale));
+			update(md, b, mipmaps ? 1 : 0);
+			update(md, b, patches.size());
+			final double[] m = new double[6];
+			for (final Patch patch : patches) {
+				update(md, b, patch.getId());
+				patch.getAffineTransform().getMatrix(m);
+				for (final double d : m) update(md, b, Double.doubleToLongBits(d));
+				update(md, b, patch.getOWidth()); update(md, b, patch.getOHeight());
+				update(md, b, patch.getType());
+				update(md, b, Double.doubleToLongBits(patch.getMin()));
+				update(md, b, Double.doubleToLongBits(patch.getMax()));
+				update(md, b, Float.floatToIntBits(patch.getAlpha()));
+				update(md, b, patch.getChannelAlphas());
+				update(md, b, patch.getAlphaMaskId());
+				// The same ct_id may be rewritten with a different transform
+				if (patch.hasCoordinateTransform()) {
+					final CoordinateTransform ct = patch.getCoordinateTransform();
+					if (null != ct) md.update(ct.toXML("").getBytes(UTF8));
+				}
+				final IFilter[] fs = patch.getFilters();
+				if (null != fs) {
+					for (final IFilter f : fs) md.update(f.toXML("").getBytes(UTF8));
+				}
+				final String path = patch.getImageFilePath();
+				if (null != path) {
+					md.update(path.getBytes(UTF8));
+					update(md, b, new File(path).lastModified());
+				}
+				final String script = patch.getProject().getLoader().getPreprocessorScriptPath(patch);
+				if (null != script) {
+					md.update(script.getBytes(UTF8));
+					update(md, b, new File(script).lastModified());
+				}
+			}
+			final StringBuilder sb = new StringBuilder(40);
+			for (final byte d : md.digest()) sb.append(Character.forDigit((d >> 4) & 0xf, 16)).append(Character.forDigit(d & 0xf, 16));
+			return sb.toString();
+		} catch (final Exception e) {
+			Utils.log2("Could not compute the content key of a layer render: " + e);
+			return null;
+		}
+	}
+
+	static private final void update(final MessageDigest md, final ByteBuffer b, final long value) {
+		b.clear();
+		b.putLong(value);
+		md.update(b.array());
+	}
+
+	static private final String prefix(final String kind, final double scale) {
+		return new StringBuilder(kind).append('/').append(scale).append('/').toString();
+	}
+
+	/** Save @param data as the render of kind @param kind at @param scale of layer @param id,
+	 *  replacing any other render of the same kind and scale. */
+	static private final boolean save(final String dir, final long id, final String kind, final double scale, final String key, final byte[] data) {
+		try {
+			final PackedLayerRenders pack = get(dir, id, true);
+			final String prefix = prefix(kind, scale);
+			final String k = new StringBuilder(prefix).append(id).append('/').append(key).toString();
+			pack.append(k, data);
+			final String layer_prefix = new StringBuilder(prefix).append(id).append('/').toString();
+			for (final String other : pack.keys(layer_prefix)) {
+				if (!other.equals(k)) pack.remove(other);
+			}
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		}
+	}
+
+	/** Returns a buffer positioned at the pixels of the render, or null if there isn't one of @param type for @param key. */
+	static private final ByteBuffer load(final String dir, final long id, final String kind, final double scale, final String key, final byte type) {
+		try {
+			final PackedLayerRenders pack = get(dir, id, false);
+			if (null == pack) return null;
+			final ByteBuffer b = pack.readRecord(new StringBuilder(prefix(kind, scale)).append(id).append('/').append(key).toString());
+			if (null == b) return null;
+			final byte version = b.get();
+			if (version > VERSION) {
+				Utils.log2("Unsupported layer render record version " + version);
+				return null;
+			}
+			if (type != b.get()) return null;
+			return b;
+		} catch (final Exception e) {
+			Utils.log("Failed to read the render of layer " + id + ": " + e);
+			return null;
+		}
+	}
+
+	/** Save @param bp as the 8-bit render of kind @param kind of layer @param id, under the {@link #contentKey(String, List, Rectangle, double, boolean) content key} @param key. */
+	static public final boolean saveGray(final String dir, final long id, final String kind, final double scale, final String key, final ByteProcessor bp) {
+		final int w = bp.getWidth(),
+		          h = bp.getHeight();
+		final ByteBuffer b = ByteBuffer.allocate(2 + 4 + 4 + w * h);
+		b.put((byte)VERSION).put(GRAY8).putInt(w).putInt(h).put((byte[])bp.getPixels(), 0, w * h);
+		return save(dir, id, kind, scale, key, b.array());
+	}
+
+	/** Returns the 8-bit render of kind @param kind of layer @param id with content key @param key, or null if there isn't one. */
+	static public final ByteProcessor loadGray(final String dir, final long id, final String kind, final double scale, final String key) {
+		final ByteBuffer b = load(dir, id, kind, scale, key, GRAY8);
+		if (null == b) return null;
+		final int w = b.getInt(),
+		          h = b.getInt();
+		final byte[] pixels = new byte[w * h];
+		b.get(pixels);
+		return new ByteProcessor(w, h, pixels, null);
+	}
+
+	/** Save the gray image and alpha channel, with alpha values in [0..255], of @param pair as the render of kind @param kind of layer @param id,
+	 *  under the {@link #contentKey(String, List, Rectangle, double, boolean) content key} @param key. */
+	static public final boolean saveFloatAndAlpha(final String dir, final long id, final String kind, final double scale, final String key, final Pair<FloatProcessor,FloatProcessor> pair) {
+		final int w = pair.a.getWidth(),
+		          h = pair.a.getHeight();
+		final float[] gray = (float[])pair.a.getPixels(),
+		              alpha = (float[])pair.b.getPixels();
+		final ByteBuffer b = ByteBuffer.allocate(2 + 4 + 4 + 4 * w * h + w * h);
+		b.put((byte)VERSION).put(FLOAT_AND_ALPHA).putInt(w).putInt(h);
+		b.asFloatBuffer().put(gray, 0, w * h);
+		b.position(b.position() + 4 * w * h);
+		for (int i=0; i<w*h; ++i) b.put((byte)Math.round(alpha[i]));
+		return save(dir, id, kind, scale, key, b.array());
+	}
+
+	/** Returns the gray image and alpha channel, with alpha values in [0..255], of the render of kind @param kind of layer @param id
+	 *  with content key @param key, or null if there isn't one. */
+	static public final Pair<FloatProcessor,FloatProcessor> loadFloatAndAlpha(final String dir, final long id, final String kind, final double scale, final String key) {
+		final ByteBuffer b = load(dir, id, kind, scale, key, FLOAT_AND_ALPHA);
+		if (null == b) return null;
+		final int w = b.getInt(),
+		          h = b.getInt();
+		final float[] gray = new float[w * h],
+		              alpha = new float[w * h];
+		b.asFloatBuffer().get(gray);
+		b.position(b.position() + 4 * w * h);
+		for (int i=0; i<alpha.length; ++i) alpha[i] = b.get() & 0xff;
+		return new Pair<FloatProcessor,FloatProcessor>(new FloatProcessor(w, h, gray, null), new FloatProcessor(w, h, alpha, null));
+	}
+}
@@ -0,0 +1,92 @@
+package ini.trakem2.io;
+
+import ini.trakem2.persistence.ImageBytes;
+import ini.trakem2.utils.IJError;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Stores all mipmaps of one level in a single, append-only pack file,
+ *  instead of one file per mipmap, to spare the file system millions of tiny files.
+ *
+ *  Each mipmap is stored in {@link RagMipMaps} format, as a {@link PackFile} record
+ *  whose key is the relative path that the mipmap file would have.
+ *
+ *  Obsolete records are dropped by {@link #compact()}, which {@link #close(String)}
+ *  calls when they take up more than half of the pack file.
+ *
+ *  Safe for concurrent readers and writers within one JVM.
+ */
+public final class PackedMipMaps extends PackFile
+{
+	/** Name of the pack file within each level folder. */
+	static public final String PACK_NAME = "mipmaps.pak";
+
+	static private final byte[] MAGIC = new byte[]{'T', '2', 'P', 'K'};
+	static private final int VERSION = 1;
+
+	static private final Opener<PackedMipMaps> OPENER = new Opener<PackedMipMaps>() {
+		@Override
+		public PackedMipMaps open(final File file) throws IOException {
+			return new PackedMipMaps(file);
+		}
+	};
+
+	/** Returns the pack for the level folder @param level_dir (ending with a slash), opening or creating it if necessary. */
+	static public final PackedMipMaps get(final String level_dir) throws IOException {
+		return get(level_dir + PACK_NAME, true, OPENER);
+	}
+
+	/** Returns the pack for @param level_dir if its file exists, or null otherwise, without creating it. */
+	static public final PackedMipMaps getIfExists(final String level_dir) throws IOException {
+		return get(level_dir + PACK_NAME, false, OPENER);
+	}
+
+	/** Close and delete the pack file of the level folder @param level_dir, if any. */
+	static public final boolean delete(final String level_dir) {
+		final String path = level_dir + PACK_NAME;
+		discard(path);
+		final File f = new File(path);
+		return !f.exists() || f.delete();
+	}
+
+	private PackedMipMaps(final File file) throws IOException {
+		super(file, MAGIC, VERSION);
+	}
+
+	public final boolean save(final String key, final byte[][] b, final int width, final int height) {
+		try {
+			append(key, RagMipMaps.encode(b, width, height));
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		}
+	}
+
+	/** Returns null if there isn't a mipmap for @param key. */
+	public final ImageBytes load(final String key) {
+		final ByteBuffer buf = readRecord(key);
+		if (null == buf) return null;
+		try {
+			return RagMipMaps.decode(buf);
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		}
+	}
+
+	/** Returns null if there isn't a mipmap for @param key. */
+	public final BufferedImage read(final String key) {
+		final ByteBuffer buf = readRecord(key);
+		if (null == buf) return null;
+		try {
+			return MappedMipMaps.decode(buf, true);
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package ini.trakem2.io;
 
-import ini.trakem2.imaging.P;
 import ini.trakem2.persistence.ImageBytes;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.IJError;
@@ -13,6 +12,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
@@ -151,37 +152,73 @@ public final class RagMipMaps
 		return null;
 	}
 
-	static public final BufferedImage read(final String path) {
-		try {
-			final ImageBytes ib = load(path);
-			if (null == ib) return null;
-			final byte[][] ch = ib.c;
-			// Channel length also specifies the type
-			switch (ch.length) {
-				case GREY:
-					return ImageSaver.createGrayImage(ch[0], ib.width, ib.height);
+	/** Encode the image in RAG format, header included, for storing it elsewhere than in its own file,
+	 *  such as in a {@link PackedMipMaps}. */
+	static public final byte[] encode(final byte[][] b, final int width, final int height) throws IOException {
+		final int chLength = width * height;
+		final ByteArrayOutputStream ba = new ByteArrayOutputStream(HEADER_SIZE + chLength * b.length);
+		ba.write(new byte[]{(byte)((width  >> 24) & 0xff),
+		                    (byte)((width  >> 16) & 0xff),
+		                    (byte)((width  >>  8) & 0xff),
+		                    (byte) (width         & 0xff),
+		                    (byte)((height >> 24) & 0xff),
+		                    (byte)((height >> 16) & 0xff),
+		                    (byte)((height >>  8) & 0xff),
+		                    (byte) (height        & 0xff),
+		                    (byte)  b.length});
+		if (1 == b.length || 3 == b.length) {
+			for (int i=0; i<b.length; ++i) {
+				ba.write(b[i]);
+			}
+		} else {
+			for (int i=0; i<b.length-1; ++i) {
+				ba.write(b[i]);
 			}
+			final DeflaterOutputStream def = new DeflaterOutputStream(ba, new Deflater(4, false), 1024);
+			def.write(b[b.length-1]);
+			def.finish();
+		}
+		return ba.toByteArray();
+	}
+
+	/** Decode an image in RAG format from the remaining bytes of @param buf,
+	 *  as written by {@link #encode(byte[][], int, int)} or by {@link #save(String, byte[][], int, int)}. */
+	static public final ImageBytes decode(final ByteBuffer buf) throws DataFormatException {
+		final byte[] h = new byte[HEADER_SIZE];
+		buf.get(h);
+		final int width =  ((h[0]&0xff) << 24) | ((h[1]&0xff) << 16) | ((h[2]&0xff) << 8) | (h[3]&0xff);
+		final int height = ((h[4]&0xff) << 24) | ((h[5]&0xff) << 16) | ((h[6]&0xff) << 8) | (h[7]&0xff);
+		final int nCh = h[8];
+		final byte[][] ch = CachingThread.getOrCreateByteArray(nCh, width * height);
+		// Types 2 and 4 have a compressed alpha channel
+		final int end = 0 == nCh % 2 ? nCh -1 : nCh;
+		for (int i=0; i<end; ++i) {
+			buf.get(ch[i]);
+		}
+		if (end < nCh) {
+			final byte[] a = new byte[buf.remaining()];
+			buf.get(a);
+			final Inflater inf = new Inflater(false);
 			try {
-				// Given that the BufferedImage is created with an int[], store the byte[] arrays for reuse
-				switch (ch.length) {
-					case GREY_ALPHA:
-						// TODO: price of PRE should be paid when saving, not when reading
-						return ImageSaver.createARGBImagePre(P.blendPre(ch[0], ch[1]), ib.width, ib.height);
-					case RGB:
-						return ImageSaver.createRGBImage(P.blend(ch[0], ch[1], ch[2]), ib.width, ib.height);
-					case RGBA:
-						// TODO: price of PRE should be paid when saving, not when reading
-						return ImageSaver.createARGBImagePre(P.blendPre(ch[0], ch[1], ch[2], ch[3]), ib.width, ib.height);
+				inf.setInput(a);
+				int sum = 0;
+				while (sum < ch[nCh-1].length && !inf.finished()) {
+					final int r = inf.inflate(ch[nCh-1], sum, ch[nCh-1].length - sum);
+					if (0 == r && (inf.needsInput() || inf.needsDictionary())) break;
+					sum += r;
 				}
 			} finally {
-				CachingThread.storeForReuse(ch);
+				inf.end();
 			}
-		} catch (Exception e) {
-			IJError.print(e);
 		}
-		return null;
+		return new ImageBytes(ch, width, height);
 	}
-	
+
+	/** Reads through a memory-mapped file: see {@link MappedMipMaps#readRag(String)}. */
+	static public final BufferedImage read(final String path) {
+		return MappedMipMaps.readRag(path);
+	}
+
 	static private final void read(final RandomAccessFile ra, final byte[] b) throws IOException {
 		int s = 0;
 		while (s < b.length) {
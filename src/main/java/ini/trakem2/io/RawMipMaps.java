@@ -1,6 +1,5 @@
 package ini.trakem2.io;
 
-import ini.trakem2.imaging.P;
 import ini.trakem2.persistence.ImageBytes;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.IJError;
@@ -93,36 +92,9 @@ public final class RawMipMaps {
 		return null;
 	}
 
+	/** Reads through a memory-mapped file: see {@link MappedMipMaps#readRaw(String)}. */
 	static public final BufferedImage read(final String path) {
-		try {
-			final ImageBytes ib = load(path);
-			if (null == ib) return null;
-			final byte[][] ch = ib.c;
-			// Channel length also specifies the type
-			switch (ch.length) {
-				case GREY:
-					return ImageSaver.createGrayImage(ch[0], ib.width, ib.height);
-			}
-			
-			try {
-				// Given that the BufferedImage is created with an int[], store the byte[] arrays for reuse
-				switch (ch.length) {
-					case GREY_ALPHA:
-						// TODO: price of PRE shold be paid when saving, not when reading
-						return ImageSaver.createARGBImagePre(P.blendPre(ch[0], ch[1]), ib.width, ib.height);
-					case RGB:
-						return ImageSaver.createRGBImage(P.blend(ch[0], ch[1], ch[2]), ib.width, ib.height);
-					case RGBA:
-						// TODO: price of PRE shold be paid when saving, not when reading
-						return ImageSaver.createARGBImagePre(P.blendPre(ch[0], ch[1], ch[2], ch[3]), ib.width, ib.height);
-				}
-			} finally {
-				CachingThread.storeForReuse(ch);
-			}
-		} catch (Exception e) {
-			IJError.print(e);
-		}
-		return null;
+		return MappedMipMaps.readRaw(path);
 	}
 	
 	static private final void read(final RandomAccessFile ra, final byte[] b) throws IOException {
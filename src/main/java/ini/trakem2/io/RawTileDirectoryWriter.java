@@ -0,0 +1,104 @@
+package ini.trakem2.io;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/** Writes an 8-bit grey or RGB image as a directory of raw, uncompressed tiles,
+ *  one file per tile at &lt;dir&gt;/&lt;row&gt;/&lt;col&gt;.raw, plus a {@link #ATTRIBUTES} file
+ *  with the dimensions of the image and of the tiles and the pixel type.
+ *
+ *  Each tile file holds the pixels of the tile, cropped to the image bounds, row by row;
+ *  RGB pixels are stored as three interleaved bytes. Tiles are written to a temporary file
+ *  and then renamed, so that a file present is a tile complete. Tiles that were never written
+ *  have no file.
+ */
+public final class RawTileDirectoryWriter implements TileWriter
+{
+	/** Name of the properties file within the directory. */
+	static public final String ATTRIBUTES = "attributes.properties";
+
+	private final File dir;
+	private final int type, width, height, tileWidth, tileHeight, samples;
+
+	public RawTileDirectoryWriter(final File dir, final int type, final int width, final int height, final int tileWidth, final int tileHeight) throws IOException {
+		if (ImagePlus.GRAY8 != type && ImagePlus.COLOR_RGB != type) throw new IllegalArgumentException("Can only write 8-bit or RGB images.");
+		this.dir = dir;
+		this.type = type;
+		this.width = width;
+		this.height = height;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.samples = ImagePlus.GRAY8 == type ? 1 : 3;
+
+		if (dir.exists()) throw new IOException("Will not overwrite " + dir);
+		if (!dir.mkdirs()) throw new IOException("Could not create directory " + dir);
+		final Properties p = new Properties();
+		p.setProperty("width", Integer.toString(width));
+		p.setProperty("height", Integer.toString(height));
+		p.setProperty("tileWidth", Integer.toString(tileWidth));
+		p.setProperty("tileHeight", Integer.toString(tileHeight));
+		p.setProperty("type", 1 == samples ? "uint8" : "rgb8");
+		p.setProperty("samples", Integer.toString(samples));
+		final OutputStream os = new FileOutputStream(new File(dir, ATTRIBUTES));
+		try {
+			p.store(os, "TrakEM2 raw tiles");
+		} finally {
+			os.close();
+		}
+	}
+
+	@Override
+	public int getType() { return type; }
+	@Override
+	public int getWidth() { return width; }
+	@Override
+	public int getHeight() { return height; }
+	@Override
+	public int getTileWidth() { return tileWidth; }
+	@Override
+	public int getTileHeight() { return tileHeight; }
+
+	@Override
+	public void write(final int col, final int row, final ImageProcessor ip) throws IOException {
+		final int w = Math.min(tileWidth, width - col * tileWidth),
+		          h = Math.min(tileHeight, height - row * tileHeight);
+		final byte[] b = new byte[w * h * samples];
+		if (1 == samples) {
+			final byte[] pix = (byte[]) ip.convertToByte(false).getPixels();
+			for (int y=0; y<h; ++y) {
+				System.arraycopy(pix, y * ip.getWidth(), b, y * w, w);
+			}
+		} else {
+			final int[] pix = (int[]) ip.convertToRGB().getPixels();
+			for (int y=0, i=0; y<h; ++y) {
+				for (int x=0, k=y * ip.getWidth(); x<w; ++x, ++k) {
+					final int c = pix[k];
+					b[i++] = (byte)((c >> 16) & 0xff);
+					b[i++] = (byte)((c >> 8) & 0xff);
+					b[i++] = (byte)(c & 0xff);
+				}
+			}
+		}
+		final File f = new File(dir, row + "/" + col + ".raw");
+		final File tmp = new File(dir, row + "/" + col + ".raw.tmp");
+		if (!Utils.ensure(tmp)) throw new IOException("Could not write to " + tmp);
+		final OutputStream os = new FileOutputStream(tmp);
+		try {
+			os.write(b);
+		} finally {
+			os.close();
+		}
+		if (f.exists()) f.delete();
+		if (!tmp.renameTo(f)) throw new IOException("Could not rename " + tmp + " to " + f);
+	}
+
+	@Override
+	public void close() throws IOException {}
+}
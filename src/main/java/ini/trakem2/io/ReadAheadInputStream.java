@@ -0,0 +1,128 @@
+package ini.trakem2.io;
+
+import ini.trakem2.utils.IJError;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Reads the wrapped {@link InputStream} in a separate thread, ahead of the consumer,
+ * so that reading the file and decompressing it (for a GZIPInputStream) overlap with
+ * whatever the consumer does with the bytes, such as parsing XML.
+ *
+ * Up to {@link #N_CHUNKS} chunks of {@link #CHUNK_SIZE} bytes are read ahead.
+ */
+public final class ReadAheadInputStream extends InputStream
+{
+	static private final int CHUNK_SIZE = 1024 * 1024;
+	static private final int N_CHUNKS = 8;
+	/** Marks the end of the stream in the queue. */
+	static private final byte[] END = new byte[0];
+
+	private final InputStream in;
+	private final ArrayBlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(N_CHUNKS);
+	private final AtomicLong n_read = new AtomicLong(0);
+	private final Thread reader;
+	private volatile IOException error = null;
+	private volatile boolean closed = false;
+
+	/** The chunk being consumed, and the position and end of the remaining bytes in it. */
+	private byte[] chunk = null;
+	private int pos = 0, end = 0;
+
+	public ReadAheadInputStream(final InputStream in, final String name) {
+		this.in = in;
+		this.reader = new Thread(name) {
+			@Override
+			public void run() {
+				try {
+					while (!closed) {
+						final byte[] b = new byte[CHUNK_SIZE];
+						int len = 0;
+						while (len < b.length) {
+							final int n = ReadAheadInputStream.this.in.read(b, len, b.length - len);
+							if (-1 == n) break;
+							len += n;
+						}
+						if (len > 0) {
+							n_read.addAndGet(len);
+							chunks.put(len == b.length ? b : copyOf(b, len));
+						}
+						if (len < b.length) break; // end of stream
+					}
+				} catch (final InterruptedException ie) {
+					return; // closed
+				} catch (final IOException ioe) {
+					error = ioe;
+				} catch (final Throwable t) {
+					IJError.print(t);
+					error = new IOException(t.toString());
+				}
+				if (closed) return;
+				try {
+					chunks.put(END);
+				} catch (final InterruptedException ie) {}
+			}
+		};
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	static private final byte[] copyOf(final byte[] b, final int len) {
+		final byte[] c = new byte[len];
+		System.arraycopy(b, 0, c, 0, len);
+		return c;
+	}
+
+	/** Returns false at the end of the stream. */
+	private final boolean fill() throws IOException {
+		if (END == chunk) return false;
+		try {
+			chunk = chunks.take();
+		} catch (final InterruptedException ie) {
+			throw new InterruptedIOException();
+		}
+		if (END == chunk) {
+			if (null != error) throw error;
+			return false;
+		}
+		pos = 0;
+		end = chunk.length;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos == end && !fill()) return -1;
+		return chunk[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (0 == len) return 0;
+		if (pos == end && !fill()) return -1;
+		final int n = Math.min(len, end - pos);
+		System.arraycopy(chunk, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return end - pos;
+	}
+
+	/** Number of bytes read so far from the wrapped stream, which may be ahead of those consumed. */
+	public long getBytesRead() {
+		return n_read.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		reader.interrupt();
+		in.close();
+	}
+}
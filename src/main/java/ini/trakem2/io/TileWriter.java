@@ -0,0 +1,35 @@
+package ini.trakem2.io;
+
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+
+/** Receives, one tile at a time, an image that is too large to hold in memory.
+ *  The image is split into a grid of tiles of {@link #getTileWidth()} x {@link #getTileHeight()} pixels;
+ *  those of the last column and row are cropped to the image bounds.
+ *
+ *  Implementations must accept tiles in any order and from several threads at once.
+ *  Tiles that are never written are left empty, i.e. black.
+ */
+public interface TileWriter
+{
+	/** ImagePlus.GRAY8 or ImagePlus.COLOR_RGB. */
+	public int getType();
+
+	public int getWidth();
+
+	public int getHeight();
+
+	public int getTileWidth();
+
+	public int getTileHeight();
+
+	/** Write the tile at grid position @param col, @param row.
+	 *  @param ip A ByteProcessor or ColorProcessor, according to {@link #getType()},
+	 *  as large as the tile or larger, in which case only the top-left part is written.
+	 *  The caller may reuse @param ip once this method returns, so it must not be retained. */
+	public void write(int col, int row, ImageProcessor ip) throws IOException;
+
+	/** Finish writing and release all resources. */
+	public void close() throws IOException;
+}
@@ -3,26 +3,36 @@ package ini.trakem2.persistence;
 import ij.ImagePlus;
 import ij.io.FileInfo;
 import ini.trakem2.display.MipMapImage;
-import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.TypedHashMap;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Access is not synchronized, that is your duty.
  * 
- *  The current setup depends on calls to removeAndFlushSome to clean up empty slots;
- *  otherwise these slots are never cleaned up to avoid O(n) overhead (worst case)
- *  when removing a Pyramid for a given id, or O(1) cost of checking whether the first interval
- *  is empty and removing it. Granted, the latter could be done in all calls to {@link #append},
- *  but in the current setup this overhead is just not necessary.
+ *  Each mipmap level of each Pyramid, and each ImagePlus, is an entry in a queue
+ *  ordered by a GreedyDual-Size priority: the priority of an entry, set when added or accessed,
+ *  is the priority of the last entry thrown out plus the cost of reading it again per byte it occupies.
+ *  The cost of reading an image is its size plus a fixed overhead for opening and decoding a file,
+ *  so that low-resolution mipmaps, which are cheap to keep and expensive to read relative to their size,
+ *  are kept longer than high-resolution ones accessed as recently.
+ *  Entries with the lowest priority are thrown out first.
+ *  
+ *  The size of each image is measured from its pixel arrays.
  *  
  *  This Cache self-regulates the size to stay always at or below max_bytes.
  *  If the smallest image added is larger than max_bytes, then that image will be the only
@@ -35,12 +45,18 @@ import java.util.TreeMap;
  *  When an image is removed, either directly or out of house-keeping to stay under max_bytes,
  *  that image is flushed. ImagePlus instances are not flushed, but if they point to an Image,
  *  then that image is flushed.
+ *  
+ *  The only exception to the lack of synchronization is {@link #peek(long, int)}, which
+ *  may be called by any thread at any time, to read mipmaps without locking.
  */
 public class Cache {
 	
 	private final class Pyramid {
 		private final Image[] images;
-		private TypedHashMap<Long,Pyramid> interval = null;
+		/** The queue entries of the non-null images. */
+		private final Entry[] entries;
+		/** The queue entry of the ImagePlus, if any. */
+		private Entry imp_entry = null;
 		private final long id;
 		//private ImagePlus imp;
 		private SoftReference<ImagePlus> srimp;
@@ -51,16 +67,20 @@ public class Cache {
 		Pyramid(final long id, final Image image, final int level) {
 			this.id = id;
 			this.images = new Image[maxLevel(image, level)];
+			this.entries = new Entry[this.images.length];
 			this.images[level] = image;
+			this.entries[level] = enqueue(this, level, Cache.size(image));
 			this.n_images = 1;
+			index.put(new Key(id, level), image);
 		}
 		
 		/** *@param maxdim is the max(width, height) of the Patch that wraps @param imp,
 		 *  i.e. the dimensions of the mipmap images. */
 		Pyramid(final long id, final ImagePlus imp, final int maxdim) {
 			this.id = id;
-			setImagePlus(imp);
 			this.images = new Image[maxLevel(maxdim)];
+			this.entries = new Entry[this.images.length];
+			setImagePlus(imp);
 			this.n_images = 0;
 		}
 
@@ -71,24 +91,35 @@ public class Cache {
 			if (null == images[level]) {
 				if (null == img) return 0; // A: both null
 				// B: only old is null
+				final long b = Cache.size(img);
 				images[level] = img;
+				entries[level] = enqueue(this, level, b);
+				index.put(new Key(id, level), img);
 				n_images++;
-				return Cache.size(img); // some bytes used
+				return b; // some bytes used
 			} else {
 				if (null == img) {
 					// C: old is not null, and new is null: must return freed bytes
 					n_images--;
-					long b = -Cache.size(images[level]); // some bytes to free
-					images[level].flush(); CachingThread.storeArrayForReuse(images[level]);
+					final long b = -entries[level].bytes; // some bytes to free
+					dequeue(entries[level]);
+					entries[level] = null;
+					index.remove(new Key(id, level));
+					images[level].flush();
 					images[level] = null;
 					return b;
 				} else if (img != images[level]) {
 					// D: both are not null, and are not the same instance:
-					long b = Cache.size(img) - Cache.size(images[level]); // some bytes to free or to be added
-					images[level].flush(); CachingThread.storeArrayForReuse(images[level]);
+					final long size = Cache.size(img);
+					final long b = size - entries[level].bytes; // some bytes to free or to be added
+					dequeue(entries[level]);
+					entries[level] = enqueue(this, level, size);
+					index.put(new Key(id, level), img);
+					images[level].flush();
 					images[level] = img;
 					return b;
 				}
+				touch(entries[level]);
 				return 0;
 			}
 		}
@@ -99,24 +130,32 @@ public class Cache {
 			if (null == impNew) {
 				if (null == pyrimp) return 0; // A: both null
 				// B: this.imp is not null; some bytes to be free 
+				final long b = -impSize;
 				if (null != this.srimp) this.srimp.clear();
-				return -impSize;
+				setImagePlus(null);
+				return b;
 			} else {
 				// imp is not null:
 				if (null == pyrimp) {
 					// C: this.imp is null; some bytes to be used
 					setImagePlus(impNew);
 					return impSize;
-				} else {
+				} else if (impNew != pyrimp) {
 					// D: both not null
 					final long pyrimpSize = this.impSize;
 					setImagePlus(impNew);
 					return this.impSize - pyrimpSize;
 				}
+				touch(imp_entry);
+				return 0;
 			}
 		}
 
 		final void setImagePlus(final ImagePlus imp) {
+			if (null != imp_entry) {
+				dequeue(imp_entry);
+				imp_entry = null;
+			}
 			if (null == imp) {
 				this.impSize = 0;
 				this.srimp = null;
@@ -124,6 +163,7 @@ public class Cache {
 			}
 			this.impSize = Cache.size(imp);
 			this.srimp = new SoftReference<ImagePlus>(imp);
+			this.imp_entry = enqueue(this, -1, impSize);
 		}
 
 		final ImagePlus getImagePlus() {
@@ -154,6 +194,168 @@ public class Cache {
 		}
 	}
 	
+	/** Identifies one mipmap level of one Pyramid. */
+	static private final class Key {
+		final long id;
+		final int level;
+		Key(final long id, final int level) {
+			this.id = id;
+			this.level = level;
+		}
+		@Override
+		public final int hashCode() {
+			return (int)(id ^ (id >>> 32)) * 31 + level;
+		}
+		@Override
+		public final boolean equals(final Object o) {
+			if (!(o instanceof Key)) return false;
+			final Key k = (Key) o;
+			return id == k.id && level == k.level;
+		}
+	}
+
+	/** One image, or the ImagePlus (level -1), of one Pyramid, in the eviction queue. */
+	static private final class Entry implements Comparable<Entry> {
+		final Pyramid p;
+		final int level;
+		final long bytes;
+		double priority;
+		/** Breaks ties between equal priorities, in order of access. */
+		long seq;
+		Entry(final Pyramid p, final int level, final long bytes) {
+			this.p = p;
+			this.level = level;
+			this.bytes = bytes;
+		}
+		@Override
+		public final int compareTo(final Entry e) {
+			if (priority < e.priority) return -1;
+			if (priority > e.priority) return 1;
+			return seq < e.seq ? -1 : (seq > e.seq ? 1 : 0);
+		}
+	}
+
+	/** The cost, in bytes, of opening and decoding a file, on top of reading its bytes. */
+	static private final long READ_OVERHEAD = 256 * 1024;
+
+	/** All entries, lowest priority first. */
+	private final TreeSet<Entry> queue = new TreeSet<Entry>();
+	/** The priority of the last entry thrown out, which ages all others. */
+	private double clock = 0;
+	private long seq = 0;
+
+	private final Entry enqueue(final Pyramid p, final int level, final long bytes) {
+		final Entry e = new Entry(p, level, bytes);
+		e.priority = clock + (READ_OVERHEAD + bytes) / (double) Math.max(1, bytes);
+		e.seq = ++seq;
+		queue.add(e);
+		if (isPinned(p.id)) pinned_bytes += bytes;
+		return e;
+	}
+
+	private final void dequeue(final Entry e) {
+		if (queue.remove(e) && isPinned(e.p.id)) pinned_bytes -= e.bytes;
+	}
+
+	/** Take out and return the entry with the lowest priority. */
+	private final Entry poll() {
+		final Entry e = queue.pollFirst();
+		if (isPinned(e.p.id)) pinned_bytes -= e.bytes;
+		return e;
+	}
+
+	/** Put back @param e, taken out with {@link #poll()}, with its priority unchanged. */
+	private final void requeue(final Entry e) {
+		queue.add(e);
+		if (isPinned(e.p.id)) pinned_bytes += e.bytes;
+	}
+
+	/** Renew the priority of @param e, which was accessed. */
+	private final void touch(final Entry e) {
+		if (null == e || !queue.remove(e)) return;
+		e.priority = clock + (READ_OVERHEAD + e.bytes) / (double) Math.max(1, e.bytes);
+		e.seq = ++seq;
+		queue.add(e);
+	}
+
+	/** Mirrors the non-null images of all Pyramid instances, for lock-free reading with {@link #peek(long, int)}. */
+	private final ConcurrentHashMap<Key,Image> index = new ConcurrentHashMap<Key,Image>();
+
+	/** Images read with {@link #peek(long, int)} since the last synchronized access,
+	 *  whose priority is to be renewed before any image is thrown out. */
+	private final Set<Key> peeked = Collections.newSetFromMap(new ConcurrentHashMap<Key,Boolean>());
+
+	/** The tier that receives the images thrown out to stay within max_bytes, if any.
+	 *  Volatile: read without synchronization by {@link Loader}. */
+	private volatile OffHeapCache lower = null;
+
+	/** Set the tier below this one, which receives the images thrown out to stay within max_bytes
+	 *  and must forget any image removed from here; null to have none. */
+	final void setLowerTier(final OffHeapCache lower) {
+		if (null != this.lower) this.lower.removeAll();
+		this.lower = lower;
+	}
+
+	final OffHeapCache getLowerTier() {
+		return lower;
+	}
+
+	/** Ids of the Pyramid instances whose images are thrown out only when no other images are left, by owner. */
+	private final HashMap<Object,Set<Long>> pinned = new HashMap<Object,Set<Long>>();
+	/** The number of owners that pin each id. */
+	private final HashMap<Long,Integer> pin_counts = new HashMap<Long,Integer>();
+	/** The bytes of the queued entries of pinned ids, updated as entries are queued and pins change. */
+	private long pinned_bytes = 0;
+
+	/** Pin the images of the Pyramid instances for @param ids, replacing any pinned previously by @param owner:
+	 *  they will be thrown out only when no other images are left to throw out.
+	 *  A null or empty @param ids unpins those pinned by @param owner. */
+	public final void pin(final Object owner, final Set<Long> ids) {
+		final Set<Long> old = null == ids || ids.isEmpty() ? pinned.remove(owner) : pinned.put(owner, ids);
+		if (null != ids) {
+			for (final Long id : ids) {
+				final Integer c = pin_counts.get(id);
+				if (null == c) pinned_bytes += queuedBytes(id);
+				pin_counts.put(id, null == c ? 1 : c + 1);
+			}
+		}
+		if (null != old) {
+			for (final Long id : old) {
+				final int c = pin_counts.get(id);
+				if (1 == c) {
+					pin_counts.remove(id);
+					pinned_bytes -= queuedBytes(id);
+				} else pin_counts.put(id, c - 1);
+			}
+		}
+	}
+
+	private final boolean isPinned(final long id) {
+		return !pin_counts.isEmpty() && pin_counts.containsKey(id);
+	}
+
+	/** Returns the bytes of the queued images and ImagePlus of the Pyramid for @param id. */
+	private final long queuedBytes(final long id) {
+		final Pyramid p = pyramids.getValue(id);
+		if (null == p) return 0;
+		long b = 0;
+		for (final Entry e : p.entries) {
+			if (null != e) b += e.bytes;
+		}
+		if (null != p.imp_entry) b += p.imp_entry.bytes;
+		return b;
+	}
+
+	/** Returns the number of bytes taken by pinned images and ImagePlus. */
+	public final long getPinnedBytes() {
+		return pinned_bytes;
+	}
+
+	private final AtomicLong hits = new AtomicLong(0),
+	                         misses = new AtomicLong(0);
+	private long evictions = 0,
+	             evicted_bytes = 0;
+
 	/** Keep a table of loaded ImagePlus. */
 	private final TypedHashMap<String,ImagePlusUsers> imps = new TypedHashMap<String,ImagePlusUsers>();
 	
@@ -161,11 +363,16 @@ public class Cache {
 	static private final int OVERHEAD = 1024; // in bytes: what a LUT would take (256 * 3) plus some extra
 	
 	static final long size(final ImagePlus imp) {
-		return imp.getWidth() * imp.getHeight() * imp.getNSlices() * PIXEL_SIZE[imp.getType()] + OVERHEAD;
+		return (long)imp.getWidth() * imp.getHeight() * imp.getNSlices() * PIXEL_SIZE[imp.getType()] + OVERHEAD;
 	}
 	
 	static final long size(final Image img) {
-		return img.getWidth(null) * img.getHeight(null) * 4 + OVERHEAD; // assume int[] image
+		if (img instanceof BufferedImage) {
+			// Does not make the image unmanageable: only accessing the pixel arrays would
+			final DataBuffer db = ((BufferedImage)img).getRaster().getDataBuffer();
+			return (long)db.getSize() * db.getNumBanks() * (DataBuffer.getDataTypeSize(db.getDataType()) / 8) + OVERHEAD;
+		}
+		return (long)img.getWidth(null) * img.getHeight(null) * 4 + OVERHEAD; // assume int[] image
  	}
 	
 	static private final int computeLevel(final int i) {
@@ -214,7 +421,6 @@ public class Cache {
 	///////////////
 	
 	private final TypedHashMap<Long,Pyramid> pyramids = new TypedHashMap<Long,Pyramid>();
-	private final LinkedList<TypedHashMap<Long,Pyramid>> intervals = new LinkedList<TypedHashMap<Long,Pyramid>>();
 	private int count = 0; // if the cache is empty, this count must be 0;
 						   // if not empty, then it counts the number of images stored (not of pyramids)
 	private long bytes = 0,
@@ -263,14 +469,62 @@ public class Cache {
 
 	public final Image get(final long id, final int level) {
 		final Pyramid p = pyramids.getValue(id);
-		if (null == p) return null;
-		if (null == p || null == p.images[level]) return null;
-		
-		update(p);
+		if (null == p || null == p.images[level]) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		touch(p.entries[level]);
 		
 		return p.images[level];
 	}
 
+	/** The only method that doesn't require synchronization: threads may call it concurrently
+	 *  with each other and with any other method.
+	 *  The access is recorded and the priority of the image renewed the next time
+	 *  that the cache is modified, so that frequently peeked images are not thrown out first.
+	 *  Counts as a hit or a miss.
+	 *  @return the image at @param level for @param id, or null if not cached. */
+	public final Image peek(final long id, final int level) {
+		return peek(id, level, true);
+	}
+
+	/** Like {@link #peek(long, int)}, but a lookup that repeats a previous one need not be counted: @param count. */
+	public final Image peek(final long id, final int level, final boolean count) {
+		final Key key = new Key(id, level);
+		final Image img = index.get(key);
+		if (null != img) {
+			peeked.add(key);
+			if (count) hits.incrementAndGet();
+		} else if (count) {
+			misses.incrementAndGet();
+		}
+		return img;
+	}
+
+	/** Apply the priority updates deferred by {@link #peek(long, int)}. */
+	private final void updatePeeked() {
+		if (peeked.isEmpty()) return;
+		for (final Iterator<Key> it = peeked.iterator(); it.hasNext(); ) {
+			final Key key = it.next();
+			it.remove();
+			final Pyramid p = pyramids.getValue(key.id);
+			if (null != p && key.level < p.entries.length) touch(p.entries[key.level]);
+		}
+	}
+
+	/** Number of lookups with {@link #get(long, int)} or {@link #peek(long, int)} that found the image. */
+	public final long getHits() { return hits.get(); }
+
+	/** Number of lookups with {@link #get(long, int)} or {@link #peek(long, int)} that didn't find the image. */
+	public final long getMisses() { return misses.get(); }
+
+	/** Number of images and ImagePlus thrown out to stay within max_bytes or to make room. */
+	public final long getEvictions() { return evictions; }
+
+	/** Number of bytes freed by the evictions counted in {@link #getEvictions()}. */
+	public final long getEvictedBytes() { return evicted_bytes; }
+
 	public final ImagePlus get(final String path) {
 		final ImagePlusUsers u = imps.getValue(path);
 		return null == u ? null : u.getImagePlus();
@@ -282,7 +536,7 @@ public class Cache {
 		final ImagePlus pyrimp = p.getImagePlus();
 		if (null == pyrimp) return null;
 		
-		update(p);
+		touch(p.imp_entry);
 		
 		return pyrimp;
 	}
@@ -292,9 +546,11 @@ public class Cache {
 		final TypedHashMap<Integer,Image> m = new TypedHashMap<Integer,Image>();
 		if (null == p) return m;
 		for (int i=0; i<p.images.length; i++) {
-			if (null != p.images[i]) m.put(i, p.images[i]);
+			if (null != p.images[i]) {
+				m.put(i, p.images[i]);
+				touch(p.entries[i]);
+			}
 		}
-		update(p);
 		return m;
 	}
 
@@ -303,7 +559,7 @@ public class Cache {
 		if (null == p) return null;
 		for (int i=Math.min(level, p.images.length-1); i>-1; i--) {
 			if (null == p.images[i]) continue;
-			update(p);
+			touch(p.entries[i]);
 			final double scale = Math.pow( 2.0, i );
 			return new MipMapImage( p.images[ i ], scale, scale );
 		}
@@ -316,55 +572,28 @@ public class Cache {
 		if (null == p) return null;
 		for (int i=level; i<p.images.length; i++) {
 			if (null == p.images[i]) continue;
-			update(p);
+			touch(p.entries[i]);
 			final double scale = Math.pow( 2.0, i );
 			return new MipMapImage( p.images[ i ], scale, scale );
 		}
 		return null;
 	}
 
-	static private final int MAX_INTERVAL_SIZE = 20;
-	private TypedHashMap<Long,Pyramid> last_interval = new TypedHashMap<Long,Pyramid>(MAX_INTERVAL_SIZE);
-	{
-		intervals.add(last_interval);
-	}
-	
 	private final void reset() {
 		pyramids.clear();
-		intervals.clear();
+		pinned.clear();
+		pin_counts.clear();
+		pinned_bytes = 0;
+		queue.clear();
+		clock = 0;
 		count = 0;
 		bytes = 0;
-		last_interval = new TypedHashMap<Long, Pyramid>(MAX_INTERVAL_SIZE);
-		intervals.add(last_interval);
 		imps.clear();
+		index.clear();
+		peeked.clear();
 	}
-	
-	private final void update(final Pyramid p) {
-		// Last-access -based priority queue:
-		// Remove from current interval and append to last interval
-		if (last_interval != p.interval) {
-			p.interval.removeEntry(p.id);
-			append(p);
-		}
-	}
-
-	/** Append the key to the last interval, creating a new interval if the last is full.
-	 *  Then set that interval as the key's interval. */
-	private final void append(final Pyramid p) {
-		// May have been removed:
-		if (0 == intervals.size()) intervals.add(last_interval);
-		// Push an new interval if the last one is full:
-		if (last_interval.size() >= MAX_INTERVAL_SIZE) {
-			last_interval = new TypedHashMap<Long,Pyramid>(MAX_INTERVAL_SIZE);
-			intervals.add(last_interval);
-		}
 
-		last_interval.put(p.id, p);
-		// Reflection: tell the Pyramid instance where it is
-		p.interval = last_interval;
-	}
-
-	/** Makes up space to fit b, and also drops empty intervals from the head. */
+	/** Makes up space to fit b. */
 	private final void fit(final long b) {
 		addBytes(b);
 		if (bytes > max_bytes) {
@@ -372,18 +601,16 @@ public class Cache {
 		}
 	}
 	
-	// If already there, move to latest interval
+	// If already there, renew its priority
 	// If the image is different, flush the old image
 	public final void put(final long id, final Image image, final int level) {
 		Pyramid p = pyramids.getValue(id);
 		if (null == p) {
 			p = new Pyramid(id, image, level);
 			pyramids.put(id, p);
-			append(p);
-			fit(Cache.size(image)); // AFTER adding it
+			fit(p.entries[level].bytes); // AFTER adding it
 			count++;
 		} else {
-			update(p);
 			if (null == p.images[level]) count++;
 			fit(p.replace(image, level));
 		}
@@ -414,7 +641,6 @@ public class Cache {
 		if (null == p) {
 			p = new Pyramid(id, imp, maxdim);
 			pyramids.put(id, p);
-			append(p);
 			//
 			final String path = getPath(imp); // may be null, in which case it is not stored in imps
 			final ImagePlusUsers u = imps.getValue(path); // u is null if path is null
@@ -427,7 +653,6 @@ public class Cache {
 			//
 			count++;
 		} else {
-			update(p);
 			final ImagePlus pyrimp = p.getImagePlus();
 			if (null == pyrimp) count++;
 			else if (imp != pyrimp) {
@@ -451,19 +676,22 @@ public class Cache {
 	}
 
 
-	// WARNING: an empty interval may be left behind. Will be cleaned up by removeAndFlushSome.
 	/** Remove one mipmap level, if there. */
 	public final Image remove(final long id, final int level) {
 		final Pyramid p = pyramids.getValue(id);
-		if (null == p) return null;
+		if (null == p) {
+			if (null != lower) lower.remove(id, level);
+			return null;
+		}
 		final Image im = p.images[level];
 		if (null != im) {
 			addBytes(p.replace(null, level));
 			count--;
 		}
+		if (null != lower) lower.remove(id, level);
 		// If at least one level is still not null, keep the pyramid; otherwise drop it
 		if (0 == p.n_images && null == p.getImagePlus()) {
-			p.interval.removeEntry(id);
+			p.setImagePlus(null); // in case it was garbage collected
 			pyramids.removeEntry(id);
 		}
 		return im;
@@ -479,6 +707,7 @@ public class Cache {
 		final ImagePlus pyrimp = p.getImagePlus();
 		if (null == pyrimp) return null;
 		final ImagePlus imp = pyrimp;
+		final long b = p.impSize;
 		p.setImagePlus(null);
 		//
 		final String path = getPath(imp);
@@ -489,11 +718,10 @@ public class Cache {
 		if (null == u || u.users.isEmpty()) {
 			// Reclaim space only if the ImagePlus is no longer referenced
 			// (u is null if the ImagePlus was preprocessed)
-			addBytes(p.replace(null));
+			addBytes(-b);
 			count--;
 			//
 			if (0 == p.n_images) {
-				p.interval.removeEntry(p.id);
 				pyramids.removeEntry(p.id);
 			}
 		}
@@ -501,6 +729,7 @@ public class Cache {
 	}
 	
 	public final void remove(final long id) {
+		if (null != lower) lower.remove(id);
 		final Pyramid p = pyramids.removeEntry(id);
 		if (null == p) return;
 		if (null != p.getImagePlus()) {
@@ -511,7 +740,7 @@ public class Cache {
 			if (null == p.images[i]) continue;
 			addBytes(p.replace(null, i));
 		}
-		p.interval.removeEntry(id);
+		p.setImagePlus(null); // in case it was garbage collected
 	}
 	
 	/** Flush all mipmaps, and forget all mipmaps and imps. */
@@ -520,15 +749,16 @@ public class Cache {
 			p.replace(null); // the imp may need cleanup
 			for (int i=0; i<p.images.length; i++) {
 				if (null == p.images[i]) continue;
-				p.images[i].flush(); CachingThread.storeArrayForReuse(p.images[i]);
+				p.images[i].flush();
 			}
 		}
 		reset();
+		if (null != lower) lower.removeAll();
 	}
 
-	// WARNING: an empty interval may be left behind. Will be cleaned up by removeAndFlushSome.
 	/** Does not alter the ImagePlus. */
 	public final void removeAndFlushPyramid(final long id) {
+		if (null != lower) lower.remove(id);
 		final Pyramid p = pyramids.getValue(id);
 		if (null == p) return;
 		count -= p.n_images;
@@ -537,114 +767,79 @@ public class Cache {
 			addBytes(p.replace(null, i));
 		}
 		if (null == p.getImagePlus()) {
+			p.setImagePlus(null); // in case it was garbage collected
 			pyramids.removeEntry(id);
-			p.interval.removeEntry(id);
 		}
 	}
 	
-	/** Returns the number of released bytes. */
+	/** Throw out the entries with the lowest priority until at least @param min_bytes are freed, or the cache is empty.
+	 *  Pinned entries are thrown out last.
+	 *  Returns the number of released bytes. */
 	public final long removeAndFlushSome(final long min_bytes) {
+		updatePeeked();
 		long size = 0;
-		while (intervals.size() > 0) {
-			final TypedHashMap<Long,Pyramid> interval = intervals.getFirst();
-			for (final Iterator<Pyramid> it = interval.values().iterator(); it.hasNext(); ) {
-				final Pyramid p = it.next();
-				final ImagePlus pyrimp = p.getImagePlus();
-				if (null != pyrimp) {
-					final String path = getPath(pyrimp);
-					final ImagePlusUsers u = imps.getValue(path);
-					if (null == path || null == u || 1 == u.users.size()) {
-						//
-						imps.removeEntry(path);
-						//
-						final long s = p.replace(null); // the imp may need cleanup
-						size -= s;
-						addBytes(s);
-						count--;
-						if (size >= min_bytes) {
-							if (0 == p.n_images) {
-								pyramids.removeEntry(p.id);
-								it.remove();
-								if (interval.isEmpty()) intervals.removeFirst();
-							}
-							return size;
-						}
-					}
-				}
-				for (int i=0; i<p.images.length && p.n_images > 0; i++) {
-					if (null == p.images[i]) continue;
-					final long s = p.replace(null, i);
-					size -= s;
-					addBytes(s);
-					count--;
-					if (size >= min_bytes) {
-						if (0 == p.n_images) {
-							pyramids.removeEntry(p.id);
-							it.remove();
-							if (interval.isEmpty()) intervals.removeFirst();
-						}
-						return size;
-					}
-				}
-				pyramids.removeEntry(p.id);
-				it.remove(); // from the interval
+		ArrayList<Entry> skipped = null;
+		while (size < min_bytes && !queue.isEmpty()) {
+			final Entry e = poll();
+			if (isPinned(e.p.id)) {
+				if (null == skipped) skipped = new ArrayList<Entry>();
+				skipped.add(e);
+				continue;
+			}
+			size += evict(e);
+		}
+		if (null != skipped) {
+			for (final Entry e : skipped) {
+				if (size < min_bytes) size += evict(e); // only pinned entries were left
+				else requeue(e);
 			}
-			intervals.removeFirst();
 		}
 		return size;
 	}
 
+	/** Throw out the @param n entries with the lowest priority.
+	 *  Returns the number of released bytes. */
 	public final long removeAndFlushSome(int n) {
+		updatePeeked();
 		long size = 0;
-		while (intervals.size() > 0) {
-			final TypedHashMap<Long,Pyramid> interval = intervals.getFirst();
-			for (final Iterator<Pyramid> it = interval.values().iterator(); it.hasNext(); ) {
-				final Pyramid p = it.next();
-				final ImagePlus pyrimp = p.getImagePlus();
-				if (null != pyrimp) {
-					final String path = getPath(pyrimp);
-					final ImagePlusUsers u = imps.getValue(path);
-					if (null == path || null == u || 1 == u.users.size()) {
-						//
-						imps.removeEntry(path);
-						//
-						final long s = p.replace(null);
-						size -= s;
-						addBytes(s);
-						p.replace(null); // the imp may need cleanup
-						n--;
-						count--;
-						if (0 == n) {
-							if (0 == p.n_images) {
-								pyramids.removeEntry(p.id);
-								it.remove();
-								if (interval.isEmpty()) intervals.removeFirst();
-							}
-							return size;
-						}
-					}
-				}
-				for (int i=0; i<p.images.length; i++) {
-					if (null == p.images[i]) continue;
-					final long s = p.replace(null, i);
-					size -= s;
-					addBytes(s);
-					n--;
-					count--;
-					if (0 == n) {
-						if (0 == p.n_images) {
-							pyramids.removeEntry(p.id);
-							it.remove();
-							if (interval.isEmpty()) intervals.removeFirst();
-						}
-						return size;
-					}
-				}
-				pyramids.removeEntry(p.id);
-				it.remove(); // from the interval
+		while (n > 0 && !queue.isEmpty()) {
+			size += evict(poll());
+			n--;
+		}
+		return size;
+	}
+
+	/** Remove the image or ImagePlus of @param e, already out of the queue, and age all other entries.
+	 *  Returns the number of released bytes. */
+	private final long evict(final Entry e) {
+		clock = e.priority;
+		final Pyramid p = e.p;
+		long size = 0;
+		if (-1 == e.level) {
+			p.imp_entry = null;
+			final ImagePlus pyrimp = p.getImagePlus();
+			final String path = null == pyrimp ? null : getPath(pyrimp);
+			final ImagePlusUsers u = imps.getValue(path);
+			if (null == path || null == u || 1 == u.users.size()) {
+				imps.removeEntry(path);
+				size = p.impSize; // also when already garbage collected
+				p.setImagePlus(null);
+				addBytes(-size);
+				count--;
 			}
-			intervals.removeFirst();
+			// Else leave the ImagePlus to its other users
+		} else {
+			if (null != lower) lower.put(p.id, e.level, p.images[e.level]);
+			size = -p.replace(null, e.level);
+			addBytes(-size);
+			count--;
 		}
+		if (0 == p.n_images && null == p.getImagePlus()) {
+			p.setImagePlus(null);
+			pyramids.removeEntry(p.id);
+		}
+		evictions++;
+		evicted_bytes += size;
 		return size;
 	}
 
@@ -661,15 +856,9 @@ public class Cache {
 		}
 		Utils.log2("----");
 		int i = 0;
-		for (TypedHashMap<Long,Pyramid> m : intervals) {
-			Utils.log2("interval " + (++i));
-			for (Map.Entry<Long,Pyramid> e : new TreeMap<Long,Pyramid>(m).entrySet()) {
-				Pyramid p = e.getValue();
-				Utils.log2("p id:" + e.getKey() + ";  images: " + p.n_images + " / " + p.images.length + "; imp: " + e.getValue().getImagePlus());
-				int[] levels = new int[p.images.length];
-				for (int k=0; k<levels.length; k++) levels[k] = null == p.images[k] ? 0 : 1;
-				Utils.log2("      levels: " + Utils.toString(levels));
-			}
+		for (final Entry e : queue) {
+			if (++i > 20) break;
+			Utils.log2("next to evict: p id:" + e.p.id + "; level: " + e.level + "; bytes: " + e.bytes + "; priority: " + e.priority);
 		}
 		Utils.log2("----");
 		for (Map.Entry<String,ImagePlusUsers> e : imps.entrySet()) {
@@ -680,15 +869,8 @@ public class Cache {
 		Utils.log2("imps: " + imps.size());
 		Utils.log2("----");
 		// Analytics
-		Utils.log2("count is: " + count + ", size is: " + bytes + " / " + max_bytes + ", intervals.size = " + intervals.size() + ", pyr.size = " + pyramids.size());
-		TypedHashMap<Integer,Integer> s = new TypedHashMap<Integer,Integer>();
-		for (TypedHashMap<Long,Pyramid> m : intervals) {
-			int l = m.size();
-			Integer in = s.getValue(l);
-			if (null == in) s.put(l, 1);
-			else s.put(l, in.intValue() + 1);
-		}
-		Utils.log2("interval size distribution: ", s);
+		Utils.log2("count is: " + count + ", size is: " + bytes + " / " + max_bytes + ", queue.size = " + queue.size() + ", pyr.size = " + pyramids.size());
+		Utils.log2("hits: " + hits.get() + ", misses: " + misses.get() + ", evictions: " + evictions + " (" + evicted_bytes + " bytes)");
 	}
 	
 	public final long seqFindId(final ImagePlus imp) {
@@ -10,6 +10,7 @@ import ij.process.ShortProcessor;
 import ini.trakem2.display.Patch;
 import ini.trakem2.imaging.FastIntegralImage;
 import ini.trakem2.imaging.P;
+import ini.trakem2.imaging.filters.FilterChain;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.Utils;
 import mpicbg.trakem2.util.Downsampler;
@@ -29,20 +30,6 @@ public final class DownsamplerMipMaps
 	static private final ImageBytes asBytes(final ColorProcessor cp) {
 		return new ImageBytes(P.asRGBBytes((int[])cp.getPixels()), cp.getWidth(), cp.getHeight());
 	}
-	
-	static private final ImageBytes asBytes(final ByteProcessor bp, final ByteProcessor mask) {
-		 return new ImageBytes(new byte[][]{(byte[])bp.getPixels(), (byte[])mask.getPixels()}, bp.getWidth(), bp.getHeight());
-	}
-	static private final ImageBytes asBytes(final ShortProcessor sp, final ByteProcessor mask) {
-		return asBytes((ByteProcessor)sp.convertToByte(true), mask);
-	}
-	static private final ImageBytes asBytes(final FloatProcessor fp, final ByteProcessor mask) {
-		return asBytes((ByteProcessor)fp.convertToByte(true), mask);
-	}
-	static private final ImageBytes asBytes(final ColorProcessor cp, final ByteProcessor mask) {
-		return new ImageBytes(P.asRGBABytes((int[])cp.getPixels(), (byte[])mask.getPixels(), null), cp.getWidth(), cp.getHeight());
-	}
-	
 
 	/**
 	 * 
@@ -117,15 +104,29 @@ public final class DownsamplerMipMaps
 				g[i] = (byte)((s & 0x0000ff00) >>  8);
 				b[i] = (byte)( s & 0x000000ff       );
 			}
-			final byte[] rs = FastIntegralImage.scaleAreaAverage(FastIntegralImage.longIntegralImage(r, w, h), w + 1, h + 1, tw, th),
-					     gs = FastIntegralImage.scaleAreaAverage(FastIntegralImage.longIntegralImage(g, w, h), w + 1, h + 1, tw, th),
-					     bs = FastIntegralImage.scaleAreaAverage(FastIntegralImage.longIntegralImage(b, w, h), w + 1, h + 1, tw, th);
+			// One channel per thread
+			final byte[][] channels = new byte[][]{r, g, b},
+			               scaled = new byte[3][];
+			final Runnable[] tasks = new Runnable[3];
+			for (int k=0; k<3; ++k) {
+				final int c = k;
+				tasks[k] = new Runnable() {
+					@Override
+					public void run() {
+						scaled[c] = FastIntegralImage.scaleAreaAverage(FastIntegralImage.longIntegralImage(channels[c], w, h), w + 1, h + 1, tw, th);
+					}
+				};
+			}
+			FilterChain.runAll(tasks);
+			final byte[] rs = scaled[0],
+			             gs = scaled[1],
+			             bs = scaled[2];
 			final int[] argbs = new int[tw * th];
 			for (int i=0; i<rs.length; ++i) {
 				argbs[i] = 0xff000000 // alpha: fully visible
-						   & ((rs[i] & 0xff) << 16)
-                           & ((gs[i] & 0xff) <<  8)
-                           & ( bs[i] & 0xff       );
+						   | ((rs[i] & 0xff) << 16)
+						   | ((gs[i] & 0xff) <<  8)
+						   |  (bs[i] & 0xff       );
 			}
 			ipi = new ColorProcessor(tw, th, argbs);
 			type2 = ImagePlus.COLOR_RGB;
@@ -175,134 +176,121 @@ public final class DownsamplerMipMaps
 		final ImageBytes[] p = new ImageBytes[n_levels];
 
 		if (null == alpha && null == outside) {
-			int i = 1;
-			switch (type) {
-				case ImagePlus.GRAY8:
-					ByteProcessor bp = (ByteProcessor)ip;
-					p[0] = asBytes(bp);
-					while (i < p.length) {
-						bp = Downsampler.downsampleByteProcessor(bp);
-						p[i++] = asBytes(bp);
-					}
-					break;
-				case ImagePlus.GRAY16:
-					ShortProcessor sp = (ShortProcessor)ip;
-					p[0] = asBytes(sp);
-					Pair<ShortProcessor, byte[]> rs;
-					while (i < p.length) {
-						rs = Downsampler.downsampleShort(sp);
-						sp = rs.a;
-						p[i++] = new ImageBytes(new byte[][]{rs.b}, sp.getWidth(), sp.getHeight());
-					}
-					break;
-				case ImagePlus.GRAY32:
-					FloatProcessor fp = (FloatProcessor)ip;
-					p[0] = asBytes(fp);
-					Pair<FloatProcessor, byte[]> rf;
-					while (i < p.length) {
-						rf = Downsampler.downsampleFloat(fp);
-						fp = rf.a;
-						p[i++] = new ImageBytes(new byte[][]{rf.b}, fp.getWidth(), fp.getHeight());
+			downsampleImage(p, type, ip);
+		} else {
+			// The pyramids of the masks and of the image are independent of each other: create both at once
+			final ByteProcessor[] masks = new ByteProcessor[p.length];
+			FilterChain.runAll(new Runnable[]{
+				new Runnable() {
+					@Override
+					public void run() {
+						downsampleMasks(masks, alpha, outside);
 					}
-					break;
-				case ImagePlus.COLOR_RGB:
-					ColorProcessor cp = (ColorProcessor)ip;
-					p[0] = asBytes(cp); // TODO the int[] could be reused
-					Pair<ColorProcessor, byte[][]> rc;
-					while (i < p.length) {
-						rc = Downsampler.downsampleColor(cp);
-						cp = rc.a;
-						p[i++] = new ImageBytes(rc.b, cp.getWidth(), cp.getHeight());
+				},
+				new Runnable() {
+					@Override
+					public void run() {
+						downsampleImage(p, type, ip);
 					}
-					break;
+				}
+			});
+			// Append the alpha channel
+			for (int i=0; i<p.length; ++i) {
+				if (null == p[i]) continue;
+				final byte[][] c = new byte[p[i].c.length + 1][];
+				System.arraycopy(p[i].c, 0, c, 0, p[i].c.length);
+				c[c.length -1] = (byte[])masks[i].getPixels();
+				p[i] = new ImageBytes(c, p[i].width, p[i].height);
 			}
-		} else {
-			// Alpha channel
-			final ByteProcessor[] masks = new ByteProcessor[p.length];
-			if (null != alpha && null != outside) {
-				// Use both alpha and outside:
-				final byte[] b1 = (byte[])alpha.getPixels(),
-				             b2 = (byte[])outside.getPixels();
-				for (int i=0; i<b1.length; ++i) {
-					b1[i] = b2[i] != -1 ? 0 : b1[i]; // 'outside' is a binary mask, qualitative. -1 means 255
+		}
+
+		return p;
+	}
+
+	/** Fill @param p with the pyramid of @param ip, without alpha channel. */
+	static private final void downsampleImage(final ImageBytes[] p, final int type, final ImageProcessor ip) {
+		int i = 1;
+		switch (type) {
+			case ImagePlus.GRAY8:
+				ByteProcessor bp = (ByteProcessor)ip;
+				p[0] = asBytes(bp);
+				while (i < p.length) {
+					bp = Downsampler.downsampleByteProcessor(bp);
+					p[i++] = asBytes(bp);
 				}
-				masks[0] = alpha;
-				//
-				int i = 1;
-				Pair<ByteProcessor,ByteProcessor> pair;
-				ByteProcessor a = alpha,
-				              o = outside;
+				break;
+			case ImagePlus.GRAY16:
+				ShortProcessor sp = (ShortProcessor)ip;
+				p[0] = asBytes(sp);
+				Pair<ShortProcessor, byte[]> rs;
 				while (i < p.length) {
-					pair = Downsampler.downsampleAlphaAndOutside(a, o);
-					a = pair.a;
-					o = pair.b;
-					masks[i] = a; // o is already combined into it
-					++i;
+					rs = Downsampler.downsampleShort(sp);
+					sp = rs.a;
+					p[i++] = new ImageBytes(new byte[][]{rs.b}, sp.getWidth(), sp.getHeight());
 				}
-			} else {
-				// Only one of the two is not null:
-				if (null == alpha) {
-					masks[0] = outside;
-					int i = 1;
-					while (i < p.length) {
-						masks[i] = Downsampler.downsampleOutside(masks[i-1]);
-						++i;
-					}
-				} else {
-					masks[0] = alpha;
-					int i = 1;
-					while (i < p.length) {
-						masks[i] = Downsampler.downsampleByteProcessor(masks[i-1]);
-						++i;
-					}
+				break;
+			case ImagePlus.GRAY32:
+				FloatProcessor fp = (FloatProcessor)ip;
+				p[0] = asBytes(fp);
+				Pair<FloatProcessor, byte[]> rf;
+				while (i < p.length) {
+					rf = Downsampler.downsampleFloat(fp);
+					fp = rf.a;
+					p[i++] = new ImageBytes(new byte[][]{rf.b}, fp.getWidth(), fp.getHeight());
 				}
+				break;
+			case ImagePlus.COLOR_RGB:
+				ColorProcessor cp = (ColorProcessor)ip;
+				p[0] = asBytes(cp); // TODO the int[] could be reused
+				Pair<ColorProcessor, byte[][]> rc;
+				while (i < p.length) {
+					rc = Downsampler.downsampleColor(cp);
+					cp = rc.a;
+					p[i++] = new ImageBytes(rc.b, cp.getWidth(), cp.getHeight());
+				}
+				break;
+		}
+	}
+
+	/** Fill @param masks with the pyramid of the @param alpha mask, of the @param outside mask, or of both combined. */
+	static private final void downsampleMasks(final ByteProcessor[] masks, final ByteProcessor alpha, final ByteProcessor outside) {
+		if (null != alpha && null != outside) {
+			// Use both alpha and outside:
+			final byte[] b1 = (byte[])alpha.getPixels(),
+			             b2 = (byte[])outside.getPixels();
+			for (int i=0; i<b1.length; ++i) {
+				b1[i] = b2[i] != -1 ? 0 : b1[i]; // 'outside' is a binary mask, qualitative. -1 means 255
 			}
-			// Image channels
+			masks[0] = alpha;
+			//
 			int i = 1;
-			switch (type) {
-				case ImagePlus.GRAY8:
-					ByteProcessor bp = (ByteProcessor)ip;
-					p[0] = asBytes(bp, masks[0]);
-					while (i < p.length) {
-						bp = Downsampler.downsampleByteProcessor(bp);
-						p[i] = asBytes(bp, masks[i]);
-						++i;
-					}
-					break;
-				case ImagePlus.GRAY16:
-					ShortProcessor sp = (ShortProcessor)ip;
-					p[0] = asBytes(sp, masks[0]);
-					while (i < p.length) {
-						final Pair< ShortProcessor, byte[] > rs = Downsampler.downsampleShort(sp);
-						sp = rs.a;
-						p[i] = new ImageBytes(new byte[][]{rs.b, (byte[])masks[i].getPixels()}, sp.getWidth(), sp.getHeight());
-						++i;
-					}
-					break;
-				case ImagePlus.GRAY32:
-					FloatProcessor fp = (FloatProcessor)ip;
-					p[0] = asBytes(fp, masks[0]);
-					while (i < p.length) {
-						final Pair< FloatProcessor, byte[] > rs = Downsampler.downsampleFloat( fp );
-						fp = rs.a;
-						p[i] = new ImageBytes(new byte[][]{rs.b, (byte[])masks[i].getPixels()}, fp.getWidth(), fp.getHeight());
-						++i;
-					}
-					break;
-				case ImagePlus.COLOR_RGB:
-					ColorProcessor cp = (ColorProcessor)ip;
-					p[0] = asBytes(cp, masks[0]); // TODO the int[] could be reused
-					while (i < p.length) {
-						final Pair< ColorProcessor, byte[][] > rs = Downsampler.downsampleColor( cp );
-						cp = rs.a;
-						final byte[][] rgb = rs.b;
-						p[i] = new ImageBytes(new byte[][]{rgb[0], rgb[1], rgb[2], (byte[])masks[i].getPixels()}, cp.getWidth(), cp.getHeight());
-						++i;
-					}
-					break;
+			Pair<ByteProcessor,ByteProcessor> pair;
+			ByteProcessor a = alpha,
+			              o = outside;
+			while (i < masks.length) {
+				pair = Downsampler.downsampleAlphaAndOutside(a, o);
+				a = pair.a;
+				o = pair.b;
+				masks[i] = a; // o is already combined into it
+				++i;
+			}
+		} else {
+			// Only one of the two is not null:
+			if (null == alpha) {
+				masks[0] = outside;
+				int i = 1;
+				while (i < masks.length) {
+					masks[i] = Downsampler.downsampleOutside(masks[i-1]);
+					++i;
+				}
+			} else {
+				masks[0] = alpha;
+				int i = 1;
+				while (i < masks.length) {
+					masks[i] = Downsampler.downsampleByteProcessor(masks[i-1]);
+					++i;
+				}
 			}
 		}
-
-		return p;
 	}
 }
@@ -0,0 +1,405 @@
+package ini.trakem2.persistence;
+
+import ij.measure.Calibration;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import mpicbg.trakem2.transform.ExportUnsignedShort;
+import mpicbg.trakem2.transform.ExportedTile;
+
+/**
+ * Export the aligned images of a range of {@link Layer}s as a chunked, multiscale, 16-bit volume
+ * in the N5 file system format: a directory per scale level (s0, s1, ...) with a JSON attributes file
+ * and one block file per chunk at s&lt;level&gt;/&lt;x&gt;/&lt;y&gt;/&lt;z&gt;, optionally gzip-compressed.
+ * Each scale level halves the X and Y dimensions of the previous one; Z, one slice per layer, is preserved.
+ *
+ * Level s0 is rendered from the lazy tile sequence of {@link ExportUnsignedShort#exportTiles},
+ * and hence the intensities of each layer are mapped to the 16-bit range like there.
+ * Layers are processed in slabs as deep as a block: within a slab, layers are rendered in parallel,
+ * one row of blocks at a time, and each row of blocks is compressed and written in parallel.
+ * Memory is therefore bounded by the width of the volume times the block height and depth.
+ * Lower resolution levels are computed from the blocks of the level above, in parallel.
+ *
+ * The export can be resumed: each finished slab of s0 leaves a marker file, and blocks of the other levels
+ * are written to a temporary file and then renamed, so that existing ones are skipped.
+ * Resuming is only sensible when the layers have not been modified in between.
+ * Empty blocks are not written, as the N5 format reads missing blocks as zeros.
+ */
+public class ExportChunkedVolume
+{
+	/** Folder within the export folder for the markers of finished slabs. */
+	static private final String PROGRESS = ".progress";
+
+	private final List<Layer> layers;
+	private final File dir;
+	private final Rectangle bounds;
+	private final int blockSize, blockDepth, nScales, nThreads;
+	private final boolean gzip, visibleOnly;
+
+	/**
+	 * @param layers The consecutive layers to export, one slice each.
+	 * @param dir The folder to export into, which is created if necessary.
+	 * @param blockSize The width and height of each block.
+	 * @param blockDepth The depth of each block, in slices.
+	 * @param nScales The number of scale levels, at least 1.
+	 * @param gzip Whether to compress blocks with gzip.
+	 * @param visibleOnly Whether to include only visible images.
+	 * @param nThreads The number of layers to render, and of blocks to write, in parallel.
+	 */
+	public ExportChunkedVolume(final List<Layer> layers, final File dir,
+			final int blockSize, final int blockDepth, final int nScales,
+			final boolean gzip, final boolean visibleOnly, final int nThreads)
+	{
+		if (layers.isEmpty()) throw new IllegalArgumentException("No layers to export.");
+		if (blockSize < 1 || blockDepth < 1 || nScales < 1) throw new IllegalArgumentException("Invalid block size or number of scales.");
+		this.layers = new ArrayList<Layer>(layers);
+		this.dir = dir;
+		this.bounds = layers.get(0).getParent().get2DBounds();
+		this.blockSize = blockSize;
+		this.blockDepth = blockDepth;
+		this.nScales = nScales;
+		this.gzip = gzip;
+		this.visibleOnly = visibleOnly;
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/** Export, skipping work already done by a previous, interrupted run into the same folder. */
+	public void export() throws Exception {
+		writeAttributes();
+
+		final ExecutorService exec = Utils.newFixedThreadPool(nThreads, "T2-ChunkedVolume-render"),
+		                      writers = Utils.newFixedThreadPool(nThreads, "T2-ChunkedVolume-write");
+		try {
+			final int nSlabs = (layers.size() + blockDepth - 1) / blockDepth;
+			for (int s=0; s<nSlabs; ++s) {
+				if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+				final File marker = new File(dir, PROGRESS + "/s0-" + s);
+				if (marker.exists()) continue;
+				Utils.log2("Exporting slab " + (s + 1) + "/" + nSlabs + " of the chunked volume.");
+				exportSlab(s, exec, writers);
+				Utils.ensure(marker);
+				if (!marker.createNewFile() && !marker.exists()) throw new IOException("Could not create " + marker);
+				Utils.showProgress((s + 1) / (double)(nSlabs + nScales - 1));
+			}
+			for (int level=1; level<nScales; ++level) {
+				if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+				downsample(level, writers);
+				Utils.showProgress((nSlabs + level) / (double)(nSlabs + nScales - 1));
+			}
+		} catch (final ExecutionException ee) {
+			throw ee.getCause() instanceof Exception ? (Exception)ee.getCause() : ee;
+		} finally {
+			exec.shutdownNow();
+			writers.shutdownNow();
+		}
+	}
+
+	private final long width(final int level) {
+		return ((long)bounds.width + (1L << level) - 1) >> level;
+	}
+
+	private final long height(final int level) {
+		return ((long)bounds.height + (1L << level) - 1) >> level;
+	}
+
+	/** Render the layers of slab @param s and write its blocks of level s0. */
+	private final void exportSlab(final int s, final ExecutorService exec, final ExecutorService writers) throws Exception {
+		final List<Layer> slab = layers.subList(s * blockDepth, Math.min(layers.size(), (s + 1) * blockDepth));
+		final int width = bounds.width,
+		          nRows = (bounds.height + blockSize - 1) / blockSize;
+
+		// One lazy tile sequence per layer, with the tiles that overlap the next row of blocks
+		final ArrayList<Iterator<Callable<ExportedTile>>> tiles = new ArrayList<Iterator<Callable<ExportedTile>>>();
+		final ArrayList<LinkedList<ExportedTile>> carried = new ArrayList<LinkedList<ExportedTile>>();
+		for (final Layer layer : slab) {
+			tiles.add(ExportUnsignedShort.exportTiles(layer, blockSize, blockSize, visibleOnly).iterator());
+			carried.add(new LinkedList<ExportedTile>());
+		}
+
+		for (int row=0; row<nRows; ++row) {
+			final int y0 = bounds.y + row * blockSize,
+			          h = Math.min(blockSize, bounds.height - row * blockSize);
+			final short[][] rows = new short[slab.size()][];
+
+			// Render the row of blocks in all layers of the slab
+			final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+			for (int z=0; z<slab.size(); ++z) {
+				final int k = z;
+				fus.add(exec.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						rows[k] = fillRow(tiles.get(k), carried.get(k), y0, h);
+						return null;
+					}
+				}));
+			}
+			for (final Future<?> fu : fus) fu.get();
+			fus.clear();
+
+			// Write the blocks of the row
+			final int nCols = (width + blockSize - 1) / blockSize;
+			for (int col=0; col<nCols; ++col) {
+				final int c = col,
+				          r = row;
+				fus.add(writers.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						final int x0 = c * blockSize,
+						          w = Math.min(blockSize, width - x0);
+						final short[] block = new short[w * h * rows.length];
+						boolean empty = true;
+						for (int z=0, i=0; z<rows.length; ++z) {
+							final short[] pix = rows[z];
+							if (null == pix) { i += w * h; continue; }
+							for (int y=0; y<h; ++y) {
+								System.arraycopy(pix, y * width + x0, block, i, w);
+								i += w;
+							}
+							empty = false;
+						}
+						if (!empty) writeBlock(0, c, r, s, w, h, rows.length, block);
+						return null;
+					}
+				}));
+			}
+			for (final Future<?> fu : fus) fu.get();
+		}
+	}
+
+	/** Paste into a new row of pixels, as wide as the volume and @param h tall starting at world @param y0,
+	 *  the tiles carried over from the previous row and then those from @param tiles,
+	 *  keeping in @param carried those that extend into the next row.
+	 *  @return The row, or null if no tile overlaps it. */
+	private final short[] fillRow(final Iterator<Callable<ExportedTile>> tiles, final LinkedList<ExportedTile> carried, final int y0, final int h) throws Exception {
+		short[] pix = null;
+		final ArrayList<ExportedTile> next = new ArrayList<ExportedTile>();
+		while (true) {
+			final ExportedTile t;
+			if (!carried.isEmpty()) t = carried.removeFirst();
+			else if (tiles.hasNext()) t = tiles.next().call();
+			else break;
+			final int ty = (int)t.y;
+			if (ty >= y0 + h) {
+				// Belongs to a later row: tiles come in row order, so stop here
+				next.add(t);
+				break;
+			}
+			if (ty + t.sp.getHeight() > y0 + h) next.add(t);
+			if (null == pix) pix = new short[bounds.width * h];
+			paste(t, pix, y0, h);
+		}
+		carried.addAll(next);
+		return pix;
+	}
+
+	private final void paste(final ExportedTile t, final short[] pix, final int y0, final int h) {
+		final short[] tp = (short[]) t.sp.getPixels();
+		final int tx = (int)t.x,
+		          ty = (int)t.y,
+		          tw = t.sp.getWidth(),
+		          th = t.sp.getHeight();
+		final int xs = Math.max(tx, bounds.x),
+		          xe = Math.min(tx + tw, bounds.x + bounds.width),
+		          ys = Math.max(ty, y0),
+		          ye = Math.min(ty + th, y0 + h);
+		if (xe <= xs) return;
+		for (int y=ys; y<ye; ++y) {
+			System.arraycopy(tp, (y - ty) * tw + (xs - tx), pix, (y - y0) * bounds.width + (xs - bounds.x), xe - xs);
+		}
+	}
+
+	/** Compute all blocks of @param level by averaging 2x2 pixels of the blocks of the level above. */
+	private final void downsample(final int level, final ExecutorService writers) throws Exception {
+		final long width = width(level),
+		           height = height(level),
+		           sWidth = width(level - 1),
+		           sHeight = height(level - 1);
+		final int nCols = (int)((width + blockSize - 1) / blockSize),
+		          nRows = (int)((height + blockSize - 1) / blockSize),
+		          nSlabs = (layers.size() + blockDepth - 1) / blockDepth;
+		final LinkedList<Future<?>> fus = new LinkedList<Future<?>>();
+		for (int s=0; s<nSlabs; ++s) {
+			final int d = Math.min(blockDepth, layers.size() - s * blockDepth);
+			for (int row=0; row<nRows; ++row) {
+				for (int col=0; col<nCols; ++col) {
+					if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+					if (blockFile(level, col, row, s).exists()) continue;
+					final int c = col, r = row, z = s;
+					fus.add(writers.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							final int w = (int)Math.min(blockSize, width - (long)c * blockSize),
+							          h = (int)Math.min(blockSize, height - (long)r * blockSize);
+							// The 2x2 source blocks: each target block covers exactly 2x2 blocks of the level above
+							final short[][] src = new short[4][];
+							final int[][] dims = new int[4][];
+							boolean empty = true;
+							for (int i=0; i<4; ++i) {
+								final int sc = 2 * c + (i & 1),
+								          sr = 2 * r + (i >> 1);
+								if ((long)sc * blockSize >= sWidth || (long)sr * blockSize >= sHeight) continue;
+								dims[i] = new int[3];
+								src[i] = readBlock(level - 1, sc, sr, z, dims[i]);
+								if (null != src[i]) empty = false;
+							}
+							if (empty) return null;
+							final short[] block = new short[w * h * d];
+							for (int k=0, i=0; k<d; ++k) {
+								for (int y=0; y<h; ++y) {
+									for (int x=0; x<w; ++x, ++i) {
+										int sum = 0, n = 0;
+										for (int dy=0; dy<2; ++dy) {
+											final long sy = 2L * ((long)r * blockSize + y) + dy;
+											if (sy >= sHeight) continue;
+											for (int dx=0; dx<2; ++dx) {
+												final long sx = 2L * ((long)c * blockSize + x) + dx;
+												if (sx >= sWidth) continue;
+												final int q = (sx >= (2L * c + 1) * blockSize ? 1 : 0) + (sy >= (2L * r + 1) * blockSize ? 2 : 0);
+												++n;
+												if (null == src[q]) continue; // a missing block is zeros
+												final int bx = (int)(sx - (2L * c + (q & 1)) * blockSize),
+												          by = (int)(sy - (2L * r + (q >> 1)) * blockSize);
+												sum += src[q][(k * dims[q][1] + by) * dims[q][0] + bx] & 0xffff;
+											}
+										}
+										block[i] = (short)(n > 0 ? (sum + n / 2) / n : 0);
+									}
+								}
+							}
+							writeBlock(level, c, r, z, w, h, d, block);
+							return null;
+						}
+					}));
+					while (fus.size() > 2 * nThreads) fus.removeFirst().get();
+				}
+			}
+		}
+		for (final Future<?> fu : fus) fu.get();
+	}
+
+	private final File blockFile(final int level, final int x, final int y, final int z) {
+		return new File(dir, "s" + level + "/" + x + "/" + y + "/" + z);
+	}
+
+	/** Write a block in the N5 format: mode, number of dimensions and block dimensions, then the big-endian data, x fastest. */
+	private final void writeBlock(final int level, final int x, final int y, final int z, final int w, final int h, final int d, final short[] data) throws IOException {
+		final File f = blockFile(level, x, y, z),
+		           tmp = new File(f.getAbsolutePath() + ".tmp");
+		if (!Utils.ensure(tmp)) throw new IOException("Could not write to " + tmp);
+		final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			dos.writeShort(0); // mode: default
+			dos.writeShort(3);
+			dos.writeInt(w);
+			dos.writeInt(h);
+			dos.writeInt(d);
+			final ByteBuffer b = ByteBuffer.allocate(data.length * 2).order(ByteOrder.BIG_ENDIAN);
+			b.asShortBuffer().put(data);
+			if (gzip) {
+				final OutputStream gz = new GZIPOutputStream(dos, 65536) {{ def.setLevel(Deflater.BEST_SPEED); }};
+				gz.write(b.array());
+				gz.close();
+			} else {
+				dos.write(b.array());
+			}
+		} finally {
+			dos.close();
+		}
+		if (f.exists()) f.delete();
+		if (!tmp.renameTo(f)) throw new IOException("Could not rename " + tmp + " to " + f);
+	}
+
+	/** @param dims Receives the width, height and depth of the block.
+	 *  @return The data of the block, or null if it does not exist. */
+	private final short[] readBlock(final int level, final int x, final int y, final int z, final int[] dims) throws IOException {
+		final File f = blockFile(level, x, y, z);
+		if (!f.exists()) return null;
+		final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			dis.readShort(); // mode
+			final int n = dis.readShort();
+			for (int i=0; i<n; ++i) dims[i] = dis.readInt();
+			final byte[] b = new byte[dims[0] * dims[1] * dims[2] * 2];
+			final DataInputStream in = new DataInputStream(gzip ? new GZIPInputStream(dis, 65536) : (InputStream)dis);
+			in.readFully(b);
+			final short[] data = new short[b.length / 2];
+			ByteBuffer.wrap(b).order(ByteOrder.BIG_ENDIAN).asShortBuffer().get(data);
+			return data;
+		} finally {
+			dis.close();
+		}
+	}
+
+	/** Write the attributes of the container and of each scale level, or check that those of a previous run match. */
+	private final void writeAttributes() throws IOException {
+		final LayerSet ls = layers.get(0).getParent();
+		final Calibration cal = ls.getCalibration();
+		final String unit = cal.getUnit();
+		final double pw = cal.pixelWidth,
+		             ph = cal.pixelHeight,
+		             pd = cal.pixelDepth * layers.get(0).getThickness();
+		final String compression = gzip ? "{\"type\":\"gzip\",\"level\":1}" : "{\"type\":\"raw\"}";
+
+		final StringBuilder scales = new StringBuilder("[");
+		for (int level=0; level<nScales; ++level) {
+			if (level > 0) scales.append(',');
+			scales.append('[').append(1 << level).append(',').append(1 << level).append(",1]");
+		}
+		scales.append(']');
+		writeOrCheck(new File(dir, "attributes.json"), new StringBuilder("{\"n5\":\"2.0.0\"")
+				.append(",\"scales\":").append(scales)
+				.append(",\"pixelResolution\":{\"unit\":\"").append(unit).append("\",\"dimensions\":[").append(pw).append(',').append(ph).append(',').append(pd).append("]}")
+				.append(",\"firstLayerId\":").append(layers.get(0).getId())
+				.append(",\"lastLayerId\":").append(layers.get(layers.size() - 1).getId())
+				.append(",\"offset\":[").append(bounds.x).append(',').append(bounds.y).append("]}").toString());
+
+		for (int level=0; level<nScales; ++level) {
+			final int f = 1 << level;
+			writeOrCheck(new File(dir, "s" + level + "/attributes.json"), new StringBuilder("{")
+					.append("\"dimensions\":[").append(width(level)).append(',').append(height(level)).append(',').append(layers.size()).append(']')
+					.append(",\"blockSize\":[").append(blockSize).append(',').append(blockSize).append(',').append(blockDepth).append(']')
+					.append(",\"dataType\":\"uint16\"")
+					.append(",\"compression\":").append(compression)
+					.append(",\"downsamplingFactors\":[").append(f).append(',').append(f).append(",1]")
+					.append(",\"pixelResolution\":{\"unit\":\"").append(unit).append("\",\"dimensions\":[").append(pw * f).append(',').append(ph * f).append(',').append(pd).append("]}")
+					.append('}').toString());
+		}
+	}
+
+	private final void writeOrCheck(final File f, final String json) throws IOException {
+		if (f.exists()) {
+			final String existing = Utils.openTextFile(f.getAbsolutePath());
+			if (null == existing || !json.equals(existing.trim())) {
+				throw new IOException("Folder " + dir + " holds a different export: choose an empty folder.");
+			}
+			return;
+		}
+		if (!Utils.ensure(f) || !Utils.saveToFile(f, json)) throw new IOException("Could not write " + f);
+	}
+}
@@ -47,21 +47,29 @@ import mpicbg.trakem2.util.Downsampler;
 
 public class ExportMultilevelTiles
 {
-	/** Will overwrite if the file path exists. */
+	/** Will overwrite if the file path exists, unless @param fps is not null and the tile's fingerprint is unchanged. */
 	static private Runnable makeTileRunnable(final Layer layer, final Rectangle srcRect, final double mag,
 			final int c_alphas, final int type, final Class<?> clazz, final String file_path,
 			final Saver saver, final int tileWidth, final int tileHeight, final boolean skip_empty_tiles,
-			final boolean padding) {
+			final boolean padding, final TileFingerprints fps) {
 		return new Runnable() {
 			public void run() {
+				final String fingerprint = null == fps ? null : fps.fingerprint(srcRect, mag);
+				if (null != fingerprint && fps.isUnchanged(file_path, fingerprint)) return;
 				ImagePlus imp = null;
 				if (srcRect.width > 0 && srcRect.height > 0) {
 					imp = layer.getProject().getLoader().getFlatImage(layer, srcRect, mag, c_alphas, type, clazz, null, true); // with quality
 					// First cheap check on bounding boxes only, if it fails, check if anything actually was painted
-					if (skip_empty_tiles && (layer.find(srcRect, true).isEmpty() || isEmptyTile(imp.getProcessor()))) return;
+					if (skip_empty_tiles && (layer.find(srcRect, true).isEmpty() || isEmptyTile(imp.getProcessor()))) {
+						if (null != fingerprint) fps.record(file_path, fingerprint, false);
+						return;
+					}
 				} else {
 					// Make empty black tile
-					if (skip_empty_tiles) return;
+					if (skip_empty_tiles) {
+						if (null != fingerprint) fps.record(file_path, fingerprint, false);
+						return;
+					}
 					imp = new ImagePlus("", new ByteProcessor(tileWidth, tileHeight)); // black tile
 				}
 				// correct dimensions of cropped tiles, padding the outside with black
@@ -78,12 +86,53 @@ public class ExportMultilevelTiles
 					imp.flush();
 					imp = imp2;
 				}
-				saver.save(imp, file_path);
+				if (saver.save(imp, file_path) && null != fingerprint) fps.record(file_path, fingerprint, true);
 				imp.flush();
 			}
 		};
 	}
 
+	/** The area of the tile at @param row, @param col in world coordinates, cropped to the @param srcRect;
+	 *  the dimensions are zero or negative for tiles beyond the edges of the srcRect.
+	 *  @param tile_side The side of a tile in world coordinates, i.e. at magnification 1.0. */
+	static private final Rectangle makeTileSrc(final Rectangle srcRect, final int tile_side, final int row, final int col) {
+		final Rectangle tile_src = new Rectangle(srcRect.x + tile_side * col,
+				srcRect.y + tile_side * row,
+				tile_side,
+				tile_side); // in absolute coords, magnification later.
+		// crop bounds
+		if (tile_src.x + tile_src.width > srcRect.x + srcRect.width) tile_src.width = srcRect.x + srcRect.width - tile_src.x;
+		if (tile_src.y + tile_src.height > srcRect.y + srcRect.height) tile_src.height = srcRect.y + srcRect.height - tile_src.y;
+		return tile_src;
+	}
+
+	/** Export settings that alter the content of every tile, for {@link TileFingerprints}. */
+	static private final String makeFingerprintSettings(final int strategy, final int type, final int c_alphas, final int tileSide, final Saver saver) {
+		return new StringBuilder("strategy=").append(strategy).append(" type=").append(type)
+				.append(" channels=").append(c_alphas).append(" tile=").append(tileSide)
+				.append(" format=").append(saver.getExtension()).toString();
+	}
+
+	/** Whether every tile of the pyramid of a layer was exported before with the same fingerprint, and is still on disk.
+	 *  Includes the tiles of the whole grid, also those beyond the edges of the srcRect, since all are written. */
+	static private final boolean allTilesUnchanged(final TileFingerprints fps, final int directory_structure_type, final String dir, final int index,
+			final Rectangle srcRect, final int tileSide, final int n_edge_tiles, final int min_edge_tiles) {
+		double scale = 1;
+		int scale_pow = 0;
+		for (int n_et = n_edge_tiles; n_et >= min_edge_tiles; n_et /= 2) {
+			final int tile_side = (int)(tileSide / scale);
+			for (int row=0; row<n_et; row++) {
+				for (int col=0; col<n_et; col++) {
+					final Rectangle tile_src = makeTileSrc(srcRect, tile_side, row, col);
+					if (!fps.isUnchanged(makeTilePath(directory_structure_type, dir, index, row, col, scale_pow), fps.fingerprint(tile_src, scale))) return false;
+				}
+			}
+			scale_pow++;
+			scale = 1 / Math.pow(2, scale_pow);
+		}
+		return true;
+	}
+
 	/** Find the closest, but larger, power of 2 number for the given edge size; the base root may be any of {1,2,3,5}. */
 	static private int[] determineClosestPowerOfTwo(final int edge) {
 		final int[] starter = new int[]{1, 2, 3, 5}; // I love primer numbers
@@ -186,6 +235,21 @@ public class ExportMultilevelTiles
 	static public Bureaucrat makePrescaledTiles(final Layer[] layers, final Class<?> clazz, final Rectangle srcRect,
 			final int c_alphas, final int type, String target_dir, final int strategy, final Saver saver, final int tileSide,
 			final int directory_structure_type, final boolean skip_empty_tiles, final boolean use_layer_indices, final int n_threads)
+	{
+		return makePrescaledTiles(layers, clazz, srcRect, c_alphas, type, target_dir, strategy, saver, tileSide,
+				directory_structure_type, skip_empty_tiles, use_layer_indices, false, n_threads);
+	}
+
+	/** As {@link #makePrescaledTiles(Layer[], Class, Rectangle, int, int, String, int, Saver, int, int, boolean, boolean, int)},
+	 * but when @param skip_unchanged_tiles is true, a fingerprint of the images that make up each tile is recorded
+	 * in a {@link TileFingerprints#FILE_NAME} file within the folder of each layer, and tiles whose fingerprint
+	 * is unchanged since an earlier export into the same folder are not rendered again. This also resumes
+	 * an interrupted export. Only possible when exporting {@link Patch} instances alone.
+	 */
+	static public Bureaucrat makePrescaledTiles(final Layer[] layers, final Class<?> clazz, final Rectangle srcRect,
+			final int c_alphas, final int type, String target_dir, final int strategy, final Saver saver, final int tileSide,
+			final int directory_structure_type, final boolean skip_empty_tiles, final boolean use_layer_indices,
+			boolean skip_unchanged_tiles, final int n_threads)
 	{
 		// Check preconditions
 		if (null == layers || 0 == layers.length) return null;
@@ -205,6 +269,12 @@ public class ExportMultilevelTiles
 			if (null == target_dir) return null;
 		}
 
+		if (skip_unchanged_tiles && Patch.class != clazz) {
+			// Fingerprints account only for images
+			Utils.log("Can only skip unchanged tiles when exporting images alone: will export all tiles.");
+			skip_unchanged_tiles = false;
+		}
+
 		final String dir = Utils.fixDir(target_dir);
 		final Worker worker;
 
@@ -300,15 +370,15 @@ public class ExportMultilevelTiles
 			switch (strategy) {
 			case 0:
 				worker = exportFromOriginals(indices, smallestIndex, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
-						directory_structure_type, use_layer_indices, skip_empty_tiles, Math.max(1, n_threads));
+						directory_structure_type, use_layer_indices, skip_empty_tiles, skip_unchanged_tiles, Math.max(1, n_threads));
 				break;
 			case 1:
 				worker = exportFromMipMaps(indices, smallestIndex, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
-						directory_structure_type, use_layer_indices, skip_empty_tiles, Math.max(1, n_threads));
+						directory_structure_type, use_layer_indices, skip_empty_tiles, skip_unchanged_tiles, Math.max(1, n_threads));
 				break;
 			case 2:
 				worker = exportFromMipMapsLayerWise(indices, smallestIndex, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
-						directory_structure_type, use_layer_indices, skip_empty_tiles, Math.max(1, n_threads));
+						directory_structure_type, use_layer_indices, skip_empty_tiles, skip_unchanged_tiles, Math.max(1, n_threads));
 				break;
 			default:
 				Utils.log("Unknown strategy: " + strategy);
@@ -337,6 +407,7 @@ public class ExportMultilevelTiles
 			final int directory_structure_type,
 			final boolean use_layer_indices,
 			final boolean skip_empty_tiles,
+			final boolean skip_unchanged_tiles,
 			final int n_threads)
 	{
 		return new Worker("Creating prescaled tiles from mipmaps")
@@ -387,10 +458,15 @@ public class ExportMultilevelTiles
 							return;
 						}
 
+						// 2 - read fingerprints of tiles exported before, if any
+						final TileFingerprints fps = skip_unchanged_tiles ?
+								new TileFingerprints(layer, dir + index + "/", saver.getExtension(), makeFingerprintSettings(1, type, c_alphas, tileSide, saver))
+								: null;
+
 						// 3 - fill directory with tiles
 						if (edge_length < tileSide) { // edge_length is the largest length of the tileSide x tileSide tile map that covers an area equal or larger than the desired srcRect (because all tiles have to be tileSide x tileSide in size)
 							// create single tile per layer
-							makeTileRunnable(layer, srcRect, 1.0, c_alphas, type, clazz, makeTilePath(directory_structure_type, dir, index, 0, 0, 0), saver, tileSide, tileSide, skip_empty_tiles, true).run();
+							makeTileRunnable(layer, srcRect, 1.0, c_alphas, type, clazz, makeTilePath(directory_structure_type, dir, index, 0, 0, 0), saver, tileSide, tileSide, skip_empty_tiles, true, fps).run();
 						} else {
 							// From mipmaps
 							double scale = 1;
@@ -411,13 +487,7 @@ public class ExportMultilevelTiles
 											cleanUp();
 											return;
 										}
-										final Rectangle tile_src = new Rectangle(srcRect.x + tile_side*col,
-												srcRect.y + tile_side*row,
-												tile_side,
-												tile_side); // in absolute coords, magnification later.
-										// crop bounds
-										if (tile_src.x + tile_src.width > srcRect.x + srcRect.width) tile_src.width = srcRect.x + srcRect.width - tile_src.x;
-										if (tile_src.y + tile_src.height > srcRect.y + srcRect.height) tile_src.height = srcRect.y + srcRect.height - tile_src.y;
+										final Rectangle tile_src = makeTileSrc(srcRect, tile_side, row, col);
 										// negative tile sizes will be made into black tiles
 										// (negative dimensions occur for tiles beyond the edges of srcRect, since the grid of tiles has to be of equal number of rows and cols)
 										
@@ -429,7 +499,7 @@ public class ExportMultilevelTiles
 											}
 											futures.pop().get();
 										}
-										final Runnable task = makeTileRunnable(layer, tile_src, scale, c_alphas, type, clazz, makeTilePath(directory_structure_type, dir, index, row, col, scale_pow), saver, tileSide, tileSide, skip_empty_tiles, true);
+										final Runnable task = makeTileRunnable(layer, tile_src, scale, c_alphas, type, clazz, makeTilePath(directory_structure_type, dir, index, row, col, scale_pow), saver, tileSide, tileSide, skip_empty_tiles, true, fps);
 										futures.add(exec.submit(task));
 									}
 								}
@@ -439,7 +509,7 @@ public class ExportMultilevelTiles
 							}
 							
 							// Create layer thumbnail, max 192x192
-							futures.add(exec.submit(makeTileRunnable(layer, srcRect, thumb_scale, c_alphas, type, clazz, dir + index + "/small", saver, 192, 192, false, false)));
+							futures.add(exec.submit(makeTileRunnable(layer, srcRect, thumb_scale, c_alphas, type, clazz, dir + index + "/small", saver, 192, 192, false, false, fps)));
 							
 						}
 					}
@@ -473,6 +543,9 @@ public class ExportMultilevelTiles
 		private int tileSide;
 		private int directory_structure_type;
 		private Saver saver;
+		private boolean skip_unchanged_tiles;
+		/** Created at {@link #run()} when skipping unchanged tiles. */
+		private TileFingerprints fps = null;
 
 		private ExportLayerTiles(
 				final Layer layer,
@@ -487,7 +560,8 @@ public class ExportMultilevelTiles
 				final int n_edge_tiles,
 				final int tileSide,
 				final int directory_structure_type,
-				final Saver saver
+				final Saver saver,
+				final boolean skip_unchanged_tiles
 				)
 		{
 			this.layer = layer;
@@ -503,6 +577,7 @@ public class ExportMultilevelTiles
 			this.tileSide = tileSide;
 			this.directory_structure_type = directory_structure_type;
 			this.saver = saver;
+			this.skip_unchanged_tiles = skip_unchanged_tiles;
 		}
 		
 		/** Will flush the prior_snapshot. */
@@ -522,9 +597,12 @@ public class ExportMultilevelTiles
 			}
 			// Iterate tiles
 			final Rectangle tile_src = new Rectangle(0, 0, tileSide, tileSide);
+			final int tile_side = (int)(tileSide / scale);
 			for (int i = 0, row = 0; i < snapshot.getHeight(); i += tileSide, ++row) {
 				for (int j = 0, col = 0; j < snapshot.getWidth(); j += tileSide, ++col) {
 					final String path = makeTilePath(directory_structure_type, dir, index, row, col, scale_pow);
+					final String fingerprint = null == fps ? null : fps.fingerprint(makeTileSrc(srcRect, tile_side, row, col), scale);
+					if (null != fingerprint && fps.isUnchanged(path, fingerprint)) continue;
 					// The srcRect for the tile
 					tile_src.x = tileSide * col;
 					tile_src.y = tileSide * row;
@@ -538,9 +616,12 @@ public class ExportMultilevelTiles
 						ip = ip2;
 						ip2 = null;
 					}
-					if (skip_empty_tiles && isEmptyTile(ip)) continue;
+					if (skip_empty_tiles && isEmptyTile(ip)) {
+						if (null != fingerprint) fps.record(path, fingerprint, false);
+						continue;
+					}
 					ImagePlus imp = new ImagePlus(path.substring(path.lastIndexOf("/")), ip);
-					saver.save(imp, path);
+					if (saver.save(imp, path) && null != fingerprint) fps.record(path, fingerprint, true);
 					imp.flush();
 					ip = null;
 					imp = null;
@@ -585,20 +666,13 @@ public class ExportMultilevelTiles
 							// Make tile at indices [row, col] if not done yet
 							final II coord = new II(row, col);
 							if (done.contains(coord)) continue;
-							// The srcRect for the tile
-							final Rectangle tile_src = new Rectangle(
-									srcRect.x + tile_side * col,
-									srcRect.y + tile_side * row,
-									tile_side,
-									tile_side); // in absolute coords, magnification later.
-							// Crop bounds to within srcRect (tile will be enlarged prior to saving, padding with black)
-							if (tile_src.x + tile_src.width > srcRect.x + srcRect.width) tile_src.width = srcRect.x + srcRect.width - tile_src.x;
-							if (tile_src.y + tile_src.height > srcRect.y + srcRect.height) tile_src.height = srcRect.y + srcRect.height - tile_src.y;
+							// The srcRect for the tile, cropped to within srcRect (tile will be enlarged prior to saving, padding with black)
+							final Rectangle tile_src = makeTileSrc(srcRect, tile_side, row, col);
 							// Write tile
 							final String path = makeTilePath(directory_structure_type, dir, index, row, col, scale_pow);
 							//System.out.println("   writing tile for " + tile_src + " with path " + path.substring(path.lastIndexOf("/") + 1));
 							makeTileRunnable(layer, tile_src, scale, c_alphas, type, Patch.class,
-									path, saver, tileSide, tileSide, skip_empty_tiles, true)
+									path, saver, tileSide, tileSide, skip_empty_tiles, true, fps)
 							.run();
 							done.add(coord);
 						}
@@ -623,19 +697,25 @@ public class ExportMultilevelTiles
 						final II coord = new II(row, col);
 						if (done.contains(coord)) continue;
 						// Else, write black tile
-						final String path = makeTilePath(directory_structure_type, dir, index, row, col, scale_pow) + saver.getExtension();
+						final String tile_path = makeTilePath(directory_structure_type, dir, index, row, col, scale_pow);
+						final String fingerprint = null == fps ? null : fps.fingerprint(makeTileSrc(srcRect, tile_side, row, col), scale);
+						if (null != fingerprint && fps.isUnchanged(tile_path, fingerprint)) continue;
+						final String path = tile_path + saver.getExtension();
+						boolean written = false;
 						if (null == first_path) {
 							first_path = new File(path).toPath();
 							final ImagePlus black = new ImagePlus("black", new ByteProcessor(tileSide, tileSide));
-							saver.save(black, path);
+							written = saver.save(black, path);
 							black.flush();
 						} else {
 							try {
 								Files.copy(first_path, new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING);
+								written = true;
 							} catch (IOException e1) {
 								e1.printStackTrace();
 							}
 						}
+						if (written && null != fingerprint) fps.record(tile_path, fingerprint, true);
 					}
 				}
 			}
@@ -659,6 +739,14 @@ public class ExportMultilevelTiles
 					return;
 				}
 
+				if (skip_unchanged_tiles) {
+					fps = new TileFingerprints(layer, dir + index + "/", saver.getExtension(), makeFingerprintSettings(2, type, c_alphas, tileSide, saver));
+					if (allTilesUnchanged(fps, directory_structure_type, dir, index, srcRect, tileSide, n_edge_tiles, best[1])) {
+						Utils.log2("Skipping unchanged layer " + layer + " at index " + index);
+						return;
+					}
+				}
+
 				final Map<Patch, Set<Patch>> overlaps = getOverlaps(patches);
 
 				// When under 1 GB, use whole-srcRect snapshots
@@ -724,6 +812,7 @@ public class ExportMultilevelTiles
 			final int directory_structure_type,
 			final boolean use_layer_indices,
 			final boolean skip_empty_tiles,
+			final boolean skip_unchanged_tiles,
 			final int n_threads)
 	{
 		return new Worker("Creating prescaled tiles from mipmaps layer-wise")
@@ -760,7 +849,7 @@ public class ExportMultilevelTiles
 						final Layer layer = e.getValue();
 						final int index = use_layer_indices ? layer.getParent().indexOf(layer) : (e.getKey() - smallestIndex); // for writing the folder name
 						futures.add(exec.submit(new ExportLayerTiles(layer, index, dir, srcRect, type, c_alphas,
-								best, area_srcRect, skip_empty_tiles, n_edge_tiles, tileSide, directory_structure_type, saver)));
+								best, area_srcRect, skip_empty_tiles, n_edge_tiles, tileSide, directory_structure_type, saver, skip_unchanged_tiles)));
 						
 						while (futures.size() > n_procs * 10) {
 							futures.pop().get();
@@ -852,6 +941,7 @@ public class ExportMultilevelTiles
 			final int directory_structure_type,
 			final boolean use_layer_indices,
 			final boolean skip_empty_tiles,
+			final boolean skip_unchanged_tiles,
 			final int n_threads)
 	{	
 		return new Worker("Creating prescaled tiles from original images") {
@@ -896,16 +986,30 @@ public class ExportMultilevelTiles
 							return;
 						}
 
+						// 2 - read fingerprints of tiles exported before, if any
+						final TileFingerprints fps = skip_unchanged_tiles ?
+								new TileFingerprints(layer, dir + index + "/", saver.getExtension(), makeFingerprintSettings(0, type, c_alphas, tileSide, saver))
+								: null;
+
 						// 3 - fill directory with tiles
 						if (edge_length < tileSide) { // edge_length is the largest length of the tileSide x tileSide tile map that covers an area equal or larger than the desired srcRect (because all tiles have to be tileSide x tileSide in size)
 							// create single tile per layer
-							makeTileRunnable(layer, srcRect, 1.0, c_alphas, type, clazz, makeTilePath(directory_structure_type, dir, index, 0, 0, 0), saver, tileSide, tileSide, skip_empty_tiles, true).run();
+							makeTileRunnable(layer, srcRect, 1.0, c_alphas, type, clazz, makeTilePath(directory_structure_type, dir, index, 0, 0, 0), saver, tileSide, tileSide, skip_empty_tiles, true, fps).run();
 						} else {
 							// Create pyramid of tiles
 							// Create layer thumbnail, max 192x192
+							final String thumb_path = dir + index + "/small";
+							final String thumb_fingerprint = null == fps ? null : fps.fingerprint(srcRect, thumb_scale);
+							if (null != thumb_fingerprint
+							  && fps.isUnchanged(thumb_path, thumb_fingerprint)
+							  && allTilesUnchanged(fps, directory_structure_type, dir, index, srcRect, tileSide, n_edge_tiles, best[1])) {
+								// Avoid rendering the snapshot of the whole layer
+								Utils.log2("Skipping unchanged layer " + layer + " at index " + index);
+								continue;
+							}
 							{
 								ImagePlus thumb = layer.getProject().getLoader().getFlatImage(layer, srcRect, thumb_scale, c_alphas, type, clazz, true);
-								saver.save(thumb, dir + index + "/small");
+								if (saver.save(thumb, thumb_path) && null != thumb_fingerprint) fps.record(thumb_path, thumb_fingerprint, true);
 								Loader.flush(thumb);
 								thumb = null;
 							}
@@ -942,10 +1046,13 @@ public class ExportMultilevelTiles
 									final int snapWidth = snapshot.getWidth();
 									final int snapHeight = snapshot.getHeight();
 									final ImageProcessor source = snapshot;
+									final int tile_side = (int)(tileSide / scale);
 									for (int row=0; row<n_et; row++) {
 										for (int col=0; col<n_et; col++) {
 
 											final String path = makeTilePath(directory_structure_type, dir, index, row, col, scale_pow);
+											final String fingerprint = null == fps ? null : fps.fingerprint(makeTileSrc(srcRect, tile_side, row, col), scale);
+											if (null != fingerprint && fps.isUnchanged(path, fingerprint)) continue;
 											// new StringBuilder(tile_dir).append(row).append('_').append(col).append('_').append(scale_pow).toString();
 											final int tileXStart = col * tileSide;
 											final int tileYStart = row * tileSide;
@@ -966,7 +1073,7 @@ public class ExportMultilevelTiles
 														}
 														final ByteProcessor bp = new ByteProcessor(tileSide, tileSide, p, Loader.GRAY_LUT);
 														if (!skip_empty_tiles || !isEmptyTile(bp)) {
-															return saver.save(new ImagePlus(path, bp), path);
+															return save(new ImagePlus(path, bp));
 														}
 													} else {
 														final int[] pixels = (int[]) source.getPixels();
@@ -980,11 +1087,17 @@ public class ExportMultilevelTiles
 														}
 														final ColorProcessor cp = new ColorProcessor(tileSide, tileSide, p);
 														if (!skip_empty_tiles || !isEmptyTile(cp)) {
-															return saver.save(new ImagePlus(path, cp), path);
+															return save(new ImagePlus(path, cp));
 														}
 													}
+													if (null != fingerprint) fps.record(path, fingerprint, false);
 													return false;
 												}
+												private Boolean save(final ImagePlus imp) {
+													final boolean saved = saver.save(imp, path);
+													if (saved && null != fingerprint) fps.record(path, fingerprint, true);
+													return saved;
+												}
 											}));
 										}
 									}
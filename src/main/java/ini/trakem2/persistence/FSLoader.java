@@ -32,7 +32,6 @@ import ij.io.FileInfo;
 import ij.io.FileSaver;
 import ij.io.OpenDialog;
 import ij.io.Opener;
-import ij.plugin.filter.GaussianBlur;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
@@ -46,11 +45,16 @@ import ini.trakem2.display.Layer;
 import ini.trakem2.display.MipMapImage;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Stack;
-import ini.trakem2.imaging.FloatProcessorT2;
 import ini.trakem2.imaging.P;
 import ini.trakem2.io.ImageSaver;
+import ini.trakem2.io.PackFile;
+import ini.trakem2.io.PackedFeatures;
+import ini.trakem2.io.PackedLayerRenders;
+import ini.trakem2.io.PackedMipMaps;
 import ini.trakem2.io.RagMipMaps;
 import ini.trakem2.io.RawMipMaps;
+import ini.trakem2.io.ReadAheadInputStream;
+import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.IJError;
@@ -110,9 +114,6 @@ import org.xml.sax.InputSource;
 /** A class to rely on memory only; except images which are rolled from a folder or their original location and flushed when memory is needed for more. Ideally there would be a given folder for storing items temporarily of permanently as the "project folder", but I haven't implemented it. */
 public final class FSLoader extends Loader {
 
-	/* sigma of the Gaussian kernels to be used for downsampling by a factor of 2 */
-	final private static double SIGMA_2 = Math.sqrt( 0.75 );
-	
 	/** Largest id seen so far. */
 	private long max_id = -1;
 	/** Largest blob ID seen so far. First valid ID will equal 1. */
@@ -121,6 +122,8 @@ public final class FSLoader extends Loader {
 	private final Map<Long,String> ht_paths = Collections.synchronizedMap(new HashMap<Long,String>());
 	/** For saving and overwriting. */
 	private String project_file_path = null;
+	/** Changes since the XML file was last written, for incremental saving. */
+	private final Journal journal = new Journal();
 	/** Path to the directory hosting the file image pyramids. */
 	private String dir_mipmaps = null;
 	/** Path to the directory hosting the file image pyramids after mipmaps have been disabled. */
@@ -278,12 +281,15 @@ public final class FSLoader extends Loader {
 		// parse file, according to expected format as indicated by the extension:
 		final String lcFilePath = this.project_file_path.toLowerCase();
 		if (lcFilePath.matches(".*(\\.xml|\\.xml\\.gz)")) {
+			final long t0 = System.currentTimeMillis();
 			InputStream i_stream = null;
+			ReadAheadInputStream ra_stream = null;
 			TMLHandler handler = new TMLHandler(this.project_file_path, this);
 			if (handler.isUnreadable()) {
 				handler = null;
 			} else {
 				try {
+					handler.setJournal(journal.open(this.project_file_path));
 					SAXParserFactory factory = SAXParserFactory.newInstance();
 					factory.setValidating(false);
 					factory.setXIncludeAware(false);
@@ -294,15 +300,20 @@ public final class FSLoader extends Loader {
 						i_stream = new BufferedInputStream(new FileInputStream(this.project_file_path));
 					}
 					if (lcFilePath.endsWith(".gz")) {
-						i_stream  = new GZIPInputStream(i_stream);
+						i_stream  = new GZIPInputStream(i_stream, 65536);
 					}
+					// Read and decompress in another thread, while parsing
+					ra_stream = new ReadAheadInputStream(i_stream, "TMLHandler-read");
+					i_stream = ra_stream;
 					InputSource input_source = new InputSource(i_stream);
 					parser.parse(input_source, handler);
 				} catch (java.io.FileNotFoundException fnfe) {
 					Utils.log("ERROR: File not found: " + path);
+					handler.cancel();
 					handler = null;
 				} catch (Exception e) {
 					IJError.print(e);
+					handler.cancel();
 					handler = null;
 				} finally {
 					if (null != i_stream) {
@@ -320,6 +331,10 @@ public final class FSLoader extends Loader {
 			}
 
 			data = handler.getProjectData(open_displays);
+			if (null != data) {
+				journal.startRecording((Project)((ProjectThing)data[1]).getObject());
+				logLoadThroughput(handler, ra_stream, t0);
+			}
 		}
 
 		if (null == data) {
@@ -331,6 +346,20 @@ public final class FSLoader extends Loader {
 		return data;
 	}
 
+	private void logLoadThroughput(final TMLHandler handler, final ReadAheadInputStream ra_stream, final long t0) {
+		final double seconds = Math.max(1, System.currentTimeMillis() - t0) / 1000.0;
+		final double mb = (null == ra_stream ? 0 : ra_stream.getBytesRead()) / (1024.0 * 1024.0);
+		final StringBuilder sb = new StringBuilder("Opened ").append(handler.getDisplayableCount()).append(" objects (")
+			.append(handler.getElementCount()).append(" XML elements, ").append(Utils.d2s(mb, 1)).append(" MB");
+		if (this.project_file_path.toLowerCase().endsWith(".gz") && !isURL(this.project_file_path)) {
+			sb.append(" from ").append(Utils.d2s(new File(this.project_file_path).length() / (1024.0 * 1024.0), 1)).append(" MB compressed");
+		}
+		sb.append(") in ").append(Utils.d2s(seconds, 1)).append(" s: ")
+		  .append((int)(handler.getDisplayableCount() / seconds)).append(" objects/s, ")
+		  .append(Utils.d2s(mb / seconds, 1)).append(" MB/s");
+		Utils.log(sb.toString());
+	}
+
 	// Only one thread at a time may access this method.
 	synchronized static private final Project getOpenProject(final String project_file_path, final Loader caller) {
 		if (null == v_loaders) return null;
@@ -360,19 +389,31 @@ public final class FSLoader extends Loader {
 		return np;
 	}
 
-	/** Restart the ExecutorService for mipmaps with {@code n_threads}. */
+	/** Restart the {@link MipMapScheduler} with {@code n_threads} for computing mipmaps. */
 	static public final void restartMipMapThreads(final int n_threads) {
 		if (null != regenerator && !regenerator.isShutdown()) {
 			regenerator.shutdown();
 		}
-		regenerator = Utils.newFixedThreadPool(Math.max(1, n_threads), "regenerator");
+		regenerator = newMipMapScheduler(n_threads);
 		Utils.logAll("Restarted mipmap Executor Service for all projects with " + n_threads + " threads.");
 	}
 
+	/** Writing is bound by the disk, for which a few threads suffice regardless of the number of threads computing. */
+	static private final MipMapScheduler newMipMapScheduler(final int n_threads) {
+		final int n_compute = Math.max(1, n_threads),
+		          n_write = Math.max(1, Math.min(4, (n_compute + 1) / 2));
+		return new MipMapScheduler("regenerator", n_compute, n_write, 2 * (n_compute + n_write));
+	}
+
+	/** The scheduler of mipmap regeneration, for all projects; may be null when no project is open. */
+	static public final MipMapScheduler getMipMapScheduler() {
+		return regenerator;
+	}
+
 	static private void startStaticServices() {
 		// Up to nStaticServiceThreads for regenerator and repainter
 		if (null == regenerator || regenerator.isShutdown()) {
-			regenerator = Utils.newFixedThreadPool(1, "regenerator");
+			regenerator = newMipMapScheduler(1);
 		}
 		if (null == repainter || repainter.isShutdown()) {
 			repainter = Utils.newFixedThreadPool(nStaticServiceThreads, "repainter"); // for SnapshotPanel
@@ -408,8 +449,13 @@ public final class FSLoader extends Loader {
 			//Utils.log2("File f is " + f);
 			Utils.log2("Removing mipmaps for " + p);
 			// Cannot run in the remover: is a daemon, and would be interrupted.
-			removeMipMaps(createIdPath(Long.toString(p.getId()), f.getName(), mExt), (int)p.getWidth(), (int)p.getHeight());
+			removeMipMaps(createIdPath(Long.toString(p.getId()), f.getName(), mExt), (int)p.getWidth(), (int)p.getHeight(), mmio);
 		}
+		// close any mipmap pack files, compacting them if necessary
+		if (null != dir_mipmaps) PackFile.close(dir_mipmaps);
+		// and the feature and point match pack files, and those of layer renders
+		PackFile.close(getUNUIdFolder() + PackedFeatures.DIR_NAME);
+		PackFile.close(getUNUIdFolder() + PackedLayerRenders.DIR_NAME);
 		//
 		// remove empty trakem2.mipmaps folder if any
 		if (null != dir_mipmaps && !dir_mipmaps.equals(dir_storage)) {
@@ -445,6 +491,8 @@ public final class FSLoader extends Loader {
 			if (null != dir_masks) Utils.removePrefixedFiles(f, "trakem2.masks", null);
 			Utils.removePrefixedFiles(f, "features.ser", null);
 			Utils.removePrefixedFiles(f, "pointmatches.ser", null);
+			Utils.removePrefixedFiles(f, "features.pak", null);
+			Utils.removePrefixedFiles(f, "layer_renders.pak", null);
 			// Only if empty:
 			if (f.isDirectory()) {
 				try {
@@ -724,6 +772,7 @@ public final class FSLoader extends Loader {
 	 * Always returns true. Does not check if another object has the same id.
 	 */
 	public boolean addToDatabase(final DBObject ob) {
+		journal.added(ob);
 		synchronized (db_lock) {
 			setChanged(true);
 			final long id = ob.getId();
@@ -746,6 +795,7 @@ public final class FSLoader extends Loader {
 	public boolean updateInDatabase(final DBObject ob, final String key) {
 		// Should only be GUI-driven
 		setChanged(true);
+		journal.updated(ob, key);
 		//
 		if (ob.getClass() == Patch.class) {
 			Patch p = (Patch)ob;
@@ -757,6 +807,7 @@ public final class FSLoader extends Loader {
 	public boolean updateInDatabase(final DBObject ob, final Set<String> keys) {
 		// Should only be GUI-driven
 		setChanged(true);
+		journal.updated(ob, keys);
 		if (ob.getClass() == Patch.class) {
 			Patch p = (Patch)ob;
 			if (keys.contains("tiff_working")) return null != setImageFile(p, fetchImagePlus(p));
@@ -764,7 +815,14 @@ public final class FSLoader extends Loader {
 		return true;
 	}
 
+	@Override
+	public void dataChanged(final Displayable d) {
+		setChanged(true);
+		journal.updated(d, "data");
+	}
+
 	public boolean removeFromDatabase(final DBObject ob) {
+		journal.removed(ob);
 		synchronized (db_lock) {
 			setChanged(true);
 			// remove from the hashtable
@@ -1017,16 +1075,29 @@ public final class FSLoader extends Loader {
 	public String save(final Project project, XMLOptions options) {
 		String result = null;
 		if (null == project_file_path) {
+			final Journal.Batch batch = journal.drain();
 			String xml_path = super.saveAs(project, null, options);
-			if (null == xml_path) return null;
-			else {
+			if (null == xml_path) {
+				journal.restore(batch);
+				return null;
+			} else {
 				this.project_file_path = xml_path;
+				journal.reset(project, new File(xml_path));
 				ControlWindow.updateTitle(project);
 				result = this.project_file_path;
 			}
 		} else {
 			File fxml = new File(project_file_path);
-			result = super.export(project, fxml, options);
+			if (project.getBooleanProperty("incremental_save") && journal.append(project, fxml, options)) {
+				setChanged(false);
+				result = project_file_path;
+			} else {
+				// Write the whole XML file, folding the journal into it
+				final Journal.Batch batch = journal.drain();
+				result = super.export(project, fxml, options);
+				if (null == result) journal.restore(batch);
+				else journal.reset(project, fxml);
+			}
 		}
 		if (null != result) {
 			Utils.logAll(Utils.now() + " Saved " + project);
@@ -1038,10 +1109,14 @@ public final class FSLoader extends Loader {
 	/** The saveAs called from menus via saveTask. */
 	@Override
 	public String saveAs(Project project, XMLOptions options) {
+		final Journal.Batch batch = journal.drain();
 		String path = super.saveAs(project, null, options);
-		if (null != path) {
+		if (null == path) {
+			journal.restore(batch);
+		} else {
 			// update the xml path to point to the new one
 			this.project_file_path = path;
+			journal.reset(project, new File(path));
 			Utils.log2("After saveAs, new xml path is: " + path);
 			touched_mipmaps.clear();
 		}
@@ -1087,9 +1162,13 @@ public final class FSLoader extends Loader {
 			}
 		}
 		Project project = Project.findProject(this);
+		final Journal.Batch batch = journal.drain();
 		path2 = super.saveAs(project, path2, options);
-		if (null != path2) {
+		if (null == path2) {
+			journal.restore(batch);
+		} else {
 			project_file_path = path2;
+			journal.reset(project, new File(path2));
 			Utils.logAll("After saveAs, new xml path is: " + path2);
 			ControlWindow.updateTitle(project);
 			touched_mipmaps.clear();
@@ -1511,15 +1590,6 @@ public final class FSLoader extends Loader {
 		return thresholded;
 	}
 	
-	/** WARNING will resize the FloatProcessorT2 source in place, unlike ImageJ standard FloatProcessor class. */
-	static final private byte[] gaussianBlurResizeInHalf(final FloatProcessorT2 source)
-	{
-		new GaussianBlur().blurFloat( source, SIGMA_2, SIGMA_2, 0.01 );
-		source.halfSizeInPlace();
-		
-		return (byte[])source.convertToByte(false).getPixels(); // no scaling
-	}
-
 	/** Queue/unqueue for mipmap removal on shutdown without saving;
 	 * the {@code yes}, when true, makes the {@code p} be queued,
 	 * and when false, be removed from the queue. */
@@ -1549,6 +1619,12 @@ public final class FSLoader extends Loader {
 	 * </p>
 	 */
 	protected boolean generateMipMaps(final Patch patch) {
+		return generateMipMaps(patch, null);
+	}
+
+	/** Like {@link #generateMipMaps(Patch)}, but when {@code writes} is not null, mipmap files are written
+	 *  in the write stage of the {@link MipMapScheduler}, and the mipmaps count as regenerated only once all are written. */
+	private final boolean generateMipMaps(final Patch patch, final MipMapScheduler.Writes writes) {
 		Utils.log2("mipmaps for " + patch);
 		final String path = getAbsolutePath(patch);
 		if (null == path) {
@@ -1676,7 +1752,7 @@ public final class FSLoader extends Loader {
 						// Ignore level i
 						if (null != b[i]) CachingThread.storeForReuse(b[i].c);
 					} else {
-						boolean written = mmio.save(getLevelDir(dir_mipmaps, i) + filename, b[i].c, b[i].width, b[i].height, 0.85f);
+						boolean written = saveMipMap(writes, getLevelDir(dir_mipmaps, i) + filename, b[i].c, b[i].width, b[i].height);
 						if (!written) {
 							Utils.log("Failed to save mipmap with area downsampling at level=" + i + " for patch " + patch);
 							cannot_regenerate.add(patch);
@@ -1685,24 +1761,24 @@ public final class FSLoader extends Loader {
 					}
 				}
 				long t2 = System.currentTimeMillis();
-				System.out.println("MipMaps with area downsampling: creation took " + (t1 - t0) + "ms, saving took " + (t2 - t1) + "ms, total: " + (t2 - t0) + "ms\n");
+				Utils.log2("MipMaps with area downsampling: creation took " + (t1 - t0) + "ms, " + (null == writes ? "saving" : "queueing for writing") + " took " + (t2 - t1) + "ms, total: " + (t2 - t0) + "ms");
 			} else if (Loader.GAUSSIAN == resizing_mode) {
 				if (ImagePlus.COLOR_RGB == type) {
 					// TODO releaseToFit proper
 					releaseToFit(w * h * 4 * 10);
 					final ColorProcessor cp = (ColorProcessor)ip;
-					final FloatProcessorT2 red = new FloatProcessorT2(w, h, 0, 255);   cp.toFloat(0, red);
-					final FloatProcessorT2 green = new FloatProcessorT2(w, h, 0, 255); cp.toFloat(1, green);
-					final FloatProcessorT2 blue = new FloatProcessorT2(w, h, 0, 255);  cp.toFloat(2, blue);
-					FloatProcessorT2 alpha;
-					final FloatProcessorT2 outside;
+					final GaussianMipMaps.Channel red = new GaussianMipMaps.Channel(cp, 0),
+					                              green = new GaussianMipMaps.Channel(cp, 1),
+					                              blue = new GaussianMipMaps.Channel(cp, 2);
+					GaussianMipMaps.Channel alpha;
+					final GaussianMipMaps.Channel outside;
 					if (null != alpha_mask) {
-						alpha = new FloatProcessorT2(alpha_mask);
+						alpha = new GaussianMipMaps.Channel(alpha_mask);
 					} else {
 						alpha = null;
 					}
 					if (null != outside_mask) {
-						outside = new FloatProcessorT2(outside_mask);
+						outside = new GaussianMipMaps.Channel(outside_mask);
 						if ( null == alpha ) {
 							alpha = outside;
 							alpha_mask = outside_mask;
@@ -1719,13 +1795,13 @@ public final class FSLoader extends Loader {
 					if (0 == first_mipmap_level_saved) {
 						boolean written;
 						if (null == alpha) {
-							written = mmio.save(cp, target_dir0 + filename, 0.85f, false);
+							written = saveMipMap(writes, cp, target_dir0 + filename);
 						} else {
-							written = mmio.save(target_dir0 + filename,
+							written = saveMipMap(writes, target_dir0 + filename,
 									P.asRGBABytes((int[])cp.getPixels(),
 									(byte[])alpha_mask.getPixels(),
 									null == outside ? null : (byte[])outside_mask.getPixels()),
-									w, h, 0.85f);
+									w, h);
 						}
 						if (!written) {
 							Utils.log("Failed to save mipmap for COLOR_RGB, 'alpha = " + alpha + "', level = 0  for  patch " + patch);
@@ -1742,41 +1818,40 @@ public final class FSLoader extends Loader {
 						// 2 - Check that the target folder for the desired scale exists
 						final String target_dir = getLevelDir(dir_mipmaps, k);
 						if (null == target_dir) break;
-						// 3 - Blur the previous image to 0.75 sigma, and scale it
-						final byte[] r = gaussianBlurResizeInHalf(red);   // will resize 'red' FloatProcessor in place.
-						final byte[] g = gaussianBlurResizeInHalf(green); // idem
-						final byte[] b = gaussianBlurResizeInHalf(blue);  // idem
-						final byte[] a = null == alpha ? null : gaussianBlurResizeInHalf(alpha); // idem
-						if ( null != outside ) {
-							final byte[] o;
-							if (alpha != outside)
-								o = gaussianBlurResizeInHalf(outside); // idem
-							else
-								o = a;
-							// Remove all not completely inside pixels from the alphamask
-							// If there was no alpha mask, alpha is the outside itself
-							for (int i=0; i<o.length; i++) {
-								if ( (o[i]&0xff) != 255 ) a[i] = 0; // TODO I am sure there is a bitwise operation to do this in one step. Some thing like: a[i] &= 127;
-							}
-						}
+						// 3 - Blur the previous image to 0.75 sigma, and scale it: all channels at once, in place
+						GaussianMipMaps.halve(red, green, blue, alpha, alpha != outside ? outside : null);
 
 						w = red.getWidth();
 						h = red.getHeight();
 
-						// 4 - Compose ColorProcessor
-						if (first_mipmap_level_saved < k) {
+						if (k < first_mipmap_level_saved) {
 							// Skip saving this mipmap level
 							continue;
 						}
+
+						// 4 - Compose channels
+						final byte[] r = red.getBytePixels(),
+						             g = green.getBytePixels(),
+						             b = blue.getBytePixels();
+						final byte[] a = null == alpha ? null : alpha.getBytePixels();
+						if ( null != outside ) {
+							final byte[] o = alpha != outside ? outside.getBytePixels() : a;
+							// Remove all not completely inside pixels from the alphamask
+							// If there was no alpha mask, alpha is the outside itself
+							for (int i=0; i<o.length; i++) {
+								if ( (o[i]&0xff) != 255 ) a[i] = 0;
+							}
+						}
+
 						if (null == alpha) {
 							// 5 - Save as jpeg
-							if (!mmio.save(target_dir + filename, new byte[][]{r, g, b}, w, h, 0.85f)) {
+							if (!saveMipMap(writes, target_dir + filename, new byte[][]{r, g, b}, w, h)) {
 								Utils.log("Failed to save mipmap for COLOR_RGB, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
 								cannot_regenerate.add(patch);
 								break;
 							}
 						} else {
-							if (!mmio.save(target_dir + filename, new byte[][]{r, g, b, a}, w, h, 0.85f)) {
+							if (!saveMipMap(writes, target_dir + filename, new byte[][]{r, g, b, a}, w, h)) {
 								Utils.log("Failed to save mipmap for COLOR_RGB, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
 								cannot_regenerate.add(patch);
 								break;
@@ -1790,23 +1865,26 @@ public final class FSLoader extends Loader {
 
 					if (Thread.currentThread().isInterrupted()) return false;
 
-					final FloatProcessorT2 fp = new FloatProcessorT2((FloatProcessor) ip.convertToFloat());
+					// Shares the pixels of ip when it is a FloatProcessor: the channel leaves them untouched
+					final GaussianMipMaps.Channel fp = new GaussianMipMaps.Channel((float[]) ip.convertToFloat().getPixels(), w, h);
+					final double fmin, fmax;
 					if (ImagePlus.GRAY8 == type) {
-						// for 8-bit, the min,max has been applied when going to FloatProcessor
-						fp.setMinMax(0, 255); // just set it
+						// for 8-bit, the min,max has been applied when going to float
+						fmin = 0;
+						fmax = 255;
 					} else {
-						fp.setMinAndMax(patch.getMin(), patch.getMax());
+						fmin = patch.getMin();
+						fmax = patch.getMax();
 					}
-					//fp.debugMinMax(patch.toString());
 
-					FloatProcessorT2 alpha, outside;
+					GaussianMipMaps.Channel alpha, outside;
 					if (null != alpha_mask) {
-						alpha = new FloatProcessorT2(alpha_mask);
+						alpha = new GaussianMipMaps.Channel(alpha_mask);
 					} else {
 						alpha = null;
 					}
 					if (null != outside_mask) {
-						outside = new FloatProcessorT2(outside_mask);
+						outside = new GaussianMipMaps.Channel(outside_mask);
 						if (null == alpha) {
 							alpha = outside;
 							alpha_mask = outside_mask;
@@ -1820,13 +1898,8 @@ public final class FSLoader extends Loader {
 						if (Thread.currentThread().isInterrupted()) return false;
 
 						if (0 != k) { // not doing so at the end because it would add one unnecessary blurring
-							gaussianBlurResizeInHalf( fp );
-							if (null != alpha) {
-								gaussianBlurResizeInHalf( alpha );
-								if (alpha != outside && outside != null) {
-									gaussianBlurResizeInHalf( outside );
-								}
-							}
+							// image and masks at once, in place
+							GaussianMipMaps.halve(fp, alpha, alpha != outside ? outside : null);
 						}
 
 						w = fp.getWidth();
@@ -1845,14 +1918,14 @@ public final class FSLoader extends Loader {
 							// 3 - save as jpeg with alpha
 							// Remove all not completely inside pixels from the alpha mask
 							// If there was no alpha mask, alpha is the outside itself
-							if (!mmio.save(target_dir + filename, new byte[][]{fp.getScaledBytePixels(), P.merge(alpha.getBytePixels(), null == outside ? null : outside.getBytePixels())}, w, h, 0.85f)) {
+							if (!saveMipMap(writes, target_dir + filename, new byte[][]{fp.getScaledBytePixels(fmin, fmax), P.merge(alpha.getBytePixels(), null == outside ? null : outside.getBytePixels())}, w, h)) {
 								Utils.log("Failed to save mipmap for GRAY8, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
 								cannot_regenerate.add(patch);
 								break;
 							}
 						} else {
 							// 3 - save as 8-bit jpeg
-							if (!mmio.save(target_dir + filename, new byte[][]{fp.getScaledBytePixels()}, w, h, 0.85f)) {
+							if (!saveMipMap(writes, target_dir + filename, new byte[][]{fp.getScaledBytePixels(fmin, fmax)}, w, h)) {
 								Utils.log("Failed to save mipmap for GRAY8, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
 								cannot_regenerate.add(patch);
 								break;
@@ -1877,135 +1950,85 @@ public final class FSLoader extends Loader {
 			cannot_regenerate.add(patch);
 			return false;
 		} finally {
+			final Runnable done = new Runnable() {
+				@Override
+				public void run() {
+					if (null != writes && writes.hasFailed()) {
+						Utils.log("Failed to write mipmaps for patch " + patch);
+						cannot_regenerate.add(patch);
+					}
+					mipMapsDone(patch, alpha_mask_id);
+				}
+			};
+			if (null == writes) done.run();
+			else writes.whenDone(done); // after the last write
+		}
+	}
 
-			// flush any cached tiles
-			flushMipMaps(patch.getId());
+	private final void mipMapsDone(final Patch patch, final long alpha_mask_id) {
+		// flush any cached tiles
+		flushMipMaps(patch.getId());
 
-			// flush any cached layer screenshots
-			if (null != patch.getLayer()) {
-				try { patch.getLayer().getParent().removeFromOffscreens(patch.getLayer()); } catch (Exception e) { IJError.print(e); }
-			}
+		// flush any cached layer screenshots
+		if (null != patch.getLayer()) {
+			try { patch.getLayer().getParent().removeFromOffscreens(patch.getLayer()); } catch (Exception e) { IJError.print(e); }
+		}
 
-			// gets executed even when returning from the catch statement or within the try/catch block
-			synchronized (gm_lock) {
-				regenerating_mipmaps.remove(patch);
-			}
+		// gets executed even when returning from the catch statement or within the try/catch block
+		synchronized (gm_lock) {
+			regenerating_mipmaps.remove(patch);
+		}
 
-			// Has the alpha mask changed?
-			if (patch.getAlphaMaskId() != alpha_mask_id) {
-				Utils.log2("Alpha mask changed: resubmitting mipmap regeneration for " + patch);
-				regenerateMipMaps(patch);
-			}
+		// Has the alpha mask changed?
+		if (patch.getAlphaMaskId() != alpha_mask_id) {
+			Utils.log2("Alpha mask changed: resubmitting mipmap regeneration for " + patch);
+			regenerateMipMaps(patch);
 		}
 	}
 
-
-	/** Remove the file, if it exists, with serialized features for patch.
-	 * Returns true when no such file or on success; false otherwise. */
-	public boolean removeSerializedFeatures(final Patch patch) {
-		final File f = new File(new StringBuilder(getUNUIdFolder()).append("features.ser/").append(FSLoader.createIdPath(Long.toString(patch.getId()), "features", ".ser")).toString());
-		if (f.exists()) {
-			try {
-				return f.delete();
-			} catch (Exception e) {
-				IJError.print(e);
+	/** Save a mipmap file now, or, when @param writes is not null, queue it for the write stage,
+	 *  in which case the returned value is true and a failure fails the regeneration as a whole.
+	 *  The @param b arrays must not be modified afterwards. */
+	private final boolean saveMipMap(final MipMapScheduler.Writes writes, final String path, final byte[][] b, final int width, final int height) throws InterruptedException {
+		if (null == writes) return mmio.save(path, b, width, height, 0.85f);
+		final RWImage io = mmio; // the format in use when computed
+		writes.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				if (io.save(path, b, width, height, 0.85f)) return true;
+				Utils.log("Failed to save mipmap " + path);
 				return false;
 			}
-		} else return true;
+		}, (long)width * height * b.length);
+		return true;
 	}
 
-	/** Remove the file, if it exists, with serialized point matches for patch.
-	 * Returns true when no such file or on success; false otherwise. */
-	public boolean removeSerializedPointMatches(final Patch patch) {
-		final String ser = new StringBuilder(getUNUIdFolder()).append("pointmatches.ser/").toString();
-		final File fser = new File(ser);
-
-		if (!fser.exists() || !fser.isDirectory()) return true;
-
-		boolean success = true;
-		final String sid = Long.toString(patch.getId());
+	/** Like {@link #saveMipMap(MipMapScheduler.Writes, String, byte[][], int, int)}, for an image that must not be modified afterwards. */
+	private final boolean saveMipMap(final MipMapScheduler.Writes writes, final ImageProcessor ip, final String path) throws InterruptedException {
+		if (null == writes) return mmio.save(ip, path, 0.85f, false);
+		final RWImage io = mmio;
+		writes.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				if (io.save(ip, path, 0.85f, false)) return true;
+				Utils.log("Failed to save mipmap " + path);
+				return false;
+			}
+		}, (long)ip.getWidth() * ip.getHeight() * 4);
+		return true;
+	}
 
-		final ArrayList<String> removed_paths = new ArrayList<String>();
 
-		// 1 - Remove all files with <p1.id>_<p2.id>:
-		if (sid.length() < 2) {
-			// Delete all files starting with sid + '_' and present directly under fser
-			success = Utils.removePrefixedFiles(fser, sid + "_", removed_paths);
-		} else {
-			final String sid_ = sid + "_"; // minimal 2 length: a number and the underscore
-			final int len = sid_.length();
-			final StringBuilder dd = new StringBuilder();
-			for (int i=1; i<=len; i++) {
-				dd.append(sid_.charAt(i-1));
-				if (0 == i % 2 && len != i) dd.append('/');
-			}
-			final String med = dd.toString();
-			final int last_slash = med.lastIndexOf('/');
-			final File med_parent = new File(ser + med.substring(0, last_slash+1));
-			// case of 12/34/_*    ---> use prefix: "_"
-			// case of 12/34/5_/*  ---> use prefix: last number plus underscore, aka: med.substring(med.length()-2);
-			success = Utils.removePrefixedFiles(med_parent, 
-							    last_slash == med.length() -2 ? "_" : med.substring(med.length() -2),
-							    removed_paths);
-		}
-
-		// 2 - For each removed path, find the complementary: <*>_<p1.id>
-		for (String path : removed_paths) {
-			if (IJ.isWindows()) path = path.replace('\\', '/');
-			File f = new File(path);
-			// Check that its a pointmatches file
-			int idot = path.lastIndexOf(".pointmatches.ser");
-			if (idot < 0) {
-				Utils.log2("Not a pointmatches.ser file: can't process " + path);
-				continue;
-			}
-
-			// Find the root
-			int ifolder = path.indexOf("pointmatches.ser/");
-			if (ifolder < 0) {
-				Utils.log2("Not in pointmatches.ser/ folder:" + path);
-				continue;
-			}
-			String dir = path.substring(0, ifolder + 17);
-
-			// Cut the beginning and the end
-			String name = path.substring(dir.length(), idot);
-			Utils.log2("name: " + name);
-			// Remove all path separators
-			name = name.replaceAll("/", "");
-
-			int iunderscore = name.indexOf('_');
-			if (-1 == iunderscore) {
-				Utils.log2("No underscore: can't process " + path);
-				continue;
-			}
-			name = FSLoader.createIdPath(new StringBuilder().append(name.substring(iunderscore+1)).append('_').append(name.substring(0, iunderscore)).toString(), "pointmatches", ".ser");
-
-			f = new File(dir + name);
-			if (f.exists()) {
-				if (!f.delete()) {
-					Utils.log2("Could not delete " + f.getAbsolutePath());
-					success = false;
-				} else {
-					Utils.log2("Deleted pointmatches file " + name);
-					// Now remove its parent directories within pointmatches.ser/ directory, if they are empty
-					int islash = name.lastIndexOf('/');
-					String dirname = name;
-					while (islash > -1) {
-						dirname = dirname.substring(0, islash);
-						if (!Utils.removeFile(new File(dir + dirname))) {
-							// directory not empty
-							break;
-						}
-						islash = dirname.lastIndexOf('/');
-					}
-				}
-			} else {
-				Utils.log2("File does not exist: " + dir + name);
-			}
-		}
+	/** Remove the features, if any, stored for patch.
+	 * Returns true when none or on success; false otherwise. */
+	public boolean removeSerializedFeatures(final Patch patch) {
+		return PackedFeatures.removeFeatures(getUNUIdFolder() + PackedFeatures.DIR_NAME, patch.getId());
+	}
 
-		return success;
+	/** Remove the point matches, if any, stored for patch and any other, in both directions.
+	 * Returns true when none or on success; false otherwise. */
+	public boolean removeSerializedPointMatches(final Patch patch) {
+		return PackedFeatures.removePointMatches(getUNUIdFolder() + PackedFeatures.DIR_NAME, patch.getId());
 	}
 
 	/** Generate image pyramids and store them into files under the dir_mipmaps for each Patch object in the Project. The method is multithreaded, using as many processors as available to the JVM.
@@ -2035,12 +2058,12 @@ public final class FSLoader extends Loader {
 							int w = (int)pa.getWidth();
 							int h = (int)pa.getHeight();
 							int level = 0;
-							final String filename = new File(getAbsolutePath(pa)).getName() + "." + pa.getId() + mExt;
+							final String filename = createMipMapRelPath(pa, mExt);
 							do {
 								w /= 2;
 								h /= 2;
 								level++;
-								if (!new File(dir_mipmaps + level + "/" + filename).exists()) {
+								if (!mmio.exists(dir_mipmaps + level + "/" + filename)) {
 									ow = true;
 									break;
 								}
@@ -2229,10 +2252,10 @@ public final class FSLoader extends Loader {
 
 	/** Gets data from the Patch and queues a new task to do the file removal in a separate task manager thread. */
 	public Future<Boolean> removeMipMaps(final Patch p) {
-		return removeMipMaps(p, mExt);
+		return removeMipMaps(p, mExt, mmio);
 	}
 
-	private Future<Boolean> removeMipMaps(final Patch p, final String extension) {
+	private Future<Boolean> removeMipMaps(final Patch p, final String extension, final RWImage rw) {
 		if (null == dir_mipmaps) return null;
 		// cache values before they are changed:
 		final int width = (int)p.getWidth();
@@ -2246,7 +2269,7 @@ public final class FSLoader extends Loader {
 						Utils.log2("Remover: null path for Patch " + p);
 						return false;
 					}
-					removeMipMaps(createIdPath(Long.toString(p.getId()), new File(path).getName(), extension), width, height);
+					removeMipMaps(createIdPath(Long.toString(p.getId()), new File(path).getName(), extension), width, height, rw);
 					flushMipMaps(p.getId());
 					return true;
 				} catch (Exception e) {
@@ -2257,21 +2280,12 @@ public final class FSLoader extends Loader {
 		});
 	}
 
-	private void removeMipMaps(final String filename, final int width, final int height) {
+	private void removeMipMaps(final String filename, final int width, final int height, final RWImage rw) {
 		int w = width;
 		int h = height;
 		int k = 0; // the level
 		do {
-			final File f = new File(new StringBuilder(dir_mipmaps).append(k).append('/').append(filename).toString());
-			if (f.exists()) {
-				try {
-					if (!f.delete()) {
-						Utils.log2("Could not remove file " + f.getAbsolutePath());
-					}
-				} catch (Exception e) {
-					IJError.print(e);
-				}
-			}
+			rw.remove(new StringBuilder(dir_mipmaps).append(k).append('/').append(filename).toString());
 			w /= 2;
 			h /= 2;
 			k++;
@@ -2301,8 +2315,7 @@ public final class FSLoader extends Loader {
 				return level;
 			} else {
 				do {
-					final File f = new File(new StringBuilder(dir_mipmaps).append(level).append('/').append(filename).toString());
-					if (f.exists()) {
+					if (mmio.exists(new StringBuilder(dir_mipmaps).append(level).append('/').append(filename).toString())) {
 						return level;
 					}
 					// try the next level
@@ -2327,7 +2340,7 @@ public final class FSLoader extends Loader {
 		if (null == dir_mipmaps) return false;
 		final int level = getMipMapLevel(magnification, maxDim(p));
 		if (isURL(dir_mipmaps)) return true; // just assume that it does
-		if (new File(dir_mipmaps + level + "/" + new File(getAbsolutePath(p)).getName() + "." + p.getId() + mExt).exists()) return true;
+		if (mmio.exists(dir_mipmaps + level + "/" + createMipMapRelPath(p, mExt))) return true;
 		return false;
 	}
 
@@ -2433,7 +2446,7 @@ public final class FSLoader extends Loader {
 	}
 
 	static private AtomicInteger n_regenerating = new AtomicInteger(0);
-	static private ExecutorService regenerator = null;
+	static private MipMapScheduler regenerator = null;
 	static private ExecutorService remover = null;
 	static public ExecutorService repainter = null;
 	static private int nStaticServiceThreads = nStaticServiceThreads();
@@ -2479,7 +2492,11 @@ public final class FSLoader extends Loader {
 		synchronized (gm_lock) {
 			try {
 				Future<Boolean> fu = regenerating_mipmaps.get(patch);
-				if (null != fu) return fu;
+				if (null != fu) {
+					// Asked for again, likely because it is being painted
+					regenerator.promote(fu, patch);
+					return fu;
+				}
 
 				// else, start it
 
@@ -2491,24 +2508,32 @@ public final class FSLoader extends Loader {
 				//Utils.log2("calling removeMipMaps from regenerateMipMaps");
 				final Future<Boolean> removing = removeMipMaps(patch);
 
-				fu = regenerator.submit(new Callable<Boolean>() {
-					public Boolean call() {
+				fu = regenerator.submit(new MipMapScheduler.Job() {
+					@Override
+					public boolean run(final MipMapScheduler.Writes writes) {
 						boolean b = false;
 						try {
 							// synchronize with the removal:
 							if (null != removing) removing.get();
 							Utils.showStatus(new StringBuilder("Regenerating mipmaps (").append(n_regenerating.get()).append(" to go)").toString());
-							b = generateMipMaps(patch); // will remove the Future from the regenerating_mipmaps table, under proper gm_lock synchronization
-							Display.repaint(patch.getLayer());
-							Display.updatePanel(patch.getLayer(), patch);
-							Utils.showStatus("");
+							b = generateMipMaps(patch, writes); // will remove the Future from the regenerating_mipmaps table, under proper gm_lock synchronization
 						} catch (Exception e) {
 							IJError.print(e);
+						} finally {
+							// Once written, not merely computed, and after generateMipMaps has flushed the cached mipmaps:
+							writes.whenDone(new Runnable() {
+								@Override
+								public void run() {
+									Display.repaint(patch.getLayer());
+									Display.updatePanel(patch.getLayer(), patch);
+									n_regenerating.decrementAndGet();
+									Utils.showStatus(0 == n_regenerating.get() ? "" : new StringBuilder("Regenerating mipmaps (").append(regenerator).append(')').toString());
+								}
+							});
 						}
-						n_regenerating.decrementAndGet();
 						return b;
 					}
-				});
+				}, patch);
 
 				regenerating_mipmaps.put(patch, fu);
 
@@ -2844,14 +2869,16 @@ public final class FSLoader extends Loader {
 	////////////////////
 
 
-	static final public String[] MIPMAP_FORMATS = new String[]{".jpg", ".png", ".tif", ".raw", ".rag"};
+	static final public String[] MIPMAP_FORMATS = new String[]{".jpg", ".png", ".tif", ".raw", ".rag", ".pak"};
 	static public final int MIPMAP_JPEG = 0;
 	static public final int MIPMAP_PNG = 1;
 	static public final int MIPMAP_TIFF = 2;
 	static public final int MIPMAP_RAW = 3;
 	static public final int MIPMAP_RAG = 4;
+	/** Like {@link #MIPMAP_RAG}, but all mipmaps of a level are packed into a single file: see {@link PackedMipMaps}. */
+	static public final int MIPMAP_PACK = 5;
 
-	static private final int MIPMAP_HIGHEST = MIPMAP_RAG; // WARNING: update this value if other formats are added
+	static private final int MIPMAP_HIGHEST = MIPMAP_PACK; // WARNING: update this value if other formats are added
 
 	// Default: RAG
 	private int mipmaps_format = MIPMAP_RAG;
@@ -2859,7 +2886,11 @@ public final class FSLoader extends Loader {
 	private RWImage mmio = new RWImageRag();
 
 	private RWImage newMipMapRWImage() {
-		switch (this.mipmaps_format) {
+		return newMipMapRWImage(this.mipmaps_format);
+	}
+
+	private RWImage newMipMapRWImage(final int format) {
+		switch (format) {
 			case MIPMAP_JPEG:
 				return new RWImageJPG();
 			case MIPMAP_PNG:
@@ -2870,13 +2901,15 @@ public final class FSLoader extends Loader {
 				return new RWImageRaw();
 			case MIPMAP_RAG:
 				return new RWImageRag();
+			case MIPMAP_PACK:
+				return new RWImagePack();
 			// WARNING add here another one
 		}
 		return null;
 	}
 
 	/** Any of: {@link #MIPMAP_JPEG}, {@link #MIPMAP_PNG}, {@link #MIPMAP_TIFF}, {@link #MIPMAP_RAW},
-	 * {@link #MIPMAP_RAG}. */
+	 * {@link #MIPMAP_RAG}, {@link #MIPMAP_PACK}. */
 	@Override
 	public final int getMipMapFormat() {
 		return mipmaps_format;
@@ -2890,6 +2923,7 @@ public final class FSLoader extends Loader {
 			case MIPMAP_TIFF:
 			case MIPMAP_RAW:
 			case MIPMAP_RAG:
+			case MIPMAP_PACK:
 				this.mipmaps_format = format;
 				this.mExt = MIPMAP_FORMATS[mipmaps_format];
 				this.mmio = newMipMapRWImage();
@@ -2901,7 +2935,9 @@ public final class FSLoader extends Loader {
 	}
 
 	/** Removes all mipmap files and recreates them with the currently set mipmaps format.
-	 *  @param old_format Any of MIPMAP_JPEG, MIPMAP_PNG in which files were saved before. */
+	 *  When either format is {@link #MIPMAP_PACK}, this migrates mipmaps from individual files
+	 *  into pack files or vice versa; the pack files of the old format are removed whole.
+	 *  @param old_format Any of MIPMAP_JPEG, MIPMAP_PNG, etc. in which files were saved before. */
 	@Override
 	public Bureaucrat updateMipMapsFormat(final int old_format, final int new_format) {
 		if (old_format < 0 || old_format > MIPMAP_HIGHEST) {
@@ -2917,14 +2953,21 @@ public final class FSLoader extends Loader {
 			public void exec() {
 				try {
 					final List<Future<?>> fus = new ArrayList<Future<?>>();
-					final String ext = MIPMAP_FORMATS[old_format];
-					for (Layer la : project.getRootLayerSet().getLayers()) {
-						for (Displayable p : la.getDisplayables(Patch.class)) {
-							fus.add(removeMipMaps((Patch)p, ext));
+					if (MIPMAP_PACK == old_format) {
+						// All at once: no need to append a removal record per mipmap
+						removeMipMapPacks();
+						flushMipMaps(false);
+					} else {
+						final String ext = MIPMAP_FORMATS[old_format];
+						final RWImage rw = newMipMapRWImage(old_format);
+						for (Layer la : project.getRootLayerSet().getLayers()) {
+							for (Displayable p : la.getDisplayables(Patch.class)) {
+								fus.add(removeMipMaps((Patch)p, ext, rw));
+							}
 						}
+						Utils.wait(fus);
+						fus.clear();
 					}
-					Utils.wait(fus);
-					fus.clear();
 					for (Layer la : project.getRootLayerSet().getLayers()) {
 						for (Displayable p : la.getDisplayables(Patch.class)) {
 							fus.add(regenerateMipMaps((Patch)p));
@@ -2938,6 +2981,20 @@ public final class FSLoader extends Loader {
 		}, project);
 	}
 
+	/** Delete the pack files of all levels, if any. */
+	private void removeMipMapPacks() {
+		if (null == dir_mipmaps || isURL(dir_mipmaps)) return;
+		final File[] levels = new File(dir_mipmaps).listFiles();
+		if (null == levels) return;
+		for (final File f : levels) {
+			if (!f.isDirectory() || f.isHidden()) continue;
+			final String level_dir = new StringBuilder(dir_mipmaps).append(f.getName()).append('/').toString();
+			if (!PackedMipMaps.delete(level_dir)) {
+				Utils.log2("Could not remove mipmaps pack file in " + level_dir);
+			}
+		}
+	}
+
 	private abstract class RWImage {
 		boolean save(ImageProcessor ip, final String path, final float quality, final boolean as_grey) {
 			if (as_grey) ip = ip.convertToByte(false);
@@ -2974,6 +3031,23 @@ public final class FSLoader extends Loader {
 		abstract BufferedImage open(String path);
 		/** Opens grey images or, if not grey, converts them to grey. */
 		abstract BufferedImage openGrey(String path);
+		/** Whether the image for @param path has been saved. */
+		boolean exists(final String path) {
+			return new File(path).exists();
+		}
+		/** Removes the image saved for @param path, if any. */
+		void remove(final String path) {
+			final File f = new File(path);
+			if (f.exists()) {
+				try {
+					if (!f.delete()) {
+						Utils.log2("Could not remove file " + f.getAbsolutePath());
+					}
+				} catch (Exception e) {
+					IJError.print(e);
+				}
+			}
+		}
 	}
 	private final class RWImageJPG extends RWImage {
 		@Override
@@ -3120,6 +3194,62 @@ public final class FSLoader extends Loader {
 		}
 	}
 	
+	/** Maps each path of the form {@code dir_mipmaps/<level>/<relative path>} to an entry of the {@link PackedMipMaps}
+	 *  of the level folder, with the relative path as the key. */
+	private final class RWImagePack extends RWImage {
+		/** Returns the index of the slash that ends the level folder in @param path, or -1 if not under the mipmaps folder. */
+		private final int levelEnd(final String path) {
+			final String dir = dir_mipmaps;
+			if (null == dir || !path.startsWith(dir)) return -1;
+			return path.indexOf('/', dir.length());
+		}
+		private final PackedMipMaps pack(final String path, final int i, final boolean create) {
+			if (-1 == i) {
+				Utils.log2("Not a path within the mipmaps folder: " + path);
+				return null;
+			}
+			try {
+				final String level_dir = path.substring(0, i + 1);
+				return create ? PackedMipMaps.get(level_dir) : PackedMipMaps.getIfExists(level_dir);
+			} catch (Exception e) {
+				IJError.print(e);
+				return null;
+			}
+		}
+		@Override
+		final BufferedImage open(final String path) {
+			final int i = levelEnd(path);
+			final PackedMipMaps pack = pack(path, i, false);
+			return null == pack ? null : pack.read(path.substring(i + 1));
+		}
+		@Override
+		final BufferedImage openGrey(final String path) {
+			return ImageSaver.asGrey(open(path));
+		}
+		@Override
+		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
+			try {
+				final int i = levelEnd(path);
+				final PackedMipMaps pack = pack(path, i, true);
+				return null != pack && pack.save(path.substring(i + 1), b, width, height);
+			} finally {
+				CachingThread.storeForReuse(b);
+			}
+		}
+		@Override
+		final boolean exists(final String path) {
+			final int i = levelEnd(path);
+			final PackedMipMaps pack = pack(path, i, false);
+			return null != pack && pack.contains(path.substring(i + 1));
+		}
+		@Override
+		final void remove(final String path) {
+			final int i = levelEnd(path);
+			final PackedMipMaps pack = pack(path, i, false);
+			if (null != pack) pack.remove(path.substring(i + 1));
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	protected boolean mapIntensities(final Patch p, final ImagePlus imp) {
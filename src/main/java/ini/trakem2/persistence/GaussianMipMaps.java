@@ -0,0 +1,209 @@
+package ini.trakem2.persistence;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ini.trakem2.imaging.filters.FilterChain;
+
+import java.util.ArrayList;
+
+/**
+ * Gaussian mipmap pyramids for {@link Loader#GAUSSIAN} mode, with all the channels of an image,
+ * and horizontal strips of each channel, processed in parallel.
+ *
+ * Each level is made from the previous one by blurring with a Gaussian of sigma sqrt(0.75) and picking
+ * the pixels at even coordinates, as {@link ini.trakem2.imaging.FloatProcessorT2#halfSizeInPlace()} does after a blur;
+ * but only the picked pixels are ever blurred, in two separable passes, and into buffers that are reused
+ * from one level to the next: each {@link Channel} allocates its buffers once, for the first level.
+ */
+public final class GaussianMipMaps
+{
+	/** Sigma of the Gaussian kernel for downsampling by a factor of 2. */
+	static private final double SIGMA_2 = Math.sqrt(0.75);
+
+	/** Half of the normalized Gaussian kernel, from the center outwards, with the same radius
+	 *  as ImageJ's GaussianBlur at an accuracy of 0.01. */
+	static private final float[] KERNEL = makeKernel(SIGMA_2, 0.01);
+
+	/** Rows per strip, below which a strip is not worth a task of its own. */
+	static private final int MIN_STRIP_HEIGHT = 64;
+
+	private GaussianMipMaps() {}
+
+	static private final float[] makeKernel(final double sigma, final double accuracy) {
+		final int radius = (int)Math.ceil(sigma * Math.sqrt(-2 * Math.log(accuracy))) + 1;
+		final float[] k = new float[radius];
+		double sum = 0;
+		for (int i=0; i<radius; ++i) {
+			k[i] = (float)Math.exp(-0.5 * i * i / (sigma * sigma));
+			sum += 0 == i ? k[i] : 2 * k[i];
+		}
+		for (int i=0; i<radius; ++i) k[i] /= sum;
+		return k;
+	}
+
+	/** One channel of an image, as float pixels, halved in place level after level. Not thread-safe. */
+	static public final class Channel
+	{
+		private float[] pixels;
+		/** Buffers for the horizontal pass and for the next level; allocated once. */
+		private float[] tmp = null,
+		                next = null;
+		private int width, height;
+		/** Whether {@link #pixels} may be overwritten, or was handed in by the caller and must be left as is. */
+		private boolean owned;
+
+		/** Wraps, without copying, the @param pixels, which are never modified. */
+		public Channel(final float[] pixels, final int width, final int height) {
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.owned = false;
+		}
+
+		/** @param channel 0 for red, 1 for green, 2 for blue. */
+		public Channel(final ColorProcessor cp, final int channel) {
+			this(cp.getWidth(), cp.getHeight());
+			final int[] c = (int[])cp.getPixels();
+			final int shift = 16 - 8 * channel;
+			for (int i=0; i<c.length; ++i) pixels[i] = (c[i] >> shift) & 0xff;
+		}
+
+		public Channel(final ByteProcessor bp) {
+			this(bp.getWidth(), bp.getHeight());
+			final byte[] b = (byte[])bp.getPixels();
+			for (int i=0; i<b.length; ++i) pixels[i] = b[i] & 0xff;
+		}
+
+		private Channel(final int width, final int height) {
+			this.pixels = new float[width * height];
+			this.width = width;
+			this.height = height;
+			this.owned = true;
+		}
+
+		public final int getWidth() { return width; }
+		public final int getHeight() { return height; }
+
+		/** @return The pixels rounded and clamped to [0, 255], without scaling. */
+		public final byte[] getBytePixels() {
+			final int size = width * height;
+			final byte[] b = new byte[size];
+			for (int i=0; i<size; ++i) {
+				b[i] = (byte)Math.max(0, Math.min(255, (int)(pixels[i] + 0.5f)));
+			}
+			return b;
+		}
+
+		/** @return The pixels scaled from [min, max] to [0, 255], as {@link ini.trakem2.imaging.FloatProcessorT2#getScaledBytePixels()} does. */
+		public final byte[] getScaledBytePixels(final double min, final double max) {
+			final int size = width * height;
+			final byte[] b = new byte[size];
+			final double scale = 255 / (max - min + 1);
+			for (int i=0; i<size; ++i) {
+				b[i] = (byte)Math.max(0, Math.min(255, (int)((pixels[i] - min) * scale + 0.5)));
+			}
+			return b;
+		}
+
+		private final void prepare() {
+			final int wb = (width + 1) / 2,
+			          hb = (height + 1) / 2;
+			if (null == tmp || tmp.length < wb * height) tmp = new float[wb * height];
+			if (null == next || next.length < wb * hb) next = new float[wb * hb];
+		}
+
+		/** Blur and pick the even columns of rows [y0, y1) into {@link #tmp}. */
+		private final void horizontal(final int y0, final int y1) {
+			final int wb = (width + 1) / 2,
+			          r = KERNEL.length - 1,
+			          last = width - 1;
+			for (int y=y0; y<y1; ++y) {
+				final int offset = y * width;
+				for (int xb=0, i=y*wb; xb<wb; ++xb, ++i) {
+					final int x = 2 * xb;
+					float sum = KERNEL[0] * pixels[offset + x];
+					if (x >= r && x + r <= last) {
+						for (int k=1; k<=r; ++k) sum += KERNEL[k] * (pixels[offset + x - k] + pixels[offset + x + k]);
+					} else {
+						// Near the edges, beyond which the edge pixel extends
+						for (int k=1; k<=r; ++k) {
+							sum += KERNEL[k] * (pixels[offset + Math.max(0, x - k)] + pixels[offset + Math.min(last, x + k)]);
+						}
+					}
+					tmp[i] = sum;
+				}
+			}
+		}
+
+		/** Blur the rows of {@link #tmp} and pick the even ones, for output rows [yb0, yb1), into {@link #next}. */
+		private final void vertical(final int yb0, final int yb1) {
+			final int wb = (width + 1) / 2,
+			          r = KERNEL.length - 1,
+			          last = height - 1;
+			for (int yb=yb0; yb<yb1; ++yb) {
+				final int y = 2 * yb;
+				final int o = yb * wb;
+				for (int xb=0; xb<wb; ++xb) next[o + xb] = KERNEL[0] * tmp[y * wb + xb];
+				for (int k=1; k<=r; ++k) {
+					final int up = Math.max(0, y - k) * wb,
+					          down = Math.min(last, y + k) * wb;
+					final float w = KERNEL[k];
+					for (int xb=0; xb<wb; ++xb) next[o + xb] += w * (tmp[up + xb] + tmp[down + xb]);
+				}
+			}
+		}
+
+		/** Make {@link #next} the current level. */
+		private final void swap() {
+			final float[] previous = pixels;
+			pixels = next;
+			// The previous level is large enough for all following levels, unless it belongs to the caller
+			next = owned ? previous : null;
+			owned = true;
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+		}
+	}
+
+	/** Blur each of @param channels with a Gaussian of sigma sqrt(0.75) and halve it, in place,
+	 *  all channels and strips of each in parallel. Channels may differ in dimensions; nulls are ignored. */
+	static public final void halve(final Channel... channels) {
+		final int n_threads = Runtime.getRuntime().availableProcessors();
+		final ArrayList<Runnable> horizontal = new ArrayList<Runnable>(),
+		                          vertical = new ArrayList<Runnable>();
+		for (final Channel c : channels) {
+			if (null == c) continue;
+			c.prepare();
+			final int hb = (c.height + 1) / 2,
+			          n_strips = Math.max(1, Math.min(n_threads, hb / MIN_STRIP_HEIGHT)),
+			          strip = (hb + n_strips - 1) / n_strips;
+			for (int s=0; s<n_strips; ++s) {
+				// Strips of output rows, and the input rows that each needs for the horizontal pass:
+				// split the input rows at the even row of the first output row of each strip
+				final int yb0 = s * strip,
+				          yb1 = Math.min(hb, yb0 + strip),
+				          y0 = 2 * yb0,
+				          y1 = Math.min(c.height, 2 * yb1);
+				horizontal.add(new Runnable() {
+					@Override
+					public void run() {
+						c.horizontal(y0, y1);
+					}
+				});
+				vertical.add(new Runnable() {
+					@Override
+					public void run() {
+						c.vertical(yb0, yb1);
+					}
+				});
+			}
+		}
+		if (horizontal.isEmpty()) return;
+		// All rows of the horizontal pass must be done before any vertical pass reads across strips
+		FilterChain.runAll(horizontal.toArray(new Runnable[horizontal.size()]));
+		FilterChain.runAll(vertical.toArray(new Runnable[vertical.size()]));
+		for (final Channel c : channels) {
+			if (null != c) c.swap();
+		}
+	}
+}
@@ -0,0 +1,346 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.Project;
+import ini.trakem2.display.Display;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Tree;
+import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** A sidecar log of the {@link Displayable} objects that changed since the XML file of a project was last written,
+ * so that saving a large project doesn't have to rewrite the whole XML file every time.
+ *
+ * The {@link FSLoader} database hooks record which objects changed, and {@link #append(Project, File, XMLOptions)}
+ * writes the XML of each, or a mark for those that were removed, at the end of the journal file,
+ * which lives next to the XML file and is named like it plus ".journal".
+ * Changes to anything other than a Displayable (a Layer, a LayerSet, the project tree, the project properties),
+ * or to the stacking order, can't be journaled: they require writing the whole XML file again,
+ * which folds the journal into it and deletes the journal. So does a journal that grew larger than a quarter of the XML file.
+ * Changes to {@link Display} windows are not journaled; they are saved along with the next whole XML file.
+ * Edits to the nodes of {@link Tree}s don't go through the database hooks: instead, each tree reports them
+ * with {@link Loader#dataChanged(Displayable)} from where it updates its table of nodes.
+ *
+ * When opening the project, the {@link TMLHandler} replays the journal: each journaled object replaces the one with the same id.
+ *
+ * Each save appends a batch of records ended by a commit mark; a batch that wasn't fully written is ignored and later overwritten.
+ * The header stores the length and modification time of the XML file the journal applies to,
+ * so that a journal left behind by another version of the XML file is ignored.
+ */
+final class Journal
+{
+	static private final int MAGIC = 0x54324a4c; // "T2JL"
+	static private final int VERSION = 1;
+	static private final int HEADER_SIZE = 4 + 4 + 8 + 8;
+	static private final byte PUT = 1, REMOVE = 2, COMMIT = 3;
+	/** Journals smaller than this are never compacted, regardless of the size of the XML file. */
+	static private final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+	/** The last journaled state of an object. */
+	static final class Entry {
+		final long id;
+		/** The id of the Layer, or for a ZDisplayable the LayerSet, that contains the object. */
+		final long parent_id;
+		/** The XML of the object, or null if it was removed. */
+		final String xml;
+
+		private Entry(final long id, final long parent_id, final String xml) {
+			this.id = id;
+			this.parent_id = parent_id;
+			this.xml = xml;
+		}
+	}
+
+	/** The changes recorded since the last save. */
+	static final class Batch {
+		private final HashMap<Long,Displayable> changed;
+		private final HashSet<Long> removed;
+		private final boolean structural;
+
+		private Batch(final HashMap<Long,Displayable> changed, final HashSet<Long> removed, final boolean structural) {
+			this.changed = changed;
+			this.removed = removed;
+			this.structural = structural;
+		}
+	}
+
+	/** Journalable objects that changed since the last save, by id. */
+	private HashMap<Long,Displayable> changed = new HashMap<Long,Displayable>();
+	/** Ids of journalable objects removed since the last save. */
+	private HashSet<Long> removed = new HashSet<Long>();
+	/** Whether anything that can't be journaled changed since the last save. */
+	private boolean structural = false;
+	/** Changes are not recorded while the XML file is being parsed. */
+	private boolean recording = true;
+
+	/** The XML file and its journal file, or null if the project hasn't been saved to a local file. */
+	private File xml = null, file = null;
+	/** Length and modification time of the XML file that the journal applies to. */
+	private long xml_length = -1, xml_time = -1;
+	/** Length of the journal file up to its last complete batch; zero if there isn't a journal file that applies to the XML file. */
+	private long length = 0;
+	/** The project properties and loader options as of the last save, which are written only with the whole XML file. */
+	private String settings = null;
+
+	static private final File journalFile(final File fxml) {
+		return new File(fxml.getAbsolutePath() + ".journal");
+	}
+
+	static private final boolean isIgnored(final DBObject ob) {
+		return ob instanceof Display;
+	}
+
+	static private final boolean isJournalable(final DBObject ob) {
+		return ob instanceof Displayable && !(ob instanceof LayerSet);
+	}
+
+	static private final String settings(final Project project) {
+		final StringBuilder sb = new StringBuilder();
+		project.getLoader().insertXMLOptions(sb, "");
+		sb.append(project.getTitle()).append('\n')
+		  .append(new TreeMap<String,String>(project.getPropertiesCopy())).append('\n')
+		  .append(project.getMipMapsMode()).append(' ').append(project.getFirstMipMapLevelSaved());
+		return sb.toString();
+	}
+
+	synchronized void added(final DBObject ob) {
+		if (!recording || isIgnored(ob)) return;
+		if (isJournalable(ob)) {
+			removed.remove(ob.getId());
+			changed.put(ob.getId(), (Displayable)ob);
+		} else {
+			structural = true;
+		}
+	}
+
+	synchronized void updated(final DBObject ob, final String key) {
+		if (!recording || isIgnored(ob)) return;
+		if (isJournalable(ob) && !"stack_index".equals(key)) {
+			changed.put(ob.getId(), (Displayable)ob);
+		} else {
+			structural = true;
+		}
+	}
+
+	synchronized void updated(final DBObject ob, final Set<String> keys) {
+		if (!recording || isIgnored(ob)) return;
+		if (isJournalable(ob) && !keys.contains("stack_index")) {
+			changed.put(ob.getId(), (Displayable)ob);
+		} else {
+			structural = true;
+		}
+	}
+
+	synchronized void removed(final DBObject ob) {
+		if (!recording || isIgnored(ob)) return;
+		if (isJournalable(ob)) {
+			changed.remove(ob.getId());
+			removed.add(ob.getId());
+		} else {
+			structural = true;
+		}
+	}
+
+	/** Take the changes recorded so far, leaving none; to be called before writing the whole XML file. */
+	synchronized Batch drain() {
+		final Batch batch = new Batch(changed, removed, structural);
+		changed = new HashMap<Long,Displayable>();
+		removed = new HashSet<Long>();
+		structural = false;
+		return batch;
+	}
+
+	/** Put back the changes of a @param batch that could not be saved, unless superseded by later ones. */
+	synchronized void restore(final Batch batch) {
+		for (final Map.Entry<Long,Displayable> e : batch.changed.entrySet()) {
+			if (!changed.containsKey(e.getKey()) && !removed.contains(e.getKey())) changed.put(e.getKey(), e.getValue());
+		}
+		for (final Long id : batch.removed) {
+			if (!changed.containsKey(id)) removed.add(id);
+		}
+		structural |= batch.structural;
+	}
+
+	/** After writing the whole XML file @param fxml of the @param project, delete its journal, which is now folded into it. */
+	synchronized void reset(final Project project, final File fxml) {
+		this.xml = fxml;
+		this.file = journalFile(fxml);
+		this.xml_length = fxml.length();
+		this.xml_time = fxml.lastModified();
+		this.length = 0;
+		this.settings = settings(project);
+		if (file.exists() && !file.delete()) {
+			Utils.log("WARNING: could not delete the journal " + file + "\n  It will be overwritten at the next save.");
+		}
+	}
+
+	/** Stop recording changes, and read the journal of the XML file at @param xml_path.
+	 *  @return the last entry of each object in the journal, in journal order, or null if there isn't a journal that applies to the XML file. */
+	Map<Long,Entry> open(final String xml_path) {
+		synchronized (this) {
+			recording = false;
+			changed.clear();
+			removed.clear();
+			structural = false;
+			length = 0;
+			settings = null;
+			if (FSLoader.isURL(xml_path)) {
+				xml = file = null;
+				return null;
+			}
+			xml = new File(xml_path);
+			file = journalFile(xml);
+			xml_length = xml.length();
+			xml_time = xml.lastModified();
+			if (!file.exists()) return null;
+		}
+		final LinkedHashMap<Long,Entry> entries = new LinkedHashMap<Long,Entry>();
+		DataInputStream dis = null;
+		long pos = 0;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (MAGIC != dis.readInt() || VERSION != dis.readInt()) {
+				Utils.log("WARNING: ignoring unreadable journal " + file);
+				return null;
+			}
+			if (xml_length != dis.readLong() || xml_time != dis.readLong()) {
+				Utils.log("WARNING: ignoring the journal " + file + "\n  because the XML file was written after it.");
+				return null;
+			}
+			pos = HEADER_SIZE;
+			final LinkedHashMap<Long,Entry> batch = new LinkedHashMap<Long,Entry>();
+			long p = pos;
+			while (true) {
+				final byte op = dis.readByte();
+				p += 1;
+				if (COMMIT == op) {
+					for (final Entry e : batch.values()) {
+						entries.remove(e.id); // keep journal order
+						entries.put(e.id, e);
+					}
+					batch.clear();
+					pos = p;
+					continue;
+				}
+				final long id = dis.readLong();
+				p += 8;
+				if (REMOVE == op) {
+					batch.put(id, new Entry(id, -1, null));
+				} else if (PUT == op) {
+					final long parent_id = dis.readLong();
+					final byte[] b = new byte[dis.readInt()];
+					dis.readFully(b);
+					p += 8 + 4 + b.length;
+					batch.put(id, new Entry(id, parent_id, new String(b, "UTF-8")));
+				} else {
+					break; // corrupted tail
+				}
+			}
+		} catch (final EOFException eof) {
+			// End of the last batch
+		} catch (final Throwable t) {
+			Utils.log("WARNING: the journal " + file + " could only be partially read.");
+			IJError.print(t);
+		} finally {
+			if (null != dis) try { dis.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+		synchronized (this) {
+			this.length = pos;
+		}
+		if (entries.isEmpty()) return null;
+		Utils.log("Replaying " + entries.size() + " journaled changes from " + file.getName());
+		return entries;
+	}
+
+	/** Start recording changes to the @param project, which was just opened. */
+	synchronized void startRecording(final Project project) {
+		this.settings = null == xml ? null : settings(project);
+		this.recording = true;
+	}
+
+	/** Append the changes since the last save to the journal of @param fxml.
+	 *  @return false, having written nothing, when the whole XML file has to be written instead:
+	 *  because there are changes that can't be journaled, or the journal is due for compaction, or it could not be written. */
+	boolean append(final Project project, final File fxml, final XMLOptions options) {
+		final Batch batch;
+		final long offset;
+		synchronized (this) {
+			if (structural || null == file || !fxml.equals(xml)
+			  || fxml.length() != xml_length || fxml.lastModified() != xml_time
+			  || length > Math.max(MIN_COMPACTION_SIZE, xml_length / 4)
+			  || !settings(project).equals(settings)) {
+				return false;
+			}
+			if (changed.isEmpty() && removed.isEmpty()) return true;
+			batch = drain();
+			offset = length;
+		}
+		RandomAccessFile ra = null;
+		try {
+			ra = new RandomAccessFile(file, "rw");
+			ra.setLength(offset); // drop any incomplete batch
+			ra.seek(offset);
+			final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ra.getChannel()), 65536));
+			if (0 == offset) {
+				dos.writeInt(MAGIC);
+				dos.writeInt(VERSION);
+				dos.writeLong(xml_length);
+				dos.writeLong(xml_time);
+			}
+			for (final Long id : batch.removed) {
+				dos.writeByte(REMOVE);
+				dos.writeLong(id);
+			}
+			final StringBuilder sb = new StringBuilder(4096);
+			for (final Displayable d : batch.changed.values()) {
+				final DBObject parent = d instanceof ZDisplayable ? d.getLayerSet() : d.getLayer();
+				if (null == parent) {
+					// No longer in the project, as for a whole save
+					dos.writeByte(REMOVE);
+					dos.writeLong(d.getId());
+					continue;
+				}
+				sb.setLength(0);
+				d.exportXML(sb, "", options);
+				final byte[] b = sb.toString().getBytes("UTF-8");
+				dos.writeByte(PUT);
+				dos.writeLong(d.getId());
+				dos.writeLong(parent.getId());
+				dos.writeInt(b.length);
+				dos.write(b);
+			}
+			dos.writeByte(COMMIT);
+			dos.flush();
+			ra.getFD().sync();
+			synchronized (this) {
+				this.length = ra.length();
+			}
+			Utils.log2("Journaled " + (batch.changed.size() + batch.removed.size()) + " changes to " + file);
+			return true;
+		} catch (final Throwable t) {
+			Utils.log("Could not write to the journal " + file + "\n  Saving the whole XML file instead.");
+			IJError.print(t);
+			restore(batch);
+			return false;
+		} finally {
+			if (null != ra) try { ra.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+	}
+}
@@ -120,10 +120,14 @@ import ini.trakem2.imaging.FloatProcessorT2;
 import ini.trakem2.imaging.LazyVirtualStack;
 import ini.trakem2.imaging.PatchStack;
 import ini.trakem2.imaging.StitchingTEM;
+import ini.trakem2.imaging.filters.FilterChain;
 import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.io.AmiraImporter;
+import ini.trakem2.io.BigTiffTileWriter;
 import ini.trakem2.io.ImageFileFilter;
 import ini.trakem2.io.ImageFileHeader;
+import ini.trakem2.io.RawTileDirectoryWriter;
+import ini.trakem2.io.TileWriter;
 import ini.trakem2.tree.DTDParser;
 import ini.trakem2.tree.TemplateThing;
 import ini.trakem2.utils.Bureaucrat;
@@ -140,6 +144,7 @@ import loci.formats.IFormatReader;
 import mpi.fruitfly.general.MultiThreading;
 import mpi.fruitfly.math.datastructures.FloatArray2D;
 import mpi.fruitfly.registration.ImageFilter;
+import mpicbg.trakem2.transform.ExportTiledFlatImage;
 import mpicbg.trakem2.transform.ExportUnsignedShort;
 import mpicbg.trakem2.util.Triple;
 
@@ -216,6 +221,9 @@ abstract public class Loader {
 	/** The maximum amount of heap taken by all caches from all open projects. */
 	static private float heap_fraction = 0.4f;
 
+	/** When larger than zero, the maximum number of bytes of each cache, overriding the heap_fraction. */
+	static private long cache_max_bytes = 0;
+
 	static private final Object HEAPLOCK = new Object();
 
 	static public final void setHeapFraction(final float fraction) {
@@ -228,11 +236,65 @@ abstract public class Loader {
 				Utils.log("WARNING setting a heap fraction larger than recommended 0.4: " + fraction);
 			}
 			Loader.heap_fraction = fraction;
+			Loader.cache_max_bytes = 0;
 			for (final Loader l : v_loaders) l.setMaxBytes((long)(MAX_MEMORY * fraction));
 		}
 	}
 
-	transient protected final Cache mawts = new Cache((long)(MAX_MEMORY * heap_fraction));
+	/** Set a fixed budget, in bytes, for the image cache of each open and future project,
+	 *  instead of a fraction of the heap. Images are thrown out of a cache only when its budget is exceeded.
+	 *  A value of zero or less returns to using the heap fraction. */
+	static public final void setCacheMaxBytes(final long n_bytes) {
+		synchronized (HEAPLOCK) {
+			if (n_bytes > MAX_MEMORY) {
+				Utils.log("Invalid cache size, larger than the available memory " + MAX_MEMORY + ": " + n_bytes);
+				return;
+			}
+			Loader.cache_max_bytes = n_bytes;
+			for (final Loader l : v_loaders) l.setMaxBytes(getCacheMaxBytes());
+		}
+	}
+
+	/** The budget, in bytes, of the image cache of each project. */
+	static public final long getCacheMaxBytes() {
+		synchronized (HEAPLOCK) {
+			return cache_max_bytes > 0 ? cache_max_bytes : (long)(MAX_MEMORY * heap_fraction);
+		}
+	}
+
+	transient protected final Cache mawts = new Cache(getCacheMaxBytes());
+
+	/** When larger than zero, the maximum number of bytes of the off-heap tier below the cache of each project. */
+	static private long off_heap_max_bytes = 0;
+
+	/** Keep the pixels of up to @param n_bytes of mipmaps thrown out of the image cache of each project
+	 *  in memory outside the Java heap, from where they are restored faster than from their files.
+	 *  The direct memory available to the JVM is set with -XX:MaxDirectMemorySize.
+	 *  A value of zero or less removes the off-heap tier. */
+	static public final void setOffHeapCacheMaxBytes(final long n_bytes) {
+		synchronized (HEAPLOCK) {
+			Loader.off_heap_max_bytes = n_bytes;
+			for (final Loader l : v_loaders) l.setOffHeapMaxBytes(n_bytes);
+		}
+	}
+
+	private final void setOffHeapMaxBytes(final long n_bytes) {
+		synchronized (db_lock) {
+			try {
+				final OffHeapCache lower = mawts.getLowerTier();
+				if (n_bytes <= 0) {
+					if (null != lower) mawts.setLowerTier(null);
+				} else if (null == lower) {
+					mawts.setLowerTier(new OffHeapCache(n_bytes));
+				} else {
+					lower.setMaxBytes(n_bytes);
+				}
+				Utils.log2("Off-heap cache max bytes: " + n_bytes);
+			} catch (final Throwable t) {
+				handleCacheError(t);
+			}
+		}
+	}
 
 	static transient protected Vector<Loader> v_loaders = new Vector<Loader>(); // Vector: synchronized
 
@@ -261,6 +323,10 @@ abstract public class Loader {
 			opener.setSilentMode(true);
 		}
 
+		synchronized (HEAPLOCK) {
+			if (off_heap_max_bytes > 0) mawts.setLowerTier(new OffHeapCache(off_heap_max_bytes));
+		}
+
 		Utils.log2("MAX_MEMORY: " + MAX_MEMORY);
 		Utils.log2("cache size: " + mawts.getMaxBytes());
 	}
@@ -350,6 +416,12 @@ abstract public class Loader {
 
 	abstract public boolean removeFromDatabase(DBObject ob);
 
+	/** Record that the data of @param d changed without a call to {@link #updateInDatabase(DBObject, String)},
+	 *  as for edits to the nodes of a Tree, so that the next save includes it. */
+	public void dataChanged(final Displayable d) {
+		setChanged(true);
+	}
+
 	/* Reflection would be the best way to do all above; when it's about and 'id', one only would have to check whether the field in question is a BIGINT and the object given a DBObject, and call getId(). Such an approach demands, though, perfect matching of column names with class field names. */
 
 	public void addCrossLink(final long project_id, final long id1, final long id2) {}
@@ -508,11 +580,6 @@ abstract public class Loader {
 	/** Maximum available memory, in bytes. */
 	static private final long MAX_MEMORY = RUNTIME.maxMemory() - 128000000; // 128 M always free
 
-	/** Measure whether there are at least 'n_bytes' free. */
-	static final protected boolean enoughFreeMemory(final long n_bytes) {
-		return n_bytes < RUNTIME.freeMemory() + 128000000; // 128 Mb always free
-	}
-
 	/** Ensure there is at least width * height * factor * type{8-bit: 1; 16-bit: 3; 32-bit or RGB: 4}
 	 *  @return true if that much was released. If that much was already free, it will return false. */
 	public final boolean releaseToFit(final int width, final int height, final int type, float factor) {
@@ -547,6 +614,28 @@ abstract public class Loader {
 		return releaseMemory(n_bytes) >= n_bytes; // will also release from other caches
 	}
 
+	/** Returns the number of hits, misses and evictions of the image cache of this Loader, and the hit rate. */
+	public final String getCacheStatistics() {
+		final long hits = mawts.getHits(),
+		           misses = mawts.getMisses();
+		final long evictions, evicted_bytes;
+		final OffHeapCache lower;
+		synchronized (db_lock) {
+			evictions = mawts.getEvictions();
+			evicted_bytes = mawts.getEvictedBytes();
+			lower = mawts.getLowerTier();
+		}
+		final StringBuilder sb = new StringBuilder("hits: ").append(hits).append(", misses: ").append(misses)
+			.append(" (hit rate: ").append(0 == hits + misses ? 0 : (100 * hits) / (float)(hits + misses)).append("%)")
+			.append(", evictions: ").append(evictions).append(" (").append(evicted_bytes).append(" bytes)");
+		if (null != lower) {
+			sb.append("; off-heap: ").append(lower.getBytes()).append(" / ").append(lower.getMaxBytes())
+			  .append(" bytes (ids: ").append(lower.size()).append("), hits: ").append(lower.getHits())
+			  .append(", misses: ").append(lower.getMisses());
+		}
+		return sb.toString();
+	}
+
 	static public void printCacheStatus() {
 		int i = 1;
 		for (final Loader lo : new ArrayList<Loader>(v_loaders)) {
@@ -692,29 +781,11 @@ abstract public class Loader {
 				// Remove any autotraces
 				Polyline.flushTraceCache(Project.findProject(this));
 				// TODO should measure the polyline trace cache and add it to 'released'
-
-				Thread.yield();
-				// The cache shed less than min_free_bytes, and perhaps the system cannot take more:
-				if (!enoughFreeMemory(min_free_bytes)) {
-					Utils.log("TrakEM: empty cache -- please free up some memory");
-					if (ij.WindowManager.getWindowCount() != Display.getDisplayCount()) {
-						Utils.log("For example, close other open images.");
-					}
-				}
 			}
 
-			// The above may decide not to release anything, and thus fail to return and get here.
-			// mawts.ensureFree doesn't take into account actual used memory:
-			// it only considers whether the cache itself has reached its maximum.
-			// So add a sanity check, because other sources of images may interfere.
-			// Since RAM cannot be reliably estimated to be free,
-			// this is a weak attempt at actually releasing min_free_bytes
-			// when there are other images opened AND enoughFreeMemory is false.
-			// The check for other images is a weak reassurance that we are not allucinating.
-			if (!enoughFreeMemory(min_free_bytes) && ij.WindowManager.getWindowCount() != Display.getDisplayCount()) {
-				released += releaseAndFlushOthers(min_free_bytes);
-				if (released < min_free_bytes) released += mawts.removeAndFlushSome(min_free_bytes);
-			}
+			// The caches account for the exact size of their images and stay within their budgets,
+			// so there is no need to second-guess them from the free memory reported by the JVM,
+			// which depends on when the garbage collector last ran.
 		} catch (final Throwable e) {
 			handleCacheError(e);
 		}
@@ -857,6 +928,46 @@ abstract public class Loader {
 		}
 	}
 
+	/** Pin the cached images of @param patches, replacing any pinned previously by @param owner,
+	 *  so that {@link #prefetch(Patch, double)} never throws them out of the cache.
+	 *  A null @param patches unpins them. */
+	public final void pinCached(final Object owner, final Collection<Patch> patches) {
+		HashSet<Long> ids = null;
+		if (null != patches) {
+			ids = new HashSet<Long>();
+			for (final Patch p : patches) ids.add(p.getId());
+		}
+		synchronized (db_lock) {
+			try {
+				mawts.pin(owner, ids);
+			} catch (final Throwable t) {
+				handleCacheError(t);
+			}
+		}
+	}
+
+	/** Load the image of @param p for @param mag into the cache, as {@link #fetchImage(Patch, double)} would,
+	 *  but only if there is room for it without throwing out any image pinned with {@link #pinCached(Object, Collection)}.
+	 *  @return false if there wasn't room, or when on low memory conditions. */
+	public final boolean prefetch(final Patch p, double mag) {
+		if (low_memory_conditions || hs_unloadable.contains(p)) return false;
+		if (mag > 1.0) mag = 1.0;
+		final int level = Math.max(Math.min(Loader.getHighestMipMapLevel(p),
+		                                    Loader.getMipMapLevel(mag, maxDim(p))),
+		                           Math.max(0, p.getProject().getFirstMipMapLevelSaved()));
+		synchronized (db_lock) {
+			try {
+				if (mawts.contains(p.getId(), level)) return true;
+				if (mawts.getPinnedBytes() + estimateImageFileSize(p, level) > mawts.getMaxBytes()) return false;
+			} catch (final Throwable t) {
+				handleCacheError(t);
+				return false;
+			}
+		}
+		fetchImage(p, mag);
+		return true;
+	}
+
 	/** Returns true if there is a cached awt image for the given mag and Patch id. */
 	public boolean isCached(final Patch p, final double mag) {
 		final int level = Loader.getMipMapLevel(mag, maxDim(p));
@@ -980,174 +1091,196 @@ abstract public class Loader {
 		return fetchAWTImage(p, level, max_level);
 	}
 
+	/** Loads in flight, so that concurrent calls to {@link #fetchAWTImage(Patch, int, int)} for the same Patch and level share a single load. */
+	private final PendingLoads pending_loads = new PendingLoads();
+
 	final public MipMapImage fetchAWTImage(final Patch p, final int level, final int max_level) {
-		// Below, the complexity of the synchronized blocks is to provide sufficient granularity. Keep in mind that only one thread at at a time can access a synchronized block for the same object (in this case, the db_lock), and thus calling lock() and unlock() is not enough. One needs to break the statement in as many synch blocks as possible for maximizing the number of threads concurrently accessing different parts of this function.
+		// Cached images are read without locking. Only when the image is not cached do threads synchronize:
+		// on the db_lock, briefly, to query and update the cache; and on the pending load for the Patch id and level,
+		// so that only threads that want the very same image wait on each other while it is read or created.
+
+		if (null == mawts) {
+			return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() ); // when lazy repainting after closing a project, the awts is null
+		}
 
-		// find an equal or larger existing pyramid awt
 		final long id = p.getId();
-		ImageLoadingLock plock = null;
+
+		if (level >= 0 && isMipMapsRegenerationEnabled()) {
+			// 1 - check if the exact level is cached
+			final Image mawt = mawts.peek( id, level );
+			if (null != mawt) {
+				final double scale = Math.pow( 2.0, level );
+				return new MipMapImage( mawt, scale, scale );
+			}
+
+			// 2 - check if the exact file is present for the desired level, or 3 - else a larger one
+			final MipMapImage mipMap = pending_loads.run( new PendingLoads.Key( id, level, false ), new Callable<MipMapImage>() {
+				@Override
+				public MipMapImage call() {
+					return loadMipMapAWT( p, level, max_level );
+				}
+			});
+			if (null != mipMap) return mipMap;
+		}
+
+		// level is zero or nonsensically lower than zero, or was not found
 
 		synchronized (db_lock) {
 			try {
-				if (null == mawts) {
-					return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() ); // when lazy repainting after closing a project, the awts is null
-				}
-				if (level >= 0 && isMipMapsRegenerationEnabled()) {
-					// 1 - check if the exact level is cached
-					final Image mawt = mawts.get( id, level );
-					if (null != mawt) {
-						//Utils.log2("returning cached exact mawt for level " + level);
-						final double scale = Math.pow( 2.0, level );
-						return new MipMapImage( mawt, scale, scale );
-					}
-					plock = getOrMakeImageLoadingLock(p.getId(), level);
+				// 4 - check if any suitable level is cached (whithout mipmaps, it may be the large image)
+				final MipMapImage mipMap = mawts.getClosestAbove(id, level);
+				if (null != mipMap) {
+					return mipMap;
 				}
 			} catch (final Exception e) {
 				IJError.print(e);
 			}
 		}
 
-		MipMapImage mipMap = null;
+		// 5 - else, fetch the (perhaps) transformed ImageProcessor and make an image from it of the proper size and quality
 
-		// 2 - check if the exact file is present for the desired level
-		if (level >= 0 && isMipMapsRegenerationEnabled()) {
-			synchronized (plock) {
-				final Image mawt;
-				synchronized (db_lock) {
-					mawt = mawts.get( id, level );
-				}
-				if (null != mawt) {
-					final double scale = Math.pow( 2.0, level );
-					return new MipMapImage( mawt, scale, scale ); // was loaded by a different thread
-				}
+		if (hs_unloadable.contains(p)) return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() );
+
+		final MipMapImage mipMap = pending_loads.run( new PendingLoads.Key( id, level, true ), new Callable<MipMapImage>() {
+			@Override
+			public MipMapImage call() {
+				return createMipMapAWT( p, level );
 			}
+		});
+		if (null != mipMap) return mipMap;
 
-			final long n_bytes = estimateImageFileSize( p, level );
+		return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() );
+	}
 
-			// going to load:
-			releaseToFit( n_bytes * 8 );
+	/** Read the mipmap for @param level from its file, or, if not found, the closest cached or stored larger level,
+	 *  and cache it. Will not lock on the db_lock while reading files.
+	 *  To be called only from within a pending load for the Patch id and @param level.
+	 *  @return null if none could be found. */
+	private final MipMapImage loadMipMapAWT(final Patch p, final int level, final int max_level) {
+		final long id = p.getId();
 
-			synchronized (plock) {
-				try {
-					mipMap = fetchMipMapAWT( p, level, n_bytes );
-				} catch (final Throwable t) {
-					IJError.print(t);
-					mipMap = null;
-				}
+		// May have been loaded by a different thread since last checked; the miss was already counted
+		final Image mawt = mawts.peek( id, level, false );
+		if (null != mawt) {
+			final double scale = Math.pow( 2.0, level );
+			return new MipMapImage( mawt, scale, scale );
+		}
 
+		// Restore it from the off-heap tier, if there
+		final OffHeapCache lower = mawts.getLowerTier();
+		if (null != lower) {
+			final Image img = lower.take( id, level );
+			if (null != img) {
 				synchronized (db_lock) {
 					try {
-						if ( null != mipMap ) {
-							//Utils.log2("returning exact mawt from file for level " + level);
-							if ( REGENERATING != mipMap.image ) {
-								mawts.put( id, mipMap.image, level );
-								Display.repaintSnapshot(p);
-							}
-							return mipMap;
-						}
-
-						// Check if an appropriate level is cached
-						mipMap = mawts.getClosestAbove(id, level);
-
-						if ( mipMap == null ) {
-							// 3 - else, load closest level to it but still giving a larger image
-							final int lev = getClosestMipMapLevel(p, level, max_level); // finds the file for the returned level, otherwise returns zero
-							//Utils.log2("closest mipmap level is " + lev);
-							if (lev > -1) {
-								mipMap = fetchMipMapAWT( p, lev, n_bytes ); // overestimating n_bytes
-								if ( null != mipMap ) {
-									mawts.put( id, mipMap.image, lev );
-									//Utils.log2("from getClosestMipMapLevel: mawt is " + mawt);
-									Display.repaintSnapshot( p );
-									//Utils.log2("returning from getClosestMipMapAWT with level " + lev);
-									return mipMap;
-								}
-							} else if (ERROR_PATH_NOT_FOUND == lev) {
-								mipMap = new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() );
-							}
-						} else {
-							return mipMap;
-						}
+						mawts.put( id, img, level );
 					} catch (final Throwable t) {
 						handleCacheError(t);
-					} finally {
-						removeImageLoadingLock(plock);
 					}
 				}
+				final double scale = Math.pow( 2.0, level );
+				return new MipMapImage( img, scale, scale );
 			}
 		}
 
-		// level is zero or nonsensically lower than zero, or was not found
-		//Utils.log2("not found!");
+		final long n_bytes = estimateImageFileSize( p, level );
+
+		// going to load:
+		releaseToFit( n_bytes * 8 );
+
+		MipMapImage mipMap = null;
+		try {
+			mipMap = fetchMipMapAWT( p, level, n_bytes );
+		} catch (final Throwable t) {
+			IJError.print(t);
+			mipMap = null;
+		}
 
 		synchronized (db_lock) {
 			try {
-				// 4 - check if any suitable level is cached (whithout mipmaps, it may be the large image)
-				mipMap = mawts.getClosestAbove(id, level);
-				if (null != mipMap) {
-					//Utils.log2("returning from getClosest with level " + level);
+				if ( null != mipMap ) {
+					if ( REGENERATING != mipMap.image ) {
+						mawts.put( id, mipMap.image, level );
+						Display.repaintSnapshot(p);
+					}
 					return mipMap;
 				}
-			} catch (final Exception e) {
-				IJError.print(e);
+
+				// Check if an appropriate level is cached
+				mipMap = mawts.getClosestAbove(id, level);
+				if ( null != mipMap ) return mipMap;
+			} catch (final Throwable t) {
+				handleCacheError(t);
+				return null;
 			}
 		}
 
-		// 5 - else, fetch the (perhaps) transformed ImageProcessor and make an image from it of the proper size and quality
-
-		if (hs_unloadable.contains(p)) return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() );
-
-		synchronized (db_lock) {
+		// 3 - else, load closest level to it but still giving a larger image
+		final int lev = getClosestMipMapLevel(p, level, max_level); // finds the file for the returned level, otherwise returns zero
+		// ERROR_PATH_NOT_FOUND is Integer.MAX_VALUE, not negative: test for it too, as there is no file to fetch
+		if (lev > -1 && ERROR_PATH_NOT_FOUND != lev) {
 			try {
-				plock = getOrMakeImageLoadingLock(p.getId(), level);
-			} catch (final Exception e) {
-				if (null != plock) removeImageLoadingLock(plock); // TODO there may be a flaw in the image loading locks: when removing it, if it had been acquired by another thread, then a third thread will create it new. The image loading locks should count the number of threads that have them, and remove themselves when zero.
-				return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() );
+				mipMap = fetchMipMapAWT( p, lev, n_bytes ); // overestimating n_bytes
+			} catch (final Throwable t) {
+				IJError.print(t);
+				mipMap = null;
 			}
-		}
-
-		synchronized (plock) {
-			// Check if a previous call made it while waiting:
-			mipMap = mawts.getClosestAbove(id, level);
-			if (null != mipMap) {
+			if ( null != mipMap ) {
 				synchronized (db_lock) {
-					removeImageLoadingLock(plock);
+					try {
+						mawts.put( id, mipMap.image, lev );
+					} catch (final Throwable t) {
+						handleCacheError(t);
+					}
 				}
+				Display.repaintSnapshot( p );
 				return mipMap;
 			}
 		}
 
+		return null;
+	}
+
+	/** Create the image from the original image, transformed, and cache it as level zero.
+	 *  To be called only from within a pending load for the Patch id and @param level.
+	 *  @return null if the image could not be created. */
+	private final MipMapImage createMipMapAWT(final Patch p, final int level) {
+		final long id = p.getId();
+
+		// Check if a previous call made it while waiting:
+		synchronized (db_lock) {
+			try {
+				final MipMapImage mipMap = mawts.getClosestAbove(id, level);
+				if (null != mipMap) return mipMap;
+			} catch (final Throwable t) {
+				handleCacheError(t);
+			}
+		}
+
 		Image mawt = null;
 
 		try {
 			// Else, create the mawt:
 			final Patch.PatchImage pai = p.createTransformedImage();
-			synchronized (plock) {
-				if (null != pai && null != pai.target) {
-					mawt = pai.createImage(p.getMin(), p.getMax());
-				}
+			if (null != pai && null != pai.target) {
+				mawt = pai.createImage(p.getMin(), p.getMax());
 			}
 		} catch (final Exception e) {
 			Utils.log2("Could not create an image for Patch " + p);
 			mawt = null;
 		}
 
+		if (null == mawt) return null;
+
 		synchronized (db_lock) {
 			try {
-				if (null != mawt) {
-					mawts.put(id, mawt, 0);
-					Display.repaintSnapshot(p);
-					//Utils.log2("Created mawt from scratch.");
-					return new MipMapImage( mawt, 1.0, 1.0 );
-				}
+				mawts.put(id, mawt, 0);
 			} catch (final Throwable t) {
 				handleCacheError(t);
-			} finally {
-				removeImageLoadingLock(plock);
 			}
 		}
-
-		return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() );
+		Display.repaintSnapshot(p);
+		return new MipMapImage( mawt, 1.0, 1.0 );
 	}
 
 	/**
@@ -2036,7 +2169,7 @@ while (it.hasNext()) {
 	}
 
 	public Bureaucrat importImages(final Layer ref_layer) {
-		return importImages(ref_layer, null, null, 0, 0, false, 1, 0);
+		return importImages(ref_layer, null, null, 0, 0, false, 1, 0, false);
 	}
 
 	/** <p>Import images from the given text file, which is expected to contain 4 columns or optionally 9 columns:</p>
@@ -2068,6 +2201,21 @@ while (it.hasNext()) {
 	 * @param scale_ Between 0 and 1. When lower than 1, a preprocessor script is created for the imported images, to scale them down.
 	 */
 	public Bureaucrat importImages(Layer ref_layer, String abs_text_file_path_, String column_separator_, double layer_thickness_, double calibration_, boolean homogenize_contrast_, float scale_, int border_width_) {
+		return importImages(ref_layer, abs_text_file_path_, column_separator_, layer_thickness_, calibration_, homogenize_contrast_, scale_, border_width_, false);
+	}
+
+	/** Like {@link #importImages(Layer, String, String, double, double, boolean, float, int)}, but with an optional fast mode.
+	 * <p>
+	 * With @param fast_import_, no image is opened during the import: only file headers are read, with twice as many threads,
+	 * and the min and max of 16-bit and 32-bit images are not known until their mipmaps are generated, from whose pixels they are then set.
+	 * Patches are added without updating the displays for each, and their mipmaps are queued as soon as each is added,
+	 * without waiting on them, so that mipmaps of the images in view are generated first while the import continues.
+	 * </p>
+	 * <p>
+	 * In either mode, the time spent in each stage is reported in the log window.
+	 * </p>
+	 */
+	public Bureaucrat importImages(Layer ref_layer, String abs_text_file_path_, String column_separator_, double layer_thickness_, double calibration_, boolean homogenize_contrast_, float scale_, int border_width_, boolean fast_import_) {
 		// check parameters: ask for good ones if necessary
 		if (null == abs_text_file_path_) {
 			final String[] file = Utils.selectFile("Select text file");
@@ -2086,6 +2234,7 @@ while (it.hasNext()) {
 			gdd.addCheckbox("Homogenize contrast layer-wise", homogenize_contrast_);
 			gdd.addSlider("Scale:", 0, 100, 100);
 			gdd.addNumericField("Hide border with alpha mask", 0, 0, 6, "pixels");
+			gdd.addCheckbox("Fast import (read file headers only)", fast_import_);
 			gdd.showDialog();
 			if (gdd.wasCanceled()) return null;
 			layer_thickness_ = gdd.getNextNumber();
@@ -2122,6 +2271,7 @@ while (it.hasNext()) {
 				return null;
 			}
 			border_width_ = border;
+			fast_import_ = gdd.getNextBoolean();
 		}
 
 		if (Float.isNaN(scale_) || scale_ < 0 || scale_ > 1) {
@@ -2138,11 +2288,13 @@ while (it.hasNext()) {
 		final boolean homogenize_contrast = homogenize_contrast_;
 		final float scale = (float)scale_;
 		final int border_width = border_width_;
+		final boolean fast_import = fast_import_;
 
 		return Bureaucrat.createAndStart(new Worker.Task("Importing images", true) {
 			@Override
             public void exec() {
 				try {
+					final long t_start = System.currentTimeMillis();
 					// 1 - read text file
 					final String[] lines = Utils.openTextFileLines(abs_text_file_path);
 					if (null == lines || 0 == lines.length) {
@@ -2166,16 +2318,24 @@ while (it.hasNext()) {
 					final double z_zero = base_layer.getZ();
 					final AtomicInteger n_imported = new AtomicInteger(0);
 					final Set<Layer> touched_layers = new HashSet<Layer>();
+					// Time spent by all threads in each stage, in nanoseconds
+					final AtomicLong t_headers = new AtomicLong(0),
+					                 t_patches = new AtomicLong(0);
 
 					final int NP = Runtime.getRuntime().availableProcessors();
 					int np = NP;
-					switch (np) {
-						case 1:
-						case 2:
-							break;
-						default:
-							np = np / 2;
-							break;
+					if (fast_import) {
+						// Reading headers waits mostly on the file system
+						np = 2 * NP;
+					} else {
+						switch (np) {
+							case 1:
+							case 2:
+								break;
+							default:
+								np = np / 2;
+								break;
+						}
 					}
 					final ExecutorService ex = Utils.newFixedThreadPool(np, "import-images");
 					final List<Future<?>> imported = new ArrayList<Future<?>>();
@@ -2215,6 +2375,10 @@ while (it.hasNext()) {
 
 					final AtomicReference<Triple<Integer,Integer,ByteProcessor>> last_mask = new AtomicReference<Triple<Integer,Integer,ByteProcessor>>();
 
+					final long t_parsed = System.currentTimeMillis();
+					// Time spent blocked on the mipmaps of earlier patches, in nanoseconds
+					long t_blocked = 0;
+
 					// 3 - parse each line
 					for (int i = 0; i < lines.length; i++) {
 						if (Thread.currentThread().isInterrupted() || hasQuitted()) {
@@ -2315,9 +2479,15 @@ while (it.hasNext()) {
 
 									ImagePlus imp = null;
 									if (Double.isNaN(min) || Double.isNaN(max)) {
-										imp = openImagePlus(imagefilepath);
-										min = imp.getProcessor().getMin();
-										max = imp.getProcessor().getMax();
+										if (fast_import) {
+											// Flagged as not set: the full range of the type, until the mipmaps are generated
+											min = -1;
+											max = -1;
+										} else {
+											imp = openImagePlus(imagefilepath);
+											min = imp.getProcessor().getMin();
+											max = imp.getProcessor().getMax();
+										}
 									}
 
 									final Patch patch = new Patch(layer.getProject(), new File(imagefilepath).getName(), o_width, o_height, o_width, o_height, type, 1.0f, Color.yellow, false, min, max, new AffineTransform(1, 0, 0, 1, xx, yy), imagefilepath);
@@ -2348,6 +2518,12 @@ while (it.hasNext()) {
 									switch (type) {
 										case ImagePlus.GRAY16:
 										case ImagePlus.GRAY32:
+											if (fast_import) {
+												// Flagged as not set: the full range of the type, until the mipmaps are generated
+												min = -1;
+												max = -1;
+												break;
+											}
 											// Determine suitable min and max
 											// TODO Stream through the image, do not load it!
 
@@ -2365,7 +2541,6 @@ while (it.hasNext()) {
 									// add Patch
 									final Patch patch = new Patch(layer.getProject(), new File(imagefilepath).getName(), o_width, o_height, o_width, o_height, type, 1.0f, Color.yellow, false, min ,max, new AffineTransform(1, 0, 0, 1, xx, yy), imagefilepath);
 
-
 									return patch;
 								}
 							};
@@ -2373,7 +2548,8 @@ while (it.hasNext()) {
 
 						// If loaded twice as many, wait for mipmaps to finish
 						// Otherwise, images would end up loaded twice for no reason
-						if (0 == (i % (NP+NP))) {
+						// (A fast import loads no images: the mipmaps are left to catch up on their own)
+						if (!fast_import && 0 == (i % (NP+NP))) {
 							final ArrayList<Future<?>> a = new ArrayList<Future<?>>(NP+NP);
 							synchronized (fus) { // .add is also synchronized, fus is a Vector
 								int k = 0;
@@ -2382,6 +2558,7 @@ while (it.hasNext()) {
 									k++;
 								}
 							}
+							final long t0 = System.nanoTime();
 							for (final Future<?> fu : a) {
 								try {
 									if (wo.hasQuitted()) return;
@@ -2390,6 +2567,7 @@ while (it.hasNext()) {
 									t.printStackTrace();
 								}
 							}
+							t_blocked += System.nanoTime() - t0;
 						}
 
 						imported.add(ex.submit(new Runnable() {
@@ -2399,6 +2577,7 @@ while (it.hasNext()) {
 								/* */
 								IJ.redirectErrorMessages();
 
+								final long t0 = System.nanoTime();
 								Patch patch;
 								try {
 									patch = creator.call();
@@ -2406,7 +2585,11 @@ while (it.hasNext()) {
 									e.printStackTrace();
 									Utils.log("Could not load patch from " + imagefilepath);
 									return;
+								} finally {
+									t_headers.addAndGet(System.nanoTime() - t0);
 								}
+								if (null == patch) return;
+								final long t1 = System.nanoTime();
 
 								// Set the script if any
 								if (null != script_path) {
@@ -2438,12 +2621,24 @@ while (it.hasNext()) {
 									}
 								}
 
-								if (!homogenize_contrast) {
-									fus.add(regenerateMipMaps(patch));
-								}
-								synchronized (layer) {
-									layer.add(patch, true);
+								if (fast_import) {
+									// Add without painting it, then queue its mipmaps: the scheduler needs its layer
+									// to generate first those of the patches in view
+									synchronized (layer) {
+										layer.add(patch, false);
+									}
+									if (!homogenize_contrast) {
+										fus.add(regenerateMipMaps(patch));
+									}
+								} else {
+									if (!homogenize_contrast) {
+										fus.add(regenerateMipMaps(patch));
+									}
+									synchronized (layer) {
+										layer.add(patch, true);
+									}
 								}
+								t_patches.addAndGet(System.nanoTime() - t1);
 								wo.setTaskName("Imported " + (n_imported.incrementAndGet() + 1) + "/" + lines.length);
 							}
 						}));
@@ -2451,6 +2646,7 @@ while (it.hasNext()) {
 
 					Utils.wait(imported);
 					ex.shutdown();
+					final long t_imported = System.currentTimeMillis();
 
 					if (0 == n_imported.get()) {
 						Utils.log("No images imported.");
@@ -2458,9 +2654,11 @@ while (it.hasNext()) {
 					}
 
 					base_layer.getParent().setMinimumDimensions();
-					Display.repaint(base_layer.getParent());
+					if (fast_import) Display.update(base_layer.getParent());
+					else Display.repaint(base_layer.getParent());
 
 					recreateBuckets(touched_layers);
+					final long t_buckets = System.currentTimeMillis();
 
 					if (homogenize_contrast) {
 						setTaskName("Enhance contrast");
@@ -2468,8 +2666,22 @@ while (it.hasNext()) {
 						cew.applyLayerWise(touched_layers);
 						cew.shutdown();
 					}
+					final long t_contrast = System.currentTimeMillis();
 
 					Utils.wait(fus);
+					final long t_end = System.currentTimeMillis();
+
+					Utils.log(new StringBuilder("Imported ").append(n_imported.get()).append(" images").append(fast_import ? " (fast import)" : "")
+							.append(" in ").append(Utils.cutNumber((t_end - t_start) / 1000.0, 2)).append(" s:")
+							.append("\n  reading text file: ").append(Utils.cutNumber((t_parsed - t_start) / 1000.0, 2)).append(" s")
+							.append("\n  creating patches: ").append(Utils.cutNumber((t_imported - t_parsed) / 1000.0, 2)).append(" s")
+							.append(fast_import ? "" : ", of which blocked on mipmaps: " + Utils.cutNumber(t_blocked / 1e9, 2) + " s")
+							.append(" (in all threads: headers ").append(Utils.cutNumber(t_headers.get() / 1e9, 2))
+							.append(" s, adding ").append(Utils.cutNumber(t_patches.get() / 1e9, 2)).append(" s)")
+							.append("\n  buckets: ").append(Utils.cutNumber((t_buckets - t_imported) / 1000.0, 2)).append(" s")
+							.append(homogenize_contrast ? "\n  contrast: " + Utils.cutNumber((t_contrast - t_buckets) / 1000.0, 2) + " s" : "")
+							.append("\n  waiting for mipmaps: ").append(Utils.cutNumber((t_end - t_contrast) / 1000.0, 2)).append(" s")
+							.toString());
 
 				} catch (final Exception e) {
 					IJError.print(e);
@@ -2653,6 +2865,31 @@ while (it.hasNext()) {
 				if (IJ.isWindows()) target_dir = target_dir.replace('\\', '/');
 				if (!target_dir.endsWith("/")) target_dir += "/";
 			}
+			if (null != target_dir && (ImagePlus.GRAY8 == type || ImagePlus.COLOR_RGB == type)) {
+				// Slices too large to hold in memory are exported tile by tile into a tiled BigTIFF or a directory of raw tiles
+				final long n_pixels = (long)(srcRect_.width * scale) * (long)(srcRect_.height * scale);
+				if (n_pixels >= Integer.MAX_VALUE || n_pixels * (ImagePlus.GRAY8 == type ? 1 : 4) > IJ.maxMemory() / 2) {
+					final GenericDialog gd = new GenericDialog("Tiled export");
+					gd.addMessage("The flat images are too large to hold in memory\nand will be exported tile by tile.");
+					gd.addChoice("Format: ", TILED_FORMATS, TILED_FORMATS[0]);
+					gd.showDialog();
+					if (gd.wasCanceled()) {
+						finishedWorking();
+						return;
+					}
+					final String tiled_format = gd.getNextChoice();
+					final String extension = TILED_FORMATS[0].equals(tiled_format) ? ".tif" : "";
+					Utils.log("Exporting flat images tile by tile: only images will be included.");
+					for (int i=0; i<layer.length; i++) {
+						if (Thread.currentThread().isInterrupted()) return;
+						Utils.showProgress(i / (float)layer.length);
+						exportTiledFlatImage(layer[i], srcRect_, scale, type, uniquePath(target_dir, layer[i].getPrintableTitle(), extension), tiled_format);
+					}
+					Utils.showProgress(1);
+					finishedWorking();
+					return;
+				}
+			}
 			if (layer.length > 1) {
 				// Get all slices
 				ImageStack stack = null;
@@ -2703,6 +2940,51 @@ while (it.hasNext()) {
 		return Bureaucrat.createAndStart(worker, layer[0].getProject());
 	}
 
+	/** Formats for {@link #exportTiledFlatImage(Layer, Rectangle, double, int, String, String)}. */
+	static public final String[] TILED_FORMATS = new String[]{"Tiled BigTIFF", "Directory of raw tiles"};
+
+	/** Export the visible images of @param layer within @param srcRect, at @param scale, into a tiled BigTIFF file at @param path,
+	 *  which must not exist yet, rendering tiles in parallel and never holding the whole image in memory.
+	 *  @param type Either ImagePlus.GRAY8 or ImagePlus.COLOR_RGB.
+	 *  @return Whether the file was written. */
+	public boolean exportTiledFlatImage(final Layer layer, final Rectangle srcRect, final double scale, final int type, final String path) {
+		return exportTiledFlatImage(layer, srcRect, scale, type, path, TILED_FORMATS[0]);
+	}
+
+	/** Like {@link #exportTiledFlatImage(Layer, Rectangle, double, int, String)}, but when @param format is {@link #TILED_FORMATS}[1]
+	 *  the tiles are written as a {@link RawTileDirectoryWriter} directory at @param path, which must not exist yet either. */
+	public boolean exportTiledFlatImage(final Layer layer, final Rectangle srcRect, final double scale, final int type, final String path, final String format) {
+		TileWriter writer = null;
+		try {
+			final int width = (int)(srcRect.width * scale),
+			          height = (int)(srcRect.height * scale);
+			if (TILED_FORMATS[1].equals(format)) writer = new RawTileDirectoryWriter(new File(path), type, width, height, 1024, 1024);
+			else writer = new BigTiffTileWriter(new File(path), type, width, height, 1024, 1024);
+			ExportTiledFlatImage.export(layer, srcRect, scale, isMipMapsRegenerationEnabled(),
+					Runtime.getRuntime().availableProcessors(), writer);
+			return true;
+		} catch (final Throwable t) {
+			Utils.log("Could not export flat image for " + layer);
+			IJError.print(t);
+			return false;
+		} finally {
+			if (null != writer) try { writer.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+	}
+
+	/** Returns the path to @param file_name with @param extension within @param dir, or,
+	 *  if such a file exists, with an underscore and the first ordinal that doesn't exist. */
+	static private String uniquePath(final String dir, final String file_name, final String extension) {
+		final String path = dir + "/" + file_name;
+		File file = new File(path + extension);
+		int k = 1;
+		while (file.exists()) {
+			file = new File(path + "_" + k + extension);
+			k++;
+		}
+		return file.getAbsolutePath();
+	}
+
 	/** Will never overwrite, rather, add an underscore and ordinal to the file name. */
 	private void saveToPath(final ImagePlus imp, final String dir, final String file_name, final String extension) {
 		if (null == imp) {
@@ -3008,8 +3290,29 @@ while (it.hasNext()) {
 			final boolean use_layer_indices,
 			final int n_threads
 			) {
+		return makePrescaledTiles(layers, clazz, srcRect, c_alphas, type, target_dir,
+				strategy, saver, tileSide, directory_structure_type, skip_empty_tiles, use_layer_indices, false, n_threads);
+	}
+
+	/** See {@link ExportMultilevelTiles#makePrescaledTiles(Layer[], Class, Rectangle, int, int, String, int, Saver, int, int, boolean, boolean, boolean, int)}. */
+	public Bureaucrat makePrescaledTiles(
+			final Layer[] layers,
+			final Class<?> clazz,
+			final Rectangle srcRect,
+			final int c_alphas,
+			final int type,
+			String target_dir,
+			final int strategy,
+			final Saver saver,
+			final int tileSide,
+			final int directory_structure_type,
+			final boolean skip_empty_tiles,
+			final boolean use_layer_indices,
+			final boolean skip_unchanged_tiles,
+			final int n_threads
+			) {
 		return ExportMultilevelTiles.makePrescaledTiles(layers, clazz, srcRect, c_alphas, type, target_dir,
-				strategy, saver, tileSide, directory_structure_type, skip_empty_tiles, use_layer_indices, n_threads);
+				strategy, saver, tileSide, directory_structure_type, skip_empty_tiles, use_layer_indices, skip_unchanged_tiles, n_threads);
 	}
 
 	/** WARNING may be altered concurrently. */
@@ -3761,10 +4064,7 @@ while (it.hasNext()) {
 			// Now apply the Patch filters, if any
 			final IFilter[] fs = p.getFilters();
 			if (null != fs && fs.length > 0) {
-				ImageProcessor ip = imp.getProcessor();
-				for (final IFilter filter : fs) {
-					ip = filter.process(ip);
-				}
+				final ImageProcessor ip = FilterChain.process(fs, imp.getProcessor());
 				if (ip != imp.getProcessor()) {
 					imp.setProcessor(ip);
 				}
@@ -3858,7 +4158,8 @@ while (it.hasNext()) {
 			final long mb = lo.mawts.getMaxBytes();
 			sb.append(++i).append(": cache size: " ).append(b).append(" / ").append(mb)
 			.append(" (").append((100 * b) / (float)mb).append("%)")
-			.append(" (ids: ").append(lo.mawts.size()).append(')');
+			.append(" (ids: ").append(lo.mawts.size()).append(')')
+			.append(' ').append(lo.getCacheStatistics()).append('\n');
 		}
 		Utils.log2(sb.toString());
 	}
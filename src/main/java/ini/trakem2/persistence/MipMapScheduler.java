@@ -0,0 +1,447 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.display.Display;
+import ini.trakem2.display.DisplayCanvas;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the regeneration of mipmaps in two stages, each with its own threads:
+ * <ul>
+ * <li>The compute stage decodes the original image and computes the pyramid. Jobs wait in a priority queue:
+ * first those of patches within the viewport of any open {@link Display}, then those of patches in any shown layer,
+ * then all others; each group in the order of submission. Priorities follow the viewports: whenever any of them changed,
+ * all waiting jobs are sorted anew, at most every {@link #VIEWPORTS_MAX_AGE} milliseconds.</li>
+ * <li>The write stage encodes and writes each level of the pyramid to disk. Fewer threads suffice, since writes
+ * are bound by the disk; and at most a fixed number of writes may be pending, beyond which the compute stage
+ * waits, so that computed levels don't pile up in memory when the disk can't keep up.</li>
+ * </ul>
+ * The {@link Future} of a job completes only once all its writes are done.
+ */
+public final class MipMapScheduler
+{
+	/** Priority of a patch within the viewport of an open {@link Display}. */
+	static public final int VISIBLE = 0;
+	/** Priority of a patch in a layer shown by an open {@link Display}, but outside its viewport. */
+	static public final int SHOWN = 1;
+	/** Priority of any other patch. */
+	static public final int BACKGROUND = 2;
+
+	/** Milliseconds during which a snapshot of the viewports is considered current. */
+	static public final long VIEWPORTS_MAX_AGE = 250;
+
+	/** Number of recent completions over which the throughput is measured. */
+	static private final int N_RECENT = 128;
+
+	/** The work to do for one patch. */
+	public interface Job
+	{
+		/** Runs in the compute stage; hands every file to save to {@link Writes#submit(Callable, long)}.
+		 *  @return False if the job failed. */
+		public boolean run(Writes writes) throws Exception;
+	}
+
+	/** The writes of one job. */
+	public final class Writes
+	{
+		private final Task task;
+		/** Pending writes, plus one for the compute stage until it is done. */
+		private final AtomicInteger pending = new AtomicInteger(1);
+		private final List<Runnable> when_done = new ArrayList<Runnable>();
+		private volatile boolean computed = false,
+		                         failed = false;
+
+		private Writes(final Task task) {
+			this.task = task;
+		}
+
+		/** Queue @param write for the write stage, first waiting for a slot if too many writes are pending.
+		 *  The {@code write} returns false, or throws, when it fails, which fails the job.
+		 *  @param n_bytes The amount of pixel data to write, for the metrics. */
+		public void submit(final Callable<Boolean> write, final long n_bytes) throws InterruptedException {
+			write_slots.acquire();
+			pending.incrementAndGet();
+			n_pending_writes.incrementAndGet();
+			try {
+				writer.execute(new Runnable() {
+					@Override
+					public void run() {
+						boolean ok = false;
+						try {
+							ok = Boolean.TRUE.equals(write.call());
+						} catch (final Throwable t) {
+							IJError.print(t);
+						} finally {
+							write_slots.release();
+							n_pending_writes.decrementAndGet();
+							if (ok) n_bytes_written.addAndGet(n_bytes);
+							else failed = true;
+							arrive();
+						}
+					}
+				});
+			} catch (final RejectedExecutionException ree) {
+				// Shut down
+				write_slots.release();
+				n_pending_writes.decrementAndGet();
+				pending.decrementAndGet();
+				failed = true;
+				throw ree;
+			}
+		}
+
+		/** Run @param r once the compute stage and all writes of the job are done, and before its {@link Future} completes.
+		 *  Must be called from within {@link Job#run(Writes)}. */
+		public void whenDone(final Runnable r) {
+			synchronized (when_done) {
+				when_done.add(r);
+			}
+		}
+
+		/** Whether any write failed so far. */
+		public boolean hasFailed() {
+			return failed;
+		}
+
+		private final void computed(final boolean success) {
+			computed = success;
+			arrive();
+		}
+
+		private final void arrive() {
+			if (0 != pending.decrementAndGet()) return;
+			synchronized (when_done) {
+				for (final Runnable r : when_done) {
+					try {
+						r.run();
+					} catch (final Throwable t) {
+						IJError.print(t);
+					}
+				}
+			}
+			task.finish(computed && !failed);
+		}
+	}
+
+	private final class Task implements Runnable, Future<Boolean>, Comparable<Task>
+	{
+		private final Job job;
+		private final Patch patch;
+		private final long seq;
+		/** Only modified while the task is not in the queue. */
+		private int priority;
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile Boolean result = null;
+		private volatile boolean cancelled = false;
+		private volatile Thread runner = null;
+
+		private Task(final Job job, final Patch patch, final long seq, final int priority) {
+			this.job = job;
+			this.patch = patch;
+			this.seq = seq;
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(final Task t) {
+			if (priority != t.priority) return priority < t.priority ? -1 : 1;
+			return seq < t.seq ? -1 : (seq == t.seq ? 0 : 1);
+		}
+
+		@Override
+		public void run() {
+			if (cancelled) {
+				// Cancelled after a worker took it from the queue: release any waiting get()
+				latch.countDown();
+				return;
+			}
+			reprioritize();
+			runner = Thread.currentThread();
+			n_computing.incrementAndGet();
+			final Writes writes = new Writes(this);
+			boolean b = false;
+			try {
+				b = job.run(writes);
+			} catch (final Throwable t) {
+				IJError.print(t);
+			} finally {
+				runner = null;
+				n_computing.decrementAndGet();
+				writes.computed(b);
+			}
+		}
+
+		private final void finish(final boolean b) {
+			result = b;
+			n_completed.incrementAndGet();
+			recordCompletion();
+			latch.countDown();
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			if (isDone()) return false;
+			cancelled = true;
+			if (queue.remove(this)) {
+				// Never ran
+				latch.countDown();
+				return true;
+			}
+			final Thread t = runner;
+			if (mayInterruptIfRunning && null != t) t.interrupt();
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return 0 == latch.getCount();
+		}
+
+		@Override
+		public Boolean get() throws InterruptedException, ExecutionException {
+			latch.await();
+			return result();
+		}
+
+		@Override
+		public Boolean get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!latch.await(timeout, unit)) throw new TimeoutException();
+			return result();
+		}
+
+		private final Boolean result() {
+			final Boolean b = result;
+			if (null == b) throw new CancellationException();
+			return b;
+		}
+	}
+
+	/** The layer and the visible area of an open {@link Display}. */
+	static private final class Viewport
+	{
+		private final Layer layer;
+		private final Rectangle srcRect;
+		private Viewport(final Layer layer, final Rectangle srcRect) {
+			this.layer = layer;
+			this.srcRect = srcRect;
+		}
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Viewport)) return false;
+			final Viewport v = (Viewport)o;
+			return layer == v.layer && srcRect.equals(v.srcRect);
+		}
+		@Override
+		public int hashCode() {
+			return srcRect.hashCode();
+		}
+	}
+
+	private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>();
+	private final ThreadPoolExecutor compute,
+	                                 writer;
+	private final Semaphore write_slots;
+	private final int n_compute_threads,
+	                  n_write_threads;
+
+	private final AtomicLong n_submitted = new AtomicLong(0),
+	                         n_completed = new AtomicLong(0),
+	                         n_bytes_written = new AtomicLong(0);
+	private final AtomicInteger n_computing = new AtomicInteger(0),
+	                            n_pending_writes = new AtomicInteger(0);
+	/** Times of the most recent completions, as a ring. */
+	private final long[] recent = new long[N_RECENT];
+	private int next_recent = 0;
+	private long n_recent = 0;
+
+	private final Object viewports_lock = new Object();
+	private Viewport[] viewports = new Viewport[0];
+	private volatile long viewports_time = 0;
+
+	/**
+	 * @param name Prefix for the names of the threads.
+	 * @param n_compute_threads Number of jobs computed at a time.
+	 * @param n_write_threads Number of files written at a time.
+	 * @param max_pending_writes Number of writes that may wait for a write thread before the compute stage waits for them.
+	 */
+	public MipMapScheduler(final String name, final int n_compute_threads, final int n_write_threads, final int max_pending_writes) {
+		this.n_compute_threads = Math.max(1, n_compute_threads);
+		this.n_write_threads = Math.max(1, n_write_threads);
+		this.compute = Utils.newFixedThreadPool(this.n_compute_threads, name, true, queue);
+		this.writer = Utils.newFixedThreadPool(this.n_write_threads, name + " writer");
+		this.write_slots = new Semaphore(Math.max(this.n_write_threads, max_pending_writes));
+	}
+
+	/** Queue @param job for @param patch, with a priority given by where the patch is relative to the viewports of open displays. */
+	public Future<Boolean> submit(final Job job, final Patch patch) {
+		reprioritize();
+		final Task task;
+		synchronized (viewports_lock) {
+			task = new Task(job, patch, n_submitted.incrementAndGet(), priorityOf(patch, viewports));
+		}
+		compute.execute(task);
+		return task;
+	}
+
+	/** Raise the priority of the job of @param fu, as returned by {@link #submit(Job, Patch)}, if still queued and if @param patch is now more visible. */
+	public void promote(final Future<Boolean> fu, final Patch patch) {
+		if (!(fu instanceof Task)) return;
+		final Task task = (Task)fu;
+		reprioritize();
+		synchronized (viewports_lock) {
+			final int priority = priorityOf(patch, viewports);
+			if (priority >= task.priority) return;
+			if (queue.remove(task)) {
+				task.priority = priority;
+				queue.add(task);
+			}
+		}
+	}
+
+	static private final int priorityOf(final Patch patch, final Viewport[] viewports) {
+		int priority = BACKGROUND;
+		final Layer layer = patch.getLayer();
+		for (final Viewport v : viewports) {
+			if (v.layer != layer) continue;
+			if (patch.getBoundingBox(null).intersects(v.srcRect)) return VISIBLE;
+			priority = SHOWN;
+		}
+		return priority;
+	}
+
+	static private final Viewport[] snapshotViewports() {
+		final ArrayList<Viewport> vs = new ArrayList<Viewport>();
+		for (final Display d : Display.getDisplays()) {
+			final Layer layer = d.getLayer();
+			final DisplayCanvas canvas = d.getCanvas();
+			if (null == layer || null == canvas) continue;
+			vs.add(new Viewport(layer, new Rectangle(canvas.getSrcRect())));
+		}
+		return vs.toArray(new Viewport[vs.size()]);
+	}
+
+	/** If the snapshot of the viewports is old, take a new one; if any viewport changed, sort all queued jobs anew. */
+	private final void reprioritize() {
+		final long now = System.currentTimeMillis();
+		if (now - viewports_time < VIEWPORTS_MAX_AGE) return;
+		synchronized (viewports_lock) {
+			if (now - viewports_time < VIEWPORTS_MAX_AGE) return;
+			viewports_time = now;
+			final Viewport[] vs = snapshotViewports();
+			if (Arrays.equals(vs, viewports)) return;
+			viewports = vs;
+			final ArrayList<Runnable> queued = new ArrayList<Runnable>(queue.size());
+			queue.drainTo(queued);
+			for (final Runnable r : queued) {
+				final Task t = (Task)r;
+				t.priority = priorityOf(t.patch, vs);
+			}
+			queue.addAll(queued);
+		}
+	}
+
+	private final void recordCompletion() {
+		synchronized (recent) {
+			recent[next_recent] = System.currentTimeMillis();
+			next_recent = (next_recent + 1) % N_RECENT;
+			++n_recent;
+		}
+	}
+
+	/** Number of jobs waiting for a compute thread. */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/** Number of jobs in the compute stage. */
+	public int getComputing() {
+		return n_computing.get();
+	}
+
+	/** Number of writes queued or running. */
+	public int getPendingWrites() {
+		return n_pending_writes.get();
+	}
+
+	/** Number of jobs completed, successfully or not, since this scheduler was created. */
+	public long getCompleted() {
+		return n_completed.get();
+	}
+
+	/** Bytes of pixel data written since this scheduler was created. */
+	public long getBytesWritten() {
+		return n_bytes_written.get();
+	}
+
+	/** Jobs completed per second, over the most recent completions; zero if none completed in the last minute. */
+	public double getThroughput() {
+		synchronized (recent) {
+			final int n = (int)Math.min(n_recent, N_RECENT);
+			if (n < 2) return 0;
+			final long last = recent[(next_recent - 1 + N_RECENT) % N_RECENT],
+			           first = recent[(next_recent - n + N_RECENT) % N_RECENT];
+			if (System.currentTimeMillis() - last > 60000 || last == first) return 0;
+			return (n - 1) * 1000.0 / (last - first);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder("queued: ").append(getQueueDepth())
+			.append(", computing: ").append(getComputing()).append('/').append(n_compute_threads)
+			.append(", writing: ").append(getPendingWrites()).append(" (").append(n_write_threads).append(" threads)")
+			.append(", done: ").append(getCompleted())
+			.append(", ").append(Utils.cutNumber(getThroughput(), 1)).append(" per second")
+			.toString();
+	}
+
+	public boolean isShutdown() {
+		return compute.isShutdown();
+	}
+
+	/** Queued jobs still run, and their writes. */
+	public void shutdown() {
+		compute.shutdown();
+		// The writer is needed until all computing is done
+		new Thread() {
+			{ setDaemon(true); }
+			@Override
+			public void run() {
+				try {
+					compute.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				} catch (final InterruptedException ie) {}
+				writer.shutdown();
+			}
+		}.start();
+	}
+
+	public void shutdownNow() {
+		compute.shutdownNow();
+		writer.shutdownNow();
+	}
+}
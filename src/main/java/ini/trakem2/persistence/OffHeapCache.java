@@ -0,0 +1,243 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.io.ImageSaver;
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A second cache tier, below the {@link Cache}, that keeps the pixels of mipmaps thrown out of it
+ *  in direct {@link ByteBuffer}s, outside the Java heap. An image restored from here costs a copy
+ *  of its pixels, instead of reading and decoding its file; and the garbage collector never scans
+ *  the pixels that wait here.
+ *
+ *  Only images backed by a single byte[] (grey) or int[] (RGB, ARGB) pixel array are stored.
+ *  The least recently stored or restored images are thrown out first, to stay within max_bytes.
+ *  Buffers of thrown out images are reused for images of the same size, given that allocating
+ *  direct memory is expensive and its release depends on the garbage collector.
+ *
+ *  All methods are synchronized on this instance.
+ */
+final class OffHeapCache
+{
+	static private final byte GREY = 0, RGB = 1, ARGB = 2, ARGB_PRE = 3;
+
+	/** Buffers of thrown out images kept for reuse, at most this many bytes in total. */
+	static private final long MAX_SPARE_BYTES = 64 * 1024 * 1024;
+
+	static private final class Key {
+		final long id;
+		final int level;
+		Key(final long id, final int level) {
+			this.id = id;
+			this.level = level;
+		}
+		@Override
+		public final int hashCode() {
+			return (int)(id ^ (id >>> 32)) * 31 + level;
+		}
+		@Override
+		public final boolean equals(final Object o) {
+			if (!(o instanceof Key)) return false;
+			final Key k = (Key) o;
+			return id == k.id && level == k.level;
+		}
+	}
+
+	static private final class Block {
+		final ByteBuffer buffer;
+		final int width, height;
+		final byte type;
+		Block(final ByteBuffer buffer, final int width, final int height, final byte type) {
+			this.buffer = buffer;
+			this.width = width;
+			this.height = height;
+			this.type = type;
+		}
+	}
+
+	/** In access order: the least recently used first. */
+	private final LinkedHashMap<Key,Block> blocks = new LinkedHashMap<Key,Block>(1024, 0.75f, true);
+	/** Buffers for reuse, by capacity. */
+	private final HashMap<Integer,ArrayList<ByteBuffer>> spare = new HashMap<Integer,ArrayList<ByteBuffer>>();
+	private long spare_bytes = 0;
+
+	private long max_bytes;
+	private long bytes = 0;
+	private long hits = 0,
+	             misses = 0;
+
+	OffHeapCache(final long max_bytes) {
+		this.max_bytes = max_bytes;
+	}
+
+	synchronized final void setMaxBytes(final long max_bytes) {
+		this.max_bytes = max_bytes;
+		fit(0);
+	}
+
+	synchronized final long getMaxBytes() { return max_bytes; }
+
+	synchronized final long getBytes() { return bytes; }
+
+	synchronized final int size() { return blocks.size(); }
+
+	synchronized final long getHits() { return hits; }
+
+	synchronized final long getMisses() { return misses; }
+
+	/** Copy the pixels of @param img, the mipmap at @param level of @param id, into off-heap memory,
+	 *  replacing any previous copy. Images of an unsupported kind, or larger than max_bytes, are ignored. */
+	synchronized final void put(final long id, final int level, final Image img) {
+		remove(id, level);
+		if (!(img instanceof BufferedImage)) return;
+		final BufferedImage bi = (BufferedImage) img;
+		final DataBuffer db = bi.getRaster().getDataBuffer();
+		if (1 != db.getNumBanks()) return;
+		final int n = bi.getWidth() * bi.getHeight();
+		if (db.getSize() != n) return;
+		final byte type;
+		switch (bi.getType()) {
+			case BufferedImage.TYPE_BYTE_GRAY:
+				type = GREY;
+				break;
+			case BufferedImage.TYPE_INT_RGB:
+				type = RGB;
+				break;
+			case BufferedImage.TYPE_INT_ARGB:
+				type = ARGB;
+				break;
+			case BufferedImage.TYPE_INT_ARGB_PRE:
+				type = ARGB_PRE;
+				break;
+			default:
+				// Images made by ImageSaver with a custom color model, such as the grey ones with Loader.GRAY_LUT
+				if (db instanceof DataBufferByte && 1 == bi.getRaster().getNumBands()) type = GREY;
+				else if (db instanceof DataBufferInt && ImageSaver.RGB_COLOR_MODEL.equals(bi.getColorModel())) type = RGB;
+				else if (db instanceof DataBufferInt && ImageSaver.RGBA_PRE_COLOR_MODEL.equals(bi.getColorModel())) type = ARGB_PRE;
+				else if (db instanceof DataBufferInt && ImageSaver.RGBA_COLOR_MODEL.equals(bi.getColorModel())) type = ARGB;
+				else return;
+				break;
+		}
+		final int capacity = GREY == type ? n : n * 4;
+		if (capacity > max_bytes) return;
+		fit(capacity);
+		final ByteBuffer buffer = allocate(capacity);
+		if (null == buffer) return;
+		if (GREY == type) {
+			buffer.put(((DataBufferByte)db).getData(), 0, n);
+		} else {
+			buffer.asIntBuffer().put(((DataBufferInt)db).getData(), 0, n);
+		}
+		buffer.clear();
+		blocks.put(new Key(id, level), new Block(buffer, bi.getWidth(), bi.getHeight(), type));
+		bytes += capacity;
+	}
+
+	/** Restore the mipmap at @param level of @param id into a new image, and forget the off-heap copy,
+	 *  given that the image is about to be cached above.
+	 *  @return the image, or null if not here. */
+	synchronized final BufferedImage take(final long id, final int level) {
+		final Block b = blocks.remove(new Key(id, level));
+		if (null == b) {
+			++misses;
+			return null;
+		}
+		++hits;
+		final int n = b.width * b.height;
+		final BufferedImage bi;
+		if (GREY == b.type) {
+			final byte[] pix = CachingThread.getOrCreateByteArray(n);
+			b.buffer.get(pix, 0, n);
+			bi = ImageSaver.createGrayImage(pix, b.width, b.height);
+		} else {
+			final int[] pix = CachingThread.getOrCreateIntArray(n);
+			b.buffer.asIntBuffer().get(pix, 0, n);
+			switch (b.type) {
+				case RGB: bi = ImageSaver.createRGBImage(pix, b.width, b.height); break;
+				case ARGB: bi = ImageSaver.createARGBImage(pix, b.width, b.height); break;
+				default: bi = ImageSaver.createARGBImagePre(pix, b.width, b.height); break;
+			}
+		}
+		release(b);
+		return bi;
+	}
+
+	synchronized final boolean contains(final long id, final int level) {
+		return blocks.containsKey(new Key(id, level));
+	}
+
+	synchronized final void remove(final long id, final int level) {
+		final Block b = blocks.remove(new Key(id, level));
+		if (null != b) release(b);
+	}
+
+	/** Remove all levels of @param id. */
+	synchronized final void remove(final long id) {
+		for (final Iterator<Map.Entry<Key,Block>> it = blocks.entrySet().iterator(); it.hasNext(); ) {
+			final Map.Entry<Key,Block> e = it.next();
+			if (id != e.getKey().id) continue;
+			it.remove();
+			release(e.getValue());
+		}
+	}
+
+	synchronized final void removeAll() {
+		blocks.clear();
+		spare.clear();
+		bytes = 0;
+		spare_bytes = 0;
+	}
+
+	/** Throw out the least recently used images until @param n_bytes more fit within max_bytes. */
+	private final void fit(final long n_bytes) {
+		for (final Iterator<Block> it = blocks.values().iterator(); bytes + n_bytes > max_bytes && it.hasNext(); ) {
+			final Block b = it.next();
+			it.remove();
+			release(b);
+		}
+	}
+
+	private final void release(final Block b) {
+		final int capacity = b.buffer.capacity();
+		bytes -= capacity;
+		if (spare_bytes + capacity > MAX_SPARE_BYTES) return; // left to the garbage collector
+		ArrayList<ByteBuffer> a = spare.get(capacity);
+		if (null == a) {
+			a = new ArrayList<ByteBuffer>();
+			spare.put(capacity, a);
+		}
+		b.buffer.clear();
+		a.add(b.buffer);
+		spare_bytes += capacity;
+	}
+
+	private final ByteBuffer allocate(final int capacity) {
+		final ArrayList<ByteBuffer> a = spare.get(capacity);
+		if (null != a && !a.isEmpty()) {
+			spare_bytes -= capacity;
+			return a.remove(a.size() -1);
+		}
+		try {
+			return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+		} catch (final OutOfMemoryError oome) {
+			// Direct memory is limited by -XX:MaxDirectMemorySize: shrink to what fits
+			Utils.log2("Off-heap cache: could not allocate " + capacity + " bytes; limiting to " + bytes + " bytes.");
+			spare.clear();
+			spare_bytes = 0;
+			max_bytes = bytes;
+			return null;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.display.MipMapImage;
+import ini.trakem2.utils.IJError;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/** Table of image loads in flight, so that concurrent requests for the same mipmap
+ *  of the same Patch share a single load instead of reading the same file many times.
+ *
+ *  Each load counts the threads that use it, and removes itself from the table
+ *  when the last one is done with it. Threads asking for different keys never wait
+ *  on each other, and there isn't any global lock.
+ *
+ *  Replaces the ImageLoadingLock in {@link Loader#fetchAWTImage(ini.trakem2.display.Patch, int, int)},
+ *  which could be removed by one thread while another was still waiting on it.
+ */
+final class PendingLoads
+{
+	/** A Patch id and mipmap level; whether the image is to be made from the original image
+	 *  rather than read from a mipmap file distinguishes two kinds of loads for the same level. */
+	static final class Key {
+		final long id;
+		final int level;
+		final boolean original;
+
+		Key(final long id, final int level, final boolean original) {
+			this.id = id;
+			this.level = level;
+			this.original = original;
+		}
+
+		@Override
+		public final int hashCode() {
+			return ((int)(id ^ (id >>> 32)) * 31 + level) * 2 + (original ? 1 : 0);
+		}
+
+		@Override
+		public final boolean equals(final Object o) {
+			if (!(o instanceof Key)) return false;
+			final Key k = (Key) o;
+			return id == k.id && level == k.level && original == k.original;
+		}
+	}
+
+	static private final class Load extends FutureTask<MipMapImage> {
+		final Key key;
+		/** Number of threads using this load. Access is synchronized on this instance. */
+		int users = 1;
+		Load(final Key key, final Callable<MipMapImage> task) {
+			super(task);
+			this.key = key;
+		}
+	}
+
+	private final ConcurrentHashMap<Key,Load> table = new ConcurrentHashMap<Key,Load>();
+
+	/** Executes @param task in the calling thread, unless another thread is already executing
+	 *  a task for the same @param key, in which case it waits for and returns its result instead.
+	 *  @return the resulting image, or null if the task failed or the thread was interrupted. */
+	final MipMapImage run(final Key key, final Callable<MipMapImage> task) {
+		final Load load = acquire(key, task);
+		try {
+			load.run(); // does nothing if the load has already been run or is running in another thread
+			return load.get();
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (final ExecutionException ee) {
+			IJError.print(ee.getCause());
+			return null;
+		} finally {
+			release(load);
+		}
+	}
+
+	private final Load acquire(final Key key, final Callable<MipMapImage> task) {
+		while (true) {
+			Load load = table.get(key);
+			if (null == load) {
+				load = new Load(key, task);
+				final Load previous = table.putIfAbsent(key, load);
+				if (null == previous) return load; // new, with one user
+				load = previous;
+			}
+			synchronized (load) {
+				if (load.users > 0) {
+					++load.users;
+					return load;
+				}
+			}
+			// Else the load was released by its last user and is being removed from the table: try again
+		}
+	}
+
+	private final void release(final Load load) {
+		synchronized (load) {
+			if (0 == --load.users) table.remove(load.key, load);
+		}
+	}
+
+	/** Number of loads in flight. */
+	final int size() {
+		return table.size();
+	}
+}
@@ -56,8 +56,10 @@ import ini.trakem2.utils.ReconstructArea;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Color;
+import java.awt.geom.Area;
 import java.awt.event.KeyEvent;
 import java.io.File;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -77,7 +79,11 @@ import mpicbg.trakem2.transform.CoordinateTransformList;
 import mpicbg.trakem2.transform.InvertibleCoordinateTransform;
 import mpicbg.trakem2.transform.InvertibleCoordinateTransformList;
 
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -122,7 +128,17 @@ public class TMLHandler extends DefaultHandler {
 	private Connector last_connector = null;
 	private Tree<?> last_tree = null;
 	final private LinkedList<Taggable> taggables = new LinkedList<Taggable>();
-	private ReconstructArea reca = null;
+	/** The SVG paths of the last open t2_area. */
+	private PendingArea last_area = null;
+	/** The areas of the last open AreaList or AreaTree. */
+	final private ArrayList<PendingArea> pending_areas = new ArrayList<PendingArea>();
+	/** The Patch instances of the last open Layer and their CoordinateTransform if any, whose files are to be checked or written in the loader pool. */
+	final private ArrayList<Patch> layer_patches = new ArrayList<Patch>();
+	final private ArrayList<CoordinateTransform> layer_cts = new ArrayList<CoordinateTransform>();
+	/** Runs the work that doesn't need to happen in the order of the XML file: file checks of Patch instances and making Area instances. Created on demand. */
+	private ExecutorService loads = null;
+	final private ArrayList<Future<?>> load_futures = new ArrayList<Future<?>>();
+	private int n_displayables = 0;
 	private Node<?> last_root_node = null;
 	final private LinkedList<Node<?>> nodes = new LinkedList<Node<?>>();
 	final private Map<Long,List<Node<?>>> node_layer_table = new HashMap<Long,List<Node<?>>>();
@@ -134,6 +150,15 @@ public class TMLHandler extends DefaultHandler {
 	final private ArrayList< TransformList< Object > > ct_list_stack = new ArrayList< TransformList< Object > >();
 	private boolean open_displays = true;
 	final private LinkedList<Runnable> legacy = new LinkedList<Runnable>();
+	/** Objects journaled after the XML file was written, by id; see {@link Journal}. */
+	private Map<Long,Journal.Entry> journal = null;
+	/** Ids of the journaled objects already parsed. */
+	final private HashSet<Long> replayed = new HashSet<Long>();
+	/** Whether the XML being parsed is that of a journaled object. */
+	private boolean replaying = false;
+	private SAXParser journal_parser = null;
+	/** Depth within an element of the XML file that is superseded by the journal. */
+	private int skip_depth = 0;
 
 
 	/** @param path The XML file that contains the project data in XML format.
@@ -198,6 +223,11 @@ public class TMLHandler extends DefaultHandler {
 		return null == loader;
 	}
 
+	/** Set the @param entries of the journal to replay while parsing the XML file; may be null. */
+	void setJournal(final Map<Long,Journal.Entry> entries) {
+		this.journal = entries;
+	}
+
 	/** returns 4 objects packed in an array:
 	 <pre>
 	 [0] = root TemplateThing
@@ -210,8 +240,27 @@ public class TMLHandler extends DefaultHandler {
 	 * </p>
 	 */
 	public Object[] getProjectData(final boolean open_displays) {
-		if (null == project) return null;
+		if (null == project) {
+			cancel();
+			return null;
+		}
 		this.open_displays = open_displays;
+		this.n_displayables = ht_displayables.size();
+		// 0 - Wait for the work deferred to the loader pool
+		submitPatches();
+		if (null != loads) {
+			Utils.wait(load_futures);
+			load_futures.clear();
+		}
+		// 0.1 - Report journaled objects whose Layer or LayerSet was not found
+		if (null != journal) {
+			for (final Journal.Entry entry : journal.values()) {
+				if (null != entry.xml && !replayed.contains(entry.id)) {
+					Utils.log("WARNING: could not find the container #" + entry.parent_id + " of the journaled object #" + entry.id);
+				}
+			}
+			journal = null;
+		}
 		// 1 - Reconstruct links using ht_links
 		// Links exist between Displayable objects.
 		for (final Displayable d : ht_displayables.values()) {
@@ -286,8 +335,17 @@ public class TMLHandler extends DefaultHandler {
 				//Utils.log2("Ignoring, applies to new Treeline format only.");
 				continue;
 			}
-			// Can't compile with <?>
-			e.getKey().setRoot((Node)e.getValue()); // will generate node caches of each Treeline
+			// Each Tree generates its own node caches
+			submit(new Runnable() { public void run() {
+				// Can't compile with <?>
+				e.getKey().setRoot((Node)e.getValue()); // will generate node caches of each Treeline
+			}});
+		}
+		if (null != loads) {
+			Utils.wait(load_futures);
+			load_futures.clear();
+			loads.shutdown();
+			loads = null;
 		}
 		tree_root_nodes.clear();
 		// Assign colors to nodes
@@ -415,6 +473,10 @@ public class TMLHandler extends DefaultHandler {
 
 	public void startElement(String namespace_URI, String local_name, String qualified_name, Attributes attributes) throws SAXException {
 		if (null == loader) return;
+		if (skip_depth > 0) {
+			++skip_depth;
+			return;
+		}
 
 		//Utils.log2("startElement: " + qualified_name);
 		this.counter++;
@@ -429,6 +491,18 @@ public class TMLHandler extends DefaultHandler {
 			for (int i=attributes.getLength() -1; i>-1; i--) {
 				ht_attributes.put(attributes.getQName(i).toLowerCase(), attributes.getValue(i));
 			}
+			if (null != journal && !replaying && in(qualified_name, all_displayables)) {
+				final String soid = ht_attributes.get("oid");
+				final Journal.Entry entry = null == soid ? null : journal.get(Long.parseLong(soid));
+				if (null != entry) {
+					// Superseded by the journal: parse the journaled version instead, in place if still in the same container
+					if (null != entry.xml && !replayed.contains(entry.id) && (entry.parent_id == lastId(al_layers) || entry.parent_id == lastId(al_layer_sets))) {
+						replay(entry);
+					}
+					skip_depth = 1;
+					return;
+				}
+			}
 			// get the id, which whenever possible it's the id of the encapsulating Thing object. The encapsulated object id is the oid
 			// The type is specified by the qualified_name
 			Thing thing = null;
@@ -491,6 +565,15 @@ public class TMLHandler extends DefaultHandler {
 	
 	public void endElement(String namespace_URI, String local_name, String qualified_name) {
 		if (null == loader) return;
+		if (skip_depth > 0) {
+			--skip_depth;
+			return;
+		}
+		if (null != journal && !replaying) {
+			// Journaled objects added to, or moved into, the container being closed
+			if (qualified_name.equalsIgnoreCase("t2_layer")) replayInto(lastId(al_layers));
+			else if (qualified_name.equalsIgnoreCase("t2_layer_set")) replayInto(lastId(al_layer_sets));
+		}
 		if (skip) {
 			skip = false; // reset
 			return;
@@ -531,16 +614,13 @@ public class TMLHandler extends DefaultHandler {
 			}
 			last_displayable = null;
 		} else if (orig_qualified_name.equals("t2_area_list")) {
+			if (null != last_area_list) submitAreas(last_area_list);
 			last_area_list = null;
 			last_displayable = null;
 		} else if (orig_qualified_name.equals("t2_area")) {
-			if (null != reca) {
-				if (null != last_area_list) {
-					last_area_list.addArea(last_area_list_layer_id, reca.getArea()); // it's local
-				} else {
-					((AreaTree.AreaNode)nodes.getLast()).setData(reca.getArea());
-				}
-				reca = null;
+			if (null != last_area) {
+				pending_areas.add(last_area);
+				last_area = null;
 			}
 		} else if (orig_qualified_name.equals("ict_transform_list")) {
 			ct_list_stack.remove( ct_list_stack.size() - 1 );
@@ -548,15 +628,15 @@ public class TMLHandler extends DefaultHandler {
 			if (last_patch_filters.size() > 0) {
 				last_patch.setFilters(last_patch_filters.toArray(new IFilter[last_patch_filters.size()]));
 			}
-			if (null != last_ct) {
+			if (null != last_ct && 0 == last_patch.getCoordinateTransformId()) {
+				// Old XML: gets a new ct_id, in XML order
 				last_patch.setCoordinateTransformSilently(last_ct);
 				last_ct = null;
-			} else if (!last_patch.checkCoordinateTransformFile()) {
-				Utils.log("ERROR: could not find a file for the coordinate transform #" + last_patch.getCoordinateTransformId() + " of Patch #" + last_patch.getId());
-			}
-			if (!last_patch.checkAlphaMaskFile()) {
-				Utils.log("ERROR: could not find a file for the alpha mask #" + last_patch.getAlphaMaskId() + " of Patch #" + last_patch.getId());
 			}
+			layer_patches.add(last_patch);
+			layer_cts.add(last_ct);
+			if (layer_patches.size() >= 1024) submitPatches();
+			last_ct = null;
 			last_patch = null;
 			last_patch_filters.clear();
 			last_displayable = null;
@@ -584,6 +664,7 @@ public class TMLHandler extends DefaultHandler {
 			last_displayable = null;
 		} else if (orig_qualified_name.equals("t2_areatree")) {
 			if (null != last_areatree) {
+				submitAreas(null);
 				tree_root_nodes.put(last_areatree, last_root_node);
 				last_root_node = null;
 				last_areatree = null;
@@ -598,6 +679,8 @@ public class TMLHandler extends DefaultHandler {
 			}
 			last_stack = null;
 			last_displayable = null;
+		} else if (orig_qualified_name.equals("t2_layer")) {
+			submitPatches();
 		} else if (in(orig_qualified_name, all_displayables)) {
 			last_displayable = null;
 		}
@@ -613,6 +696,7 @@ public class TMLHandler extends DefaultHandler {
 	}
 
 	public void characters(char[] c, int start, int length) {
+		if (skip_depth > 0) return;
 		if (null != last_treeline) {
 			// for old format:
 			last_treeline_data.append(c, start, length);
@@ -678,6 +762,40 @@ public class TMLHandler extends DefaultHandler {
 		return null;
 	}
 
+	static private final long lastId(final List<? extends DBObject> obs) {
+		return obs.isEmpty() ? -1 : obs.get(obs.size() -1).getId();
+	}
+
+	private void replayInto(final long parent_id) {
+		final ArrayList<Journal.Entry> entries = new ArrayList<Journal.Entry>();
+		for (final Journal.Entry entry : journal.values()) {
+			if (parent_id == entry.parent_id && null != entry.xml && !replayed.contains(entry.id)) entries.add(entry);
+		}
+		for (final Journal.Entry entry : entries) replay(entry);
+	}
+
+	/** Parse the XML of a journaled object with this same handler, as if it were in the XML file at this point. */
+	private void replay(final Journal.Entry entry) {
+		replayed.add(entry.id);
+		replaying = true;
+		try {
+			if (null == journal_parser) {
+				final SAXParserFactory factory = SAXParserFactory.newInstance();
+				factory.setValidating(false);
+				factory.setXIncludeAware(false);
+				journal_parser = factory.newSAXParser();
+			} else {
+				journal_parser.reset();
+			}
+			journal_parser.parse(new InputSource(new StringReader(entry.xml)), this);
+		} catch (Exception e) {
+			Utils.log("ERROR: could not replay the journaled object #" + entry.id);
+			IJError.print(e);
+		} finally {
+			replaying = false;
+		}
+	}
+
 	private void addToLastOpenLayer(Displayable d) {
 		// find last open layer
 		for (int i = al_layers.size() -1; i>-1;) {
@@ -821,15 +939,17 @@ public class TMLHandler extends DefaultHandler {
 				addToLastOpenLayerSet(con);
 				return null;
 			} else if (type.equals("path")) {
-				if (null != reca) {
-					reca.add(ht_attributes.get("d"));
+				if (null != last_area) {
+					last_area.paths.add(ht_attributes.get("d"));
 					return null;
 				}
 				return null;
 			} else if (type.equals("area")) {
-				reca = new ReconstructArea();
 				if (null != last_area_list) {
 					last_area_list_layer_id = Long.parseLong(ht_attributes.get("layer_id"));
+					last_area = new PendingArea(last_area_list_layer_id, null);
+				} else {
+					last_area = new PendingArea(-1, (AreaTree.AreaNode)nodes.getLast());
 				}
 				return null;
 			} else if (type.equals("area_list")) {
@@ -918,7 +1038,6 @@ public class TMLHandler extends DefaultHandler {
 				addToLastOpenLayer(patch);
 				last_patch = patch;
 				last_displayable = patch;
-				checkAlphaMasks(patch);
 				return null;
 			} else if (type.equals("filter")) {
 				last_patch_filters.add(newFilter(ht_attributes));
@@ -977,6 +1096,84 @@ public class TMLHandler extends DefaultHandler {
 		return null;
 	}
 
+	/** The SVG paths of an area of an AreaList at a Layer, or of an AreaTree node. */
+	static private final class PendingArea {
+		final long layer_id;
+		final AreaTree.AreaNode node;
+		final ArrayList<String> paths = new ArrayList<String>();
+
+		PendingArea(final long layer_id, final AreaTree.AreaNode node) {
+			this.layer_id = layer_id;
+			this.node = node;
+		}
+
+		final Area make() {
+			final ReconstructArea reca = new ReconstructArea();
+			for (final String path : paths) reca.add(path);
+			return reca.getArea();
+		}
+	}
+
+	private void submit(final Runnable task) {
+		if (null == loads) loads = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "TMLHandler-load");
+		load_futures.add(loads.submit(task));
+	}
+
+	/** Make the areas of the last open @param area_list, or of the last open AreaTree if null, in the loader pool. */
+	private void submitAreas(final AreaList area_list) {
+		if (pending_areas.isEmpty()) return;
+		final PendingArea[] pas = pending_areas.toArray(new PendingArea[pending_areas.size()]);
+		pending_areas.clear();
+		submit(new Runnable() { public void run() {
+			for (final PendingArea pa : pas) {
+				if (null == pa.node) area_list.addArea(pa.layer_id, pa.make()); // it's local
+				else pa.node.setData(pa.make());
+			}
+		}});
+	}
+
+	/** Check, or write, the files of the Patch instances parsed so far in the last open Layer, in the loader pool:
+	 *  for many images on a network file system, checking files one at a time is mostly waiting. */
+	private void submitPatches() {
+		if (layer_patches.isEmpty()) return;
+		final Patch[] ps = layer_patches.toArray(new Patch[layer_patches.size()]);
+		final CoordinateTransform[] cts = layer_cts.toArray(new CoordinateTransform[layer_cts.size()]);
+		layer_patches.clear();
+		layer_cts.clear();
+		submit(new Runnable() { public void run() {
+			for (int i=0; i<ps.length; i++) {
+				final Patch patch = ps[i];
+				checkAlphaMasks(patch);
+				if (null != cts[i]) {
+					patch.setCoordinateTransformSilently(cts[i]);
+				} else if (!patch.checkCoordinateTransformFile()) {
+					Utils.log("ERROR: could not find a file for the coordinate transform #" + patch.getCoordinateTransformId() + " of Patch #" + patch.getId());
+				}
+				if (!patch.checkAlphaMaskFile()) {
+					Utils.log("ERROR: could not find a file for the alpha mask #" + patch.getAlphaMaskId() + " of Patch #" + patch.getId());
+				}
+			}
+		}});
+	}
+
+	/** Stop the work deferred to the loader pool, when the XML file could not be parsed. */
+	void cancel() {
+		if (null != loads) {
+			loads.shutdownNow();
+			loads = null;
+		}
+	}
+
+	/** Number of XML elements parsed. */
+	int getElementCount() {
+		return counter;
+	}
+
+	/** Number of Displayable objects parsed, known after {@link #getProjectData(boolean)}. */
+	int getDisplayableCount() {
+		return n_displayables;
+	}
+
 	/** 
 	 * Backwards compatibility for alpha masks:
 	 * create the file path as it was before, and see if the file exists.
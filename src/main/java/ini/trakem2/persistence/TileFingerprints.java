@@ -0,0 +1,196 @@
+package ini.trakem2.persistence;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.imaging.filters.IFilter;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+/**
+ * Records, for each tile exported from one {@link Layer} by {@link ExportMultilevelTiles},
+ * a fingerprint of everything that went into it: the id, image file, affine transform,
+ * coordinate transform, alpha mask, display range and filters of every {@link Patch}
+ * that overlaps the tile, plus the export settings.
+ *
+ * Fingerprints are appended to a journal file in the layer's folder right after each tile is saved,
+ * so that a later export over the same folder, even one that follows an interrupted export,
+ * can skip any tile whose fingerprint is unchanged and whose file is where it should be.
+ * A tile whose fingerprint is not in the journal is always exported.
+ */
+final class TileFingerprints
+{
+	/** Name of the journal file within the folder of each layer. */
+	static final String FILE_NAME = ".tile-fingerprints";
+
+	static private final String EMPTY = " empty";
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String layer_dir;
+	private final String extension;
+	private final String settings;
+	private final File journal;
+	/** Tile path relative to the layer folder vs. fingerprint, with an {@link #EMPTY} suffix when no file was written. */
+	private final HashMap<String,String> recorded = new HashMap<String,String>();
+	/** Visible images in painting order, each with its descriptor. */
+	private final List<Patch> patches;
+	private final List<String> descriptors;
+
+	/**
+	 * @param layer The layer whose tiles are exported.
+	 * @param layer_dir The folder of the layer, ending in a slash.
+	 * @param extension The file extension appended to tile paths by the {@link ini.trakem2.utils.Saver}.
+	 * @param settings Export settings that alter the content of every tile, such as type, channels and tile size.
+	 */
+	TileFingerprints(final Layer layer, final String layer_dir, final String extension, final String settings) {
+		this.layer_dir = layer_dir;
+		this.extension = extension;
+		this.settings = settings;
+		this.journal = new File(layer_dir + FILE_NAME);
+		this.patches = layer.getPatches(true);
+		this.descriptors = new ArrayList<String>(patches.size());
+		for (final Patch p : patches) descriptors.add(describe(p));
+		read();
+	}
+
+	/** Everything about @param p that alters how it is rendered.
+	 *  Coordinate transforms, alpha masks and image files are identified by path, size and time of last modification,
+	 *  so that they need not be read, and so that a transform rewritten under the same id still counts as a change. */
+	static private final String describe(final Patch p) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(p.getId()).append(' ').append(p.getType())
+		  .append(' ').append(p.getOWidth()).append('x').append(p.getOHeight());
+		final double[] m = new double[6];
+		p.getAffineTransform().getMatrix(m);
+		for (final double d : m) sb.append(' ').append(d);
+		sb.append(" min=").append(p.getMin()).append(" max=").append(p.getMax())
+		  .append(" alpha=").append(p.getAlpha())
+		  .append(" composite=").append(p.getCompositeMode())
+		  .append(" channels=").append(p.getChannelAlphas());
+		appendFile(sb.append(" image="), p.getImageFilePath());
+		if (p.hasCoordinateTransform()) appendFile(sb.append(" ct=").append(p.getCoordinateTransformId()).append(':'), p.getCoordinateTransformFilePath());
+		if (p.hasAlphaMask()) appendFile(sb.append(" mask=").append(p.getAlphaMaskId()).append(':'), p.getAlphaMaskFilePath());
+		final IFilter[] filters = p.getFilters();
+		if (null != filters) {
+			for (final IFilter f : filters) sb.append(" filter=").append(f.toXML(""));
+		}
+		return sb.toString();
+	}
+
+	static private final void appendFile(final StringBuilder sb, final String path) {
+		sb.append(path);
+		if (null == path) return;
+		final File f = new File(path);
+		sb.append(':').append(f.length()).append(':').append(f.lastModified());
+	}
+
+	/**
+	 * @param tile_src The area of the tile in world coordinates; may have negative dimensions for tiles beyond the exported area.
+	 * @param scale The magnification at which the tile is rendered.
+	 * @return A digest of the settings, of the tile bounds and scale, and of the descriptors of all images whose bounding box overlaps the tile.
+	 */
+	String fingerprint(final Rectangle tile_src, final double scale) {
+		final StringBuilder sb = new StringBuilder(settings);
+		sb.append('\n').append(tile_src.x).append(',').append(tile_src.y).append(',')
+		  .append(tile_src.width).append(',').append(tile_src.height).append('@').append(scale);
+		if (tile_src.width > 0 && tile_src.height > 0) {
+			for (int i=0; i<patches.size(); ++i) {
+				if (patches.get(i).getBoundingBox().intersects(tile_src)) {
+					sb.append('\n').append(descriptors.get(i));
+				}
+			}
+		}
+		return digest(sb.toString());
+	}
+
+	static private final String digest(final String s) {
+		try {
+			final byte[] b = MessageDigest.getInstance("MD5").digest(s.getBytes(UTF8));
+			final StringBuilder hex = new StringBuilder(32);
+			for (final byte k : b) {
+				hex.append(Character.forDigit((k >> 4) & 0xf, 16)).append(Character.forDigit(k & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (final NoSuchAlgorithmException e) {
+			// Every JVM has MD5
+			throw new RuntimeException(e);
+		}
+	}
+
+	private final String key(final String tile_path) {
+		return tile_path.startsWith(layer_dir) ? tile_path.substring(layer_dir.length()) : tile_path;
+	}
+
+	/** @param tile_path The path of the tile, without extension, as given to the {@link ini.trakem2.utils.Saver}.
+	 *  @return True if the tile was exported before with the same @param fingerprint and its file, or lack of it for an empty tile, is as it was left. */
+	synchronized boolean isUnchanged(final String tile_path, final String fingerprint) {
+		final String fp = recorded.get(key(tile_path));
+		if (null == fp) return false;
+		final boolean exists = new File(tile_path + extension).exists();
+		if (fp.equals(fingerprint)) return exists;
+		if (fp.equals(fingerprint + EMPTY)) return !exists;
+		return false;
+	}
+
+	/** Append the @param fingerprint of a tile that was just saved, or skipped as empty when not @param written,
+	 *  in which case the file of the tile, left over from an earlier export, is deleted. */
+	synchronized void record(final String tile_path, final String fingerprint, final boolean written) {
+		final String key = key(tile_path);
+		if (!written) {
+			final File f = new File(tile_path + extension);
+			if (f.exists() && !f.delete()) Utils.log("Could not delete stale tile " + f);
+		}
+		final String fp = written ? fingerprint : fingerprint + EMPTY;
+		if (fp.equals(recorded.get(key))) return;
+		recorded.put(key, fp);
+		Writer w = null;
+		try {
+			if (!journal.exists()) Utils.ensure(journal);
+			w = new OutputStreamWriter(new FileOutputStream(journal, true), UTF8);
+			w.write(key + '\t' + fp + '\n');
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+		} finally {
+			if (null != w) try { w.close(); } catch (final IOException ioe) { IJError.print(ioe); }
+		}
+	}
+
+	/** Load the journal, where later lines override earlier ones; rewrite it without the overridden lines if these are many. */
+	private final void read() {
+		if (!journal.exists()) return;
+		final String text = Utils.openTextFile(journal.getAbsolutePath());
+		if (null == text) return;
+		int n_lines = 0;
+		for (final String line : text.split("\n")) {
+			final int tab = line.indexOf('\t');
+			// A line cut short by an interruption lacks a full fingerprint and is ignored
+			if (-1 == tab || line.length() - tab - 1 < 32) continue;
+			recorded.put(line.substring(0, tab), line.substring(tab + 1));
+			++n_lines;
+		}
+		if (n_lines > 2 * recorded.size() + 1000) {
+			final StringBuilder sb = new StringBuilder();
+			for (final Map.Entry<String,String> e : recorded.entrySet()) {
+				sb.append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+			}
+			final File tmp = new File(journal.getAbsolutePath() + ".tmp");
+			if (Utils.saveToFile(tmp, sb.toString())) {
+				journal.delete();
+				if (!tmp.renameTo(journal)) Utils.log("Could not compact " + journal);
+			}
+		}
+	}
+}
@@ -10,6 +10,9 @@ import java.lang.reflect.Array;
 import java.util.HashMap;
 import java.util.LinkedList;
 
+/** A Thread that keeps its own pool of arrays for reuse, without synchronization.
+ * The static methods to obtain and store arrays work from any other thread too,
+ * using a pool shared by all threads that are not a CachingThread. */
 public class CachingThread extends Thread
 {
 	static private final int SIZE = 10;
@@ -18,10 +21,16 @@ public class CachingThread extends Thread
 	{
 		private static final long serialVersionUID = 1L;
 		private final Class<A> clazz;
+		private final int size;
 		private int count = 0;
 		
 		private ArrayCache(final Class<A> clazz) {
+			this(clazz, SIZE);
+		}
+
+		private ArrayCache(final Class<A> clazz, final int size) {
 			this.clazz = clazz;
+			this.size = size;
 		}
 
 		private final A getOrCreateArray(final int length) {
@@ -54,7 +63,7 @@ public class CachingThread extends Thread
 			l.add(new SoftReference<A>(a));
 			++count;
 			// Clean up
-			if (count > SIZE) {
+			if (count > size) {
 				restructure();
 			}
 		}
@@ -67,7 +76,7 @@ public class CachingThread extends Thread
 				final SoftReference<A>[] s = l.toArray(new SoftReference[l.size()]);
 				// Remove stale references and crop to maximum SIZE
 				l.clear();
-				for (int i=0, c=count; i < s.length && c < SIZE; ++i) {
+				for (int i=0, c=count; i < s.length && c < size; ++i) {
 					if (null == s[i].get()) continue; // stale reference
 					// Re-add good reference
 					l.add(s[i]);
@@ -83,10 +92,22 @@ public class CachingThread extends Thread
 	private final ArrayCache<byte[]> cacheBytes = new ArrayCache<byte[]>(byte[].class);
 	private final ArrayCache<int[]> cacheInts = new ArrayCache<int[]>(int[].class);	
 
+	/** Pools for all threads that are not a CachingThread. Access is synchronized on each pool. */
+	static private final ArrayCache<byte[]> sharedBytes = new ArrayCache<byte[]>(byte[].class, SIZE * Runtime.getRuntime().availableProcessors());
+	static private final ArrayCache<int[]> sharedInts = new ArrayCache<int[]>(int[].class, SIZE * Runtime.getRuntime().availableProcessors());
+
+	/** Scratch objects for rendering images, see {@link mpicbg.trakem2.transform.RenderContext}. */
+	private volatile Object renderContext = null;
+
 	public void clear() {
 		synchronized (cacheBytes) { cacheBytes.clear(); }
 		synchronized (cacheInts) { cacheInts.clear(); }
+		renderContext = null;
 	}
+
+	public final Object getRenderContext() { return renderContext; }
+
+	public final void setRenderContext(final Object context) { this.renderContext = context; }
 	
 	public CachingThread() { super(); }
 	public CachingThread(final Runnable r) { super(r); }
@@ -99,24 +120,27 @@ public class CachingThread extends Thread
 
 	public static final byte[][] getOrCreateByteArray(final int num, final int length) {
 		final Thread t = Thread.currentThread();
+		final byte[][] b = new byte[num][];
 		if (CachingThread.class.isAssignableFrom(t.getClass())) {
 			final CachingThread c = (CachingThread) t;
-			final byte[][] b = new byte[num][];
 			for (int i=0; i<num; ++i) b[i] = c.cacheBytes.getOrCreateArray(length);
-			return b;
+		} else {
+			synchronized (sharedBytes) {
+				for (int i=0; i<num; ++i) b[i] = sharedBytes.getOrCreateArray(length);
+			}
 		}
-		return new byte[num][length];
+		return b;
 	}
 	
 	public static final byte[] getOrCreateByteArray(final int length) {
 		final Thread t = Thread.currentThread();
 		if (CachingThread.class.isAssignableFrom(t.getClass())) {
 			final CachingThread c = (CachingThread) t;
-			Object o = c.cacheBytes.getOrCreateArray(length);
-			System.out.println("instance of: " + o.getClass());
-			return (byte[]) o;
+			return c.cacheBytes.getOrCreateArray(length);
+		}
+		synchronized (sharedBytes) {
+			return sharedBytes.getOrCreateArray(length);
 		}
-		return new byte[length];
 	}
 
 	public static final int[] getOrCreateIntArray(final int length) {
@@ -125,7 +149,9 @@ public class CachingThread extends Thread
 			final CachingThread c = (CachingThread) t;
 			return c.cacheInts.getOrCreateArray(length);
 		}
-		return new int[length];
+		synchronized (sharedInts) {
+			return sharedInts.getOrCreateArray(length);
+		}
 	}
 
 	public static final void storeForReuse(final byte[][] b) {
@@ -133,6 +159,10 @@ public class CachingThread extends Thread
 		if (CachingThread.class.isAssignableFrom(t.getClass())) {
 			final CachingThread c = (CachingThread) t;
 			for (int i=0; i<b.length; ++i) c.cacheBytes.storeForReuse(b[i], b[i].length);
+		} else {
+			synchronized (sharedBytes) {
+				for (int i=0; i<b.length; ++i) sharedBytes.storeForReuse(b[i], b[i].length);
+			}
 		}
 	}
 	
@@ -141,6 +171,10 @@ public class CachingThread extends Thread
 		if (CachingThread.class.isAssignableFrom(t.getClass())) {
 			final CachingThread c = (CachingThread) t;
 			c.cacheBytes.storeForReuse(b, b.length);
+		} else {
+			synchronized (sharedBytes) {
+				sharedBytes.storeForReuse(b, b.length);
+			}
 		}
 	}
 	
@@ -149,6 +183,10 @@ public class CachingThread extends Thread
 		if (CachingThread.class.isAssignableFrom(t.getClass())) {
 			final CachingThread c = (CachingThread) t;
 			c.cacheInts.storeForReuse(b, b.length);
+		} else {
+			synchronized (sharedInts) {
+				sharedInts.storeForReuse(b, b.length);
+			}
 		}
 	}
 
@@ -163,8 +201,10 @@ public class CachingThread extends Thread
 		}
 	}
 	
-	/** Tell all instances to clear their caches. */
+	/** Tell all instances to clear their caches, and clear the shared caches. */
 	public static final void releaseAll() {
+		synchronized (sharedBytes) { sharedBytes.clear(); sharedBytes.count = 0; }
+		synchronized (sharedInts) { sharedInts.clear(); sharedInts.count = 0; }
 		// Find the top-most parent Thread
 		ThreadGroup parent = Thread.currentThread().getThreadGroup();
 		while (true) {
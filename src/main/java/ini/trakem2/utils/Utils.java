@@ -68,11 +68,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -1575,7 +1577,21 @@ public class Utils implements ij.plugin.PlugIn {
 	
 	static public final ThreadPoolExecutor newFixedThreadPool(final int n_proc, final String namePrefix, final boolean use_caching_thread) {
 		final ThreadPoolExecutor exec = (ThreadPoolExecutor) Executors.newFixedThreadPool(n_proc);
-		exec.setThreadFactory(new ThreadFactory() {
+		exec.setThreadFactory(newThreadFactory(namePrefix, use_caching_thread));
+		return exec;
+	}
+
+	/** Like {@link #newFixedThreadPool(int, String, boolean)}, but taking tasks from the given {@code queue};
+	 *  for example, a {@link java.util.concurrent.PriorityBlockingQueue} runs tasks by priority,
+	 *  provided that they are handed to {@link ThreadPoolExecutor#execute(Runnable)} rather than submitted. */
+	static public final ThreadPoolExecutor newFixedThreadPool(final int n_proc, final String namePrefix, final boolean use_caching_thread, final BlockingQueue<Runnable> queue) {
+		final ThreadPoolExecutor exec = new ThreadPoolExecutor(n_proc, n_proc, 0L, TimeUnit.MILLISECONDS, queue);
+		exec.setThreadFactory(newThreadFactory(namePrefix, use_caching_thread));
+		return exec;
+	}
+
+	static private final ThreadFactory newThreadFactory(final String namePrefix, final boolean use_caching_thread) {
+		return new ThreadFactory() {
 			final AtomicInteger ai = new AtomicInteger(0);
 			@Override
 			public Thread newThread(final Runnable r) {
@@ -1591,8 +1607,7 @@ public class Utils implements ij.plugin.PlugIn {
 				t.setPriority(Thread.NORM_PRIORITY);
 				return t;
 			}
-		});
-		return exec;
+		};
 	}
 	/** If both are null will throw an error. */
 	static public final boolean equalContent(final Collection<?> a, final Collection<?> b) {
@@ -22,7 +22,7 @@ import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Selection;
-import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.io.PackedFeatures;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.Utils;
@@ -333,6 +333,15 @@ public class Align
 		public boolean filterOutliers = false;
 		public float meanFactor = 3.0f;
 
+		/**
+		 * Iterative relaxation of one tile at a time, or the sparse least
+		 * squares solver for all tiles at once, which scales to very large
+		 * montages.
+		 */
+		final static public String[] solverStrings = new String[]{ "Iterative relaxation", "Sparse least squares (PCG)" };
+		final static public int RELAXATION = 0, SPARSE = 1;
+		public int solverIndex = RELAXATION;
+
 		@Override
 		public void addAlignmentFields( final GenericDialog gd )
 		{
@@ -344,6 +353,7 @@ public class Align
 			gd.addNumericField( "maximal_plateauwidth :", maxPlateauwidth, 0 );
 			gd.addCheckbox( "filter outliers", filterOutliers );
 			gd.addNumericField( "mean_factor :", meanFactor, 2 );
+			gd.addChoice( "solver :", solverStrings, solverStrings[ solverIndex ] );
 		}
 
 		@Override
@@ -355,6 +365,7 @@ public class Align
 			maxPlateauwidth = ( int )gd.getNextNumber();
 			filterOutliers = gd.getNextBoolean();
 			meanFactor = ( float )gd.getNextNumber();
+			solverIndex = gd.getNextChoiceIndex();
 
 			return !gd.invalidNumber();
 		}
@@ -413,6 +424,7 @@ public class Align
 			p.maxPlateauwidth = maxPlateauwidth;
 			p.filterOutliers = filterOutliers;
 			p.meanFactor = meanFactor;
+			p.solverIndex = solverIndex;
 
 			return p;
 		}
@@ -424,38 +436,13 @@ public class Align
 				( maxIterations == p.maxIterations ) &&
 				( maxPlateauwidth == p.maxPlateauwidth ) &&
 				( filterOutliers == p.filterOutliers ) &&
-				( meanFactor == p.meanFactor );
+				( meanFactor == p.meanFactor ) &&
+				( solverIndex == p.solverIndex );
 		}
 	}
 
 	final static public ParamOptimize paramOptimize = new ParamOptimize();
 
-	final static private class Features implements Serializable
-	{
-		private static final long serialVersionUID = 2689219384710526198L;
-
-		FloatArray2DSIFT.Param p;
-		ArrayList< Feature > features;
-		Features( final FloatArray2DSIFT.Param p, final ArrayList< Feature > features )
-		{
-			this.p = p;
-			this.features = features;
-		}
-	}
-
-	final static private class PointMatches implements Serializable
-	{
-		private static final long serialVersionUID = -2564147268101223484L;
-
-		Param p;
-		ArrayList< PointMatch > pointMatches;
-		PointMatches( final Param p, final ArrayList< PointMatch > pointMatches )
-		{
-			this.p = p;
-			this.pointMatches = pointMatches;
-		}
-	}
-
 	/**
 	 * Extracts {@link Feature SIFT-features} from a {@link List} of
 	 * {@link AbstractAffineTile2D Tiles} and saves them to disk.
@@ -494,32 +481,9 @@ public class Align
 			{
 				if (isInterrupted()) return;
 				final AbstractAffineTile2D< ? > tile = tiles.get( i );
-				Collection< Feature > features = deserializeFeatures( p, tile );
+				final Collection< Feature > features = deserializeFeatures( p, tile );
 				if ( features == null )
-				{
-					/* extract features and, in case there is not enough memory available, try to free it and do again */
-					boolean memoryFlushed;
-					do
-					{
-						try
-						{
-							features = new ArrayList< Feature >();
-							final long s = System.currentTimeMillis();
-							ijSIFT.extractFeatures( tile.createMaskedByteImage(), features );
-							Utils.log( features.size() + " features extracted in tile " + i + " \"" + tile.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
-							if ( !serializeFeatures( p, tile, features ) )
-								Utils.log( "Saving features failed for tile \"" + tile.getPatch() + "\"" );
-							memoryFlushed = false;
-						}
-						catch ( final OutOfMemoryError e )
-						{
-							Utils.log2( "Flushing memory for feature extraction" );
-							Loader.releaseAllCaches();
-							memoryFlushed = true;
-						}
-					}
-					while ( memoryFlushed );
-				}
+					extractFeatures( p, ijSIFT, tile, i );
 				else
 				{
 					Utils.log( features.size() + " features loaded for tile " + i + " \"" + tile.getPatch().getTitle() + "\"." );
@@ -529,6 +493,49 @@ public class Align
 		}
 	}
 
+	/**
+	 * Extract {@link Feature SIFT-features} from a tile and save them to
+	 * disk.  In case there is not enough memory available, try to free it
+	 * and do again.
+	 *
+	 * @param p
+	 * @param ijSIFT not thread-safe: one per thread
+	 * @param tile
+	 * @param i index of the tile, for logging
+	 * @return the features
+	 */
+	final static protected Collection< Feature > extractFeatures(
+			final Param p,
+			final SIFT ijSIFT,
+			final AbstractAffineTile2D< ? > tile,
+			final int i )
+	{
+		Collection< Feature > features;
+		boolean memoryFlushed;
+		do
+		{
+			try
+			{
+				features = new ArrayList< Feature >();
+				final long s = System.currentTimeMillis();
+				ijSIFT.extractFeatures( tile.createMaskedByteImage(), features );
+				Utils.log( features.size() + " features extracted in tile " + i + " \"" + tile.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
+				if ( !serializeFeatures( p, tile, features ) )
+					Utils.log( "Saving features failed for tile \"" + tile.getPatch() + "\"" );
+				memoryFlushed = false;
+			}
+			catch ( final OutOfMemoryError e )
+			{
+				Utils.log2( "Flushing memory for feature extraction" );
+				Loader.releaseAllCaches();
+				features = null;
+				memoryFlushed = true;
+			}
+		}
+		while ( memoryFlushed );
+		return features;
+	}
+
 
 	final static protected class MatchFeaturesAndFindModelThread extends Thread
 	{
@@ -585,78 +592,129 @@ public class Align
 
 				if ( inliers == null )
 				{
-					inliers = new ArrayList< PointMatch >();
+					inliers = matchFeaturesAndFindModel(
+							p,
+							tilePair,
+							fetchFeatures( p, tilePair[ 0 ] ),
+							fetchFeatures( p, tilePair[ 1 ] ),
+							candidates,
+							multipleHypotheses );
+					if ( inliers == null )
+						return;
+				}
+				else
+					Utils.log( "Point matches for tiles \"" + tilePair[ 0 ].getPatch().getTitle() + "\" and \"" + tilePair[ 1 ].getPatch().getTitle() + "\" fetched from disk cache" );
 
-					final long s = System.currentTimeMillis();
+				connect( p, tilePair, inliers );
 
-					FeatureTransform.matchFeatures(
-						fetchFeatures( p, tilePair[ 0 ] ),
-						fetchFeatures( p, tilePair[ 1 ] ),
-						candidates,
-						p.rod );
+				IJ.showProgress( ap.getAndIncrement(), steps );
+			}
+		}
+	}
 
-					/* find the model */
-					final AbstractModel< ? > model;
-					switch ( p.expectedModelIndex )
-					{
-					case 0:
-						model = new TranslationModel2D();
-						break;
-					case 1:
-						model = new RigidModel2D();
-						break;
-					case 2:
-						model = new SimilarityModel2D();
-						break;
-					case 3:
-						model = new AffineModel2D();
-						break;
-					case 4:
-						model = new HomographyModel2D();
-						break;
-					default:
-						return;
-					}
 
-					final boolean modelFound = findModel(
-							model,
-							candidates,
-							inliers,
-							p.maxEpsilon,
-							p.minInlierRatio,
-							p.minNumInliers,
-							p.rejectIdentity,
-							p.identityTolerance,
-							multipleHypotheses );
+	/**
+	 * Match the {@link Feature SIFT-features} of a pair of tiles, find a
+	 * model for the geometrically consistent matches, and save them to disk.
+	 *
+	 * @param p
+	 * @param tilePair
+	 * @param features1 of tilePair[ 0 ]
+	 * @param features2 of tilePair[ 1 ]
+	 * @param candidates cleared and filled with all matches
+	 * @param multipleHypotheses
+	 * @return the inliers, which are empty if no model was found; or null
+	 *   if p.expectedModelIndex is not a known model
+	 */
+	final static protected Collection< PointMatch > matchFeaturesAndFindModel(
+			final Param p,
+			final AbstractAffineTile2D< ? >[] tilePair,
+			final Collection< Feature > features1,
+			final Collection< Feature > features2,
+			final List< PointMatch > candidates,
+			final boolean multipleHypotheses )
+	{
+		candidates.clear();
+		final Collection< PointMatch > inliers = new ArrayList< PointMatch >();
 
-					if ( modelFound )
-						Utils.log( "Model found for tiles \"" + tilePair[ 0 ].getPatch() + "\" and \"" + tilePair[ 1 ].getPatch() + "\":\n  correspondences  " + inliers.size() + " of " + candidates.size() + "\n  average residual error  " + model.getCost() + " px\n  took " + ( System.currentTimeMillis() - s ) + " ms" );
-					else
-						Utils.log( "No model found for tiles \"" + tilePair[ 0 ].getPatch() + "\" and \"" + tilePair[ 1 ].getPatch() + "\":\n  correspondence candidates  " + candidates.size() + "\n  took " + ( System.currentTimeMillis() - s ) + " ms" );
+		final long s = System.currentTimeMillis();
 
-					if ( !serializePointMatches( p, tilePair[ 0 ], tilePair[ 1 ], inliers ) )
-						Utils.log( "Saving point matches failed for tiles \"" + tilePair[ 0 ].getPatch() + "\" and \"" + tilePair[ 1 ].getPatch() + "\"" );
+		FeatureTransform.matchFeatures(
+			features1,
+			features2,
+			candidates,
+			p.rod );
 
-				}
-				else
-					Utils.log( "Point matches for tiles \"" + tilePair[ 0 ].getPatch().getTitle() + "\" and \"" + tilePair[ 1 ].getPatch().getTitle() + "\" fetched from disk cache" );
+		/* find the model */
+		final AbstractModel< ? > model;
+		switch ( p.expectedModelIndex )
+		{
+		case 0:
+			model = new TranslationModel2D();
+			break;
+		case 1:
+			model = new RigidModel2D();
+			break;
+		case 2:
+			model = new SimilarityModel2D();
+			break;
+		case 3:
+			model = new AffineModel2D();
+			break;
+		case 4:
+			model = new HomographyModel2D();
+			break;
+		default:
+			return null;
+		}
 
-				if ( inliers != null && inliers.size() > 0 )
-				{
-					/* weight the inliers */
-					for ( final PointMatch pm : inliers )
-						pm.setWeights( new double[]{ p.correspondenceWeight } );
+		final boolean modelFound = findModel(
+				model,
+				candidates,
+				inliers,
+				p.maxEpsilon,
+				p.minInlierRatio,
+				p.minNumInliers,
+				p.rejectIdentity,
+				p.identityTolerance,
+				multipleHypotheses );
+
+		if ( modelFound )
+			Utils.log( "Model found for tiles \"" + tilePair[ 0 ].getPatch() + "\" and \"" + tilePair[ 1 ].getPatch() + "\":\n  correspondences  " + inliers.size() + " of " + candidates.size() + "\n  average residual error  " + model.getCost() + " px\n  took " + ( System.currentTimeMillis() - s ) + " ms" );
+		else
+			Utils.log( "No model found for tiles \"" + tilePair[ 0 ].getPatch() + "\" and \"" + tilePair[ 1 ].getPatch() + "\":\n  correspondence candidates  " + candidates.size() + "\n  took " + ( System.currentTimeMillis() - s ) + " ms" );
 
-					synchronized ( tilePair[ 0 ] )
-					{
-						synchronized ( tilePair[ 1 ] ) { tilePair[ 0 ].connect( tilePair[ 1 ], inliers ); }
-						tilePair[ 0 ].clearVirtualMatches();
-					}
-					synchronized ( tilePair[ 1 ] ) { tilePair[ 1 ].clearVirtualMatches(); }
-				}
+		if ( !serializePointMatches( p, tilePair[ 0 ], tilePair[ 1 ], inliers ) )
+			Utils.log( "Saving point matches failed for tiles \"" + tilePair[ 0 ].getPatch() + "\" and \"" + tilePair[ 1 ].getPatch() + "\"" );
 
-				IJ.showProgress( ap.getAndIncrement(), steps );
+		return inliers;
+	}
+
+
+	/**
+	 * Weight the inliers, if any, and connect the pair of tiles by them.
+	 *
+	 * @param p
+	 * @param tilePair
+	 * @param inliers
+	 */
+	final static protected void connect(
+			final Param p,
+			final AbstractAffineTile2D< ? >[] tilePair,
+			final Collection< PointMatch > inliers )
+	{
+		if ( inliers != null && inliers.size() > 0 )
+		{
+			/* weight the inliers */
+			for ( final PointMatch pm : inliers )
+				pm.setWeights( new double[]{ p.correspondenceWeight } );
+
+			synchronized ( tilePair[ 0 ] )
+			{
+				synchronized ( tilePair[ 1 ] ) { tilePair[ 0 ].connect( tilePair[ 1 ], inliers ); }
+				tilePair[ 0 ].clearVirtualMatches();
 			}
+			synchronized ( tilePair[ 1 ] ) { tilePair[ 1 ].clearVirtualMatches(); }
 		}
 	}
 
@@ -758,13 +816,9 @@ public class Align
 
 	final static protected boolean serializeFeatures( final Param p, final AbstractAffineTile2D< ? > t, final Collection< Feature > f )
 	{
-		final ArrayList< Feature > list = new ArrayList< Feature >();
-		list.addAll( f );
 		final Patch patch = t.getPatch();
 		final Loader loader = patch.getProject().getLoader();
-		final Features fe = new Features( p.sift, list );
-		return loader.serialize( fe, new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
-			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
+		return PackedFeatures.saveFeatures( loader.getUNUIdFolder() + PackedFeatures.DIR_NAME, "features", patch.getId(), p.sift, f );
 	}
 
 	/**
@@ -774,25 +828,7 @@ public class Align
 	{
 		final Patch patch = t.getPatch();
 		final Loader loader = patch.getProject().getLoader();
-
-		final Object ob = loader.deserialize( new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
-			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
-		if ( null != ob )
-		{
-			try
-			{
-				final Features fe = ( Features )ob;
-				if ( p.sift.equals( fe.p ) && null != fe.p )
-				{
-					return fe.features;
-				}
-			}
-			catch ( final Exception e )
-			{
-				e.printStackTrace();
-			}
-		}
-		return null;
+		return PackedFeatures.loadFeatures( loader.getUNUIdFolder() + PackedFeatures.DIR_NAME, "features", patch.getId(), p.sift );
 	}
 
 
@@ -817,9 +853,8 @@ public class Align
 
 
 	/**
-	 * Save a {@link Collection} of {@link PointMatch PointMatches} two-sided.
-	 * Creates two serialization files which is desperately required to clean
-	 * up properly invalid serializations on change of a {@link Patch}.
+	 * Save a {@link Collection} of {@link PointMatch PointMatches} two-sided,
+	 * so that both are found, and invalidated, from either {@link Patch}.
 	 *
 	 * @param p
 	 * @param t1
@@ -833,20 +868,10 @@ public class Align
 			final AbstractAffineTile2D< ? > t2,
 			final Collection< PointMatch > m )
 	{
-		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
-		list.addAll( m );
-		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
-		PointMatch.flip( m, tsil );
 		final Patch p1 = t1.getPatch();
 		final Patch p2 = t2.getPatch();
 		final Loader loader = p1.getProject().getLoader();
-		return
-			loader.serialize(
-				new PointMatches( p, list ),
-				new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" ).append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString() ) &&
-			loader.serialize(
-				new PointMatches( p, tsil ),
-				new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" ).append( FSLoader.createIdPath( Long.toString( p2.getId() ) + "_" + Long.toString( p1.getId() ), "pointmatches", ".ser" ) ).toString() );
+		return PackedFeatures.savePointMatches( loader.getUNUIdFolder() + PackedFeatures.DIR_NAME, "pointmatches", p1.getId(), p2.getId(), p, m );
 	}
 
 
@@ -858,26 +883,7 @@ public class Align
 		final Patch p1 = t1.getPatch();
 		final Patch p2 = t2.getPatch();
 		final Loader loader = p1.getProject().getLoader();
-
-		final Object ob = loader.deserialize( new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" )
-				.append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString() );
-
-		if ( null != ob )
-		{
-			try
-			{
-				final PointMatches pm = ( PointMatches )ob;
-				if ( p.equals( pm.p ) && null != pm.p )
-				{
-					return pm.pointMatches;
-				}
-			}
-			catch ( final Exception e )
-			{
-				e.printStackTrace();
-			}
-		}
-		return null;
+		return PackedFeatures.loadPointMatches( loader.getUNUIdFolder() + PackedFeatures.DIR_NAME, "pointmatches", p1.getId(), p2.getId(), p );
 	}
 
 
@@ -1067,7 +1073,29 @@ public class Align
 
 		try
 		{
-			if ( p.filterOutliers )
+			if ( ParamOptimize.SPARSE == p.solverIndex )
+			{
+				/* Translation, similarity and affine are solved exactly; rigid is solved
+				 * as similarity and then fit, so polish it, and anything regularized or
+				 * filtered, with at most POLISH_ITERATIONS of relaxation from the solution. */
+				final SparseTileSolver.Result result = SparseTileSolver.solve(
+						tiles,
+						fixedTiles,
+						0 == p.desiredModelIndex ? SparseTileSolver.TRANSLATION : ( 3 <= p.desiredModelIndex ? SparseTileSolver.AFFINE : SparseTileSolver.SIMILARITY ),
+						p.maxIterations,
+						SparseTileSolver.DEFAULT_TOLERANCE,
+						Runtime.getRuntime().availableProcessors() );
+				tc.computeError();
+				Utils.log( result.toString() + "\n  average displacement: " + String.format( "%.3f", tc.getError() ) + "px, maximal displacement: " + String.format( "%.3f", tc.getMaxError() ) + "px" );
+
+				final int polishIterations = Math.min( p.maxIterations, SparseTileSolver.POLISH_ITERATIONS );
+				final int polishPlateauWidth = Math.min( p.maxPlateauwidth, polishIterations );
+				if ( p.filterOutliers )
+					tc.optimizeAndFilter( p.maxEpsilon, polishIterations, polishPlateauWidth, p.meanFactor );
+				else if ( 1 == p.desiredModelIndex || p.regularize )
+					tc.optimize( p.maxEpsilon, polishIterations, polishPlateauWidth );
+			}
+			else if ( p.filterOutliers )
 				tc.optimizeAndFilter( p.maxEpsilon, p.maxIterations, p.maxPlateauwidth, p.meanFactor );
 			else
 				tc.optimize( p.maxEpsilon, p.maxIterations, p.maxPlateauwidth );
@@ -1101,6 +1129,10 @@ public class Align
 	 * Connect a {@link List} of {@link AbstractAffineTile2D Tiles} by
 	 * geometrically consistent {@link Feature SIFT-feature} correspondences.
 	 *
+	 * Feature extraction and matching run as one pipeline on a work-stealing
+	 * pool of numThreads threads: each tile pair is matched as soon as the
+	 * features of both of its tiles are available.  See {@link TilePairPipeline}.
+	 *
 	 * @param p
 	 * @param tiles
 	 * @param tilePairs
@@ -1114,68 +1146,7 @@ public class Align
 			final int numThreads,
 			final boolean multipleHypotheses )
 	{
-		final AtomicInteger ai = new AtomicInteger( 0 );
-		final AtomicInteger ap = new AtomicInteger( 0 );
-		final int steps = tiles.size() + tilePairs.size();
-		final List< ExtractFeaturesThread > extractFeaturesThreads = new ArrayList< ExtractFeaturesThread >();
-		final List< MatchFeaturesAndFindModelThread > matchFeaturesAndFindModelThreads = new ArrayList< MatchFeaturesAndFindModelThread >();
-
-		/** Extract and save Features */
-		for ( int i = 0; i < numThreads; ++i )
-		{
-			final ExtractFeaturesThread thread = new ExtractFeaturesThread( p.clone(), tiles, ai, ap, steps );
-			extractFeaturesThreads.add( thread );
-			thread.start();
-		}
-
-		try
-		{
-			for ( final ExtractFeaturesThread thread : extractFeaturesThreads )
-				thread.join();
-		}
-		catch ( final InterruptedException e )
-		{
-			Utils.log( "Feature extraction interrupted." );
-			for ( final Thread thread : extractFeaturesThreads )
-				thread.interrupt();
-			try
-			{
-				for ( final Thread thread : extractFeaturesThreads )
-					thread.join();
-			}
-			catch ( final InterruptedException f ) {}
-			Thread.currentThread().interrupt();
-			IJ.showProgress( 1.0 );
-			return;
-		}
-
-		/** Establish correspondences */
-		ai.set( 0 );
-		for ( int i = 0; i < numThreads; ++i )
-		{
-			final MatchFeaturesAndFindModelThread thread = new MatchFeaturesAndFindModelThread( p.clone(), tiles, tilePairs, ai, ap, steps, multipleHypotheses );
-			matchFeaturesAndFindModelThreads.add( thread );
-			thread.start();
-		}
-		try
-		{
-			for ( final MatchFeaturesAndFindModelThread thread : matchFeaturesAndFindModelThreads )
-				thread.join();
-		}
-		catch ( final InterruptedException e )
-		{
-			Utils.log( "Establishing feature correspondences interrupted." );
-			for ( final Thread thread : matchFeaturesAndFindModelThreads )
-				thread.interrupt();
-			try
-			{
-				for ( final Thread thread : matchFeaturesAndFindModelThreads )
-					thread.join();
-			}
-			catch ( final InterruptedException f ) {}
-			Thread.currentThread().interrupt();
-			IJ.showProgress( 1.0 );
-		}
+		TilePairPipeline.run( p, tiles, tilePairs, numThreads, multipleHypotheses );
 	}
 
 
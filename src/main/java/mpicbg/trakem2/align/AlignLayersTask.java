@@ -24,7 +24,6 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
-import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.IJError;
@@ -323,7 +322,7 @@ final public class AlignLayersTask
 				}
 			}
 
-			final ImageProcessor flatImage = layer.getProject().getLoader().getFlatImage( layer, box2, scale, 0xffffffff, ImagePlus.GRAY8, Patch.class, patches, true ).getProcessor();
+			final ImageProcessor flatImage = AlignmentUtils.getFlatGrayImage( layer, patches, box2, scale );
 
 			ijSIFT.extractFeatures(
 					flatImage,
@@ -500,8 +499,6 @@ final public class AlignLayersTask
 
 			/////
 
-		final Loader loader = layerSet.getProject().getLoader();
-
 		// Not concurrent safe! So two copies, one per layer and Thread:
 		final SIFT ijSIFT1 = new SIFT( new FloatArray2DSIFT( p.sift ) );
 		final SIFT ijSIFT2 = new SIFT( new FloatArray2DSIFT( p.sift ) );
@@ -557,7 +554,7 @@ final public class AlignLayersTask
 			final Future<ImageProcessor> fu1 = exec.submit(new Callable<ImageProcessor>() {
 				@Override
 				public ImageProcessor call() {
-					final ImageProcessor ip1 = loader.getFlatImage( layer1, box1, scale, 0xffffffff, ImagePlus.GRAY8, Patch.class, patches1, true ).getProcessor();
+					final ImageProcessor ip1 = AlignmentUtils.getFlatGrayImage( layer1, patches1, box1, scale );
 					ijSIFT1.extractFeatures(
 							ip1,
 							features1 );
@@ -567,7 +564,7 @@ final public class AlignLayersTask
 			final Future<ImageProcessor> fu2 = exec.submit(new Callable<ImageProcessor>() {
 				@Override
 				public ImageProcessor call() {
-					final ImageProcessor ip2 = loader.getFlatImage( layer2, box2, scale, 0xffffffff, ImagePlus.GRAY8, Patch.class, patches2, true ).getProcessor();
+					final ImageProcessor ip2 = AlignmentUtils.getFlatGrayImage( layer2, patches2, box2, scale );
 					ijSIFT2.extractFeatures(
 							ip2,
 							features2 );
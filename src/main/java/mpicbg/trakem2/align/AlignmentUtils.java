@@ -18,9 +18,15 @@ package mpicbg.trakem2.align;
 
 
 import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.io.PackedLayerRenders;
 import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
@@ -40,6 +46,7 @@ import mpicbg.ij.SIFT;
 import mpicbg.imagefeatures.Feature;
 import mpicbg.imagefeatures.FloatArray2DSIFT;
 import mpicbg.trakem2.transform.ExportBestFlatImage;
+import mpicbg.trakem2.util.Pair;
 
 /**
  * @author Stephan Saalfeld saalfeld@mpi-cbg.de
@@ -103,6 +110,72 @@ final public class AlignmentUtils
 		return patches;
 	}
 
+	/**
+	 * Render @param patches of @param layer within @param box at @param scale
+	 * as an 8-bit gray image with {@link ExportBestFlatImage}, or reuse the
+	 * render cached in the project folder if the patches have not changed
+	 * since.
+	 */
+	final static public ByteProcessor makeFlatGrayImage( final Layer layer, final List< Patch > patches, final Rectangle box, final double scale )
+	{
+		final Loader loader = layer.getProject().getLoader();
+		final String dir = loader.getUNUIdFolder() + PackedLayerRenders.DIR_NAME;
+		final String key = PackedLayerRenders.contentKey( "best8", patches, box, scale, loader.isMipMapsRegenerationEnabled() );
+		if ( null != key )
+		{
+			final ByteProcessor bp = PackedLayerRenders.loadGray( dir, layer.getId(), "best8", scale, key );
+			if ( null != bp ) return bp;
+		}
+		final ByteProcessor bp = new ExportBestFlatImage( patches, box, 0, scale ).makeFlatGrayImage();
+		if ( null != key && null != bp )
+			PackedLayerRenders.saveGray( dir, layer.getId(), "best8", scale, key, bp );
+		return bp;
+	}
+
+	/**
+	 * Render @param patches of @param layer within @param box at @param scale
+	 * as a float gray image and its alpha channel, with values in [0..255],
+	 * with {@link ExportBestFlatImage}, or reuse the render cached in the
+	 * project folder if the patches have not changed since.
+	 */
+	final static public Pair< FloatProcessor, FloatProcessor > makeFlatFloatGrayImageAndAlpha( final Layer layer, final List< Patch > patches, final Rectangle box, final double scale )
+	{
+		final Loader loader = layer.getProject().getLoader();
+		final String dir = loader.getUNUIdFolder() + PackedLayerRenders.DIR_NAME;
+		final String key = PackedLayerRenders.contentKey( "bestF", patches, box, scale, loader.isMipMapsRegenerationEnabled() );
+		if ( null != key )
+		{
+			final Pair< FloatProcessor, FloatProcessor > pair = PackedLayerRenders.loadFloatAndAlpha( dir, layer.getId(), "bestF", scale, key );
+			if ( null != pair ) return pair;
+		}
+		final Pair< FloatProcessor, FloatProcessor > pair = new ExportBestFlatImage( patches, box, 0, scale ).makeFlatFloatGrayImageAndAlpha();
+		if ( null != key && null != pair )
+			PackedLayerRenders.saveFloatAndAlpha( dir, layer.getId(), "bestF", scale, key, pair );
+		return pair;
+	}
+
+	/**
+	 * Render @param patches of @param layer within @param box at @param scale
+	 * as an 8-bit gray image with {@link Loader#getFlatImage}, or reuse the
+	 * render cached in the project folder if the patches have not changed
+	 * since.
+	 */
+	final static public ImageProcessor getFlatGrayImage( final Layer layer, final List< Patch > patches, final Rectangle box, final double scale )
+	{
+		final Loader loader = layer.getProject().getLoader();
+		final String dir = loader.getUNUIdFolder() + PackedLayerRenders.DIR_NAME;
+		final String key = PackedLayerRenders.contentKey( "flat8", patches, box, scale, loader.isMipMapsRegenerationEnabled() );
+		if ( null != key )
+		{
+			final ByteProcessor bp = PackedLayerRenders.loadGray( dir, layer.getId(), "flat8", scale, key );
+			if ( null != bp ) return bp;
+		}
+		final ImageProcessor ip = loader.getFlatImage( layer, box, scale, 0xffffffff, ImagePlus.GRAY8, Patch.class, patches, true ).getProcessor();
+		if ( null != key && ip instanceof ByteProcessor )
+			PackedLayerRenders.saveGray( dir, layer.getId(), "flat8", scale, key, ( ByteProcessor )ip );
+		return ip;
+	}
+
 	/**
 	 * Extract SIFT features and save them into the project folder.
 	 *
@@ -216,7 +289,7 @@ final public class AlignmentUtils
                 final FloatArray2DSIFT sift = new FloatArray2DSIFT( siftParam );
                 final SIFT ijSIFT = new SIFT( sift );
                 fs = new ArrayList< Feature >();
-                ijSIFT.extractFeatures( new ExportBestFlatImage( patches, finalBox, 0, scale ).makeFlatGrayImage(), fs );
+                ijSIFT.extractFeatures( makeFlatGrayImage( layer, patches, finalBox, scale ), fs );
                 Utils.log( fs.size() + " features extracted for " + layerName );
 
                 if ( !mpicbg.trakem2.align.Util.serializeFeatures( layer.getProject(), siftParam, "layer", layer.getId(), fs ) )
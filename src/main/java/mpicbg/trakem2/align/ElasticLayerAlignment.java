@@ -20,12 +20,16 @@ package mpicbg.trakem2.align;
 import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -99,6 +103,16 @@ public class ElasticLayerAlignment
 
 		public boolean useTps = true;
 
+		/**
+		 * Align windows of this many layers independently, and stitch them
+		 * together; 0 aligns the whole range at once.
+		 */
+		public int windowSize = 0;
+		/** Layers shared by consecutive windows. */
+		public int windowOverlap = 10;
+		/** Windows aligned at the same time, each with all of its meshes and matches in memory. */
+		public int maxNumParallelWindows = 2;
+
 		public boolean setup( final Rectangle box )
 		{
 			/* Block Matching */
@@ -202,6 +216,11 @@ public class ElasticLayerAlignment
 			gdOptimize.addNumericField( "maximal_plateauwidth :", maxPlateauwidthSpringMesh, 0 );
 			gdOptimize.addCheckbox("use_legacy_optimizer :", useLegacyOptimizer);
 
+			gdOptimize.addMessage( "Block Partitioning (for long series, 0 to align all layers at once):" );
+			gdOptimize.addNumericField( "window_size :", windowSize, 0, 6, "layers" );
+			gdOptimize.addNumericField( "window_overlap :", windowOverlap, 0, 6, "layers" );
+			gdOptimize.addNumericField( "parallel_windows :", maxNumParallelWindows, 0 );
+
 			gdOptimize.showDialog();
 
 			if ( gdOptimize.wasCanceled() )
@@ -217,6 +236,10 @@ public class ElasticLayerAlignment
 			maxPlateauwidthSpringMesh = ( int )gdOptimize.getNextNumber();
 			useLegacyOptimizer = gdOptimize.getNextBoolean();
 
+			windowSize = ( int )gdOptimize.getNextNumber();
+			windowOverlap = ( int )gdOptimize.getNextNumber();
+			maxNumParallelWindows = ( int )gdOptimize.getNextNumber();
+
 			return true;
 		}
 
@@ -322,7 +345,7 @@ public class ElasticLayerAlignment
 		@Override
 		public Param clone()
 		{
-			return new Param(
+			final Param clone = new Param(
 					ppm.sift.fdBins,
 					ppm.sift.fdSize,
 					ppm.sift.initialSigma,
@@ -370,6 +393,12 @@ public class ElasticLayerAlignment
 					stiffnessSpringMesh,
 					useLocalSmoothnessFilter,
 					useTps );
+
+			clone.windowSize = windowSize;
+			clone.windowOverlap = windowOverlap;
+			clone.maxNumParallelWindows = maxNumParallelWindows;
+
+			return clone;
 		}
 	}
 
@@ -398,6 +427,329 @@ public class ElasticLayerAlignment
 			final boolean propagateTransformBefore,
 			final boolean propagateTransformAfter,
 			final Filter< Patch > filter ) throws Exception
+	{
+		if ( param.windowSize > 1 && layerRange.size() > param.windowSize )
+		{
+			execWindowed( param, project, layerRange, fixedLayers, emptyLayers, box, propagateTransformBefore, propagateTransformAfter, filter );
+			return;
+		}
+
+		final ArrayList< SpringMesh > meshes = alignMeshes( param, project, layerRange, fixedLayers, box, filter );
+		if ( null == meshes ) return;
+
+		/* translate relative to bounding box */
+		for ( final SpringMesh mesh : meshes )
+		{
+			for ( final PointMatch pm : mesh.getVA().keySet() )
+			{
+				final Point p1 = pm.getP1();
+				final Point p2 = pm.getP2();
+				final double[] l = p1.getL();
+				final double[] w = p2.getW();
+				l[ 0 ] = l[ 0 ] / param.layerScale + box.x;
+				l[ 1 ] = l[ 1 ] / param.layerScale + box.y;
+				w[ 0 ] = w[ 0 ] / param.layerScale + box.x;
+				w[ 1 ] = w[ 1 ] / param.layerScale + box.y;
+			}
+		}
+
+		final ArrayList< Set< PointMatch > > layerMatches = new ArrayList< Set< PointMatch > >( meshes.size() );
+		for ( final SpringMesh mesh : meshes )
+			layerMatches.add( mesh.getVA().keySet() );
+
+		applyLayerTransforms( param, project, layerRange, fixedLayers, emptyLayers, propagateTransformBefore, propagateTransformAfter, filter, layerMatches );
+	}
+
+	/**
+	 * The optimized vertex positions of the layers of one window, flattened as
+	 * x0, y0, x1, y1, ...  All meshes share the same grid of vertices, listed in
+	 * the same order in {@link #l}.
+	 */
+	final static private class WindowSolution
+	{
+		final double[] l;
+		final double[][] w;
+
+		WindowSolution( final List< SpringMesh > meshes )
+		{
+			w = new double[ meshes.size() ][];
+			double[] l = null;
+			for ( int i = 0; i < meshes.size(); ++i )
+			{
+				final ArrayList< PointMatch > matches = new ArrayList< PointMatch >( meshes.get( i ).getVA().keySet() );
+				Collections.sort( matches, new Comparator< PointMatch >()
+				{
+					@Override
+					public int compare( final PointMatch a, final PointMatch b )
+					{
+						final double[] la = a.getP1().getL(), lb = b.getP1().getL();
+						final int c = Double.compare( la[ 1 ], lb[ 1 ] );
+						return 0 == c ? Double.compare( la[ 0 ], lb[ 0 ] ) : c;
+					}
+				} );
+				if ( null == l )
+				{
+					l = new double[ 2 * matches.size() ];
+					for ( int v = 0; v < matches.size(); ++v )
+					{
+						final double[] lv = matches.get( v ).getP1().getL();
+						l[ 2 * v ] = lv[ 0 ];
+						l[ 2 * v + 1 ] = lv[ 1 ];
+					}
+				}
+				final double[] wi = new double[ 2 * matches.size() ];
+				for ( int v = 0; v < matches.size(); ++v )
+				{
+					final double[] wv = matches.get( v ).getP2().getW();
+					wi[ 2 * v ] = wv[ 0 ];
+					wi[ 2 * v + 1 ] = wv[ 1 ];
+				}
+				w[ i ] = wi;
+			}
+			this.l = l;
+		}
+	}
+
+	/**
+	 * Transform the vertices of @param solution, of the window @param k spanning the
+	 * layers @param window, by the approximate model that best maps them, in the layers
+	 * shared with the window @param targetWindow, onto those of @param target.
+	 */
+	final static private void register(
+			final Param param,
+			final int k,
+			final WindowSolution solution,
+			final int[] window,
+			final WindowSolution target,
+			final int[] targetWindow )
+	{
+		final AbstractModel< ? > model = Util.createModel( param.desiredModelIndex );
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+		for ( int i = Math.max( window[ 0 ], targetWindow[ 0 ] ); i < Math.min( window[ 1 ], targetWindow[ 1 ] ); ++i )
+		{
+			final double[] w = solution.w[ i - window[ 0 ] ];
+			final double[] wTarget = target.w[ i - targetWindow[ 0 ] ];
+			for ( int v = 0; v < w.length; v += 2 )
+				matches.add( new PointMatch(
+						new Point( new double[]{ w[ v ], w[ v + 1 ] } ),
+						new Point( new double[]{ wTarget[ v ], wTarget[ v + 1 ] } ) ) );
+		}
+		try
+		{
+			model.fit( matches );
+		}
+		catch ( final Exception e )
+		{
+			Utils.log( "Could not register window " + k + " to its neighbor: " + e );
+			return;
+		}
+		final double[] x = new double[ 2 ];
+		for ( final double[] w : solution.w )
+		{
+			for ( int v = 0; v < w.length; v += 2 )
+			{
+				x[ 0 ] = w[ v ];
+				x[ 1 ] = w[ v + 1 ];
+				model.applyInPlace( x );
+				w[ v ] = x[ 0 ];
+				w[ v + 1 ] = x[ 1 ];
+			}
+		}
+	}
+
+	/**
+	 * Align a long series in overlapping windows of {@link Param#windowSize} layers.
+	 *
+	 * Windows are aligned independently, up to {@link Param#maxNumParallelWindows}
+	 * at a time, so that only the spring meshes and block matches of those windows
+	 * are in memory at once; of each window, only the optimized vertex positions are
+	 * kept. The windows are then stitched outward from those that contain fixed layers,
+	 * which stay as they are, or from the first one if none does: each later window is
+	 * transformed by the approximate model that best maps the vertices of its overlap
+	 * onto those of its already registered predecessor, and each earlier window onto
+	 * those of its successor. Finally, the vertices of the overlapping layers are
+	 * blended linearly from one window's solution into the next.
+	 *
+	 * The overlap is at most half a window, so that each layer is in at most two windows.
+	 */
+	final protected void execWindowed(
+			final Param param,
+			final Project project,
+			final List< Layer > layerRange,
+			final Set< Layer > fixedLayers,
+			final Set< Layer > emptyLayers,
+			final Rectangle box,
+			final boolean propagateTransformBefore,
+			final boolean propagateTransformAfter,
+			final Filter< Patch > filter ) throws Exception
+	{
+		final int n = layerRange.size();
+		final int overlap = Math.max( 1, Math.min( param.windowSize / 2, param.windowOverlap ) );
+		final int step = param.windowSize - overlap;
+
+		final ArrayList< int[] > windows = new ArrayList< int[] >();
+		for ( int start = 0;; start += step )
+		{
+			final int end = Math.min( n, start + param.windowSize );
+			windows.add( new int[]{ start, end } );
+			if ( n == end ) break;
+		}
+
+		Utils.log( "Aligning " + n + " layers in " + windows.size() + " windows of " + param.windowSize + " layers overlapping by " + overlap + " layers." );
+
+		final ExecutorService exec = Utils.newFixedThreadPool( Math.max( 1, Math.min( windows.size(), param.maxNumParallelWindows ) ), "T2-ElasticWindows" );
+		final ArrayList< Future< WindowSolution > > futures = new ArrayList< Future< WindowSolution > >( windows.size() );
+		final double[][] stitched = new double[ n ][];
+		double[] l = null;
+
+		try
+		{
+			for ( final int[] window : windows )
+			{
+				final List< Layer > subRange = layerRange.subList( window[ 0 ], window[ 1 ] );
+				futures.add( exec.submit( new Callable< WindowSolution >()
+				{
+					@Override
+					public WindowSolution call() throws Exception
+					{
+						Utils.log( "Aligning window of " + layerName( subRange.get( 0 ) ) + " to " + layerName( subRange.get( subRange.size() - 1 ) ) );
+						final ArrayList< SpringMesh > meshes = alignMeshes( param, project, subRange, fixedLayers, box, filter );
+						return null == meshes ? null : new WindowSolution( meshes );
+					}
+				} ) );
+			}
+
+			final WindowSolution[] solutions = new WindowSolution[ windows.size() ];
+			final boolean[] anchored = new boolean[ windows.size() ];
+			boolean anyAnchored = false;
+			for ( int k = 0; k < windows.size(); ++k )
+			{
+				final int start = windows.get( k )[ 0 ];
+				final int end = windows.get( k )[ 1 ];
+				solutions[ k ] = futures.get( k ).get();
+				futures.set( k, null ); // release the window
+				if ( null == solutions[ k ] )
+				{
+					Utils.log( "Could not align the window of " + layerName( layerRange.get( start ) ) + " to " + layerName( layerRange.get( end - 1 ) ) + ", giving up." );
+					return;
+				}
+				for ( final Layer layer : layerRange.subList( start, end ) )
+					anchored[ k ] |= fixedLayers.contains( layer );
+				anyAnchored |= anchored[ k ];
+			}
+			l = solutions[ 0 ].l;
+
+			/* register the windows outward from those with fixed layers, or from the first one if none has any:
+			 * later windows forward, each to its predecessor, and earlier windows backward, each to its successor */
+			final boolean[] registered = anchored.clone();
+			if ( !anyAnchored ) registered[ 0 ] = true;
+			for ( int k = 1; k < windows.size(); ++k )
+			{
+				if ( registered[ k ] || !registered[ k - 1 ] ) continue;
+				register( param, k, solutions[ k ], windows.get( k ), solutions[ k - 1 ], windows.get( k - 1 ) );
+				registered[ k ] = true;
+			}
+			for ( int k = windows.size() - 2; k >= 0; --k )
+			{
+				if ( registered[ k ] || !registered[ k + 1 ] ) continue;
+				register( param, k, solutions[ k ], windows.get( k ), solutions[ k + 1 ], windows.get( k + 1 ) );
+				registered[ k ] = true;
+			}
+
+			/* blend the overlaps linearly from one window into the next, and report how well the windows agree in them */
+			for ( int k = 0; k < windows.size(); ++k )
+			{
+				final int start = windows.get( k )[ 0 ];
+				final int end = windows.get( k )[ 1 ];
+				final int overlapEnd = 0 == k ? start : windows.get( k - 1 )[ 1 ];
+				double sumDisplacement = 0, maxDisplacement = 0;
+				int numVertices = 0;
+				for ( int i = start; i < end; ++i )
+				{
+					final double[] wCurrent = solutions[ k ].w[ i - start ];
+					if ( i >= overlapEnd )
+					{
+						stitched[ i ] = wCurrent;
+						continue;
+					}
+					final double[] wStitched = stitched[ i ];
+					final double t = ( i - start + 1.0 ) / ( overlapEnd - start + 1.0 );
+					final boolean fixed = fixedLayers.contains( layerRange.get( i ) );
+					for ( int v = 0; v < wCurrent.length; v += 2 )
+					{
+						final double dx = wCurrent[ v ] - wStitched[ v ];
+						final double dy = wCurrent[ v + 1 ] - wStitched[ v + 1 ];
+						final double d = Math.sqrt( dx * dx + dy * dy );
+						sumDisplacement += d;
+						maxDisplacement = Math.max( maxDisplacement, d );
+						++numVertices;
+						if ( !fixed )
+						{
+							wStitched[ v ] += t * dx;
+							wStitched[ v + 1 ] += t * dy;
+						}
+					}
+				}
+				if ( k > 0 )
+					Utils.log( "Stitched window " + k + ": the windows disagree in their overlap by " +
+							String.format( "%.3f", sumDisplacement / Math.max( 1, numVertices ) / param.layerScale ) + "px on average, " +
+							String.format( "%.3f", maxDisplacement / param.layerScale ) + "px at most." );
+			}
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+
+		/* vertex matches in world coordinates, made one layer at a time */
+		final double[] vertices = l;
+		final List< Set< PointMatch > > layerMatches = new AbstractList< Set< PointMatch > >()
+		{
+			@Override
+			public Set< PointMatch > get( final int i )
+			{
+				final double[] wi = stitched[ i ];
+				final HashSet< PointMatch > matches = new HashSet< PointMatch >();
+				for ( int v = 0; v < vertices.length; v += 2 )
+				{
+					final Point p1 = new Point( new double[]{
+							vertices[ v ] / param.layerScale + box.x,
+							vertices[ v + 1 ] / param.layerScale + box.y } );
+					final Point p2 = new Point( p1.getL().clone() );
+					final double[] w = p2.getW();
+					w[ 0 ] = wi[ v ] / param.layerScale + box.x;
+					w[ 1 ] = wi[ v + 1 ] / param.layerScale + box.y;
+					matches.add( new PointMatch( p1, p2 ) );
+				}
+				return matches;
+			}
+
+			@Override
+			public int size()
+			{
+				return stitched.length;
+			}
+		};
+
+		applyLayerTransforms( param, project, layerRange, fixedLayers, emptyLayers, propagateTransformBefore, propagateTransformAfter, filter, layerMatches );
+	}
+
+	/**
+	 * Block match all pairs of layers in @param layerRange, pre-align them by
+	 * a piecewise linear model and optimize their spring meshes.
+	 *
+	 * @return the optimized spring meshes, one per layer in @param layerRange,
+	 *   in the coordinates of @param box scaled by {@link Param#layerScale};
+	 *   or null if they could not be optimized.
+	 */
+	@SuppressWarnings( "deprecation" )
+	final protected ArrayList< SpringMesh > alignMeshes(
+			final Param param,
+			final Project project,
+			final List< Layer > layerRange,
+			final Set< Layer > fixedLayers,
+			final Rectangle box,
+			final Filter< Patch > filter ) throws Exception
 	{
         final ExecutorService service = ExecutorProvider.getExecutorService(1.0f);
 
@@ -424,7 +776,7 @@ public class ElasticLayerAlignment
 				tiles.add( new Tile< HomographyModel2D >( new HomographyModel2D() ) );
 				break;
 			default:
-				return;
+				return null;
 			}
 		}
 
@@ -647,25 +999,29 @@ public class ElasticLayerAlignment
 		{
 			Utils.log( "There were not enough data points to get the spring mesh optimizing." );
 			e.printStackTrace();
-			return;
+			return null;
 		}
 
-		/* translate relative to bounding box */
-		for ( final SpringMesh mesh : meshes )
-		{
-			for ( final PointMatch pm : mesh.getVA().keySet() )
-			{
-				final Point p1 = pm.getP1();
-				final Point p2 = pm.getP2();
-				final double[] l = p1.getL();
-				final double[] w = p2.getW();
-				l[ 0 ] = l[ 0 ] / param.layerScale + box.x;
-				l[ 1 ] = l[ 1 ] / param.layerScale + box.y;
-				w[ 0 ] = w[ 0 ] / param.layerScale + box.x;
-				w[ 1 ] = w[ 1 ] / param.layerScale + box.y;
-			}
-		}
+		return meshes;
+	}
 
+	/**
+	 * Transform the patches and vector data of the layers in @param layerRange,
+	 * and, if requested, of the layers before and after, by thin plate splines
+	 * through @param layerMatches, one set of vertex matches per layer in world
+	 * coordinates.
+	 */
+	final protected void applyLayerTransforms(
+			final Param param,
+			final Project project,
+			final List< Layer > layerRange,
+			final Set< Layer > fixedLayers,
+			final Set< Layer > emptyLayers,
+			final boolean propagateTransformBefore,
+			final boolean propagateTransformAfter,
+			final Filter< Patch > filter,
+			final List< ? extends Set< PointMatch > > layerMatches ) throws Exception
+	{
 		/* free memory */
 		project.getLoader().releaseAll();
 
@@ -688,7 +1044,7 @@ public class ElasticLayerAlignment
 		{
 			if ( propagateTransformBefore )
 			{
-				final ThinPlateSplineTransform tps = makeTPS( meshes.get( 0 ).getVA().keySet() );
+				final ThinPlateSplineTransform tps = makeTPS( layerMatches.get( 0 ) );
 				final int firstLayerIndex = first.getParent().getLayerIndex( first.getId() );
 				for ( int i = 0; i < firstLayerIndex; ++i )
                 {
@@ -705,10 +1061,10 @@ public class ElasticLayerAlignment
 				final Layer last = layerRange.get( layerRange.size() - 1 );
 				final CoordinateTransform ct;
 				if ( param.useTps )
-					ct = makeTPS( meshes.get( meshes.size() - 1 ).getVA().keySet() );
+					ct = makeTPS( layerMatches.get( layerMatches.size() - 1 ) );
 				else {
 					final MovingLeastSquaresTransform2 mls = new MovingLeastSquaresTransform2();
-					mls.setMatches( meshes.get( meshes.size() - 1 ).getVA().keySet() );
+					mls.setMatches( layerMatches.get( layerMatches.size() - 1 ) );
 					ct = mls;
 				}
 				final int lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
@@ -728,7 +1084,7 @@ public class ElasticLayerAlignment
 			IJ.showProgress( 0, layerRange.size() );
 
 			final Layer layer = layerRange.get( l );
-			final ThinPlateSplineTransform tps = makeTPS( meshes.get( l ).getVA().keySet() );
+			final ThinPlateSplineTransform tps = makeTPS( layerMatches.get( l ) );
 			applyTransformToLayer( layer, tps, filter );
             for (final VectorData vd : vectorData)
             {
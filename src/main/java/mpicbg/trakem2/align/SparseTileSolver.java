@@ -0,0 +1,640 @@
+package mpicbg.trakem2.align;
+
+import ini.trakem2.utils.Utils;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+
+/**
+ * Solves a configuration of {@link AbstractAffineTile2D tiles} connected by
+ * {@link PointMatch point matches} at once, as a sparse linear least-squares problem,
+ * instead of relaxing one tile at a time as {@link mpicbg.models.TileConfiguration#optimize} does.
+ *
+ * Every tile gets a linear model: a translation (2 parameters), a similarity (4 parameters),
+ * which is the linearization of a rigid model, or an affine (6 parameters). The sum over all
+ * point matches of the squared distances between the transformed points of either tile is
+ * minimized by solving its normal equations, a block-sparse symmetric positive definite system
+ * with one block row per tile, with the conjugate gradient method preconditioned by the inverse
+ * of the diagonal blocks (block Jacobi), starting from the current models of the tiles.
+ * Assembly, the products of the matrix with vectors, and the vector operations run in parallel.
+ *
+ * Fixed tiles keep their models, and so do the owners of points that belong to no tile
+ * in the configuration, such as virtual matches: their points are fixed targets.
+ * Each connected graph of tiles without any fixed tile gets its first tile fixed,
+ * which would otherwise collapse to a single point.
+ *
+ * Once solved, the model of each tile is fit to its point matches as mapped by its linear solution,
+ * which projects the solution into the model class of the tile (rigid, regularized, etc.).
+ */
+public final class SparseTileSolver
+{
+	static public final int TRANSLATION = 0,
+	                        SIMILARITY = 1,
+	                        AFFINE = 2;
+
+	/** Number of parameters of each kind of linear model. */
+	static private final int[] N_PARAMS = new int[]{ 2, 4, 6 };
+
+	/** Relative damping of the diagonal blocks, to keep them invertible. */
+	static private final double DAMPING = 1e-9;
+
+	/** Relative residual at which the conjugate gradients stop, well below any pixel error. */
+	static public final double DEFAULT_TOLERANCE = 1e-10;
+
+	/** Iterations of relaxation that suffice to bring a solution from here into a model class
+	 *  that is not solved exactly, such as rigid or regularized models. */
+	static public final int POLISH_ITERATIONS = 200;
+
+	/** Metrics of a solve. */
+	static public final class Result
+	{
+		/** Free tiles and the number of unknowns. */
+		public int nTiles, nUnknowns;
+		/** Off-diagonal blocks of the normal matrix. */
+		public long nBlocks;
+		/** Conjugate gradient iterations. */
+		public int iterations;
+		/** Norm of the residual of the normal equations, relative to that of their right-hand side, before and after. */
+		public double initialResidual, finalResidual;
+		public boolean converged;
+		public long assemblyMillis, solveMillis, fitMillis;
+
+		@Override
+		public String toString()
+		{
+			return new StringBuilder( "Sparse solver: " ).append( nTiles ).append( " tiles, " ).append( nUnknowns ).append( " unknowns, " ).append( nBlocks ).append( " off-diagonal blocks\n" )
+				.append( "  " ).append( iterations ).append( " PCG iterations, relative residual " ).append( initialResidual ).append( " -> " ).append( finalResidual )
+				.append( converged ? "" : " (not converged)" ).append( '\n' )
+				.append( "  assembly " ).append( assemblyMillis ).append( " ms, solve " ).append( solveMillis ).append( " ms, model fit " ).append( fitMillis ).append( " ms" )
+				.toString();
+		}
+	}
+
+	/** A linear model: for a point p, its transformed coordinate d is J_d(p) &middot; params + c_d(p). */
+	static private final void jacobian( final int type, final double[] p, final double[] jx, final double[] jy, final double[] c )
+	{
+		final double x = p[ 0 ], y = p[ 1 ];
+		switch ( type )
+		{
+		case TRANSLATION:
+			jx[ 0 ] = 1; jx[ 1 ] = 0;
+			jy[ 0 ] = 0; jy[ 1 ] = 1;
+			c[ 0 ] = x; c[ 1 ] = y;
+			break;
+		case SIMILARITY:
+			// x' = a x - b y + tx, y' = b x + a y + ty
+			jx[ 0 ] = x; jx[ 1 ] = -y; jx[ 2 ] = 1; jx[ 3 ] = 0;
+			jy[ 0 ] = y; jy[ 1 ] = x;  jy[ 2 ] = 0; jy[ 3 ] = 1;
+			c[ 0 ] = 0; c[ 1 ] = 0;
+			break;
+		default:
+			jx[ 0 ] = x; jx[ 1 ] = y; jx[ 2 ] = 1; jx[ 3 ] = 0; jx[ 4 ] = 0; jx[ 5 ] = 0;
+			jy[ 0 ] = 0; jy[ 1 ] = 0; jy[ 2 ] = 0; jy[ 3 ] = x; jy[ 4 ] = y; jy[ 5 ] = 1;
+			c[ 0 ] = 0; c[ 1 ] = 0;
+			break;
+		}
+	}
+
+	/** The parameters of the linear model closest to @param at, in @param params from @param offset. */
+	static private final void parameters( final int type, final AffineTransform at, final double[] params, final int offset )
+	{
+		switch ( type )
+		{
+		case TRANSLATION:
+			params[ offset ] = at.getTranslateX();
+			params[ offset + 1 ] = at.getTranslateY();
+			break;
+		case SIMILARITY:
+			params[ offset ] = 0.5 * ( at.getScaleX() + at.getScaleY() );
+			params[ offset + 1 ] = 0.5 * ( at.getShearY() - at.getShearX() );
+			params[ offset + 2 ] = at.getTranslateX();
+			params[ offset + 3 ] = at.getTranslateY();
+			break;
+		default:
+			params[ offset ] = at.getScaleX();
+			params[ offset + 1 ] = at.getShearX();
+			params[ offset + 2 ] = at.getTranslateX();
+			params[ offset + 3 ] = at.getShearY();
+			params[ offset + 4 ] = at.getScaleY();
+			params[ offset + 5 ] = at.getTranslateY();
+			break;
+		}
+	}
+
+	/** Transform @param p by the linear model with @param params from @param offset. */
+	static private final double[] transform( final int type, final double[] params, final int offset, final double[] p )
+	{
+		final double x = p[ 0 ], y = p[ 1 ];
+		switch ( type )
+		{
+		case TRANSLATION:
+			return new double[]{ x + params[ offset ], y + params[ offset + 1 ] };
+		case SIMILARITY:
+			return new double[]{
+				params[ offset ] * x - params[ offset + 1 ] * y + params[ offset + 2 ],
+				params[ offset + 1 ] * x + params[ offset ] * y + params[ offset + 3 ] };
+		default:
+			return new double[]{
+				params[ offset ] * x + params[ offset + 1 ] * y + params[ offset + 2 ],
+				params[ offset + 3 ] * x + params[ offset + 4 ] * y + params[ offset + 5 ] };
+		}
+	}
+
+	final private int type, k, n, numThreads;
+	final private ExecutorService exec;
+	/** Per free tile: the columns of its off-diagonal blocks, the blocks, the inverse of its diagonal block, row-major k by k. */
+	final private int[][] cols;
+	final private double[][][] blocks;
+	final private double[][] diagonal, inverse;
+	final private double[] rhs;
+	/** Tasks per vector operation, and their ranges of tiles. */
+	final private int nChunks;
+
+	private SparseTileSolver( final int type, final int n, final int numThreads, final ExecutorService exec )
+	{
+		this.type = type;
+		this.k = N_PARAMS[ type ];
+		this.n = n;
+		this.numThreads = numThreads;
+		this.exec = exec;
+		this.cols = new int[ n ][];
+		this.blocks = new double[ n ][][];
+		this.diagonal = new double[ n ][];
+		this.inverse = new double[ n ][];
+		this.rhs = new double[ n * k ];
+		this.nChunks = Math.max( 1, Math.min( n, 4 * numThreads ) );
+	}
+
+	/**
+	 * Solve the configuration of @param tiles, of which those in @param fixedTiles don't move,
+	 * and update the models of the others.
+	 *
+	 * @param type {@link #TRANSLATION}, {@link #SIMILARITY} or {@link #AFFINE}
+	 * @param maxIterations of the conjugate gradient method
+	 * @param tolerance of the norm of the residual, relative to that of the right-hand side
+	 * @return the metrics of the solve
+	 */
+	static public final Result solve(
+			final Collection< ? extends AbstractAffineTile2D< ? > > tiles,
+			final Collection< ? extends Tile< ? > > fixedTiles,
+			final int type,
+			final int maxIterations,
+			final double tolerance,
+			final int numThreads ) throws Exception
+	{
+		final Result result = new Result();
+		final long t0 = System.currentTimeMillis();
+
+		final Set< Tile< ? > > fixed = new HashSet< Tile< ? > >();
+		if ( null != fixedTiles ) fixed.addAll( fixedTiles );
+		final Set< Tile< ? > > all = new HashSet< Tile< ? > >( tiles );
+		fixFloatingGraphs( tiles, fixed );
+
+		final ArrayList< AbstractAffineTile2D< ? > > free = new ArrayList< AbstractAffineTile2D< ? > >();
+		for ( final AbstractAffineTile2D< ? > t : tiles )
+			if ( !fixed.contains( t ) && t.getMatches().size() > 0 ) free.add( t );
+		result.nTiles = free.size();
+		if ( free.isEmpty() ) return result;
+
+		// Which tile each point belongs to
+		final IdentityHashMap< Point, Tile< ? > > owners = new IdentityHashMap< Point, Tile< ? > >();
+		for ( final AbstractAffineTile2D< ? > t : tiles )
+			for ( final PointMatch m : t.getMatches() )
+				owners.put( m.getP1(), t );
+		final HashMap< Tile< ? >, Integer > index = new HashMap< Tile< ? >, Integer >();
+		for ( int i = 0; i < free.size(); ++i )
+			index.put( free.get( i ), i );
+
+		final int nThreads = Math.max( 1, numThreads );
+		final ExecutorService exec = Utils.newFixedThreadPool( nThreads, "T2-TileSolver" );
+		try
+		{
+			final SparseTileSolver solver = new SparseTileSolver( type, free.size(), nThreads, exec );
+			result.nUnknowns = free.size() * solver.k;
+
+			// Assemble the normal equations, one block row per tile
+			solver.forEachChunk( new Chunk()
+			{
+				@Override
+				public void run( final int from, final int to, final int chunk )
+				{
+					for ( int i = from; i < to; ++i )
+						solver.assemble( i, free.get( i ), owners, index, fixed, all );
+				}
+			} );
+			for ( int i = 0; i < free.size(); ++i )
+				result.nBlocks += solver.cols[ i ].length;
+			final long t1 = System.currentTimeMillis();
+			result.assemblyMillis = t1 - t0;
+
+			// Start from the current models
+			final double[] x = new double[ free.size() * solver.k ];
+			for ( int i = 0; i < free.size(); ++i )
+				parameters( type, free.get( i ).createAffine(), x, i * solver.k );
+
+			solver.pcg( x, maxIterations, tolerance, result );
+			final long t2 = System.currentTimeMillis();
+			result.solveMillis = t2 - t1;
+
+			// Fit the model of each tile to its matches as mapped by the solution
+			solver.forEachChunk( new Chunk()
+			{
+				@Override
+				public void run( final int from, final int to, final int chunk ) throws Exception
+				{
+					for ( int i = from; i < to; ++i )
+					{
+						final AbstractAffineTile2D< ? > t = free.get( i );
+						final ArrayList< PointMatch > targets = new ArrayList< PointMatch >( t.getMatches().size() );
+						for ( final PointMatch m : t.getMatches() )
+						{
+							final double[] l = m.getP1().getL();
+							targets.add( new PointMatch( new Point( l.clone() ), new Point( transform( type, x, i * solver.k, l ) ), m.getWeight() ) );
+						}
+						try
+						{
+							t.getModel().fit( targets );
+						}
+						catch ( final Exception e )
+						{
+							Utils.log2( "Could not fit the model of tile " + t.getPatch() + " to its solution: " + e );
+						}
+					}
+				}
+			} );
+			for ( final AbstractAffineTile2D< ? > t : tiles )
+			{
+				t.apply();
+				t.updateCost();
+			}
+			result.fitMillis = System.currentTimeMillis() - t2;
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+		return result;
+	}
+
+	/** Add to @param fixed the first tile of each connected graph of @param tiles without any fixed tile. */
+	static final void fixFloatingGraphs( final Collection< ? extends Tile< ? > > tiles, final Set< Tile< ? > > fixed )
+	{
+		final HashSet< Tile< ? > > visited = new HashSet< Tile< ? > >();
+		for ( final Tile< ? > t : tiles )
+		{
+			if ( visited.contains( t ) || t.getConnectedTiles().isEmpty() ) continue;
+			// Breadth-first, not recursive: graphs may have 100k tiles
+			final LinkedList< Tile< ? > > queue = new LinkedList< Tile< ? > >();
+			queue.add( t );
+			visited.add( t );
+			boolean hasFixed = false;
+			while ( !queue.isEmpty() )
+			{
+				final Tile< ? > u = queue.removeFirst();
+				if ( fixed.contains( u ) ) hasFixed = true;
+				for ( final Tile< ? > v : u.getConnectedTiles() )
+					if ( visited.add( v ) ) queue.add( v );
+			}
+			if ( !hasFixed ) fixed.add( t );
+		}
+	}
+
+	/** Fill in the block row @param i, of tile @param t. */
+	private void assemble(
+			final int i,
+			final AbstractAffineTile2D< ? > t,
+			final Map< Point, Tile< ? > > owners,
+			final Map< Tile< ? >, Integer > index,
+			final Set< Tile< ? > > fixed,
+			final Set< Tile< ? > > all )
+	{
+		final double[] diag = new double[ k * k ];
+		final HashMap< Integer, double[] > offDiagonal = new HashMap< Integer, double[] >();
+		final double[] jpx = new double[ k ], jpy = new double[ k ], cp = new double[ 2 ],
+		               jqx = new double[ k ], jqy = new double[ k ], cq = new double[ 2 ];
+		final int o = i * k;
+
+		for ( final PointMatch m : t.getMatches() )
+		{
+			final double w = m.getWeight();
+			jacobian( type, m.getP1().getL(), jpx, jpy, cp );
+			for ( int r = 0; r < k; ++r )
+				for ( int c = 0; c < k; ++c )
+					diag[ r * k + c ] += w * ( jpx[ r ] * jpx[ c ] + jpy[ r ] * jpy[ c ] );
+
+			final Tile< ? > owner = owners.get( m.getP2() );
+			final Integer j = null == owner ? null : index.get( owner );
+			if ( null != j )
+			{
+				// Another free tile: an off-diagonal block
+				jacobian( type, m.getP2().getL(), jqx, jqy, cq );
+				double[] block = offDiagonal.get( j );
+				if ( null == block )
+				{
+					block = new double[ k * k ];
+					offDiagonal.put( j, block );
+				}
+				for ( int r = 0; r < k; ++r )
+				{
+					for ( int c = 0; c < k; ++c )
+						block[ r * k + c ] -= w * ( jpx[ r ] * jqx[ c ] + jpy[ r ] * jqy[ c ] );
+					rhs[ o + r ] += w * ( jpx[ r ] * ( cq[ 0 ] - cp[ 0 ] ) + jpy[ r ] * ( cq[ 1 ] - cp[ 1 ] ) );
+				}
+			}
+			else
+			{
+				// A fixed target: where a fixed tile maps it, or where it is now if it belongs to no tile of the configuration
+				final double[] target = null != owner && fixed.contains( owner ) && all.contains( owner )
+						? owner.getModel().apply( m.getP2().getL() )
+						: m.getP2().getW();
+				for ( int r = 0; r < k; ++r )
+					rhs[ o + r ] += w * ( jpx[ r ] * ( target[ 0 ] - cp[ 0 ] ) + jpy[ r ] * ( target[ 1 ] - cp[ 1 ] ) );
+			}
+		}
+
+		double trace = 0;
+		for ( int r = 0; r < k; ++r ) trace += diag[ r * k + r ];
+		final double damping = DAMPING * Math.max( trace / k, 1 );
+		for ( int r = 0; r < k; ++r ) diag[ r * k + r ] += damping;
+
+		final int[] cs = new int[ offDiagonal.size() ];
+		final double[][] bs = new double[ cs.length ][];
+		int b = 0;
+		for ( final Map.Entry< Integer, double[] > e : offDiagonal.entrySet() )
+		{
+			cs[ b ] = e.getKey();
+			bs[ b ] = e.getValue();
+			++b;
+		}
+		cols[ i ] = cs;
+		blocks[ i ] = bs;
+		diagonal[ i ] = diag;
+		inverse[ i ] = invert( diag, k );
+	}
+
+	/** Gauss-Jordan inverse, with partial pivoting, of the @param k by @param k matrix @param a. */
+	static private final double[] invert( final double[] a, final int k )
+	{
+		final double[] m = a.clone();
+		final double[] inv = new double[ k * k ];
+		for ( int r = 0; r < k; ++r ) inv[ r * k + r ] = 1;
+		for ( int c = 0; c < k; ++c )
+		{
+			int pivot = c;
+			for ( int r = c + 1; r < k; ++r )
+				if ( Math.abs( m[ r * k + c ] ) > Math.abs( m[ pivot * k + c ] ) ) pivot = r;
+			if ( pivot != c )
+			{
+				for ( int j = 0; j < k; ++j )
+				{
+					double tmp = m[ c * k + j ]; m[ c * k + j ] = m[ pivot * k + j ]; m[ pivot * k + j ] = tmp;
+					tmp = inv[ c * k + j ]; inv[ c * k + j ] = inv[ pivot * k + j ]; inv[ pivot * k + j ] = tmp;
+				}
+			}
+			final double d = m[ c * k + c ];
+			if ( 0 == d )
+			{
+				// Singular even with damping: fall back to no preconditioning for this tile
+				final double[] identity = new double[ k * k ];
+				for ( int r = 0; r < k; ++r ) identity[ r * k + r ] = 1;
+				return identity;
+			}
+			for ( int j = 0; j < k; ++j )
+			{
+				m[ c * k + j ] /= d;
+				inv[ c * k + j ] /= d;
+			}
+			for ( int r = 0; r < k; ++r )
+			{
+				if ( r == c ) continue;
+				final double f = m[ r * k + c ];
+				if ( 0 == f ) continue;
+				for ( int j = 0; j < k; ++j )
+				{
+					m[ r * k + j ] -= f * m[ c * k + j ];
+					inv[ r * k + j ] -= f * inv[ c * k + j ];
+				}
+			}
+		}
+		return inv;
+	}
+
+	static private interface Chunk
+	{
+		/** Process the tiles in [from, to), which are the @param chunk-th range. */
+		public void run( int from, int to, int chunk ) throws Exception;
+	}
+
+	/** Run @param op on ranges of tiles in parallel, and wait for all. */
+	private void forEachChunk( final Chunk op ) throws Exception
+	{
+		final int size = ( n + nChunks - 1 ) / nChunks;
+		if ( 1 == numThreads || 1 == nChunks )
+		{
+			for ( int c = 0; c < nChunks; ++c ) op.run( c * size, Math.min( n, ( c + 1 ) * size ), c );
+			return;
+		}
+		final List< Future< ? > > fus = new ArrayList< Future< ? > >( nChunks );
+		for ( int c = 0; c < nChunks; ++c )
+		{
+			final int chunk = c,
+			          from = c * size,
+			          to = Math.min( n, from + size );
+			fus.add( exec.submit( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					op.run( from, to, chunk );
+					return null;
+				}
+			} ) );
+		}
+		try
+		{
+			for ( final Future< ? > fu : fus ) fu.get();
+		}
+		catch ( final ExecutionException ee )
+		{
+			for ( final Future< ? > fu : fus ) fu.cancel( true );
+			throw ee.getCause() instanceof Exception ? ( Exception )ee.getCause() : ee;
+		}
+		catch ( final InterruptedException ie )
+		{
+			for ( final Future< ? > fu : fus ) fu.cancel( true );
+			throw ie;
+		}
+	}
+
+	/** @param y = A @param x */
+	private void multiply( final double[] x, final double[] y ) throws Exception
+	{
+		forEachChunk( new Chunk()
+		{
+			@Override
+			public void run( final int from, final int to, final int chunk )
+			{
+				for ( int i = from; i < to; ++i )
+				{
+					final int o = i * k;
+					for ( int r = 0; r < k; ++r )
+					{
+						double s = 0;
+						final double[] d = diagonal[ i ];
+						for ( int c = 0; c < k; ++c ) s += d[ r * k + c ] * x[ o + c ];
+						for ( int b = 0; b < cols[ i ].length; ++b )
+						{
+							final double[] block = blocks[ i ][ b ];
+							final int oc = cols[ i ][ b ] * k;
+							for ( int c = 0; c < k; ++c ) s += block[ r * k + c ] * x[ oc + c ];
+						}
+						y[ o + r ] = s;
+					}
+				}
+			}
+		} );
+	}
+
+	/** @param z = M^-1 @param r, with M the block diagonal; returns r &middot; z. */
+	private double precondition( final double[] r, final double[] z ) throws Exception
+	{
+		final double[] partial = new double[ nChunks ];
+		forEachChunk( new Chunk()
+		{
+			@Override
+			public void run( final int from, final int to, final int chunk )
+			{
+				double sum = 0;
+				for ( int i = from; i < to; ++i )
+				{
+					final int o = i * k;
+					final double[] inv = inverse[ i ];
+					for ( int a = 0; a < k; ++a )
+					{
+						double s = 0;
+						for ( int c = 0; c < k; ++c ) s += inv[ a * k + c ] * r[ o + c ];
+						z[ o + a ] = s;
+						sum += r[ o + a ] * s;
+					}
+				}
+				partial[ chunk ] = sum;
+			}
+		} );
+		return sum( partial );
+	}
+
+	private double dot( final double[] a, final double[] b ) throws Exception
+	{
+		final double[] partial = new double[ nChunks ];
+		forEachChunk( new Chunk()
+		{
+			@Override
+			public void run( final int from, final int to, final int chunk )
+			{
+				double sum = 0;
+				for ( int i = from * k; i < to * k; ++i ) sum += a[ i ] * b[ i ];
+				partial[ chunk ] = sum;
+			}
+		} );
+		return sum( partial );
+	}
+
+	static private final double sum( final double[] partial )
+	{
+		double s = 0;
+		for ( final double p : partial ) s += p;
+		return s;
+	}
+
+	/** Preconditioned conjugate gradient, from and into @param x. */
+	private void pcg( final double[] x, final int maxIterations, final double tolerance, final Result result ) throws Exception
+	{
+		final int size = n * k;
+		final double[] r = new double[ size ],
+		               z = new double[ size ],
+		               p = new double[ size ],
+		               q = new double[ size ];
+
+		// r = b - A x
+		multiply( x, q );
+		for ( int i = 0; i < size; ++i ) r[ i ] = rhs[ i ] - q[ i ];
+
+		final double bNorm = Math.sqrt( dot( rhs, rhs ) );
+		final double scale = 0 == bNorm ? 1 : bNorm;
+		double rNorm = Math.sqrt( dot( r, r ) );
+		result.initialResidual = rNorm / scale;
+		result.finalResidual = result.initialResidual;
+		if ( result.initialResidual <= tolerance )
+		{
+			result.converged = true;
+			return;
+		}
+
+		double rz = precondition( r, z );
+		System.arraycopy( z, 0, p, 0, size );
+
+		int it = 0;
+		while ( it < maxIterations )
+		{
+			if ( Thread.currentThread().isInterrupted() ) throw new InterruptedException();
+			++it;
+			multiply( p, q );
+			final double pq = dot( p, q );
+			if ( pq <= 0 ) break; // numerically exhausted
+			final double alpha = rz / pq;
+			axpy( alpha, p, x, -alpha, q, r );
+			rNorm = Math.sqrt( dot( r, r ) );
+			result.finalResidual = rNorm / scale;
+			if ( result.finalResidual <= tolerance )
+			{
+				result.converged = true;
+				break;
+			}
+			final double rzNew = precondition( r, z );
+			final double beta = rzNew / rz;
+			rz = rzNew;
+			forEachChunk( new Chunk()
+			{
+				@Override
+				public void run( final int from, final int to, final int chunk )
+				{
+					for ( int i = from * k; i < to * k; ++i ) p[ i ] = z[ i ] + beta * p[ i ];
+				}
+			} );
+		}
+		result.iterations = it;
+	}
+
+	/** x += alpha p and r += beta q, in one pass. */
+	private void axpy( final double alpha, final double[] p, final double[] x, final double beta, final double[] q, final double[] r ) throws Exception
+	{
+		forEachChunk( new Chunk()
+		{
+			@Override
+			public void run( final int from, final int to, final int chunk )
+			{
+				for ( int i = from * k; i < to * k; ++i )
+				{
+					x[ i ] += alpha * p[ i ];
+					r[ i ] += beta * q[ i ];
+				}
+			}
+		} );
+	}
+}
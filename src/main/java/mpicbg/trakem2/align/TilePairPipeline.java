@@ -0,0 +1,365 @@
+package mpicbg.trakem2.align;
+
+import ij.IJ;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.PointMatch;
+
+/**
+ * Extracts the {@link Feature SIFT-features} of tiles and matches pairs of tiles
+ * as a single pipeline, on a work-stealing pool: a tile pair is matched as soon
+ * as the features of both of its tiles exist, rather than once all features of all tiles exist.
+ *
+ * Features are handed from extraction to matching in memory, up to a bound on the number
+ * of features held; beyond it, the oldest are evicted and read back from the feature store
+ * when needed. The features of a tile are dropped as soon as all of its pairs are matched.
+ * Matching tasks are forked from the thread that extracted the last features they need,
+ * and so run before any further extraction in that thread, which keeps the features in memory few.
+ *
+ * Used by {@link Align#connectTilePairs(Align.Param, List, List, int, boolean)}.
+ */
+final class TilePairPipeline
+{
+	/** Fraction of the maximum heap size that in-memory features may take. */
+	static private final double MAX_MEMORY_FRACTION = 0.25;
+
+	final private boolean multipleHypotheses;
+	/** Own pool of each run, rather than a pool shared by all: a run is bounded to the numThreads
+	 *  it is given, and on interruption its pool is shut down to stop its tasks, which a shared pool
+	 *  could not be. Starting the threads costs little next to extracting the features of a tile. */
+	final private ForkJoinPool pool;
+	final private CountDownLatch done;
+	final private AtomicInteger ap = new AtomicInteger( 0 );
+	final private int steps;
+
+	/** Per thread, as SIFT and its parameters are not thread-safe. */
+	final private ThreadLocal< Align.Param > params;
+	final private ThreadLocal< SIFT > sifts;
+
+	/** Pairs that involve each tile to extract, and how many of those are yet to be matched. */
+	final private HashMap< AbstractAffineTile2D< ? >, List< Pair > > pairsOf = new HashMap< AbstractAffineTile2D< ? >, List< Pair > >();
+	final private HashMap< AbstractAffineTile2D< ? >, AtomicInteger > unmatched = new HashMap< AbstractAffineTile2D< ? >, AtomicInteger >();
+
+	/** Features in memory, oldest first, and their total number. Synchronized on itself. */
+	final private LinkedHashMap< AbstractAffineTile2D< ? >, Collection< Feature > > features = new LinkedHashMap< AbstractAffineTile2D< ? >, Collection< Feature > >();
+	private long nFeatures = 0;
+	final private long maxFeatures;
+
+	/* Statistics: counts, and the time spent by all threads, in nanoseconds */
+	final private AtomicInteger nExtracted = new AtomicInteger( 0 ),
+	                            nLoaded = new AtomicInteger( 0 ),
+	                            nMatched = new AtomicInteger( 0 ),
+	                            nFetched = new AtomicInteger( 0 ),
+	                            nEvicted = new AtomicInteger( 0 );
+	final private AtomicLong tExtraction = new AtomicLong( 0 ),
+	                         tMatching = new AtomicLong( 0 );
+
+	final private class Pair
+	{
+		final AbstractAffineTile2D< ? >[] tiles;
+		/** Tiles whose features are yet to be extracted. */
+		final AtomicInteger pending;
+
+		Pair( final AbstractAffineTile2D< ? >[] tiles, final int pending )
+		{
+			this.tiles = tiles;
+			this.pending = new AtomicInteger( pending );
+		}
+	}
+
+	private TilePairPipeline(
+			final Align.Param p,
+			final int nTiles,
+			final int nPairs,
+			final int numThreads,
+			final boolean multipleHypotheses )
+	{
+		this.multipleHypotheses = multipleHypotheses;
+		this.pool = new ForkJoinPool( Math.max( 1, numThreads ) );
+		this.done = new CountDownLatch( nTiles + nPairs );
+		this.steps = nTiles + nPairs;
+		this.params = new ThreadLocal< Align.Param >()
+		{
+			@Override
+			protected Align.Param initialValue()
+			{
+				return p.clone();
+			}
+		};
+		this.sifts = new ThreadLocal< SIFT >()
+		{
+			@Override
+			protected SIFT initialValue()
+			{
+				return new SIFT( new FloatArray2DSIFT( params.get().sift ) );
+			}
+		};
+		// Descriptor floats plus the location, scale, orientation and object headers, roughly
+		final long bytesPerFeature = 4L * p.sift.fdSize * p.sift.fdSize * p.sift.fdBins + 96;
+		this.maxFeatures = Math.max( 1, ( long )( Runtime.getRuntime().maxMemory() * MAX_MEMORY_FRACTION ) / bytesPerFeature );
+	}
+
+	/**
+	 * Connect the tilePairs by geometrically consistent feature correspondences,
+	 * extracting the features of tiles as needed.  If interrupted, returns after
+	 * waiting for the running tasks to stop, with the interrupted status set.
+	 */
+	static final void run(
+			final Align.Param p,
+			final List< AbstractAffineTile2D< ? > > tiles,
+			final List< AbstractAffineTile2D< ? >[] > tilePairs,
+			final int numThreads,
+			final boolean multipleHypotheses )
+	{
+		final ArrayList< AbstractAffineTile2D< ? > > distinct = new ArrayList< AbstractAffineTile2D< ? > >();
+		final HashMap< AbstractAffineTile2D< ? >, Boolean > seen = new HashMap< AbstractAffineTile2D< ? >, Boolean >();
+		for ( final AbstractAffineTile2D< ? > t : tiles )
+			if ( null == seen.put( t, Boolean.TRUE ) ) distinct.add( t );
+
+		final TilePairPipeline pipeline = new TilePairPipeline( p, distinct.size(), tilePairs.size(), numThreads, multipleHypotheses );
+		pipeline.run( distinct, tilePairs );
+	}
+
+	private void run(
+			final List< AbstractAffineTile2D< ? > > tiles,
+			final List< AbstractAffineTile2D< ? >[] > tilePairs )
+	{
+		for ( final AbstractAffineTile2D< ? > t : tiles )
+		{
+			pairsOf.put( t, new ArrayList< Pair >() );
+			unmatched.put( t, new AtomicInteger( 0 ) );
+		}
+		// Pairs with tiles not in the list, e.g. from another layer, fetch their features when matched
+		final ArrayList< Pair > ready = new ArrayList< Pair >();
+		for ( final AbstractAffineTile2D< ? >[] tilePair : tilePairs )
+		{
+			int pending = 0;
+			for ( int k = 0; k < 2; ++k )
+			{
+				if ( pairsOf.containsKey( tilePair[ k ] ) && ( 0 == k || tilePair[ 1 ] != tilePair[ 0 ] ) )
+					++pending;
+			}
+			final Pair pair = new Pair( tilePair, pending );
+			for ( int k = 0; k < 2; ++k )
+			{
+				final List< Pair > ps = pairsOf.get( tilePair[ k ] );
+				if ( null != ps && ( 0 == k || tilePair[ 1 ] != tilePair[ 0 ] ) )
+				{
+					ps.add( pair );
+					unmatched.get( tilePair[ k ] ).incrementAndGet();
+				}
+			}
+			if ( 0 == pending ) ready.add( pair );
+		}
+
+		final long start = System.nanoTime();
+
+		for ( final Pair pair : ready )
+			pool.execute( matchTask( pair ) );
+		for ( int i = 0; i < tiles.size(); ++i )
+			pool.execute( extractTask( tiles.get( i ), i ) );
+
+		try
+		{
+			done.await();
+		}
+		catch ( final InterruptedException e )
+		{
+			Utils.log( "Establishing feature correspondences interrupted." );
+			pool.shutdownNow();
+			// the tasks must not touch the features after they are cleared
+			boolean stopped = false;
+			while ( !stopped )
+			{
+				try
+				{
+					stopped = pool.awaitTermination( 30, TimeUnit.SECONDS );
+					if ( !stopped ) Utils.log( "Waiting for feature extraction and matching tasks to stop..." );
+				}
+				catch ( final InterruptedException ie ) {}
+			}
+			Thread.currentThread().interrupt();
+			IJ.showProgress( 1.0 );
+			return;
+		}
+		finally
+		{
+			pool.shutdown();
+			synchronized ( features )
+			{
+				features.clear();
+			}
+		}
+
+		final double seconds = ( System.nanoTime() - start ) / 1e9;
+		Utils.log( new StringBuilder( "Connected " ).append( tilePairs.size() ).append( " tile pairs of " ).append( tiles.size() ).append( " tiles in " ).append( Utils.cutNumber( seconds, 2 ) ).append( " s:" )
+				.append( "\n  features: " ).append( nExtracted.get() ).append( " tiles extracted, " ).append( nLoaded.get() ).append( " loaded, " )
+				.append( Utils.cutNumber( ( nExtracted.get() + nLoaded.get() ) / seconds, 2 ) ).append( " tiles/s (" ).append( Utils.cutNumber( tExtraction.get() / 1e9, 2 ) ).append( " s in all threads)" )
+				.append( "\n  matching: " ).append( nMatched.get() ).append( " pairs matched, " ).append( nFetched.get() ).append( " loaded, " )
+				.append( Utils.cutNumber( ( nMatched.get() + nFetched.get() ) / seconds, 2 ) ).append( " pairs/s (" ).append( Utils.cutNumber( tMatching.get() / 1e9, 2 ) ).append( " s in all threads)" )
+				.append( "\n  features evicted from memory: " ).append( nEvicted.get() ).append( " tiles" )
+				.toString() );
+	}
+
+	private ForkJoinTask< ? > extractTask( final AbstractAffineTile2D< ? > tile, final int i )
+	{
+		return ForkJoinTask.adapt( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					if ( Thread.currentThread().isInterrupted() ) return;
+					try
+					{
+						final long t0 = System.nanoTime();
+						final Align.Param param = params.get();
+						Collection< Feature > fs = Align.deserializeFeatures( param, tile );
+						if ( null == fs )
+						{
+							fs = Align.extractFeatures( param, sifts.get(), tile, i );
+							nExtracted.incrementAndGet();
+						}
+						else
+						{
+							Utils.log( fs.size() + " features loaded for tile " + i + " \"" + tile.getPatch().getTitle() + "\"." );
+							nLoaded.incrementAndGet();
+						}
+						tExtraction.addAndGet( System.nanoTime() - t0 );
+
+						if ( unmatched.get( tile ).get() > 0 )
+							keep( tile, fs );
+					}
+					catch ( final Throwable t )
+					{
+						// Its pairs will fetch the features themselves
+						IJError.print( t );
+					}
+
+					for ( final Pair pair : pairsOf.get( tile ) )
+					{
+						// Forked: runs in this thread before any further extraction, unless stolen
+						if ( 0 == pair.pending.decrementAndGet() )
+							matchTask( pair ).fork();
+					}
+				}
+				finally
+				{
+					IJ.showProgress( ap.getAndIncrement(), steps );
+					done.countDown();
+				}
+			}
+		} );
+	}
+
+	private ForkJoinTask< ? > matchTask( final Pair pair )
+	{
+		return ForkJoinTask.adapt( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					if ( Thread.currentThread().isInterrupted() ) return;
+					final long t0 = System.nanoTime();
+					final Align.Param param = params.get();
+					final AbstractAffineTile2D< ? >[] tilePair = pair.tiles;
+					Collection< PointMatch > inliers = Align.deserializePointMatches( param, tilePair[ 0 ], tilePair[ 1 ] );
+					if ( null == inliers )
+					{
+						inliers = Align.matchFeaturesAndFindModel(
+								param,
+								tilePair,
+								features( param, tilePair[ 0 ] ),
+								features( param, tilePair[ 1 ] ),
+								new ArrayList< PointMatch >(),
+								multipleHypotheses );
+						nMatched.incrementAndGet();
+					}
+					else
+					{
+						Utils.log( "Point matches for tiles \"" + tilePair[ 0 ].getPatch().getTitle() + "\" and \"" + tilePair[ 1 ].getPatch().getTitle() + "\" fetched from disk cache" );
+						nFetched.incrementAndGet();
+					}
+					Align.connect( param, tilePair, inliers );
+					tMatching.addAndGet( System.nanoTime() - t0 );
+				}
+				catch ( final Throwable t )
+				{
+					IJError.print( t );
+				}
+				finally
+				{
+					for ( int k = 0; k < 2; ++k )
+					{
+						final AtomicInteger n = unmatched.get( pair.tiles[ k ] );
+						if ( null != n && ( 0 == k || pair.tiles[ 1 ] != pair.tiles[ 0 ] ) && 0 == n.decrementAndGet() )
+							drop( pair.tiles[ k ] );
+					}
+					IJ.showProgress( ap.getAndIncrement(), steps );
+					done.countDown();
+				}
+			}
+		} );
+	}
+
+	/** Hold @param fs in memory for the pairs of @param tile, evicting the oldest features beyond {@link #maxFeatures}. */
+	private void keep( final AbstractAffineTile2D< ? > tile, final Collection< Feature > fs )
+	{
+		synchronized ( features )
+		{
+			final Collection< Feature > previous = features.put( tile, fs );
+			if ( null != previous ) nFeatures -= previous.size();
+			nFeatures += fs.size();
+			final Iterator< Map.Entry< AbstractAffineTile2D< ? >, Collection< Feature > > > it = features.entrySet().iterator();
+			while ( nFeatures > maxFeatures && it.hasNext() )
+			{
+				final Map.Entry< AbstractAffineTile2D< ? >, Collection< Feature > > e = it.next();
+				if ( e.getKey() == tile ) continue;
+				nFeatures -= e.getValue().size();
+				it.remove();
+				nEvicted.incrementAndGet();
+			}
+		}
+	}
+
+	private void drop( final AbstractAffineTile2D< ? > tile )
+	{
+		synchronized ( features )
+		{
+			final Collection< Feature > fs = features.remove( tile );
+			if ( null != fs ) nFeatures -= fs.size();
+		}
+	}
+
+	/** The features of @param tile from memory if there, or else from the feature store, or else extracted anew. */
+	private Collection< Feature > features( final Align.Param param, final AbstractAffineTile2D< ? > tile )
+	{
+		synchronized ( features )
+		{
+			final Collection< Feature > fs = features.get( tile );
+			if ( null != fs ) return fs;
+		}
+		return Align.fetchFeatures( param, tile );
+	}
+}
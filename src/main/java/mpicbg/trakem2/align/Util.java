@@ -20,14 +20,12 @@ import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ini.trakem2.Project;
 import ini.trakem2.display.Patch;
-import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.io.PackedFeatures;
 import ini.trakem2.persistence.Loader;
-import ini.trakem2.utils.Utils;
 
 import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -50,36 +48,10 @@ import mpicbg.trakem2.transform.CoordinateTransformList;
  */
 public class Util
 {
-	final static protected class Features implements Serializable
-	{
-		private static final long serialVersionUID = -5707602842402593215L;
-		
-		final Object key;
-		final ArrayList< Feature > features;
-		Features( final Object key, final ArrayList< Feature > features )
-		{
-			this.key = key;
-			this.features = features;
-		}
-	}
-	
-	final static protected class PointMatches implements Serializable
-	{
-		private static final long serialVersionUID = 7905488521562090982L;
-		
-		final Object key;
-		final ArrayList< PointMatch > pointMatches;
-		PointMatches( final Object key, final ArrayList< PointMatch > pointMatches )
-		{
-			this.key = key;
-			this.pointMatches = pointMatches;
-		}
-	}
-	
-	
 	/**
 	 * Save a {@link Collection} of {@link Feature Features} to the TrakEM2
-	 * project folder.  The saved file contains a key {@link Object} which
+	 * project folder, in its {@link PackedFeatures binary feature store}.
+	 * The saved record contains a key {@link Object} which
 	 * may specify the properties of the {@link Feature} {@link Collection}. 
 	 *  
 	 * @param project
@@ -96,18 +68,10 @@ public class Util
 			final long id,
 			final Collection< Feature > f )
 	{
-		final ArrayList< Feature > list = new ArrayList< Feature >();
-		list.addAll( f );
-		
 		final String name = prefix == null ? "features" : prefix + ".features";
 		
 		final Loader loader = project.getLoader();
-		final Features fe = new Features( key, list );
-		return loader.serialize(
-				fe,
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "features.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
+		return PackedFeatures.saveFeatures( loader.getUNUIdFolder() + PackedFeatures.DIR_NAME, name, id, key, f );
 	}
 
 	
@@ -115,7 +79,7 @@ public class Util
 	 * Retrieve a {@link Collection} of {@link Feature Features} from the
 	 * TrakEM2 project folder.  The {@link Collection} is only returned if
 	 * <ol>
-	 * <li>the file as identified by project, prefix, and id exists and</li>
+	 * <li>the record as identified by project, prefix, and id exists and</li>
 	 * <li>its contained key {@link Object#equals(Object) equals} key.</li>
 	 * </ol>
 	 * 
@@ -134,36 +98,13 @@ public class Util
 		final String name = prefix == null ? "features" : prefix + ".features";
 		
 		final Loader loader = project.getLoader();
-
-		final Object ob = loader.deserialize(
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "features.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
-		
-		if ( ob != null )
-		{
-			try
-			{
-				final Features fe = ( Features )ob;
-//				Utils.log( fe.key == null ? "key is null" : key.equals( fe.key ) ? "key is equal" : "key is not equal" );
-				if ( fe.key != null && key.equals( fe.key ) )
-					return fe.features;
-			}
-			catch ( final Exception e )
-			{
-				Utils.log( "Exception during feature deserialization." );
-				e.printStackTrace();
-			}
-		}
-		else
-			Utils.log( "features file null" );
-		return null;
+		return PackedFeatures.loadFeatures( loader.getUNUIdFolder() + PackedFeatures.DIR_NAME, name, id, key );
 	}
 	
 	/**
-	 * Save a {@link Collection} of {@link PointMatch PointMatches} two-sided.
-	 * Creates two serialization files which is desperately required to clean
-	 * up properly invalid serializations on change of a {@link Patch}.
+	 * Save a {@link Collection} of {@link PointMatch PointMatches} two-sided,
+	 * which is desperately required to clean up properly invalid
+	 * serializations on change of a {@link Patch}.
 	 * 
 	 * @param project
 	 * @param key
@@ -181,25 +122,10 @@ public class Util
 			final long id2,
 			final Collection< PointMatch > m )
 	{
-		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
-		list.addAll( m );
-		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
-		PointMatch.flip( m, tsil );
-		
 		final String name = prefix == null ? "pointmatches" : prefix + ".pointmatches";
 		
 		final Loader loader = project.getLoader();
-		return
-			loader.serialize(
-				new PointMatches( key, list ),
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() ) &&
-			loader.serialize(
-				new PointMatches( key, tsil ),
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id2 ) + "_" + Long.toString( id1 ), name, ".ser" ) ).toString() );
+		return PackedFeatures.savePointMatches( loader.getUNUIdFolder() + PackedFeatures.DIR_NAME, name, id1, id2, key, m );
 	}
 	
 	
@@ -213,27 +139,7 @@ public class Util
 		final String name = prefix == null ? "pointmatches" : prefix + ".pointmatches";
 		
 		final Loader loader = project.getLoader();
-		
-		final Object ob = loader.deserialize(
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() );
-		
-		if ( null != ob )
-		{
-			try
-			{
-				final PointMatches pm = ( PointMatches )ob;
-				if ( pm.key != null && key.equals( pm.key ) )
-					return pm.pointMatches;
-			}
-			catch ( final Exception e )
-			{
-				Utils.log( "Exception during pointmatch deserialization." );
-				e.printStackTrace();
-			}
-		}
-		return null;
+		return PackedFeatures.loadPointMatches( loader.getUNUIdFolder() + PackedFeatures.DIR_NAME, name, id1, id2, key );
 	}
 	
 	
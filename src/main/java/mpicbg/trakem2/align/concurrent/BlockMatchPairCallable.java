@@ -20,7 +20,6 @@ import mpicbg.models.PointMatch;
 import mpicbg.trakem2.align.AlignmentUtils;
 import mpicbg.trakem2.align.ElasticLayerAlignment;
 import mpicbg.trakem2.align.Util;
-import mpicbg.trakem2.transform.ExportBestFlatImage;
 import mpicbg.trakem2.util.Pair;
 import mpicbg.trakem2.util.Triple;
 
@@ -201,7 +200,7 @@ public class BlockMatchPairCallable implements
      */
     private Pair< FloatProcessor, FloatProcessor > makeFlatImage( final Layer layer, final List<Patch> patches, final Rectangle box, final double scale )
     {    	
-    	final Pair< FloatProcessor, FloatProcessor > pair = new ExportBestFlatImage( patches, box, 0, scale ).makeFlatFloatGrayImageAndAlpha();
+    	final Pair< FloatProcessor, FloatProcessor > pair = AlignmentUtils.makeFlatFloatGrayImageAndAlpha( layer, patches, box, scale );
     	
     	// Map alpha from 8-bit to the range [0..1]
     	final float[] alpha = (float[]) pair.b.getPixels();
@@ -1,12 +1,9 @@
 package mpicbg.trakem2.transform;
 
-import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Rectangle;
-import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.awt.image.PixelGrabber;
-import java.util.Arrays;
 import java.util.List;
 
 import ij.process.ByteProcessor;
@@ -61,7 +58,28 @@ public class ExportARGB {
 		final ByteProcessor targetMask = new ByteProcessor( width, height );
 		targetMask.setInterpolationMethod( ImageProcessor.BILINEAR );
 
+		renderFromMipMaps( patches, roi.x, roi.y, scale, target, targetMask );
+		
+		return new Pair< ColorProcessor, ByteProcessor >( target, targetMask );
+	}
+	
+	/**
+	 * Paint the mipmaps of the patches into an existing target image and mask, in order,
+	 * reusing the scratch images of the {@link RenderContext} of the current thread.
+	 * Returns nonsense or throws an Exception if mipmaps are not available.
+	 * 
+	 * @param x The world X coordinate that maps to the left edge of the target, which may be fractional so that adjacent tiles of a larger image are seamless.
+	 * @param y The world Y coordinate that maps to the top edge of the target.
+	 * @param scale The scale from world to target pixels.
+	 */
+	static public final void renderFromMipMaps(
+			final List<Patch> patches, final double x, final double y, final double scale,
+			final ColorProcessor target, final ByteProcessor targetMask)
+	{
+		if ( patches.isEmpty() ) return;
+
 		final Loader loader = patches.get(0).getProject().getLoader();
+		final RenderContext context = RenderContext.get();
 
 		for (final Patch patch : patches) {
 			
@@ -73,49 +91,21 @@ public class ExportARGB {
 			// Yes, there is, even though the mipmap images have the alpha pre-multiplied
 			
 			// Work-around strange bug that makes mipmap-loaded images paint with 7-bit depth instead of 8-bit depth
-			final BufferedImage bi = new BufferedImage(mipMap.image.getWidth(null), mipMap.image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
-			final Graphics2D g2d = bi.createGraphics();
-			g2d.drawImage(mipMap.image, 0, 0, null);
-			g2d.dispose();
-			
-			final int[] pix = extractARGBIntArray(bi);
-			bi.flush();
-			
-			// DEBUG: does the BufferedImage have the alpha channel?
-			//{
-			//	final byte[] aa = new byte[pix.length];
-			//	for (int i=0; i<aa.length; ++i) aa[i] = (byte)((pix[i] & 0xff000000) >> 24);
-			//	new ij.ImagePlus("alpha of BI of " + patch.getTitle(), new ByteProcessor(bi.getWidth(), bi.getHeight(), aa)).show();
-			//}
-			// YES: the alpha, containing the outside too. All fine.
+			// The ARGB image is reused for the next patch, and its pixels are used directly, without copying
+			final BufferedImage bi = context.drawARGB( mipMap.image );
 			
 			final ByteProcessor alpha;
-			final ColorProcessor rgb = new ColorProcessor( bi.getWidth(), bi.getHeight(), pix );
+			final ColorProcessor rgb = RenderContext.wrapARGB( bi );
 			
 			if ( patch.hasAlphaChannel() ) {
 				// The mipMap has the alpha channel in it, even if the alpha is pre-multiplied as well onto the images.
-				final byte[]  a = new byte[pix.length];
-				for (int i=0; i<a.length; ++i) {
-					a[i] = (byte )((pix[i] & 0xff000000) >> 24);
-				}
-				alpha = new ByteProcessor(bi.getWidth(), bi.getHeight(), a);
+				alpha = context.alphaOf( bi );
 			} else {
-				alpha = new ByteProcessor( bi.getWidth(), bi.getHeight() );
-				Arrays.fill( (byte[]) alpha.getPixels(), (byte)255 );
+				alpha = context.opaque( bi.getWidth(), bi.getHeight() );
 			}
 
 			// The affine to apply to the MipMap.image
-			final AffineTransform atc = new AffineTransform();
-			atc.scale( scale, scale );
-			atc.translate( -roi.x, -roi.y );
-			
-			final AffineTransform at = new AffineTransform();
-			at.preConcatenate( atc );
-			at.concatenate( patch.getAffineTransform() );
-			at.scale( mipMap.scaleX, mipMap.scaleY );
-			
-			final AffineModel2D aff = new AffineModel2D();
-			aff.set( at );
+			final AffineModel2D aff = context.toTarget( patch.getAffineTransform(), x, y, scale, mipMap.scaleX, mipMap.scaleY );
 			
 			final CoordinateTransformMesh mesh = new CoordinateTransformMesh( aff, patch.getMeshResolution(), bi.getWidth(), bi.getHeight() );
 			final TransformMeshMappingWithMasks< CoordinateTransformMesh > mapping = new TransformMeshMappingWithMasks< CoordinateTransformMesh >( mesh );
@@ -124,8 +114,6 @@ public class ExportARGB {
 			rgb.setInterpolationMethod( ImageProcessor.BILINEAR );
 			mapping.map(rgb, alpha, target, targetMask);
 		}
-		
-		return new Pair< ColorProcessor, ByteProcessor >( target, targetMask );
 	}
 	
 	/**
@@ -145,6 +133,24 @@ public class ExportARGB {
 		final ByteProcessor targetMask = new ByteProcessor( target.getWidth(), target.getHeight() );
 		targetMask.setInterpolationMethod( ImageProcessor.BILINEAR );
 
+		renderFromOriginals( patches, roi.x, roi.y, scale, target, targetMask );
+		
+		return new Pair< ColorProcessor, ByteProcessor >( target, targetMask );
+	}
+	
+	/**
+	 * Paint the original images of the patches into an existing target image and mask, in order,
+	 * reusing the scratch images of the {@link RenderContext} of the current thread.
+	 * 
+	 * @param x The world X coordinate that maps to the left edge of the target, which may be fractional so that adjacent tiles of a larger image are seamless.
+	 * @param y The world Y coordinate that maps to the top edge of the target.
+	 * @param scale The scale from world to target pixels.
+	 */
+	static public final void renderFromOriginals(
+			final List<Patch> patches, final double x, final double y, final double scale,
+			final ColorProcessor target, final ByteProcessor targetMask)
+	{
+		final RenderContext context = RenderContext.get();
 		for (final Patch patch : patches) {
 			final Patch.PatchImage pai = patch.createTransformedImage();
 			final ColorProcessor fp = (ColorProcessor) pai.target.convertToRGB();
@@ -156,8 +162,7 @@ public class ExportARGB {
 			
 			if ( null == pai.mask ) {
 				if ( null == pai.outside ) {
-					alpha = new ByteProcessor( fp.getWidth(), fp.getHeight() );
-					Arrays.fill( ( byte[] )alpha.getPixels(), (byte)255 ); // fully opaque
+					alpha = context.opaque( fp.getWidth(), fp.getHeight() ); // fully opaque
 				} else {
 					alpha = pai.outside;
 				}
@@ -166,16 +171,7 @@ public class ExportARGB {
 			}
 
 			// The affine to apply
-			final AffineTransform atc = new AffineTransform();
-			atc.scale( scale, scale );
-			atc.translate( -roi.x, -roi.y );
-			
-			final AffineTransform at = new AffineTransform();
-			at.preConcatenate( atc );
-			at.concatenate( patch.getAffineTransform() );
-			
-			final AffineModel2D aff = new AffineModel2D();
-			aff.set( at );
+			final AffineModel2D aff = context.toTarget( patch.getAffineTransform(), x, y, scale, 1.0, 1.0 );
 			
 			final CoordinateTransformMesh mesh = new CoordinateTransformMesh( aff, patch.getMeshResolution(), fp.getWidth(), fp.getHeight() );
 			final TransformMeshMappingWithMasks< CoordinateTransformMesh > mapping = new TransformMeshMappingWithMasks< CoordinateTransformMesh >( mesh );
@@ -185,7 +181,5 @@ public class ExportARGB {
 			
 			mapping.map( fp, alpha, target, targetMask );
 		}
-		
-		return new Pair< ColorProcessor, ByteProcessor >( target, targetMask );
 	}
 }
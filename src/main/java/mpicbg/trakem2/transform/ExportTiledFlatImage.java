@@ -0,0 +1,133 @@
+package mpicbg.trakem2.transform;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.io.TileWriter;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Export a flat image of a {@link Layer} of any size, tile by tile, straight into a {@link TileWriter}.
+ *
+ * Tiles are rendered in parallel, from mipmaps or from the original images, with the same
+ * mapping as {@link ExportUnsignedByte#makeFlatImage} and {@link ExportARGB#makeFlatImageARGB}.
+ * Each tile is handed to the writer as soon as it is done, and no more tiles are rendered
+ * at a time than there are threads, so that memory use is bounded by the tile size
+ * times the number of threads, regardless of the size of the ROI. Each thread reuses its
+ * target images, and the scratch images for painting each patch, from one tile to the next.
+ */
+public class ExportTiledFlatImage
+{
+	/**
+	 * @param layer The layer whose visible images to export.
+	 * @param roi The area to export, in world coordinates.
+	 * @param scale The scale of the exported image, larger than zero and at most 1 when using mipmaps.
+	 * @param use_mipmaps Whether to render from mipmaps or from the original images.
+	 * @param numThreads The number of tiles to render at a time.
+	 * @param writer The destination, which must be {@code (int)(roi.width * scale)} by {@code (int)(roi.height * scale)} pixels large,
+	 *               and of type ImagePlus.GRAY8 or ImagePlus.COLOR_RGB. It is not closed.
+	 * @return The number of tiles written, which excludes those without any image.
+	 * @throws Exception If rendering or writing any tile fails, or if interrupted.
+	 */
+	static public final int export(
+			final Layer layer,
+			final Rectangle roi,
+			final double scale,
+			final boolean use_mipmaps,
+			final int numThreads,
+			final TileWriter writer) throws Exception
+	{
+		final int type = writer.getType();
+		if ( ImagePlus.GRAY8 != type && ImagePlus.COLOR_RGB != type )
+			throw new IllegalArgumentException( "Can only export 8-bit or RGB flat images." );
+
+		final int tileWidth = writer.getTileWidth(),
+		          tileHeight = writer.getTileHeight(),
+		          nCols = ( writer.getWidth() + tileWidth - 1 ) / tileWidth,
+		          nRows = ( writer.getHeight() + tileHeight - 1 ) / tileHeight;
+
+		// In painting order
+		final ArrayList< Patch > patches = layer.getPatches( true );
+
+		final ExportUnsignedByte.ImageSource source = use_mipmaps ? new ExportUnsignedByte.MipMapSource() : new ExportUnsignedByte.OriginalSource();
+		final AtomicInteger count = new AtomicInteger( 0 );
+
+		final ExecutorService exec = Utils.newFixedThreadPool( Math.max( 1, numThreads ), "T2-ExportTiles" );
+		final LinkedList< Future< ? > > fus = new LinkedList< Future< ? > >();
+		try {
+			for ( int row = 0; row < nRows; ++row ) {
+				for ( int col = 0; col < nCols; ++col ) {
+					if ( Thread.currentThread().isInterrupted() ) throw new InterruptedException();
+
+					// World origin of the tile: fractional, so that tiles are seamless
+					final double x = roi.x + col * tileWidth / scale,
+					             y = roi.y + row * tileHeight / scale;
+					final int w = Math.min( tileWidth, writer.getWidth() - col * tileWidth ),
+					          h = Math.min( tileHeight, writer.getHeight() - row * tileHeight );
+					// World bounds of the tile, enlarged by a pixel for interpolation
+					final Rectangle bounds = new Rectangle(
+							( int )Math.floor( x ) - 1,
+							( int )Math.floor( y ) - 1,
+							( int )Math.ceil( w / scale ) + 3,
+							( int )Math.ceil( h / scale ) + 3 );
+
+					final List< Patch > ps = new ArrayList< Patch >();
+					for ( final Patch patch : patches ) {
+						if ( patch.getBoundingBox().intersects( bounds ) ) ps.add( patch );
+					}
+					if ( ps.isEmpty() ) continue;
+
+					// Bound the number of tiles in flight
+					while ( fus.size() >= Math.max( 1, numThreads ) ) fus.removeFirst().get();
+
+					final int c = col,
+					          r = row;
+					fus.add( exec.submit( new Runnable() {
+						@Override
+						public void run() {
+							try {
+								// Target images are reused for the next tile rendered by this thread
+								final RenderContext context = RenderContext.get();
+								final ImageProcessor tile;
+								final ByteProcessor mask = context.targetMask( w, h );
+								if ( ImagePlus.GRAY8 == type ) {
+									final ByteProcessor bp = context.target( w, h );
+									ExportUnsignedByte.render( ps, x, y, scale, source, bp, mask );
+									tile = bp;
+								} else {
+									final ColorProcessor cp = context.targetRGB( w, h );
+									if ( use_mipmaps ) ExportARGB.renderFromMipMaps( ps, x, y, scale, cp, mask );
+									else ExportARGB.renderFromOriginals( ps, x, y, scale, cp, mask );
+									tile = cp;
+								}
+								writer.write( c, r, tile );
+								count.incrementAndGet();
+							} catch ( final Exception e ) {
+								throw new RuntimeException( "Failed to export tile at column " + c + ", row " + r, e );
+							}
+						}
+					} ) );
+				}
+			}
+			for ( final Future< ? > fu : fus ) fu.get();
+		} catch ( final ExecutionException ee ) {
+			throw ee.getCause() instanceof Exception ? ( Exception )ee.getCause() : ee;
+		} finally {
+			exec.shutdownNow();
+		}
+
+		return count.get();
+	}
+}
@@ -1,15 +1,10 @@
 package mpicbg.trakem2.transform;
 
-import java.awt.Graphics2D;
 import java.awt.Rectangle;
-import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
-import java.util.Arrays;
 import java.util.List;
 
 import ij.plugin.filter.GaussianBlur;
 import ij.process.ByteProcessor;
-import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 import ini.trakem2.display.MipMapImage;
 import ini.trakem2.display.Patch;
@@ -47,12 +42,25 @@ public class ExportUnsignedByte
 	static public interface ImageSource
 	{
 		ImageData fetch(Patch p, double scale);
+
+		/** As {@link #fetch(Patch, double)}, but may return images that belong to the @param context,
+		 *  and which are therefore only valid until the next call with the same context. */
+		default ImageData fetch(final Patch p, final double scale, final RenderContext context)
+		{
+			return fetch( p, scale );
+		}
 	}
 	
 	static public class MipMapSource implements ImageSource
 	{
 		@Override
 		public final ImageData fetch(final Patch patch, final double scale)
+		{
+			return fetch( patch, scale, new RenderContext() );
+		}
+
+		@Override
+		public final ImageData fetch(final Patch patch, final double scale, final RenderContext context)
 		{
 			// The scale must be adjusted for the scaling introduced by the Patch affine transform.
 			final double aK = Math.max( patch.getWidth() / patch.getOWidth(),
@@ -63,27 +71,20 @@ public class ExportUnsignedByte
 			// MipMap image, already including any coordinate transforms and the alpha mask (if any), by definition.
 			final MipMapImage mipMap = patch.getProject().getLoader().fetchImage(patch, K);
 
-			// Place the mipMap data into FloatProcessors
-			final ByteProcessor bp; // new ByteProcessor(mipMap.image.getWidth( null ), mipMap.image.getHeight( null ));
+			final ByteProcessor bp;
 			final ByteProcessor alpha;
 
 			// Transfer pixels to a grey image (avoids incorrect readings for ARGB images that end up cropping down to 7-bit)
-			final BufferedImage bi = new BufferedImage(mipMap.image.getWidth(null), mipMap.image.getHeight(null), BufferedImage.TYPE_BYTE_GRAY);
-			final Graphics2D g = bi.createGraphics();
-			g.drawImage(mipMap.image, 0, 0, null);
-			g.dispose();
-
-			// Extract pixels from grey image and copy into fp
-			bp = new ByteProcessor( bi );
+			// and use its pixels directly, without copying
+			bp = RenderContext.wrapGrey( context.drawGrey( mipMap.image ) );
 
 			// Extract the alpha channel from the mipmap, if any
 			if ( patch.hasAlphaChannel() )
 			{
-				alpha = new ColorProcessor( mipMap.image ).getChannel( 4, null );
+				alpha = context.alphaOf( context.drawARGB( mipMap.image ) );
 			} else {
 				// The default: full opacity
-				alpha = new ByteProcessor( bp.getWidth(), bp.getHeight() );
-				Arrays.fill( ( byte[] )alpha.getPixels(), (byte)255 );
+				alpha = context.opaque( bp.getWidth(), bp.getHeight() );
 			}
 			
 			return new ImageData( bp, alpha, mipMap.scaleX, mipMap.scaleY );
@@ -94,6 +95,12 @@ public class ExportUnsignedByte
 	{
 		@Override
 		public final ImageData fetch(final Patch patch, final double scale)
+		{
+			return fetch( patch, scale, new RenderContext() );
+		}
+
+		@Override
+		public final ImageData fetch(final Patch patch, final double scale, final RenderContext context)
 		{
 			Patch.PatchImage pai = patch.createTransformedImage();
 			
@@ -128,8 +135,7 @@ public class ExportUnsignedByte
 	    		mask.setInterpolationMethod( ImageProcessor.NEAREST_NEIGHBOR );
 	    		alpha = (ByteProcessor) mask.resize( s_width, s_height );
 	    	} else {
-	    		alpha = new ByteProcessor( s_width, s_height );
-				Arrays.fill( ( byte[] )alpha.getPixels(), (byte)255 );
+	    		alpha = context.opaque( s_width, s_height );
 	    	}
 	    	
 	    	return new ImageData(
@@ -152,21 +158,34 @@ public class ExportUnsignedByte
 		final ByteProcessor targetMask = new ByteProcessor( target.getWidth(), target.getHeight() );
 		targetMask.setInterpolationMethod( ImageProcessor.NEAREST_NEIGHBOR );
 
+		render( patches, roi.x, roi.y, scale, fetcher, target, targetMask );
+		
+		return new Pair< >( target, targetMask );
+	}
+
+	/**
+	 * Paint the patches into an existing target image and mask, in order,
+	 * reusing the scratch images of the {@link RenderContext} of the current thread.
+	 * 
+	 * @param x The world X coordinate that maps to the left edge of the target, which may be fractional so that adjacent tiles of a larger image are seamless.
+	 * @param y The world Y coordinate that maps to the top edge of the target.
+	 * @param scale The scale from world to target pixels.
+	 */
+	static public final void render(
+			final List<Patch> patches,
+			final double x,
+			final double y,
+			final double scale,
+			final ImageSource fetcher,
+			final ByteProcessor target,
+			final ByteProcessor targetMask)
+	{
+		final RenderContext context = RenderContext.get();
 		for (final Patch patch : patches) {
-			final ImageData imgd = fetcher.fetch( patch, scale );
+			final ImageData imgd = fetcher.fetch( patch, scale, context );
 
 			// The affine to apply to the MipMap.image
-			final AffineTransform atc = new AffineTransform();
-			atc.scale( scale, scale );
-			atc.translate( -roi.x, -roi.y );
-			
-			final AffineTransform at = new AffineTransform();
-			at.preConcatenate( atc );
-			at.concatenate( patch.getAffineTransform() );
-			at.scale( imgd.scaleX, imgd.scaleY );
-			
-			final AffineModel2D aff = new AffineModel2D();
-			aff.set( at );
+			final AffineModel2D aff = context.toTarget( patch.getAffineTransform(), x, y, scale, imgd.scaleX, imgd.scaleY );
 			
 			final CoordinateTransformMesh mesh = new CoordinateTransformMesh( aff, patch.getMeshResolution(), imgd.bp.getWidth(), imgd.bp.getHeight() );
 			final TransformMeshMappingWithMasks< CoordinateTransformMesh > mapping = new TransformMeshMappingWithMasks< >( mesh );
@@ -176,7 +195,5 @@ public class ExportUnsignedByte
 			
 			mapping.map( imgd.bp, imgd.alpha, target, targetMask );
 		}
-		
-		return new Pair< >( target, targetMask );
 	}
 }
@@ -0,0 +1,188 @@
+package mpicbg.trakem2.transform;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ini.trakem2.utils.CachingThread;
+
+/**
+ * Scratch images, pixel arrays and transforms for painting one {@link ini.trakem2.display.Patch}
+ * after another into a flat image, reused across patches and across the tiles of an export
+ * instead of being allocated anew for each.
+ *
+ * Each {@link CachingThread}, which includes the threads of {@link ini.trakem2.utils.Utils#newFixedThreadPool(int, String)},
+ * keeps its own instance, obtained with {@link #get()}; any other thread gets a new instance, to be reused
+ * for as long as the caller holds on to it. An instance is not thread-safe.
+ *
+ * Whatever an instance returns is only valid until the next call to the same method:
+ * images and processors are reused when the requested dimensions match those of the previous call.
+ * Buffers of more than {@link #MAX_PIXELS} are never kept.
+ */
+public final class RenderContext
+{
+	/** Largest image, in pixels, whose buffers are kept for reuse. */
+	static public final int MAX_PIXELS = 4096 * 4096;
+
+	private BufferedImage grey = null,
+	                      argb = null;
+	private ByteProcessor alpha = null,
+	                      opaque = null,
+	                      target = null,
+	                      targetMask = null;
+	private ColorProcessor targetRGB = null;
+
+	private final AffineTransform at = new AffineTransform();
+	private final AffineModel2D model = new AffineModel2D();
+
+	/** The instance of the current thread if it is a {@link CachingThread}, or a new instance otherwise. */
+	static public final RenderContext get() {
+		final Thread t = Thread.currentThread();
+		if (t instanceof CachingThread) {
+			final CachingThread c = (CachingThread) t;
+			final Object o = c.getRenderContext();
+			if (o instanceof RenderContext) return (RenderContext) o;
+			final RenderContext context = new RenderContext();
+			c.setRenderContext(context);
+			return context;
+		}
+		return new RenderContext();
+	}
+
+	static private final boolean fits(final BufferedImage bi, final int width, final int height) {
+		return null != bi && bi.getWidth() == width && bi.getHeight() == height;
+	}
+
+	static private final boolean fits(final ByteProcessor bp, final int width, final int height) {
+		return null != bp && bp.getWidth() == width && bp.getHeight() == height;
+	}
+
+	static private final boolean keep(final int width, final int height) {
+		return (long)width * height <= MAX_PIXELS;
+	}
+
+	/** @return An 8-bit grey image, black, with @param img drawn into it; its pixels are those of {@link #wrapGrey(BufferedImage)}. */
+	public final BufferedImage drawGrey(final Image img) {
+		final int width = img.getWidth(null),
+		          height = img.getHeight(null);
+		final BufferedImage bi;
+		if (fits(grey, width, height)) {
+			bi = grey;
+			Arrays.fill(((DataBufferByte)bi.getRaster().getDataBuffer()).getData(), (byte)0);
+		} else {
+			bi = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+			if (keep(width, height)) grey = bi;
+		}
+		final Graphics2D g = bi.createGraphics();
+		g.drawImage(img, 0, 0, null);
+		g.dispose();
+		return bi;
+	}
+
+	/** @return An ARGB image, fully transparent, with @param img drawn into it; its pixels are those of {@link #wrapARGB(BufferedImage)}. */
+	public final BufferedImage drawARGB(final Image img) {
+		final int width = img.getWidth(null),
+		          height = img.getHeight(null);
+		final BufferedImage bi;
+		if (fits(argb, width, height)) {
+			bi = argb;
+			Arrays.fill(((DataBufferInt)bi.getRaster().getDataBuffer()).getData(), 0);
+		} else {
+			bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			if (keep(width, height)) argb = bi;
+		}
+		final Graphics2D g = bi.createGraphics();
+		g.drawImage(img, 0, 0, null);
+		g.dispose();
+		return bi;
+	}
+
+	/** A ByteProcessor sharing the pixel array of @param bi, as returned by {@link #drawGrey(Image)}. */
+	static public final ByteProcessor wrapGrey(final BufferedImage bi) {
+		return new ByteProcessor(bi.getWidth(), bi.getHeight(), ((DataBufferByte)bi.getRaster().getDataBuffer()).getData(), null);
+	}
+
+	/** A ColorProcessor sharing the pixel array of @param bi, as returned by {@link #drawARGB(Image)}. */
+	static public final ColorProcessor wrapARGB(final BufferedImage bi) {
+		return new ColorProcessor(bi.getWidth(), bi.getHeight(), ((DataBufferInt)bi.getRaster().getDataBuffer()).getData());
+	}
+
+	/** @return The alpha channel of @param bi, an image as returned by {@link #drawARGB(Image)}. */
+	public final ByteProcessor alphaOf(final BufferedImage bi) {
+		final int width = bi.getWidth(),
+		          height = bi.getHeight();
+		final ByteProcessor a;
+		if (fits(alpha, width, height)) {
+			a = alpha;
+		} else {
+			a = new ByteProcessor(width, height);
+			if (keep(width, height)) alpha = a;
+		}
+		final int[] pix = ((DataBufferInt)bi.getRaster().getDataBuffer()).getData();
+		final byte[] b = (byte[])a.getPixels();
+		for (int i=0; i<b.length; ++i) {
+			b[i] = (byte)(pix[i] >> 24);
+		}
+		return a;
+	}
+
+	/** @return A fully opaque mask, which must not be modified. */
+	public final ByteProcessor opaque(final int width, final int height) {
+		if (fits(opaque, width, height)) return opaque;
+		final ByteProcessor bp = new ByteProcessor(width, height);
+		Arrays.fill((byte[])bp.getPixels(), (byte)255);
+		if (keep(width, height)) opaque = bp;
+		return bp;
+	}
+
+	/** @return A black 8-bit image to paint into. */
+	public final ByteProcessor target(final int width, final int height) {
+		if (fits(target, width, height)) {
+			Arrays.fill((byte[])target.getPixels(), (byte)0);
+			return target;
+		}
+		final ByteProcessor bp = new ByteProcessor(width, height);
+		if (keep(width, height)) target = bp;
+		return bp;
+	}
+
+	/** @return A fully transparent mask to paint into, distinct from {@link #target(int, int)}. */
+	public final ByteProcessor targetMask(final int width, final int height) {
+		if (fits(targetMask, width, height)) {
+			Arrays.fill((byte[])targetMask.getPixels(), (byte)0);
+			return targetMask;
+		}
+		final ByteProcessor bp = new ByteProcessor(width, height);
+		if (keep(width, height)) targetMask = bp;
+		return bp;
+	}
+
+	/** @return A black RGB image to paint into. */
+	public final ColorProcessor targetRGB(final int width, final int height) {
+		if (null != targetRGB && targetRGB.getWidth() == width && targetRGB.getHeight() == height) {
+			Arrays.fill((int[])targetRGB.getPixels(), 0);
+			return targetRGB;
+		}
+		final ColorProcessor cp = new ColorProcessor(width, height);
+		if (keep(width, height)) targetRGB = cp;
+		return cp;
+	}
+
+	/** @return The affine that maps the image of a patch, scaled by @param imageScaleX, @param imageScaleY,
+	 *  into a target image whose top-left corner is at world coordinates @param x, @param y and which is scaled by @param scale. */
+	public final AffineModel2D toTarget(final AffineTransform patchAffine, final double x, final double y, final double scale,
+			final double imageScaleX, final double imageScaleY) {
+		at.setToScale(scale, scale);
+		at.translate(-x, -y);
+		at.concatenate(patchAffine);
+		at.scale(imageScaleX, imageScaleY);
+		model.set(at);
+		return model;
+	}
+}
@@ -0,0 +1,191 @@
+package ini.trakem2.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests {@link PackFile}: appending, scanning on reopening, removing, recovering from a truncated tail, and compacting. */
+public class PackFileTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static private final class TestPack extends PackFile {
+		TestPack(final File file) throws IOException {
+			super(file, new byte[]{'T', 'E', 'S', 'T'}, 1);
+		}
+		void put(final String key, final byte[] data) throws IOException {
+			append(key, data);
+		}
+		byte[] get(final String key) {
+			final ByteBuffer b = readRecord(key);
+			if (null == b) return null;
+			final byte[] data = new byte[b.remaining()];
+			b.get(data);
+			return data;
+		}
+	}
+
+	static private final byte[] bytes(final int length, final int seed) {
+		final byte[] b = new byte[length];
+		for (int i=0; i<length; ++i) b[i] = (byte)(seed + i * 7);
+		return b;
+	}
+
+	@Test
+	public void testAppendAndReopen() throws IOException {
+		final File file = folder.newFile("a.pak");
+		TestPack pack = new TestPack(file);
+		pack.put("a/1", bytes(10, 1));
+		pack.put("a/2", bytes(100000, 2));
+		pack.put("b/1", bytes(0, 3));
+		pack.put("a/1", bytes(20, 4)); // overwrite
+		assertEquals(3, pack.size());
+		assertArrayEquals(bytes(20, 4), pack.get("a/1"));
+		assertArrayEquals(bytes(100000, 2), pack.get("a/2"));
+		assertArrayEquals(new byte[0], pack.get("b/1"));
+		assertNull(pack.get("c/1"));
+		pack.closeChannel();
+
+		pack = new TestPack(file);
+		assertEquals(3, pack.size());
+		assertArrayEquals(bytes(20, 4), pack.get("a/1"));
+		assertArrayEquals(bytes(100000, 2), pack.get("a/2"));
+		assertArrayEquals(new byte[0], pack.get("b/1"));
+		final ArrayList<String> keys = pack.keys("a/");
+		Collections.sort(keys);
+		assertEquals(2, keys.size());
+		assertEquals("a/1", keys.get(0));
+		assertEquals("a/2", keys.get(1));
+		pack.closeChannel();
+	}
+
+	@Test
+	public void testRemove() throws IOException {
+		final File file = folder.newFile("b.pak");
+		TestPack pack = new TestPack(file);
+		pack.put("a", bytes(10, 1));
+		pack.put("b", bytes(10, 2));
+		assertTrue(pack.remove("a"));
+		assertFalse(pack.remove("a"));
+		assertFalse(pack.contains("a"));
+		assertNull(pack.get("a"));
+		pack.closeChannel();
+
+		// The tombstone survives reopening
+		pack = new TestPack(file);
+		assertFalse(pack.contains("a"));
+		assertEquals(1, pack.size());
+		assertArrayEquals(bytes(10, 2), pack.get("b"));
+
+		// A key can be written again after its removal
+		pack.put("a", bytes(5, 3));
+		pack.closeChannel();
+		pack = new TestPack(file);
+		assertArrayEquals(bytes(5, 3), pack.get("a"));
+		pack.closeChannel();
+	}
+
+	@Test
+	public void testTruncatedTail() throws IOException {
+		final File file = folder.newFile("c.pak");
+		TestPack pack = new TestPack(file);
+		pack.put("first", bytes(100, 1));
+		pack.put("second", bytes(1000, 2));
+		pack.closeChannel();
+
+		// As after a crash while appending the second record
+		final RandomAccessFile ra = new RandomAccessFile(file, "rw");
+		try {
+			ra.setLength(ra.length() - 10);
+		} finally {
+			ra.close();
+		}
+
+		pack = new TestPack(file);
+		assertEquals(1, pack.size());
+		assertArrayEquals(bytes(100, 1), pack.get("first"));
+		assertFalse(pack.contains("second"));
+
+		// A record shorter than the incomplete one must not be followed by its remains
+		pack.put("third", bytes(10, 3));
+		pack.closeChannel();
+		pack = new TestPack(file);
+		assertEquals(2, pack.size());
+		assertArrayEquals(bytes(100, 1), pack.get("first"));
+		assertArrayEquals(bytes(10, 3), pack.get("third"));
+		pack.put("fourth", bytes(50, 4));
+		pack.closeChannel();
+		pack = new TestPack(file);
+		assertEquals(3, pack.size());
+		assertArrayEquals(bytes(50, 4), pack.get("fourth"));
+		pack.closeChannel();
+	}
+
+	@Test(expected = IOException.class)
+	public void testWrongMagic() throws IOException {
+		final File file = folder.newFile("d.pak");
+		final RandomAccessFile ra = new RandomAccessFile(file, "rw");
+		try {
+			ra.write(new byte[]{'N', 'O', 'P', 'E', 0, 0, 0, 1});
+		} finally {
+			ra.close();
+		}
+		new TestPack(file);
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		final File file = folder.newFile("e.pak");
+		TestPack pack = new TestPack(file);
+		for (int i=0; i<10; ++i) {
+			pack.put("k" + i, bytes(1000, i));
+		}
+		// Overwrite and remove most, leaving the file mostly obsolete records
+		for (int i=0; i<10; ++i) {
+			pack.put("k" + i, bytes(500, i + 100));
+		}
+		for (int i=0; i<5; ++i) {
+			pack.remove("k" + i);
+		}
+		assertTrue(pack.isMostlyGarbage());
+		final long before = file.length();
+
+		pack.compact();
+
+		assertFalse(pack.isMostlyGarbage());
+		assertTrue(file.length() < before);
+		assertFalse(new File(file.getAbsolutePath() + ".tmp").exists());
+		assertEquals(5, pack.size());
+		for (int i=5; i<10; ++i) {
+			assertArrayEquals(bytes(500, i + 100), pack.get("k" + i));
+		}
+		// Appending after compacting
+		pack.put("k0", bytes(30, 7));
+		pack.closeChannel();
+
+		pack = new TestPack(file);
+		assertEquals(6, pack.size());
+		assertArrayEquals(bytes(30, 7), pack.get("k0"));
+		for (int i=1; i<5; ++i) {
+			assertFalse(pack.contains("k" + i));
+		}
+		for (int i=5; i<10; ++i) {
+			assertArrayEquals(bytes(500, i + 100), pack.get("k" + i));
+		}
+		pack.closeChannel();
+	}
+}
@@ -0,0 +1,168 @@
+package ini.trakem2.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests that {@link PackedFeatures} returns features and point matches as saved, and removes them. */
+public class PackedFeaturesTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = folder.newFolder("features").getAbsolutePath() + "/";
+	}
+
+	@After
+	public void tearDown() {
+		PackedFeatures.setCompression(false);
+		PackFile.close(dir);
+	}
+
+	static private final ArrayList<Feature> features(final int n) {
+		final ArrayList<Feature> fs = new ArrayList<Feature>();
+		for (int i=0; i<n; ++i) {
+			final float[] descriptor = new float[128];
+			for (int k=0; k<descriptor.length; ++k) descriptor[k] = (float)Math.sin(i * 128 + k);
+			fs.add(new Feature(1.6 + i, -Math.PI + i * 0.1, new double[]{i * 3.5, i * -1.25}, descriptor));
+		}
+		return fs;
+	}
+
+	static private final ArrayList<PointMatch> matches(final int n) {
+		final ArrayList<PointMatch> ms = new ArrayList<PointMatch>();
+		for (int i=0; i<n; ++i) {
+			final Point p1 = new Point(new double[]{i, 2 * i}, new double[]{i + 0.5, 2 * i + 0.5});
+			final Point p2 = new Point(new double[]{-i, 3 * i}, new double[]{-i + 0.25, 3 * i + 0.25});
+			ms.add(new PointMatch(p1, p2, 1.0 / (i + 1)));
+		}
+		return ms;
+	}
+
+	static private final void assertSameFeatures(final List<Feature> expected, final List<Feature> actual) {
+		assertNotNull(actual);
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); ++i) {
+			final Feature e = expected.get(i),
+			              a = actual.get(i);
+			assertEquals(e.scale, a.scale, 0);
+			assertEquals(e.orientation, a.orientation, 0);
+			assertArrayEquals(e.location, a.location, 0);
+			assertArrayEquals(e.descriptor, a.descriptor, 0);
+		}
+	}
+
+	/** Compares @param actual with @param expected, or with its flipped point matches when @param flipped. */
+	static private final void assertSameMatches(final List<PointMatch> expected, final List<PointMatch> actual, final boolean flipped) {
+		assertNotNull(actual);
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); ++i) {
+			final PointMatch e = expected.get(i),
+			                 a = actual.get(i);
+			final Point e1 = flipped ? e.getP2() : e.getP1(),
+			            e2 = flipped ? e.getP1() : e.getP2();
+			assertEquals(e.getWeight(), a.getWeight(), 0);
+			assertArrayEquals(e1.getL(), a.getP1().getL(), 0);
+			assertArrayEquals(e1.getW(), a.getP1().getW(), 0);
+			assertArrayEquals(e2.getL(), a.getP2().getL(), 0);
+			assertArrayEquals(e2.getW(), a.getP2().getW(), 0);
+		}
+	}
+
+	@Test
+	public void testFeatures() {
+		final ArrayList<Feature> fs = features(50);
+		assertTrue(PackedFeatures.saveFeatures(dir, "features", 7, "key", fs));
+		assertSameFeatures(fs, PackedFeatures.loadFeatures(dir, "features", 7, "key"));
+		// Another key, name or id
+		assertNull(PackedFeatures.loadFeatures(dir, "features", 7, "other key"));
+		assertNull(PackedFeatures.loadFeatures(dir, "layer.features", 7, "key"));
+		assertNull(PackedFeatures.loadFeatures(dir, "features", 8, "key"));
+		assertNull(PackedFeatures.loadFeatures(dir, "features", 7 + PackedFeatures.IDS_PER_PACK, "key"));
+		// None
+		assertTrue(PackedFeatures.saveFeatures(dir, "features", 9, "key", new ArrayList<Feature>()));
+		assertEquals(0, PackedFeatures.loadFeatures(dir, "features", 9, "key").size());
+	}
+
+	@Test
+	public void testCompressedFeatures() {
+		final ArrayList<Feature> fs = features(50);
+		PackedFeatures.setCompression(true);
+		assertTrue(PackedFeatures.saveFeatures(dir, "features", 7, "key", fs));
+		PackedFeatures.setCompression(false);
+		// Read regardless of the current setting
+		assertSameFeatures(fs, PackedFeatures.loadFeatures(dir, "features", 7, "key"));
+	}
+
+	@Test
+	public void testRemoveFeatures() {
+		assertTrue(PackedFeatures.saveFeatures(dir, "features", 7, "key", features(3)));
+		assertTrue(PackedFeatures.saveFeatures(dir, "layer.features", 7, "key", features(3)));
+		assertTrue(PackedFeatures.saveFeatures(dir, "features", 17, "key", features(3)));
+		assertTrue(PackedFeatures.removeFeatures(dir, 7));
+		assertNull(PackedFeatures.loadFeatures(dir, "features", 7, "key"));
+		assertNull(PackedFeatures.loadFeatures(dir, "layer.features", 7, "key"));
+		assertSameFeatures(features(3), PackedFeatures.loadFeatures(dir, "features", 17, "key"));
+	}
+
+	@Test
+	public void testPointMatches() {
+		final ArrayList<PointMatch> ms = matches(20);
+		final long id1 = 3,
+		           id2 = 3 + PackedFeatures.IDS_PER_PACK; // in another pack
+		assertTrue(PackedFeatures.savePointMatches(dir, "pointmatches", id1, id2, "key", ms));
+		assertSameMatches(ms, PackedFeatures.loadPointMatches(dir, "pointmatches", id1, id2, "key"), false);
+		assertSameMatches(ms, PackedFeatures.loadPointMatches(dir, "pointmatches", id2, id1, "key"), true);
+		assertNull(PackedFeatures.loadPointMatches(dir, "pointmatches", id1, id2, "other key"));
+
+		PackedFeatures.setCompression(true);
+		assertTrue(PackedFeatures.savePointMatches(dir, "layer.pointmatches", id1, id2, "key", ms));
+		PackedFeatures.setCompression(false);
+		assertSameMatches(ms, PackedFeatures.loadPointMatches(dir, "layer.pointmatches", id2, id1, "key"), true);
+	}
+
+	@Test
+	public void testRemovePointMatches() {
+		final long id1 = 1,
+		           id2 = 1 + PackedFeatures.IDS_PER_PACK,
+		           id3 = 11; // in the pack of id1, and with an id that starts like it
+		assertTrue(PackedFeatures.savePointMatches(dir, "pointmatches", id1, id2, "key", matches(5)));
+		assertTrue(PackedFeatures.savePointMatches(dir, "pointmatches", id3, id1, "key", matches(5)));
+		assertTrue(PackedFeatures.savePointMatches(dir, "pointmatches", id3, id2, "key", matches(5)));
+
+		// Removes the records from id1 and, flipped, those to id1, in both packs
+		assertTrue(PackedFeatures.removePointMatches(dir, id1));
+		assertNull(PackedFeatures.loadPointMatches(dir, "pointmatches", id1, id2, "key"));
+		assertNull(PackedFeatures.loadPointMatches(dir, "pointmatches", id2, id1, "key"));
+		assertNull(PackedFeatures.loadPointMatches(dir, "pointmatches", id1, id3, "key"));
+		assertNull(PackedFeatures.loadPointMatches(dir, "pointmatches", id3, id1, "key"));
+		// but not those of other tiles
+		assertSameMatches(matches(5), PackedFeatures.loadPointMatches(dir, "pointmatches", id3, id2, "key"), false);
+		assertSameMatches(matches(5), PackedFeatures.loadPointMatches(dir, "pointmatches", id2, id3, "key"), true);
+
+		// Also from the second tile of a pair
+		assertTrue(PackedFeatures.removePointMatches(dir, id2));
+		assertNull(PackedFeatures.loadPointMatches(dir, "pointmatches", id3, id2, "key"));
+		assertNull(PackedFeatures.loadPointMatches(dir, "pointmatches", id2, id3, "key"));
+	}
+}
@@ -0,0 +1,113 @@
+package ini.trakem2.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import ini.trakem2.ControlWindow;
+import ini.trakem2.Project;
+import ini.trakem2.display.DLabel;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Node;
+import ini.trakem2.display.Treeline;
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests that a project saved incrementally, into the {@link Journal} next to its XML file,
+ *  reopens through the {@link TMLHandler} to the same state as when saved whole. */
+public class JournalTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	static public void headless() {
+		System.setProperty("java.awt.headless", "true");
+		ControlWindow.setGUIEnabled(false);
+	}
+
+	/** The XML of the layer set, which holds all layers and their contents, in the XML file at @param path. */
+	static private final String layerSetXML(final String path) {
+		final String xml = Utils.openTextFile(path);
+		assertNotNull(xml);
+		final int start = xml.indexOf("<t2_layer_set"),
+		          end = xml.indexOf("</t2_layer_set>");
+		assertTrue(start > -1 && end > start);
+		return xml.substring(start, end);
+	}
+
+	@Test
+	public void testReplayEqualsFullSave() throws Exception {
+		final String dir = folder.newFolder("project").getAbsolutePath() + "/";
+		final Project project = Project.newFSProject("blank", null, dir, false);
+		assertNotNull(project);
+		Project reopened = null;
+		try {
+			project.setProperty("incremental_save", "true");
+			final LayerSet layer_set = project.getRootLayerSet();
+			final Layer layer = layer_set.getLayer(0, 1, true);
+			final DLabel moved = new DLabel(project, "moved", 10, 10),
+			             removed = new DLabel(project, "removed", 20, 20);
+			layer.add(moved);
+			layer.add(removed);
+			final Treeline tree = new Treeline(project, "tree");
+			layer_set.add(tree);
+			project.getProjectTree().insertSegmentations(Arrays.asList(tree));
+			final Treeline.RadiusNode root = new Treeline.RadiusNode(50, 50, layer),
+			                          child = new Treeline.RadiusNode(80, 60, layer);
+			tree.setRoot(root);
+			tree.addNode(root, child, Node.MAX_EDGE_CONFIDENCE);
+
+			// Whole XML file
+			final String xml = project.saveAs(dir + "journaled.xml", true);
+			assertNotNull(xml);
+			final File fxml = new File(xml),
+			           fjournal = new File(xml + ".journal");
+			assertFalse(fjournal.exists());
+			final long xml_length = fxml.length(),
+			           xml_time = fxml.lastModified();
+
+			// Edits that can be journaled: moving, removing and adding objects, and editing the nodes of a tree
+			moved.setLocation(30, 40);
+			removed.remove(false);
+			layer.add(new DLabel(project, "added", 60, 70));
+			tree.addNode(child, new Treeline.RadiusNode(120, 90, layer), Node.MAX_EDGE_CONFIDENCE);
+
+			// Saved into the journal, leaving the XML file as it was
+			assertEquals(xml, project.save());
+			assertTrue(fjournal.exists());
+			assertEquals(xml_length, fxml.length());
+			assertEquals(xml_time, fxml.lastModified());
+
+			// The same state, saved whole elsewhere
+			final String full = project.saveAs(dir + "full.xml", true);
+			assertNotNull(full);
+			assertTrue(fjournal.exists());
+			project.destroy();
+
+			// Reopen replaying the journal, and save whole to compare
+			reopened = Project.openFSProject(xml, false);
+			assertNotNull(reopened);
+			final String replayed = reopened.saveAs(dir + "replayed.xml", true);
+			assertNotNull(replayed);
+
+			final String expected = layerSetXML(full),
+			             actual = layerSetXML(replayed);
+			assertTrue(actual.contains("title=\"added\""));
+			assertFalse(actual.contains("title=\"removed\""));
+			assertEquals(expected, actual);
+		} finally {
+			if (null != reopened) reopened.destroy();
+			project.destroy();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package mpicbg.trakem2.align;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import mpicbg.models.Affine2D;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.Model;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel2D;
+
+import org.junit.Test;
+
+/** Tests that {@link SparseTileSolver} finds the same solution as {@link TileConfiguration#optimize(double, int, int)},
+ *  and that it fixes one tile of each connected graph without any fixed tile. */
+public class SparseTileSolverTest
+{
+	/** Tiles of {@link #SIZE} pixels, {@link #SPACING} pixels apart. */
+	static private final int ROWS = 3,
+	                         COLS = 3,
+	                         SIZE = 100,
+	                         SPACING = 80,
+	                         MATCHES_PER_PAIR = 20;
+
+	/** A tile without a Patch, which none of the tested code needs. */
+	static private final class TestTile< A extends Model< A > & Affine2D< A > > extends AbstractAffineTile2D< A >
+	{
+		TestTile( final A model )
+		{
+			super( model, null );
+		}
+
+		@Override
+		protected void initModel() {}
+	}
+
+	static private final AbstractAffineTile2D< ? > newTile( final boolean affine )
+	{
+		if ( affine ) return new TestTile< AffineModel2D >( new AffineModel2D() );
+		return new TestTile< TranslationModel2D >( new TranslationModel2D() );
+	}
+
+	/**
+	 * A grid of tiles, all starting with identity models, connected to their right and lower neighbours
+	 * by noisy matches of points in their overlap, from ground truth transforms that are translations
+	 * or, when @param affine, slightly rotated and scaled. The same @param seed gives the same grid.
+	 */
+	static private final List< AbstractAffineTile2D< ? > > grid( final boolean affine, final long seed ) throws NoninvertibleTransformException
+	{
+		final Random random = new Random( seed );
+		final ArrayList< AbstractAffineTile2D< ? > > tiles = new ArrayList< AbstractAffineTile2D< ? > >();
+		final AffineTransform[] truth = new AffineTransform[ ROWS * COLS ];
+		for ( int r = 0; r < ROWS; ++r )
+		{
+			for ( int c = 0; c < COLS; ++c )
+			{
+				final AffineTransform at = new AffineTransform();
+				at.translate( c * SPACING + 2 * random.nextGaussian(), r * SPACING + 2 * random.nextGaussian() );
+				if ( affine )
+				{
+					at.rotate( 0.02 * random.nextGaussian(), SIZE / 2, SIZE / 2 );
+					at.scale( 1 + 0.01 * random.nextGaussian(), 1 + 0.01 * random.nextGaussian() );
+				}
+				truth[ r * COLS + c ] = at;
+				tiles.add( newTile( affine ) );
+			}
+		}
+		for ( int r = 0; r < ROWS; ++r )
+		{
+			for ( int c = 0; c < COLS; ++c )
+			{
+				final int a = r * COLS + c;
+				if ( c + 1 < COLS ) connect( tiles.get( a ), truth[ a ], tiles.get( a + 1 ), truth[ a + 1 ], random );
+				if ( r + 1 < ROWS ) connect( tiles.get( a ), truth[ a ], tiles.get( a + COLS ), truth[ a + COLS ], random );
+			}
+		}
+		return tiles;
+	}
+
+	/** Connect @param a and @param b by matches of points within the world bounds of both. */
+	static private final void connect( final Tile< ? > a, final AffineTransform ta, final Tile< ? > b, final AffineTransform tb, final Random random ) throws NoninvertibleTransformException
+	{
+		final Area overlap = new Area( ta.createTransformedShape( new Rectangle( 0, 0, SIZE, SIZE ) ) );
+		overlap.intersect( new Area( tb.createTransformedShape( new Rectangle( 0, 0, SIZE, SIZE ) ) ) );
+		final Rectangle box = overlap.getBounds();
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+		while ( matches.size() < MATCHES_PER_PAIR )
+		{
+			final Point2D.Double w = new Point2D.Double( box.x + random.nextDouble() * box.width, box.y + random.nextDouble() * box.height );
+			if ( !overlap.contains( w ) ) continue;
+			final Point2D la = ta.inverseTransform( w, null ),
+			              lb = tb.inverseTransform( w, null );
+			matches.add( new PointMatch(
+					new Point( new double[]{ la.getX() + 0.5 * random.nextGaussian(), la.getY() + 0.5 * random.nextGaussian() } ),
+					new Point( new double[]{ lb.getX(), lb.getY() } ) ) );
+		}
+		a.connect( b, matches );
+	}
+
+	/** Assert that each tile of @param expected and @param actual maps the corners and center of a tile to within @param epsilon pixels. */
+	static private final void assertSameModels( final List< AbstractAffineTile2D< ? > > expected, final List< AbstractAffineTile2D< ? > > actual, final double epsilon )
+	{
+		final double[][] ps = new double[][]{ { 0, 0 }, { SIZE, 0 }, { 0, SIZE }, { SIZE, SIZE }, { SIZE / 2, SIZE / 2 } };
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			for ( final double[] p : ps )
+			{
+				final double[] e = expected.get( i ).getModel().apply( p ),
+				               a = actual.get( i ).getModel().apply( p );
+				assertEquals( "tile " + i + ", x", e[ 0 ], a[ 0 ], epsilon );
+				assertEquals( "tile " + i + ", y", e[ 1 ], a[ 1 ], epsilon );
+			}
+		}
+	}
+
+	private void testAgreesWithOptimize( final boolean affine, final int type ) throws Exception
+	{
+		final List< AbstractAffineTile2D< ? > > relaxed = grid( affine, 42 ),
+		                                        solved = grid( affine, 42 );
+
+		final TileConfiguration tc = new TileConfiguration();
+		tc.addTiles( relaxed );
+		tc.fixTile( relaxed.get( 0 ) );
+		// A maximal error of zero: iterate until the end, well past convergence for so few tiles
+		tc.optimize( 0, 5000, 5000 );
+
+		final ArrayList< Tile< ? > > fixed = new ArrayList< Tile< ? > >();
+		fixed.add( solved.get( 0 ) );
+		final SparseTileSolver.Result result = SparseTileSolver.solve( solved, fixed, type, 1000, SparseTileSolver.DEFAULT_TOLERANCE, 2 );
+		assertTrue( result.converged );
+		assertEquals( ROWS * COLS - 1, result.nTiles );
+
+		assertSameModels( relaxed, solved, 0.01 );
+	}
+
+	@Test
+	public void testTranslation() throws Exception
+	{
+		testAgreesWithOptimize( false, SparseTileSolver.TRANSLATION );
+	}
+
+	@Test
+	public void testAffine() throws Exception
+	{
+		testAgreesWithOptimize( true, SparseTileSolver.AFFINE );
+	}
+
+	@Test
+	public void testFixFloatingGraphs() throws Exception
+	{
+		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+		for ( int i = 0; i < 8; ++i )
+			tiles.add( newTile( false ) );
+		final ArrayList< PointMatch > none = new ArrayList< PointMatch >();
+		// Graphs {0, 1, 2}, {3, 4}, {5, 6} with 6 fixed, and 7 unconnected
+		tiles.get( 1 ).connect( tiles.get( 0 ), none );
+		tiles.get( 1 ).connect( tiles.get( 2 ), none );
+		tiles.get( 4 ).connect( tiles.get( 3 ), none );
+		tiles.get( 5 ).connect( tiles.get( 6 ), none );
+
+		final Set< Tile< ? > > fixed = new HashSet< Tile< ? > >();
+		fixed.add( tiles.get( 6 ) );
+		SparseTileSolver.fixFloatingGraphs( tiles, fixed );
+
+		// The first tile of each floating graph, and no other
+		assertEquals( 3, fixed.size() );
+		assertTrue( fixed.contains( tiles.get( 0 ) ) );
+		assertTrue( fixed.contains( tiles.get( 3 ) ) );
+		assertTrue( fixed.contains( tiles.get( 6 ) ) );
+		assertFalse( fixed.contains( tiles.get( 7 ) ) );
+	}
+}